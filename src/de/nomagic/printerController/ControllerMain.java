@@ -23,9 +23,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.nio.charset.Charset;
 import java.util.Iterator;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.swing.SwingUtilities;
 
@@ -42,8 +42,15 @@ import de.nomagic.printerController.Interface.InteractiveInterface;
 import de.nomagic.printerController.Interface.StandardStreamInterface;
 import de.nomagic.printerController.Interface.TcpInterface;
 import de.nomagic.printerController.Interface.UdpInterface;
+import de.nomagic.printerController.core.CompiledGCodeFile;
+import de.nomagic.printerController.core.CompiledGCodeReader;
 import de.nomagic.printerController.core.CoreStateMachine;
 import de.nomagic.printerController.core.Executor;
+import de.nomagic.printerController.core.GCode;
+import de.nomagic.printerController.core.GCodeCompiler;
+import de.nomagic.printerController.core.GCodeLineSource;
+import de.nomagic.printerController.core.MappedGCodeReader;
+import de.nomagic.printerController.core.ParallelGCodeReader;
 import de.nomagic.printerController.core.Reference;
 import de.nomagic.printerController.gui.MainWindow;
 
@@ -58,6 +65,9 @@ public class ControllerMain implements CloseApplication, GCodeResultStream
     private final Logger log = (Logger) LoggerFactory.getLogger(this.getClass().getName());
     private final Cfg cfg = new Cfg();
     private String fileToPrint = null;
+    private String compiledFile = null;
+    private int clientStepsPerSecond = 0;
+    private int parseThreads = 0;
     private boolean hasReadConfiguration = false;
     private boolean shallStartGui = true;
     private boolean shallStartTcp = false;
@@ -108,7 +118,12 @@ public class ControllerMain implements CloseApplication, GCodeResultStream
         System.out.println("Printer Controller for Pacemaker");
         System.out.println("Parameters:");
         System.out.println("-h                         : print this message.");
-        System.out.println("-p <G-Code File>           : print the file and exit(does not start other interfaces)");
+        System.out.println("-p <G-Code File>           : print the file and exit(does not start other interfaces)\n"
+                         + "                           : files ending with " + CompiledGCodeFile.FILE_EXTENSION
+                         + " get replayed as compiled file");
+        System.out.println("--compile <Compiled File>  : compile the file given with -p instead of printing it");
+        System.out.println("--client-rate <steps/s>    : step rate of the clients, needed for --compile");
+        System.out.println("--parse-threads <n>        : parse the file given with -p on n threads ahead of printing it");
         System.out.println("-r <Configuration File>    : read configuration from file\n"
                          + "                           : defaults to " + DEFAULT_CONFIGURATION_FILE_NAME);
         System.out.println("-c TCP:<host or ip>:<port> : connect to client using TCP");
@@ -194,6 +209,37 @@ public class ControllerMain implements CloseApplication, GCodeResultStream
                     fileToPrint = args[i];
 
                 }
+                else if(true == "--compile".equals(args[i]))
+                {
+                    i++;
+                    compiledFile = args[i];
+                }
+                else if(true == "--client-rate".equals(args[i]))
+                {
+                    i++;
+                    try
+                    {
+                        clientStepsPerSecond = Integer.parseInt(args[i]);
+                    }
+                    catch(final NumberFormatException e)
+                    {
+                        System.err.println("Invalid client step rate : " + args[i]);
+                        return false;
+                    }
+                }
+                else if(true == "--parse-threads".equals(args[i]))
+                {
+                    i++;
+                    try
+                    {
+                        parseThreads = Integer.parseInt(args[i]);
+                    }
+                    catch(final NumberFormatException e)
+                    {
+                        System.err.println("Invalid number of parse threads : " + args[i]);
+                        return false;
+                    }
+                }
                 else if(true == "-r".equals(args[i]))
                 {
                     i++;
@@ -307,33 +353,25 @@ public class ControllerMain implements CloseApplication, GCodeResultStream
             System.err.println("Could not Connect to Pacemaker Client !");
             return;
         }
+        if(true == CompiledGCodeFile.isCompiledFileName(fileToPrint))
+        {
+            replayCompiledFile(pp);
+            return;
+        }
 
-        String line;
         try
         {
-            int linecount = 0;
-            final InputStream fis = new FileInputStream(fileToPrint);
-            final BufferedReader br = new BufferedReader(
-                    new InputStreamReader(fis, Charset.forName("UTF-8")) );
-            while ((line = br.readLine()) != null)
+            if(0 < parseThreads)
             {
-                System.out.print("\rNow sending Line " + linecount + "  ");
-                linecount ++;
-                final String lineResult = pp.executeGCode(line, this);
-                writeLine(lineResult);
-                if(true  == lineResult.startsWith("!!"))
-                {
-                    log.error("Failed to send the Line : {} !", line);
-                    log.error("The Reply was : {} !", lineResult);
-                    log.error("The Problem was : {} !", pp.getLastErrorReason());
-                    break;
-                }
+                sendParsedLines(pp);
+            }
+            else
+            {
+                sendLines(pp);
             }
             // flush movement queue
             Executor exe = pp.getExecutor();
             exe.letMovementStop(new Reference("G-Code File"));
-            log.trace("Closing G-Code File,..");
-            br.close();
         }
         catch (final FileNotFoundException e)
         {
@@ -352,6 +390,122 @@ public class ControllerMain implements CloseApplication, GCodeResultStream
         log.trace("Finished Sending the G-Code File.");
     }
 
+    private void sendLines(CoreStateMachine pp) throws IOException
+    {
+        final MappedGCodeReader reader = new MappedGCodeReader(new File(fileToPrint));
+        try
+        {
+            sendLinesFrom(pp, reader);
+        }
+        finally
+        {
+            log.trace("Closing G-Code File,..");
+            reader.close();
+        }
+    }
+
+    /** the lines get parsed on parseThreads threads, ahead of sending them. */
+    private void sendParsedLines(CoreStateMachine pp) throws IOException
+    {
+        final ForkJoinPool pool = new ForkJoinPool(parseThreads);
+        try
+        {
+            final ParallelGCodeReader reader = new ParallelGCodeReader(new File(fileToPrint), pool);
+            try
+            {
+                sendLinesFrom(pp, reader);
+            }
+            finally
+            {
+                log.trace("Closing G-Code File,..");
+                reader.close();
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    private void sendLinesFrom(CoreStateMachine pp, GCodeLineSource reader) throws IOException
+    {
+        int lastPercent = -1;
+        while(true == reader.next())
+        {
+            final int percent = reader.getPercentDone();
+            if(percent != lastPercent)
+            {
+                // printing every line would slow down the sending
+                lastPercent = percent;
+                System.out.print("\rNow sending Line " + reader.getLinesRead() + " (" + percent + "%)  ");
+            }
+            final String lineResult;
+            final GCode code = reader.getGCode();
+            if(null == code)
+            {
+                lineResult = pp.executeGCode(reader.getLine(), this);
+            }
+            else
+            {
+                lineResult = pp.executeGCode(code, reader.getLine(), this);
+            }
+            writeLine(lineResult);
+            if(true  == lineResult.startsWith("!!"))
+            {
+                log.error("Failed to send the Line {} : {} !", reader.getLinesRead(), reader.getLine());
+                log.error("The Reply was : {} !", lineResult);
+                log.error("The Problem was : {} !", pp.getLastErrorReason());
+                break;
+            }
+        }
+    }
+
+    private void replayCompiledFile(CoreStateMachine pp)
+    {
+        final Executor exe = pp.getExecutor();
+        final Reference ref = new Reference(this.getSource());
+        try
+        {
+            final CompiledGCodeReader reader = new CompiledGCodeReader(new File(fileToPrint));
+            System.out.println("Replaying the compiled file " + fileToPrint + " !");
+            if(false == exe.replayCompiledFile(reader, this, ref))
+            {
+                log.error("Failed to replay the compiled file at line {} !", reader.getSourceLine());
+                log.error("The Problem was : {} !", exe.getLastErrorReason());
+            }
+            reader.close();
+        }
+        catch (final IOException e)
+        {
+            e.printStackTrace();
+        }
+        log.trace("Closing Core,...");
+        pp.close(ref);
+        log.trace("Finished replaying the compiled file.");
+    }
+
+    /** compiles the G-Code file without connecting to the clients. */
+    public void compileGCodeFile()
+    {
+        if(false == hasReadConfiguration)
+        {
+            System.out.println("No Configuration File found ! Compiling not possible !");
+            return;
+        }
+        final GCodeCompiler compiler = new GCodeCompiler(cfg, clientStepsPerSecond);
+        if(false == compiler.isOperational())
+        {
+            System.err.println("Could not start the compiler : " + compiler.getLastErrorReason());
+            return;
+        }
+        System.out.println("Compiling " + fileToPrint + " to " + compiledFile + " !");
+        if(false == compiler.compile(new File(fileToPrint), new File(compiledFile), this))
+        {
+            System.err.println("Compiling failed : " + compiler.getLastErrorReason());
+        }
+        compiler.close(new Reference(this.getSource()));
+    }
+
     public boolean hasFileToPrint()
     {
         if(null == fileToPrint)
@@ -364,6 +518,18 @@ public class ControllerMain implements CloseApplication, GCodeResultStream
         }
     }
 
+    public boolean shallCompile()
+    {
+        if(null == compiledFile)
+        {
+            return false;
+        }
+        else
+        {
+            return true;
+        }
+    }
+
     public void startInterfaces()
     {
         // set up the printer
@@ -442,6 +608,11 @@ public class ControllerMain implements CloseApplication, GCodeResultStream
         {
             cm.startInterfaces();
         }
+        else if(true == cm.shallCompile())
+        {
+            cm.compileGCodeFile();
+            System.exit(0);
+        }
         else
         {
             cm.sendGCodeFile();
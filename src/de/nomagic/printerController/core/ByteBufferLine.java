@@ -0,0 +1,83 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.nio.ByteBuffer;
+
+/** a line of text that stays in the buffer it has been read into.
+ *
+ * Each byte is one character (ISO-8859-1), which is fine for G-Code.
+ * The line gets reused for the next line, so it must not be kept.
+ * toString() creates a copy that can be kept.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public final class ByteBufferLine implements CharSequence
+{
+    private ByteBuffer buf = null;
+    private int offset = 0;
+    private int length = 0;
+
+    public ByteBufferLine()
+    {
+    }
+
+    /**
+     * @param buf contains the line.
+     * @param offset index of the first byte of the line in buf.
+     * @param length number of bytes in the line.
+     */
+    public void set(ByteBuffer buf, int offset, int length)
+    {
+        this.buf = buf;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length()
+    {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+        if((0 > index) || (length <= index))
+        {
+            throw new IndexOutOfBoundsException("index " + index + " length " + length);
+        }
+        return (char)(0xff & buf.get(offset + index));
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end)
+    {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString()
+    {
+        final char[] res = new char[length];
+        for(int i = 0; i < length; i++)
+        {
+            res[i] = (char)(0xff & buf.get(offset + i));
+        }
+        return new String(res);
+    }
+
+}
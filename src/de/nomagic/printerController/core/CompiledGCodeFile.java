@@ -0,0 +1,137 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import de.nomagic.printerController.Cfg;
+
+/** Layout of a compiled G-Code file.
+ *
+ * A compiled file holds the queue blocks that the host would send to the
+ * clients when printing the G-Code file. All numbers are big endian.
+ *
+ * header : magic, version, configuration hash, client step rate, number of clients
+ * records: RECORD_BLOCK   client, block (length byte, type, data)
+ *          RECORD_COMMAND command, int parameter, double parameter
+ *          RECORD_END
+ * index  : number of entries, entries (source line, position of record)
+ * trailer: position of index, magic
+ *
+ * The compiled file can only be replayed on a printer that has the
+ * configuration that was used to compile it. This is checked with the hash.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public final class CompiledGCodeFile
+{
+    public static final String FILE_EXTENSION = ".pmc";
+    public static final int MAGIC = 0x504d4347; // "PMCG"
+    public static final int VERSION = 1;
+    public static final int HASH_LENGTH = 32;
+    public static final int HEADER_LENGTH = 4 + 4 + HASH_LENGTH + 4 + 4;
+    public static final int TRAILER_LENGTH = 8 + 4;
+    public static final int INDEX_ENTRY_LENGTH = 8 + 8;
+    // an index entry is written every INDEX_INTERVAL_LINES lines of the G-Code file.
+    public static final int INDEX_INTERVAL_LINES = 1000;
+
+    public static final int RECORD_END = 0;
+    public static final int RECORD_BLOCK = 1;
+    public static final int RECORD_COMMAND = 2;
+
+    // commands that are not queue blocks
+    public static final int COMMAND_FAN_SPEED = 1;
+    public static final int COMMAND_EXTRUDER_TEMPERATURE = 2;
+    public static final int COMMAND_EXTRUDER_TEMPERATURE_AND_WAIT = 3;
+    public static final int COMMAND_PRINT_BED_TEMPERATURE = 4;
+    public static final int COMMAND_PRINT_BED_TEMPERATURE_AND_WAIT = 5;
+    public static final int COMMAND_CHAMBER_TEMPERATURE = 6;
+    public static final int COMMAND_WAIT_FOR_EVERYTHING_IN_LIMITS = 7;
+    public static final int COMMAND_ENABLE_ALL_MOTORS = 8;
+    public static final int COMMAND_DISABLE_ALL_MOTORS = 9;
+    public static final int COMMAND_SHUT_DOWN = 10;
+    public static final int COMMAND_WAIT_FOR_CLIENT_QUEUE_EMPTY = 11;
+
+    private CompiledGCodeFile()
+    {
+    }
+
+    public static boolean isCompiledFileName(String fileName)
+    {
+        if(null == fileName)
+        {
+            return false;
+        }
+        return fileName.endsWith(FILE_EXTENSION);
+    }
+
+    /** calculates the hash of everything in the configuration that changes the queue blocks.
+     *
+     * The connection definitions are not part of the hash, so that a file can
+     * be compiled on a different computer than the one the printer is connected to.
+     *
+     * @param cfg the configuration.
+     * @param maxClientStepsPerSecond the step rate that all clients can do.
+     * @return the hash (HASH_LENGTH bytes) or null if the hash could not be calculated.
+     */
+    public static byte[] getConfigurationHash(Cfg cfg, int maxClientStepsPerSecond)
+    {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        if(false == cfg.saveTo(bout))
+        {
+            return null;
+        }
+        final Charset utf8 = Charset.forName("UTF-8");
+        try
+        {
+            final MessageDigest md = MessageDigest.getInstance("SHA-256");
+            final BufferedReader br = new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(bout.toByteArray()), utf8));
+            String line = br.readLine();
+            while(null != line)
+            {
+                if(false == line.startsWith(Cfg.CONNECTION_START))
+                {
+                    md.update(line.getBytes(utf8));
+                    md.update((byte)'\n');
+                }
+                line = br.readLine();
+            }
+            md.update((byte)(0xff & (maxClientStepsPerSecond>>24)));
+            md.update((byte)(0xff & (maxClientStepsPerSecond>>16)));
+            md.update((byte)(0xff & (maxClientStepsPerSecond>>8)));
+            md.update((byte)(0xff & maxClientStepsPerSecond));
+            md.update((byte)VERSION);
+            return md.digest();
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            return null;
+        }
+        catch(IOException e)
+        {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** reads a compiled G-Code file record by record.
+ *
+ * The data of the current record is only valid until next() is called
+ * again. The buffer of the block is reused, so reading creates no objects.
+ *
+ * @see CompiledGCodeFile
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class CompiledGCodeReader implements Closeable
+{
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private final FileInputStream fin;
+    private final FileChannel channel;
+    private DataInputStream in;
+    private final byte[] configurationHash = new byte[CompiledGCodeFile.HASH_LENGTH];
+    private final int maxClientStepsPerSecond;
+    private final int numberOfClients;
+    private final long indexPosition;
+    private final long[] indexLines;
+    private final long[] indexPositions;
+    // position of the next record in the file
+    private volatile long position;
+    private volatile long sourceLine = 0;
+    private int nextIndexEntry = 0;
+
+    // current record
+    private int client = 0;
+    private final byte[] block = new byte[256];
+    private int command = 0;
+    private int intParameter = 0;
+    private double doubleParameter = 0.0;
+
+    public CompiledGCodeReader(File f) throws IOException
+    {
+        // header, index and trailer
+        final RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try
+        {
+            final long fileSize = raf.length();
+            if(CompiledGCodeFile.HEADER_LENGTH + 1 + 4 + CompiledGCodeFile.TRAILER_LENGTH > fileSize)
+            {
+                throw new IOException("The file " + f + " is too short to be a compiled G-Code file !");
+            }
+            if(   (CompiledGCodeFile.MAGIC != raf.readInt())
+               || (CompiledGCodeFile.VERSION != raf.readInt()) )
+            {
+                throw new IOException("The file " + f + " is not a compiled G-Code file of version "
+                                      + CompiledGCodeFile.VERSION + " !");
+            }
+            raf.readFully(configurationHash);
+            maxClientStepsPerSecond = raf.readInt();
+            numberOfClients = raf.readInt();
+            raf.seek(fileSize - CompiledGCodeFile.TRAILER_LENGTH);
+            indexPosition = raf.readLong();
+            if(   (CompiledGCodeFile.MAGIC != raf.readInt())
+               || (CompiledGCodeFile.HEADER_LENGTH >= indexPosition)
+               || (fileSize - CompiledGCodeFile.TRAILER_LENGTH - 4 < indexPosition) )
+            {
+                throw new IOException("The compiled G-Code file " + f + " is incomplete !");
+            }
+            raf.seek(indexPosition);
+            final int numEntries = raf.readInt();
+            if(   (0 > numEntries)
+               || (indexPosition + 4 + ((long)numEntries * CompiledGCodeFile.INDEX_ENTRY_LENGTH)
+                   != fileSize - CompiledGCodeFile.TRAILER_LENGTH) )
+            {
+                throw new IOException("The index of the compiled G-Code file " + f + " is invalid !");
+            }
+            indexLines = new long[numEntries];
+            indexPositions = new long[numEntries];
+            for(int i = 0; i < numEntries; i++)
+            {
+                indexLines[i] = raf.readLong();
+                indexPositions[i] = raf.readLong();
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+        // records
+        fin = new FileInputStream(f);
+        channel = fin.getChannel();
+        seekTo(CompiledGCodeFile.HEADER_LENGTH);
+        log.trace("opened {} ({} index entries)", f, indexLines.length);
+    }
+
+    private void seekTo(long pos) throws IOException
+    {
+        channel.position(pos);
+        in = new DataInputStream(new BufferedInputStream(fin, INPUT_BUFFER_SIZE));
+        position = pos;
+    }
+
+    public byte[] getConfigurationHash()
+    {
+        return configurationHash.clone();
+    }
+
+    public int getMaxClientStepsPerSecond()
+    {
+        return maxClientStepsPerSecond;
+    }
+
+    public int getNumberOfClients()
+    {
+        return numberOfClients;
+    }
+
+    /** continues reading at the index entry of the line.
+     *
+     * @param lineNumber number of the line in the G-Code file (starts at 0).
+     * @return the line of the index entry that is used (lineNumber or one before).
+     */
+    public long seekToLine(long lineNumber) throws IOException
+    {
+        int entry = -1;
+        for(int i = 0; i < indexLines.length; i++)
+        {
+            if(indexLines[i] <= lineNumber)
+            {
+                entry = i;
+            }
+        }
+        if(-1 == entry)
+        {
+            seekTo(CompiledGCodeFile.HEADER_LENGTH);
+            sourceLine = 0;
+            nextIndexEntry = 0;
+        }
+        else
+        {
+            seekTo(indexPositions[entry]);
+            sourceLine = indexLines[entry];
+            nextIndexEntry = entry + 1;
+        }
+        return sourceLine;
+    }
+
+    /** reads the next record.
+     *
+     * @return RECORD_BLOCK, RECORD_COMMAND or RECORD_END.
+     */
+    public int next() throws IOException
+    {
+        while(   (nextIndexEntry < indexPositions.length)
+              && (indexPositions[nextIndexEntry] <= position) )
+        {
+            sourceLine = indexLines[nextIndexEntry];
+            nextIndexEntry++;
+        }
+        if(indexPosition <= position)
+        {
+            return CompiledGCodeFile.RECORD_END;
+        }
+        final int type = in.readUnsignedByte();
+        switch(type)
+        {
+        case CompiledGCodeFile.RECORD_BLOCK:
+            client = in.readUnsignedByte();
+            block[0] = in.readByte();
+            final int length = (0xff & block[0]) + 1;
+            in.readFully(block, 1, length - 1);
+            position = position + 2 + length;
+            return type;
+
+        case CompiledGCodeFile.RECORD_COMMAND:
+            command = in.readUnsignedByte();
+            intParameter = in.readInt();
+            doubleParameter = in.readDouble();
+            position = position + 2 + 4 + 8;
+            return type;
+
+        case CompiledGCodeFile.RECORD_END:
+            position = indexPosition;
+            return type;
+
+        default:
+            throw new IOException("Invalid record type " + type + " at position " + position + " !");
+        }
+    }
+
+    /**
+     * @return number of the client in the movement that the current block is for.
+     */
+    public int getClient()
+    {
+        return client;
+    }
+
+    /**
+     * @return the current block (length byte, block type and data) at position 0.
+     */
+    public byte[] getBlock()
+    {
+        return block;
+    }
+
+    public int getCommand()
+    {
+        return command;
+    }
+
+    public int getIntParameter()
+    {
+        return intParameter;
+    }
+
+    public double getDoubleParameter()
+    {
+        return doubleParameter;
+    }
+
+    /**
+     * @return the line in the G-Code file that the replay has about reached.
+     */
+    public long getSourceLine()
+    {
+        return sourceLine;
+    }
+
+    public int getPercentDone()
+    {
+        return (int)((position * 100) / indexPosition);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        fin.close();
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.nomagic.printerController.core.movement.BasicLinearMove;
+
+/** writes a compiled G-Code file.
+ *
+ * The blocks can be written from a different thread than the commands,
+ * therefore all writes are synchronised.
+ *
+ * @see CompiledGCodeFile
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class CompiledGCodeWriter implements Closeable
+{
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+    private final ByteBuffer encodeBuffer = ByteBuffer.allocate(256);
+    // position of the next record in the file
+    private long position = 0;
+    private long numberOfBlocks = 0;
+    private long numberOfCommands = 0;
+    private long nextIndexLine = 0;
+    private long[] indexLines = new long[64];
+    private long[] indexPositions = new long[64];
+    private int numberOfIndexEntries = 0;
+    private boolean isClosed = false;
+
+    /**
+     * @param f the file to write to.
+     * @param configurationHash hash of the configuration used for compiling.
+     * @param maxClientStepsPerSecond the step rate that all clients can do.
+     * @param numberOfClients number of clients that the blocks go to.
+     */
+    public CompiledGCodeWriter(File f,
+                               byte[] configurationHash,
+                               int maxClientStepsPerSecond,
+                               int numberOfClients) throws IOException
+    {
+        if((null == configurationHash) || (CompiledGCodeFile.HASH_LENGTH != configurationHash.length))
+        {
+            throw new IOException("Invalid configuration hash !");
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), OUTPUT_BUFFER_SIZE));
+        out.writeInt(CompiledGCodeFile.MAGIC);
+        out.writeInt(CompiledGCodeFile.VERSION);
+        out.write(configurationHash);
+        out.writeInt(maxClientStepsPerSecond);
+        out.writeInt(numberOfClients);
+        position = CompiledGCodeFile.HEADER_LENGTH;
+    }
+
+    /** adds a queue block.
+     *
+     * @param client number of the client in the movement.
+     * @param buf buffer that holds the block.
+     * @param offset position of the length byte of the block in buf.
+     */
+    public synchronized void addBlock(int client, byte[] buf, int offset) throws IOException
+    {
+        final int length = (0xff & buf[offset]) + 1;
+        if(2 > length)
+        {
+            throw new IOException("Invalid block !");
+        }
+        out.writeByte(CompiledGCodeFile.RECORD_BLOCK);
+        out.writeByte(client);
+        out.write(buf, offset, length);
+        position = position + 2 + length;
+        numberOfBlocks++;
+    }
+
+    /** adds the queue block of the move.
+     *
+     * @param client number of the client in the movement.
+     * @param move the move.
+     */
+    public synchronized void addMove(int client, BasicLinearMove move) throws IOException
+    {
+        encodeBuffer.clear();
+        if(false == move.encodeTo(encodeBuffer))
+        {
+            throw new IOException("Could not encode the move " + move.getId() + " !");
+        }
+        addBlock(client, encodeBuffer.array(), 0);
+    }
+
+    /** adds a command that is not a queue block.
+     *
+     * @param command one of CompiledGCodeFile.COMMAND_*
+     * @param intParameter parameter of the command.
+     * @param doubleParameter parameter of the command.
+     */
+    public synchronized void addCommand(int command, int intParameter, double doubleParameter) throws IOException
+    {
+        out.writeByte(CompiledGCodeFile.RECORD_COMMAND);
+        out.writeByte(command);
+        out.writeInt(intParameter);
+        out.writeDouble(doubleParameter);
+        position = position + 2 + 4 + 8;
+        numberOfCommands++;
+    }
+
+    /** tells the writer that the line of the G-Code file will be decoded next.
+     *
+     * Every INDEX_INTERVAL_LINES lines an index entry gets created. The
+     * entry points to the next record. Because of the look ahead of the
+     * planner this record can still belong to one of the previous lines.
+     *
+     * @param lineNumber number of the line (starts at 0).
+     */
+    public synchronized void markLine(long lineNumber)
+    {
+        if(lineNumber < nextIndexLine)
+        {
+            return;
+        }
+        if(numberOfIndexEntries == indexLines.length)
+        {
+            final long[] lines = new long[indexLines.length * 2];
+            final long[] positions = new long[indexPositions.length * 2];
+            System.arraycopy(indexLines, 0, lines, 0, numberOfIndexEntries);
+            System.arraycopy(indexPositions, 0, positions, 0, numberOfIndexEntries);
+            indexLines = lines;
+            indexPositions = positions;
+        }
+        indexLines[numberOfIndexEntries] = lineNumber;
+        indexPositions[numberOfIndexEntries] = position;
+        numberOfIndexEntries++;
+        nextIndexLine = lineNumber + CompiledGCodeFile.INDEX_INTERVAL_LINES;
+    }
+
+    public synchronized long getNumberOfBlocks()
+    {
+        return numberOfBlocks;
+    }
+
+    public synchronized long getNumberOfCommands()
+    {
+        return numberOfCommands;
+    }
+
+    public synchronized long getBytesWritten()
+    {
+        return position;
+    }
+
+    /** writes the end record, the index and the trailer and closes the file. */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if(true == isClosed)
+        {
+            return;
+        }
+        isClosed = true;
+        try
+        {
+            out.writeByte(CompiledGCodeFile.RECORD_END);
+            position = position + 1;
+            final long indexPosition = position;
+            out.writeInt(numberOfIndexEntries);
+            for(int i = 0; i < numberOfIndexEntries; i++)
+            {
+                out.writeLong(indexLines[i]);
+                out.writeLong(indexPositions[i]);
+            }
+            out.writeLong(indexPosition);
+            out.writeInt(CompiledGCodeFile.MAGIC);
+            position = indexPosition + 4
+                       + ((long)numberOfIndexEntries * CompiledGCodeFile.INDEX_ENTRY_LENGTH)
+                       + CompiledGCodeFile.TRAILER_LENGTH;
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+}
@@ -47,6 +47,8 @@ public final class CoreStateMachine
         log.info("starting G-Code Decoder,...");
         SDCardSimulation sdCard = new SDCardSimulationImpl(new File(cfg.getGeneralSetting("sdcardfolder", "sdcard")));
         decoder = new GCodeDecoder(exe, sdCard);
+        decoder.setArcTolerance(cfg.getGeneralSetting(GCodeDecoder.CFG_NAME_ARC_TOLERANCE,
+                                                      GCodeDecoder.DEFAULT_ARC_TOLERANCE_MM));
         SDCardPrinter sdPrinterWorker =  new SDCardPrinterImpl(sdCard, decoder);
         decoder.addSDCardPrinter(sdPrinterWorker);
         // everything is now up and running
@@ -67,7 +69,7 @@ public final class CoreStateMachine
         return exe;
     }
 
-    public String executeGCode(final String line, final GCodeResultStream resultStream)
+    public String executeGCode(final CharSequence line, final GCodeResultStream resultStream)
     {
         if(false == isOperational)
         {
@@ -79,6 +81,24 @@ public final class CoreStateMachine
         }
     }
 
+    /**
+     * @param code the parsed line (see ParallelGCodeReader).
+     * @param line the G-Code line.
+     * @param resultStream receives the output of the G-Code, may be null.
+     * @return the reply to the line.
+     */
+    public String executeGCode(final GCode code, final CharSequence line, final GCodeResultStream resultStream)
+    {
+        if(false == isOperational)
+        {
+            return "!! Pacemaker Core is not operational !";
+        }
+        else
+        {
+            return decoder.sendCode(code, line, resultStream);
+        }
+    }
+
     public String getLastErrorReason()
     {
         if(false == isOperational)
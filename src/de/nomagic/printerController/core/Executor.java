@@ -47,6 +47,8 @@ public interface Executor
     boolean switchExtruderTo(int num, Reference ref);
     Reply sendRawOrderFrame(int ClientNumber, int order, Integer[] parameterBytes, int length);
     void waitForClientQueueEmpty(Reference ref);
+    boolean replayCompiledFile(CompiledGCodeReader reader, final GCodeResultStream resultStream, Reference ref);
+    String getConnectionStatistics();
     boolean runPIDautotune(Heater_enum Extruder,
             Double Temperature,
             int numCycles,
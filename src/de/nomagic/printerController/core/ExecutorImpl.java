@@ -14,10 +14,13 @@
  */
 package de.nomagic.printerController.core;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -115,6 +118,7 @@ public class ExecutorImpl implements Executor
     public void close(Reference ref)
     {
         letMovementStop(ref);
+        move.close();
         timeout.interrupt();
     }
 
@@ -631,16 +635,39 @@ public class ExecutorImpl implements Executor
     }
 
     private double handleGetTemperature(final Heater_enum heater, Reference ref)
+    {
+        return handleTemperatureReply(heater, requestTemperature(heater, ref), ref);
+    }
+
+    /** sends the temperature request to the client without waiting for the reply.
+     *
+     * @return null if the heater has no temperature sensor.
+     */
+    private CompletableFuture<Double> requestTemperature(final Heater_enum heater, Reference ref)
     {
         final TemperatureSensor sensor = TempSensors.get(heater);
         if(null == sensor)
         {
             log.trace("Tried to get Heater temperature from invalid Temperature Sensor!");
+            return null;
+        }
+        else
+        {
+            return sensor.getTemperatureAsync(ref);
+        }
+    }
+
+    private double handleTemperatureReply(final Heater_enum heater,
+                                          final CompletableFuture<Double> pendingTemperature,
+                                          Reference ref)
+    {
+        if(null == pendingTemperature)
+        {
             return 0.0;
         }
         else
         {
-            final double curTemp = sensor.getTemperature(ref);
+            final double curTemp = pendingTemperature.join();
             Fan theFan = null;
             switch(heater)
             {
@@ -692,6 +719,8 @@ public class ExecutorImpl implements Executor
         int settleCounter = 0;
         do
         {
+            // the request travels to the client while we wait for the next poll
+            final CompletableFuture<Double> pendingTemperature = requestTemperature(heater, ref);
             try
             {
                 Thread.sleep(POLL_INTERVALL_MS);
@@ -699,7 +728,7 @@ public class ExecutorImpl implements Executor
             catch(InterruptedException e)
             {
             }
-            curTemperature = handleGetTemperature(heater, ref);
+            curTemperature = handleTemperatureReply(heater, pendingTemperature, ref);
             resultStream.writeLine("T : " + curTemperature + " °C");
             for(int i = 0; i < observers.size(); i++)
             {
@@ -825,6 +854,21 @@ public class ExecutorImpl implements Executor
         }
     }
 
+    public String getConnectionStatistics()
+    {
+        final StringBuffer sb = new StringBuffer();
+        final Set<Integer> keys = print.keySet();
+        final Iterator<Integer> it = keys.iterator();
+        while(it.hasNext())
+        {
+            final Integer num = it.next();
+            final Printer thePrinter = print.get(num);
+            sb.append("Client " + num + ":\r\n");
+            sb.append(thePrinter.getConnectionMetrics().toString());
+        }
+        return sb.toString();
+    }
+
     public void waitForClientQueueEmpty(Reference ref)
     {
         letMovementStop(ref);
@@ -857,6 +901,119 @@ public class ExecutorImpl implements Executor
         return res;
     }
 
+    /** sends the blocks and commands of a compiled G-Code file to the clients.
+     *
+     * The blocks go directly into the queues of the clients, they do not
+     * get planned again. The position of the axis is not updated, so the
+     * axis need to be homed before the next relative move.
+     */
+    public boolean replayCompiledFile(CompiledGCodeReader reader,
+                                      final GCodeResultStream resultStream,
+                                      Reference ref)
+    {
+        final int maxClientStepsPerSecond = move.getMaxClientStepsPerSecond();
+        final byte[] hash = CompiledGCodeFile.getConfigurationHash(cfg, maxClientStepsPerSecond);
+        if(false == Arrays.equals(hash, reader.getConfigurationHash()))
+        {
+            lastErrorReason = "The compiled file has been created for a different configuration"
+                              + " (or for " + reader.getMaxClientStepsPerSecond() + " instead of "
+                              + maxClientStepsPerSecond + " steps per second) !";
+            log.error(lastErrorReason);
+            return false;
+        }
+        if(reader.getNumberOfClients() != move.getNumberOfClients())
+        {
+            lastErrorReason = "The compiled file is for " + reader.getNumberOfClients()
+                              + " clients but the movement uses " + move.getNumberOfClients() + " !";
+            log.error(lastErrorReason);
+            return false;
+        }
+        // the planned moves must reach the clients before the compiled blocks.
+        if(false == letMovementStop(ref))
+        {
+            return false;
+        }
+        try
+        {
+            int type = reader.next();
+            while(CompiledGCodeFile.RECORD_END != type)
+            {
+                if(CompiledGCodeFile.RECORD_BLOCK == type)
+                {
+                    if(false == move.addQueueBlock(reader.getClient(), reader.getBlock(), 0))
+                    {
+                        lastErrorReason = move.getLastErrorReason();
+                        return false;
+                    }
+                }
+                else
+                {
+                    if(false == replayCommand(reader, resultStream, ref))
+                    {
+                        return false;
+                    }
+                }
+                type = reader.next();
+            }
+        }
+        catch(IOException e)
+        {
+            lastErrorReason = "Could not read the compiled file : " + e.getMessage();
+            log.error(lastErrorReason);
+            return false;
+        }
+        waitForClientQueueEmpty(ref);
+        return true;
+    }
+
+    private boolean replayCommand(CompiledGCodeReader reader,
+                                  final GCodeResultStream resultStream,
+                                  Reference ref)
+    {
+        final double value = reader.getDoubleParameter();
+        switch(reader.getCommand())
+        {
+        case CompiledGCodeFile.COMMAND_FAN_SPEED:
+            return setFanSpeedfor(reader.getIntParameter(), (int)value, ref);
+
+        case CompiledGCodeFile.COMMAND_EXTRUDER_TEMPERATURE:
+            return setCurrentExtruderTemperatureNoWait(value, ref);
+
+        case CompiledGCodeFile.COMMAND_EXTRUDER_TEMPERATURE_AND_WAIT:
+            return setCurrentExtruderTemperatureAndDoWait(value, resultStream, ref);
+
+        case CompiledGCodeFile.COMMAND_PRINT_BED_TEMPERATURE:
+            return setPrintBedTemperatureNoWait(value, ref);
+
+        case CompiledGCodeFile.COMMAND_PRINT_BED_TEMPERATURE_AND_WAIT:
+            return setPrintBedTemperatureAndDoWait(value, resultStream, ref);
+
+        case CompiledGCodeFile.COMMAND_CHAMBER_TEMPERATURE:
+            return setChamberTemperatureNoWait(value, ref);
+
+        case CompiledGCodeFile.COMMAND_WAIT_FOR_EVERYTHING_IN_LIMITS:
+            return waitForEverythingInLimits(resultStream, ref);
+
+        case CompiledGCodeFile.COMMAND_ENABLE_ALL_MOTORS:
+            return enableAllStepperMotors(ref);
+
+        case CompiledGCodeFile.COMMAND_DISABLE_ALL_MOTORS:
+            return disableAllStepperMotors(ref);
+
+        case CompiledGCodeFile.COMMAND_SHUT_DOWN:
+            return doShutDown(ref);
+
+        case CompiledGCodeFile.COMMAND_WAIT_FOR_CLIENT_QUEUE_EMPTY:
+            waitForClientQueueEmpty(ref);
+            return true;
+
+        default:
+            lastErrorReason = "Invalid command " + reader.getCommand() + " in compiled file !";
+            log.error(lastErrorReason);
+            return false;
+        }
+    }
+
     public boolean runPIDautotune(Heater_enum Extruder,
                                   Double Temperature,
                                   int numCycles,
@@ -2,11 +2,13 @@ package de.nomagic.printerController.core;
 
 public interface GCode
 {
-    GCode getGCodeFrom(String line);
+    GCode getGCodeFrom(CharSequence line);
     String getLineWithoutCommentWithoutWord(final Character wordType);
     boolean hasWord(final Character wordType);
     Double getWordValue(final Character word);
     Double getWordValue(final Character word, double defaultValue);
+    /** checksum of the characters in front of the '*' (see http://reprap.org/wiki/G-code#N_and_.2A). */
+    int getCalculatedChecksum();
     boolean isEmpty();
     boolean isValid();
 }
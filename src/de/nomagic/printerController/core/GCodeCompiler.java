@@ -0,0 +1,695 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.nomagic.printerController.Axis_enum;
+import de.nomagic.printerController.Cfg;
+import de.nomagic.printerController.GCodeResultStream;
+import de.nomagic.printerController.Heater_enum;
+import de.nomagic.printerController.Switch_enum;
+import de.nomagic.printerController.core.devices.Movement;
+import de.nomagic.printerController.core.devices.Stepper;
+import de.nomagic.printerController.core.devices.Switch;
+import de.nomagic.printerController.core.movement.BasicLinearMove;
+import de.nomagic.printerController.core.movement.PrinterProperties;
+import de.nomagic.printerController.pacemaker.DeviceInformation;
+import de.nomagic.printerController.pacemaker.Protocol;
+import de.nomagic.printerController.pacemaker.Reply;
+
+/** compiles a G-Code file into the queue blocks that the clients would receive.
+ *
+ * The G-Code goes through the same decoder and planner as when printing.
+ * Instead of sending the blocks to a client they get written to a compiled
+ * file (see CompiledGCodeFile). No client needs to be connected. As the
+ * planner does not need to keep a client busy all moves get the full look
+ * ahead, so that compiling the same file twice creates the same result.
+ *
+ * Commands that are not queue blocks (heaters, fans, motors) are recorded
+ * as commands and executed by the executor when the file gets replayed.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class GCodeCompiler implements Executor
+{
+    // clients can have up to 255 devices of each kind
+    private static final int MAX_DEVICES = 255;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+    private final Cfg cfg;
+    private final int maxClientStepsPerSecond;
+    private final Movement move;
+    private final GCodeDecoder decoder;
+    private final TimeoutHandler to = new TimeoutHandler()
+    {
+        // nothing needs to happen in time when compiling.
+        @Override
+        public int createTimeout(Event e, int ms)
+        {
+            return 0;
+        }
+
+        @Override
+        public void startTimeout(int timeoutId)
+        {
+        }
+
+        @Override
+        public void stopTimeout(int timeoutId)
+        {
+        }
+    };
+    private volatile CompiledGCodeWriter writer = null;
+    private volatile String lastErrorReason = null;
+    private boolean isOperational = false;
+
+    /**
+     * @param cfg configuration of the printer that will print the compiled file.
+     * @param maxClientStepsPerSecond the step rate of the clients of that printer.
+     */
+    public GCodeCompiler(Cfg cfg, int maxClientStepsPerSecond)
+    {
+        this.cfg = cfg;
+        this.maxClientStepsPerSecond = maxClientStepsPerSecond;
+        move = new Movement(to, cfg);
+        move.setRealTime(false);
+        final SDCardSimulation sdCard = new SDCardSimulationImpl(new File(cfg.getGeneralSetting("sdcardfolder", "sdcard")));
+        decoder = new GCodeDecoder(this, sdCard);
+        decoder.setArcTolerance(cfg.getGeneralSetting(GCodeDecoder.CFG_NAME_ARC_TOLERANCE,
+                                                      GCodeDecoder.DEFAULT_ARC_TOLERANCE_MM));
+        if(1 > maxClientStepsPerSecond)
+        {
+            lastErrorReason = "Invalid client step rate of " + maxClientStepsPerSecond + " steps per second !";
+            log.error(lastErrorReason);
+        }
+        else
+        {
+            isOperational = connectToRecorders();
+        }
+    }
+
+    private boolean connectToRecorders()
+    {
+        final DeviceInformation di = new DeviceInformation()
+        {
+            // the client that will print the file is not connected.
+            @Override
+            public boolean hasExtensionBasicMove()
+            {
+                return true;
+            }
+
+            @Override
+            public boolean hasExtensionQueuedCommand()
+            {
+                return true;
+            }
+
+            @Override
+            public boolean hasExtensionStepperControl()
+            {
+                return true;
+            }
+
+            @Override
+            public int getNumberSteppers()
+            {
+                return MAX_DEVICES;
+            }
+
+            @Override
+            public int getNumberSwitches()
+            {
+                return MAX_DEVICES;
+            }
+
+            @Override
+            public int getMaxSteppsPerSecond()
+            {
+                return maxClientStepsPerSecond;
+            }
+        };
+        final HashMap<Switch_enum, Switch> switches = new HashMap<Switch_enum, Switch>();
+        for(int i = 0; i < cfg.getNumberOfClients(); i++)
+        {
+            final Protocol pro = new Recorder();
+            mapSwitches(di, pro, i, switches);
+            if(true == cfg.shouldUseSteppers(i))
+            {
+                if(false == move.addConnection(di, cfg, pro, i, switches))
+                {
+                    lastErrorReason = "Failed to configure the Steppers : " + move.getLastErrorReason();
+                    log.error(lastErrorReason);
+                    return false;
+                }
+            }
+        }
+        if(1 > move.getNumberOfClients())
+        {
+            lastErrorReason = "The configuration has no steppers !";
+            log.error(lastErrorReason);
+            return false;
+        }
+        return true;
+    }
+
+    private void mapSwitches(DeviceInformation di, Protocol pro, int connectionNumber, HashMap<Switch_enum, Switch> switches)
+    {
+        for(int i = 0; i < di.getNumberSwitches(); i++)
+        {
+            final Switch_enum func = cfg.getFunctionOfSwitch(connectionNumber, i);
+            if(null != func)
+            {
+                switches.put(func, new Switch(pro, i));
+            }
+        }
+    }
+
+    /** takes the place of the protocol of a client and writes the queue blocks to the compiled file.
+     *
+     * Only the orders that the movement uses while compiling are supported.
+     */
+    private final class Recorder extends Protocol
+    {
+        public Recorder()
+        {
+            // not connected to a client, no keep alive.
+            super();
+        }
+
+        @Override
+        public boolean activateStepperControl(Reference ref)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean configureUnderRunAvoidance(int stepperNumber, int maxSpeedStepsPerSecond, int maxAccelleration, Reference ref)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean configureStepperMovementRate(int stepperNumber, int maxSpeedStepsPerSecond, Reference ref)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean configureEndStop(Stepper motor, Switch min, Switch max, Reference ref)
+        {
+            return true;
+        }
+
+        @Override
+        public int getNumberOfCommandsInClientQueue(Reference ref)
+        {
+            return 0;
+        }
+
+        @Override
+        public boolean addBasicLinearMove(BasicLinearMove[] aMove)
+        {
+            if(null == aMove)
+            {
+                return true;
+            }
+            final CompiledGCodeWriter out = writer;
+            if(null == out)
+            {
+                lastErrorReason = "No compiled file to write the moves to !";
+                return false;
+            }
+            final int client = move.getClientIndex(this);
+            try
+            {
+                for(int i = 0; i < aMove.length; i++)
+                {
+                    out.addMove(client, aMove[i]);
+                }
+                return true;
+            }
+            catch(IOException e)
+            {
+                return writeFailed(e);
+            }
+        }
+
+        @Override
+        public boolean addPauseToQueue(final int ticks)
+        {
+            return recordBlock(this, Protocol.encodePause(ticks));
+        }
+
+        @Override
+        public boolean endStopOnOff(boolean on, Integer[] switches)
+        {
+            return recordBlock(this, Protocol.encodeEndStopOnOff(on, switches));
+        }
+
+        @Override
+        public boolean addSetActiveToolHeadToQueue(final int activeToolHead)
+        {
+            return recordBlock(this, Protocol.encodeSetActiveToolHead(activeToolHead));
+        }
+
+        @Override
+        public boolean addQueueBlock(final byte[] buf, final int offset)
+        {
+            return recordBlock(this, buf, offset);
+        }
+
+        @Override
+        public boolean enableAllStepperMotors(Reference ref)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean disableAllStepperMotors(Reference ref)
+        {
+            return true;
+        }
+    }
+
+    private boolean recordBlock(Protocol pro, byte[] block)
+    {
+        return recordBlock(pro, block, 0);
+    }
+
+    private boolean recordBlock(Protocol pro, byte[] buf, int offset)
+    {
+        final CompiledGCodeWriter out = writer;
+        if(null == out)
+        {
+            lastErrorReason = "No compiled file to write the block to !";
+            return false;
+        }
+        try
+        {
+            out.addBlock(move.getClientIndex(pro), buf, offset);
+            return true;
+        }
+        catch(IOException e)
+        {
+            return writeFailed(e);
+        }
+    }
+
+    /** records a command after the moves that have been released before it. */
+    private boolean recordCommand(int command, int intParameter, double doubleParameter)
+    {
+        if(false == move.waitUntilReleasedMovesSent())
+        {
+            lastErrorReason = move.getLastErrorReason();
+            return false;
+        }
+        final CompiledGCodeWriter out = writer;
+        if(null == out)
+        {
+            lastErrorReason = "No compiled file to write the command to !";
+            return false;
+        }
+        try
+        {
+            out.addCommand(command, intParameter, doubleParameter);
+            return true;
+        }
+        catch(IOException e)
+        {
+            return writeFailed(e);
+        }
+    }
+
+    private boolean writeFailed(IOException e)
+    {
+        lastErrorReason = "Could not write the compiled file : " + e.getMessage();
+        log.error(lastErrorReason);
+        return false;
+    }
+
+    /** compiles the G-Code file.
+     *
+     * @param gcodeFile the G-Code file.
+     * @param compiledFile the file that will contain the queue blocks.
+     * @param resultStream receives the output of the G-Codes, may be null.
+     * @return true = success; false = see getLastErrorReason().
+     */
+    public boolean compile(File gcodeFile, File compiledFile, GCodeResultStream resultStream)
+    {
+        if(false == isOperational)
+        {
+            return false;
+        }
+        final byte[] hash = CompiledGCodeFile.getConfigurationHash(cfg, move.getMaxClientStepsPerSecond());
+        MappedGCodeReader reader = null;
+        boolean success = true;
+        try
+        {
+            reader = new MappedGCodeReader(gcodeFile);
+            writer = new CompiledGCodeWriter(compiledFile,
+                                             hash,
+                                             move.getMaxClientStepsPerSecond(),
+                                             move.getNumberOfClients());
+            CharSequence line = reader.readLine();
+            while(null != line)
+            {
+                writer.markLine(reader.getLinesRead() - 1);
+                final String lineResult = decoder.sendLine(line, resultStream);
+                if(true == lineResult.startsWith("!!"))
+                {
+                    lastErrorReason = "Line " + reader.getLinesRead() + " (" + line + ") : "
+                                      + decoder.getLastErrorReason();
+                    log.error(lastErrorReason);
+                    success = false;
+                    break;
+                }
+                line = reader.readLine();
+            }
+            if(true == success)
+            {
+                // the last moves of the file
+                success = letMovementStop(new Reference("compiler"));
+            }
+            log.info("Compiled {} lines into {} blocks and {} commands.",
+                     reader.getLinesRead(), writer.getNumberOfBlocks(), writer.getNumberOfCommands());
+        }
+        catch(IOException e)
+        {
+            success = writeFailed(e);
+        }
+        finally
+        {
+            try
+            {
+                if(null != reader)
+                {
+                    reader.close();
+                }
+                if(null != writer)
+                {
+                    writer.close();
+                }
+            }
+            catch(IOException e)
+            {
+                success = writeFailed(e);
+            }
+            writer = null;
+        }
+        if(false == success)
+        {
+            compiledFile.delete();
+        }
+        return success;
+    }
+
+// Executor
+
+    @Override
+    public boolean isOperational()
+    {
+        return isOperational;
+    }
+
+    @Override
+    public String getLastErrorReason()
+    {
+        return lastErrorReason;
+    }
+
+    @Override
+    public void close(Reference ref)
+    {
+        // compile() already sent the last moves.
+        move.close();
+        decoder.close();
+    }
+
+    @Override
+    public boolean doShutDown(Reference ref)
+    {
+        return recordCommand(CompiledGCodeFile.COMMAND_SHUT_DOWN, 0, 0.0);
+    }
+
+    @Override
+    public boolean doImmediateShutDown(Reference ref)
+    {
+        lastErrorReason = "An immediate shut down can not be compiled !";
+        return false;
+    }
+
+    @Override
+    public boolean addPauseFor(final Double seconds, Reference ref)
+    {
+        if(false == move.addPause(seconds))
+        {
+            lastErrorReason = move.getLastErrorReason();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean addMoveTo(final RelativeMove relMove, Reference ref)
+    {
+        if(false == move.addRelativeMove(relMove, ref))
+        {
+            lastErrorReason = move.getLastErrorReason();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean letMovementStop(Reference ref)
+    {
+        if(false == move.letMovementStop(ref))
+        {
+            lastErrorReason = move.getLastErrorReason();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startHoming(Axis_enum[] axis, Reference ref)
+    {
+        if(false == move.homeAxis(axis, ref))
+        {
+            lastErrorReason = "Homing Failed : " + move.getLastErrorReason();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean disableAllStepperMotors(Reference ref)
+    {
+        return recordCommand(CompiledGCodeFile.COMMAND_DISABLE_ALL_MOTORS, 0, 0.0);
+    }
+
+    @Override
+    public boolean enableAllStepperMotors(Reference ref)
+    {
+        return recordCommand(CompiledGCodeFile.COMMAND_ENABLE_ALL_MOTORS, 0, 0.0);
+    }
+
+    @Override
+    public boolean setStepsPerMilimeter(final Axis_enum axle, final Double stepsPerMillimeter)
+    {
+        if(false == move.setStepsPerMillimeter(axle, stepsPerMillimeter))
+        {
+            lastErrorReason = move.getLastErrorReason();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean setFanSpeedfor(final int fan, final int speed, Reference ref)
+    {
+        return recordCommand(CompiledGCodeFile.COMMAND_FAN_SPEED, fan, speed);
+    }
+
+    /** the replay would fail on a temperature for a heater that does not exist. */
+    private boolean recordTemperature(int command, Heater_enum heater, double temperature)
+    {
+        if(false == istheHeaterConfigured(heater))
+        {
+            lastErrorReason = "Tried to set Heater temperature for invalid Heater!";
+            return false;
+        }
+        return recordCommand(command, 0, temperature);
+    }
+
+    @Override
+    public boolean setCurrentExtruderTemperatureNoWait(final Double temperature, Reference ref)
+    {
+        // switching the extruder is not supported -> always the first extruder
+        return recordTemperature(CompiledGCodeFile.COMMAND_EXTRUDER_TEMPERATURE, Heater_enum.Extruder_0, temperature);
+    }
+
+    @Override
+    public boolean setCurrentExtruderTemperatureAndDoWait(final Double temperature,
+                                                          final GCodeResultStream resultStream,
+                                                          Reference ref)
+    {
+        if(false == letMovementStop(ref))
+        {
+            return false;
+        }
+        return recordTemperature(CompiledGCodeFile.COMMAND_EXTRUDER_TEMPERATURE_AND_WAIT, Heater_enum.Extruder_0, temperature);
+    }
+
+    @Override
+    public boolean waitForEverythingInLimits(final GCodeResultStream resultStream, Reference ref)
+    {
+        return recordCommand(CompiledGCodeFile.COMMAND_WAIT_FOR_EVERYTHING_IN_LIMITS, 0, 0.0);
+    }
+
+    @Override
+    public boolean setPrintBedTemperatureNoWait(final Double temperature, Reference ref)
+    {
+        return recordTemperature(CompiledGCodeFile.COMMAND_PRINT_BED_TEMPERATURE, Heater_enum.Print_Bed, temperature);
+    }
+
+    @Override
+    public boolean setChamberTemperatureNoWait(final Double temperature, Reference ref)
+    {
+        return recordTemperature(CompiledGCodeFile.COMMAND_CHAMBER_TEMPERATURE, Heater_enum.Chamber, temperature);
+    }
+
+    @Override
+    public boolean setPrintBedTemperatureAndDoWait(final Double temperature,
+                                                   final GCodeResultStream resultStream,
+                                                   Reference ref)
+    {
+        if(false == letMovementStop(ref))
+        {
+            return false;
+        }
+        return recordTemperature(CompiledGCodeFile.COMMAND_PRINT_BED_TEMPERATURE_AND_WAIT, Heater_enum.Print_Bed, temperature);
+    }
+
+    @Override
+    public double requestTemperatureOfHeater(Heater_enum pos, Reference ref)
+    {
+        // no heater is connected
+        return 0.0;
+    }
+
+    @Override
+    public boolean istheHeaterConfigured(Heater_enum func)
+    {
+        for(int c = 0; c < cfg.getNumberOfClients(); c++)
+        {
+            for(int i = 0; i < MAX_DEVICES; i++)
+            {
+                if(func == cfg.getFunctionOfHeater(c, i))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String getCurrentExtruderTemperature(Reference ref)
+    {
+        return "0.0";
+    }
+
+    @Override
+    public String getHeatedBedTemperature(Reference ref)
+    {
+        return "0.0";
+    }
+
+    @Override
+    public int getStateOfSwitch(Switch_enum theSwitch, Reference ref)
+    {
+        return SWITCH_STATE_NOT_AVAILABLE;
+    }
+
+    @Override
+    public boolean switchExtruderTo(int num, Reference ref)
+    {
+        lastErrorReason = "Switching the extruder is not supported !";
+        return false;
+    }
+
+    @Override
+    public Reply sendRawOrderFrame(int ClientNumber, int order, Integer[] parameterBytes, int length)
+    {
+        lastErrorReason = "Orders can not be compiled !";
+        log.error(lastErrorReason);
+        return null;
+    }
+
+    @Override
+    public void waitForClientQueueEmpty(Reference ref)
+    {
+        letMovementStop(ref);
+        recordCommand(CompiledGCodeFile.COMMAND_WAIT_FOR_CLIENT_QUEUE_EMPTY, 0, 0.0);
+    }
+
+    @Override
+    public boolean replayCompiledFile(CompiledGCodeReader reader,
+                                      final GCodeResultStream resultStream,
+                                      Reference ref)
+    {
+        lastErrorReason = "Can not replay a compiled file while compiling !";
+        return false;
+    }
+
+    @Override
+    public String getConnectionStatistics()
+    {
+        return "compiling for " + move.getNumberOfClients() + " client(s) with "
+               + move.getMaxClientStepsPerSecond() + " steps per second";
+    }
+
+    @Override
+    public boolean runPIDautotune(Heater_enum Extruder,
+                                  Double Temperature,
+                                  int numCycles,
+                                  GCodeResultStream resultStream,
+                                  Reference ref)
+    {
+        lastErrorReason = "PID auto tune can not be compiled !";
+        return false;
+    }
+
+    @Override
+    public void registerTemperatureObserver(TemperatureObserver observer)
+    {
+    }
+
+    @Override
+    public TimeoutHandler getTimeoutHandler()
+    {
+        return to;
+    }
+
+}
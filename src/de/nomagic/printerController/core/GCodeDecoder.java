@@ -23,6 +23,7 @@ import de.nomagic.printerController.Axis_enum;
 import de.nomagic.printerController.GCodeResultStream;
 import de.nomagic.printerController.Heater_enum;
 import de.nomagic.printerController.Switch_enum;
+import de.nomagic.printerController.core.movement.XyzTable;
 
 /** Decodes Strings and gives the result to the Executor.
  *
@@ -32,6 +33,17 @@ import de.nomagic.printerController.Switch_enum;
 public class GCodeDecoder
 {
     public static final double Inch_in_Milimeter = 25.4;
+    /** maximum distance between an arc and the chords that replace it. */
+    public static final double DEFAULT_ARC_TOLERANCE_MM = 0.01;
+    public static final String CFG_NAME_ARC_TOLERANCE = "arc tolerance";
+    /** arcs are not split into chords shorter than this. */
+    public static final double MIN_ARC_CHORD_MM = 0.1;
+    /** arcs are not split into chords longer than this. */
+    public static final double MAX_ARC_CHORD_MM = 10.0;
+    /** the client can not execute more moves per second. Faster feed rates get longer chords. */
+    public static final double MAX_ARC_CHORDS_PER_SECOND = 200.0;
+    /** if no feed rate has been given. */
+    public static final double DEFAULT_ARC_FEEDRATE_MM_MINUTE = 9000;
 
     public static final int RESULT_OK    = 0;
     public static final int RESULT_ERROR = 1;
@@ -49,6 +61,7 @@ public class GCodeDecoder
     private String ResultValue = "";
     private String selectedSDCardFile = "";
     private boolean FileTransferModeActive = false;
+    private double arcToleranceMm = DEFAULT_ARC_TOLERANCE_MM;
 
     private boolean firstLine = true;
     private int lastLineNumber = 0;
@@ -77,12 +90,47 @@ public class GCodeDecoder
         this.masterCode = masterCode;
     }
 
-    public String sendLine(final String line, final GCodeResultStream resultStream)
+    /**
+     * @param toleranceMm maximum distance between an arc(G2/G3) and the chords that replace it.
+     */
+    public void setArcTolerance(double toleranceMm)
+    {
+        if(0.0 < toleranceMm)
+        {
+            arcToleranceMm = toleranceMm;
+        }
+        else
+        {
+            log.error("Invalid arc tolerance of {} mm ! Using {} mm.", toleranceMm, arcToleranceMm);
+        }
+    }
+
+    /**
+     * @param line the G-Code line. It is not kept after this call returns.
+     * @param resultStream receives the output of the G-Code, may be null.
+     * @return the reply to the line.
+     */
+    public String sendLine(final CharSequence line, final GCodeResultStream resultStream)
     {
         lastErrorReason = null;
         if(null == line) {return "";}
         if(1 > line.length()) {return "";}
-        final GCode code = masterCode.getGCodeFrom(line);
+        return sendCode(masterCode.getGCodeFrom(line), line, resultStream);
+    }
+
+    /** executes a line that has already been parsed.
+     *
+     * The modal state (position, units,..) gets applied here, so the lines
+     * must be send in the order of the file.
+     *
+     * @param code the parsed line.
+     * @param line the G-Code line. It is not kept after this call returns.
+     * @param resultStream receives the output of the G-Code, may be null.
+     * @return the reply to the line.
+     */
+    public String sendCode(final GCode code, final CharSequence line, final GCodeResultStream resultStream)
+    {
+        lastErrorReason = null;
         if(true == FileTransferModeActive)
         {
             final Double M = code.getWordValue('M');
@@ -94,7 +142,7 @@ public class GCodeDecoder
             }
             else
             {
-                final boolean res = sdCard.appendToFile(line);
+                final boolean res = sdCard.appendToFile(line.toString());
                 if(false == res)
                 {
                     lastErrorReason = sdCard.getLastErrorReason();
@@ -122,7 +170,7 @@ public class GCodeDecoder
             // read checksum
             final int readCheckSum = (code.getWordValue('*')).intValue();
             // calculate checksum
-            final int calculatedCheckSum = getCalculatedChecksum(line);
+            final int calculatedCheckSum = code.getCalculatedChecksum();
             // compare
             if(readCheckSum != calculatedCheckSum)
             {
@@ -159,7 +207,11 @@ public class GCodeDecoder
         {
             ref = new Reference("unknown");
         }
-        ref.setCommand(line);
+        if(line instanceof String)
+        {
+            ref.setCommand((String)line);
+        }
+        // else the line is a view into a buffer that gets reused -> do not keep it.
         if(true == code.hasWord('G'))
         {
             result = decode_General_Function_Code(code, ref);
@@ -211,24 +263,10 @@ public class GCodeDecoder
 
     public void close()
     {
-    }
-
-    private int getCalculatedChecksum(String line)
-    {
-        // Definition on http://reprap.org/wiki/G-code#N_and_.2A:
-        //int cs = 0;
-        // for(i = 0; cmd[i] != '*' && cmd[i] != NULL; i++)
-        //   cs = cs ^ cmd[i];
-        //cs &= 0xff;  // Defensive programming...
-
-        int cs = 0;
-        for(int i = 0; line.charAt(i) != '*' && i < line.length(); i++)
+        if(null != sdPrinterWorker)
         {
-           cs = cs ^ line.charAt(i);
+            sdPrinterWorker.close();
         }
-        cs &= 0xff;  // Defensive programming...
-
-        return cs;
     }
 
     private int decode_Miscellaneous_Function_Code(final GCode code, GCodeResultStream resultStream, Reference ref)
@@ -352,6 +390,10 @@ public class GCodeDecoder
                 return RESULT_OK;
             }
 
+        case 78: // communication statistics of the client connections
+            ResultValue = exe.getConnectionStatistics() + "ok";
+            return RESULT_VALUE;
+
         case 82: // set Extruder to absolute Mode
             isExtruderRelative = false;
             return RESULT_OK;
@@ -700,6 +742,12 @@ public class GCodeDecoder
                 return RESULT_OK;
             }
 
+        case 2: // Circular Motion clockwise
+            return decodeArc(code, true, ref);
+
+        case 3: // Circular Motion counter clockwise
+            return decodeArc(code, false, ref);
+
         case 4: // Dwell
             if(false == exe.addPauseFor(code.getWordValue('P'), ref))
             {
@@ -912,6 +960,182 @@ public class GCodeDecoder
         return move;
     }
 
+    private double getArcOffset(final GCode code, final Character word)
+    {
+        if(false == code.hasWord(word))
+        {
+            return 0.0;
+        }
+        if(true == isMetric)
+        {
+            return code.getWordValue(word);
+        }
+        else
+        {
+            // Inches
+            return code.getWordValue(word) * Inch_in_Milimeter;
+        }
+    }
+
+    /** number of chords that an arc gets split into.
+     *
+     * The chords are as long as the tolerance allows, but not so short that the
+     * client would need to execute more than MAX_ARC_CHORDS_PER_SECOND moves.
+     *
+     * @param radiusMm radius of the arc.
+     * @param arcLengthMm length of the arc.
+     * @param toleranceMm maximum distance between arc and chord.
+     * @param feedrateMmPerMinute speed along the arc.
+     * @return number of chords (at least 1).
+     */
+    static int getNumberOfArcChords(double radiusMm, double arcLengthMm, double toleranceMm, double feedrateMmPerMinute)
+    {
+        double chordMm;
+        if(toleranceMm < radiusMm)
+        {
+            // sagitta of the chord = tolerance
+            chordMm = 2 * Math.sqrt(toleranceMm * ((2 * radiusMm) - toleranceMm));
+        }
+        else
+        {
+            chordMm = MAX_ARC_CHORD_MM;
+        }
+        chordMm = Math.max(chordMm, (feedrateMmPerMinute / 60) / MAX_ARC_CHORDS_PER_SECOND);
+        chordMm = Math.max(MIN_ARC_CHORD_MM, Math.min(MAX_ARC_CHORD_MM, chordMm));
+        final int res = (int)Math.ceil(arcLengthMm / chordMm);
+        if(1 > res)
+        {
+            return 1;
+        }
+        return res;
+    }
+
+    /** G2 / G3 in the XY plane.
+     *
+     * The arc is split into chords that are given to the executor as relative moves.
+     * Z and E change linear over the arc (helix).
+     */
+    private int decodeArc(final GCode code, boolean clockwise, Reference ref)
+    {
+        final int fIdx = curPosition.length -1;
+        // relative move to the end point of the arc
+        final double dx = getRelativeMoveForAxis(code, 'X');
+        final double dy = getRelativeMoveForAxis(code, 'Y');
+        final double dz = getRelativeMoveForAxis(code, 'Z');
+        final double de = getRelativeMoveForAxis(code, 'E');
+        final double df = getRelativeMoveForAxis(code, 'F');
+        // centre of the arc relative to the start point
+        double ci;
+        double cj;
+        if(true == code.hasWord('R'))
+        {
+            double r = getArcOffset(code, 'R');
+            final double chord = Math.sqrt((dx * dx) + (dy * dy));
+            if((XyzTable.MIN_MOVEMENT_DISTANCE > chord) || (chord > 2 * Math.abs(r) + XyzTable.MIN_MOVEMENT_DISTANCE))
+            {
+                lastErrorReason = "G" + (clockwise ? 2 : 3) + ": no arc with radius " + r + " to this end point !";
+                log.error(lastErrorReason);
+                return RESULT_ERROR;
+            }
+            // distance of the centre from the middle of the chord
+            double h = Math.sqrt(Math.max(0.0, (r * r) - ((chord * chord) / 4))) / chord;
+            // positive radius = the shorter arc
+            if(clockwise == (0.0 < r))
+            {
+                h = -h;
+            }
+            ci = (dx / 2) - (h * dy);
+            cj = (dy / 2) + (h * dx);
+        }
+        else if((true == code.hasWord('I')) || (true == code.hasWord('J')))
+        {
+            ci = getArcOffset(code, 'I');
+            cj = getArcOffset(code, 'J');
+        }
+        else
+        {
+            lastErrorReason = "G" + (clockwise ? 2 : 3) + " needs I,J or R !";
+            log.error(lastErrorReason);
+            return RESULT_ERROR;
+        }
+        final double radius = Math.sqrt((ci * ci) + (cj * cj));
+        if(XyzTable.MIN_MOVEMENT_DISTANCE > radius)
+        {
+            lastErrorReason = "G" + (clockwise ? 2 : 3) + ": radius of arc is 0 !";
+            log.error(lastErrorReason);
+            return RESULT_ERROR;
+        }
+        final double startAngle = Math.atan2(-cj, -ci);
+        // angle between the vectors from the centre to the start and to the end point
+        final double cross = (-ci * (dy - cj)) - (-cj * (dx - ci));
+        final double dot = (-ci * (dx - ci)) + (-cj * (dy - cj));
+        double sweep = Math.atan2(cross, dot);
+        if(true == clockwise)
+        {
+            sweep = -sweep;
+        }
+        if(XyzTable.MIN_MOVEMENT_DISTANCE > Math.sqrt((dx * dx) + (dy * dy)))
+        {
+            // same start and end point = full circle
+            sweep = 2 * Math.PI;
+        }
+        else if(0.0 >= sweep)
+        {
+            sweep = sweep + (2 * Math.PI);
+        }
+        if(true == clockwise)
+        {
+            sweep = -sweep;
+        }
+        double feedrate = curPosition[fIdx] + df;
+        if(XyzTable.MIN_MOVEMENT_DISTANCE > feedrate)
+        {
+            feedrate = DEFAULT_ARC_FEEDRATE_MM_MINUTE;
+        }
+        final int chords = getNumberOfArcChords(radius, Math.abs(sweep) * radius, arcToleranceMm, feedrate);
+        log.trace("Arc with radius {} mm and {} rad as {} chords", radius, sweep, chords);
+        double lastX = 0.0;
+        double lastY = 0.0;
+        for(int i = 1; i <= chords; i++)
+        {
+            double x;
+            double y;
+            if(chords == i)
+            {
+                // exactly to the end point
+                x = dx;
+                y = dy;
+            }
+            else
+            {
+                final double angle = startAngle + ((sweep * i) / chords);
+                x = ci + (radius * Math.cos(angle));
+                y = cj + (radius * Math.sin(angle));
+            }
+            final RelativeMove move = new RelativeMove();
+            move.setX(x - lastX);
+            move.setY(y - lastY);
+            move.setZ(dz / chords);
+            move.setE(de / chords);
+            if((1 == i) && (true == code.hasWord('F')))
+            {
+                move.setF(df);
+            }
+            lastX = x;
+            lastY = y;
+            if(false == exe.addMoveTo(move, ref))
+            {
+                return RESULT_ERROR;
+            }
+        }
+        curPosition[Axis_enum.X.ordinal()] = curPosition[Axis_enum.X.ordinal()] + dx;
+        curPosition[Axis_enum.Y.ordinal()] = curPosition[Axis_enum.Y.ordinal()] + dy;
+        curPosition[Axis_enum.Z.ordinal()] = curPosition[Axis_enum.Z.ordinal()] + dz;
+        curPosition[Axis_enum.E.ordinal()] = curPosition[Axis_enum.E.ordinal()] + de;
+        curPosition[fIdx] = curPosition[fIdx] + df;
+        return RESULT_OK;
+    }
+
     private String getDescriptionOfSwitchState(int switchState)
     {
         switch(switchState)
@@ -14,191 +14,49 @@
  */
 package de.nomagic.printerController.core;
 
-import java.util.HashMap;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /** representation of a G-Code.
  *
  * For definition of G-Codes see the  NIST RS274NGC G-code standard
  * and the RepRap modifications: http://reprap.org/wiki/G-code
  *
+ * The line is parsed by a GCodeTokenizer. getGCodeFrom() reuses one
+ * instance per thread, so the returned G-Code is only valid until the
+ * same thread reads the next line.
+ *
  * @author Lars P&ouml;tter
  * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
  */
 public class GCodeImpl implements GCode
 {
-    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
-    private final HashMap<Character,Double> words = new HashMap<Character,Double>();
-    private boolean valid = true;
-    private final String OriginalLine;
-
-    public GCode getGCodeFrom(String line)
-    {
-        return new GCodeImpl(line);
-    }
-
-    public GCodeImpl(String line)
+    // every thread that decodes lines gets its own instance
+    private static final ThreadLocal<GCodeImpl> perThread = new ThreadLocal<GCodeImpl>()
     {
-        OriginalLine = line;
-        line = line.toUpperCase(); // case insensitive
-        line = line.trim(); // whitespace is ignored
-        char curWordType = ' ';
-        StringBuffer curNumber = new StringBuffer();
-        for(int i = 0; i < line.length(); i++)
+        @Override
+        protected GCodeImpl initialValue()
         {
-            final char c = line.charAt(i);
-            switch(c)
-            {
-            // Numbers
-            case '0':
-            case '1':
-            case '2':
-            case '3':
-            case '4':
-            case '5':
-            case '6':
-            case '7':
-            case '8':
-            case '9':
-            case '.':
-            case '+':
-            case '-':
-            case '#': // variable number 1 to 5399
-                curNumber.append(c);
-                break;
-
-            case 'A': // A -axis
-            case 'B': // B -axis
-            case 'C': // C -axis
-            case 'D': // tool radius compensation number
-            case 'E': // extrude - not in standard ! 3d printing specific!
-            case 'F': // feedrate
-            case 'G': // General function
-            case 'H': // Tool length offset index
-            case 'I': // X axis offset for arcs or in G87
-            case 'J': // Y axis offset for arcs or in G87
-            case 'K': // Z axis offset for arcs or in G87
-            case 'L': // number of repetitions (G10)
-            case 'M': // Miscellaneous function
-            case 'N': // Line number
-            case 'P': // dwell time(G4) + G10
-            case 'Q': // feed increment (G83)
-            case 'R': // arc radius
-            case 'S': // Spindle speed
-            case 'T': // tool selection
-            case 'X': // X -axis
-            case 'Y': // Y -axis
-            case 'Z': // Z -axis
-            case '*': // Check sum
-                if(' ' == curWordType)
-                {
-                    // first Word -> nothing to do
-                }
-                else
-                {
-                    // start of next word detected
-                    final String help = curNumber.toString();
-                    Double d = 0.0;
-                    try
-                    {
-                        d =  Double.parseDouble(help);
-                    }
-                    catch(final NullPointerException e)
-                    {
-                        valid = false;
-                        log.error("No value given for Word {} in line: {} !", curWordType, line);
-                    }
-                    catch(final NumberFormatException e)
-                    {
-                        if(true == hasWord('M'))
-                        {
-                            if(117 == getWordValue('M'))
-                            {
-                                // In the Marlin version of M117 (Display Message) the
-                                // message follows directly after the M Code.
-                                // -> so right now we try to interpret the Message.
-                                // -> we should not do that.
-                                return;
-                            }
-                        }
-                        valid = false;
-                        log.error("Invalid value({}) given for Word {} in line: {} !", help, curWordType, line);
-                    }
-                    words.put(curWordType,d);
-                    curNumber = new StringBuffer();
-                }
-                curWordType = c;
-                break;
+            return new GCodeImpl("");
+        }
+    };
 
-            case '(': // comment start
-                char commentedChar;
-                do
-                {
-                    i++;
-                    commentedChar = line.charAt(i);
-                }
-                while((commentedChar != ')') && (i < line.length()));
-                break;
+    private final GCodeTokenizer tokenizer = new GCodeTokenizer();
+    private CharSequence OriginalLine;
 
-            // non standard:
-            case ';':
-                // comment until end of line -> we are done here
-                 i = line.length();
-                break;
+    public GCode getGCodeFrom(CharSequence line)
+    {
+        final GCodeImpl res = perThread.get();
+        res.parse(line);
+        return res;
+    }
 
-            // whitespace
-            case ' ':
-            case '\t':
-            case '\r':
-            case '\n':
-                // ignore whitespace
-                break;
+    public GCodeImpl(CharSequence line)
+    {
+        parse(line);
+    }
 
-            case ')': // comment end -> may never happen on it's own
-            default:
-                valid = false;
-                log.error("Invalid character({}) in G-Code Line: {} !", c, line);
-                break;
-            }
-        }
-        // deal with last word
-        if(' ' == curWordType)
-        {
-            // no Word -> nothing to do
-        }
-        else
-        {
-            final String help = curNumber.toString();
-            Double d = 0.0;
-            try
-            {
-                d =  Double.parseDouble(help);
-            }
-            catch(final NullPointerException e)
-            {
-                valid = false;
-                log.error("No value given for Word {} in line: {} !", curWordType, line);
-            }
-            catch(final NumberFormatException e)
-            {
-                if(true == hasWord('M'))
-                {
-                    if(117 == getWordValue('M'))
-                    {
-                        // In the Marlin version of M117 (Display Message) the
-                        // message follows directly after the M Code.
-                        // -> so right now we try to interpret the Message.
-                        // -> we should not do that.
-                        return;
-                    }
-                }
-                valid = false;
-                log.error("Invalid value({}) given for Word {} in line: {} !", help, curWordType, line);
-            }
-            words.put(curWordType,d);
-        }
+    private void parse(CharSequence line)
+    {
+        OriginalLine = line;
+        tokenizer.parse(line);
     }
 
     private boolean isANumber(final Character c)
@@ -264,35 +122,32 @@ public class GCodeImpl implements GCode
 
     public boolean hasWord(final Character wordType)
     {
-        return words.containsKey(wordType);
+        return tokenizer.hasWord(wordType);
     }
 
     public Double getWordValue(final Character word)
     {
-        return getWordValue(word, 0.0);
+        return tokenizer.getWordValue(word, 0.0);
     }
 
     public Double getWordValue(final Character word, double defaultValue)
     {
-        final Double res = words.get(word);
-        if(null == res)
-        {
-            return defaultValue;
-        }
-        else
-        {
-            return res;
-        }
+        return tokenizer.getWordValue(word, defaultValue);
+    }
+
+    public int getCalculatedChecksum()
+    {
+        return tokenizer.getChecksum();
     }
 
     public boolean isEmpty()
     {
-        return  words.isEmpty();
+        return tokenizer.isEmpty();
     }
 
     public boolean isValid()
     {
-        return valid;
+        return tokenizer.isValid();
     }
 
 }
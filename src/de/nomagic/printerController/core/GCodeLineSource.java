@@ -0,0 +1,54 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/** a G-Code file that gets read line by line.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public interface GCodeLineSource extends Closeable
+{
+    /** moves to the next line.
+     *
+     * @return false if the end of the file has been reached.
+     * @throws IOException if the line could not be read.
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return the line without the line end. Only valid until next() gets called.
+     */
+    CharSequence getLine();
+
+    /**
+     * @return the parsed line or null if the line has not been parsed. Only valid until next() gets called.
+     */
+    GCode getGCode();
+
+    /**
+     * @return number of lines that have been read.
+     */
+    long getLinesRead();
+
+    /**
+     * @return 0..100
+     */
+    int getPercentDone();
+}
@@ -0,0 +1,158 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/** parses the lines in a part of a buffer on a fork/join pool.
+ *
+ * Parts that are larger than the split size get cut in two at a line end
+ * and are parsed in parallel. Each part that is small enough gets parsed
+ * into its own ParsedGCodeLines. Only the words of the lines get parsed
+ * here. The modal state (position, units, feedrate,..) depends on all
+ * lines before and gets applied later, line by line, by the GCodeDecoder.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+final class GCodeParseTask extends RecursiveAction
+{
+    private static final long serialVersionUID = 1L;
+    // used to guess the number of lines in a part
+    private static final int AVERAGE_LINE_LENGTH = 24;
+
+    // every worker thread gets its own tokenizer
+    private static final ThreadLocal<GCodeTokenizer> tokenizers = new ThreadLocal<GCodeTokenizer>()
+    {
+        @Override
+        protected GCodeTokenizer initialValue()
+        {
+            return new GCodeTokenizer();
+        }
+    };
+
+    private final transient ByteBuffer buf;
+    private final int from;
+    private final int to;
+    private final int splitSize;
+    private GCodeParseTask first = null;
+    private GCodeParseTask second = null;
+    private transient ParsedGCodeLines lines = null;
+
+    /**
+     * @param buf contains the lines. Only read, position and limit are not changed.
+     * @param from index of the first byte of the first line.
+     * @param to index behind the last byte.
+     * @param splitSize parts that are larger get split.
+     */
+    GCodeParseTask(final ByteBuffer buf, final int from, final int to, final int splitSize)
+    {
+        this.buf = buf;
+        this.from = from;
+        this.to = to;
+        this.splitSize = splitSize;
+    }
+
+    @Override
+    protected void compute()
+    {
+        if(to - from > splitSize)
+        {
+            final int middle = findLineEnd(from + (to - from) / 2);
+            if(middle < to)
+            {
+                first = new GCodeParseTask(buf, from, middle, splitSize);
+                second = new GCodeParseTask(buf, middle, to, splitSize);
+                invokeAll(first, second);
+                return;
+            }
+            // else the second half is one long line
+        }
+        parseLines();
+    }
+
+    /**
+     * @return index behind the first '\n' at or after pos, or to if there is none.
+     */
+    private int findLineEnd(int pos)
+    {
+        while(pos < to)
+        {
+            if('\n' == buf.get(pos))
+            {
+                return pos + 1;
+            }
+            pos++;
+        }
+        return to;
+    }
+
+    private void parseLines()
+    {
+        final int length = to - from;
+        // one bulk copy is much faster than reading the buffer byte by byte
+        final byte[] data = new byte[length];
+        final ByteBuffer src = buf.duplicate();
+        src.position(from);
+        src.get(data, 0, length);
+        final GCodeTokenizer tokenizer = tokenizers.get();
+        lines = new ParsedGCodeLines(length / AVERAGE_LINE_LENGTH, to);
+        int start = 0;
+        for(int i = 0; i < length; i++)
+        {
+            if('\n' == data[i])
+            {
+                addLine(tokenizer, data, start, i);
+                start = i + 1;
+            }
+        }
+        if(start < length)
+        {
+            // last line of the file without line end
+            addLine(tokenizer, data, start, length);
+        }
+    }
+
+    private void addLine(final GCodeTokenizer tokenizer, final byte[] data, final int start, int end)
+    {
+        if((end > start) && ('\r' == data[end - 1]))
+        {
+            end--;
+        }
+        tokenizer.parse(data, start, end - start);
+        lines.add(tokenizer, from + start, end - start);
+    }
+
+    /** adds the parsed lines in the order of the lines in the buffer.
+     *
+     * @param res receives the parsed parts.
+     */
+    void collectTo(final List<ParsedGCodeLines> res)
+    {
+        if(null != lines)
+        {
+            res.add(lines);
+        }
+        else if(null != first)
+        {
+            first.collectTo(res);
+            second.collectTo(res);
+        }
+        // else nothing to parse
+    }
+
+}
@@ -0,0 +1,496 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.nio.charset.Charset;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** splits a line of G-Code into its words.
+ *
+ * The line is read only once. The values of the words are parsed while the
+ * characters are read, and the checksum (see http://reprap.org/wiki/G-code#N_and_.2A)
+ * is calculated in the same pass. The values are kept in a table indexed by
+ * the letter of the word, so parsing a line does not create any objects.
+ * A tokenizer is meant to be reused for every line, by one thread only.
+ *
+ * Whitespace and comments are ignored, also inside of a number ("G1 X1 0" is X10).
+ * Letters are case insensitive.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public final class GCodeTokenizer
+{
+    /** number of different words: A to Z and the checksum(*). */
+    public static final int NUM_WORD_TYPES = 27;
+    private static final int CHECKSUM_WORD = 26;
+    private static final int NO_WORD = -1;
+    // numbers with more digits are passed to Double.parseDouble()
+    private static final int MAX_EXACT_DIGITS = 15;
+    // 10^0 to 10^15 can be represented exactly as double
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7,
+                                                   1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+    private static final Charset LINE_CHARSET = Charset.forName("ISO-8859-1");
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private final double[] values = new double[NUM_WORD_TYPES];
+    // bit n set = word n is in the line
+    private int wordMask = 0;
+    private boolean valid = true;
+    private int checksum = 0;
+    private boolean checksumComplete = false;
+    private boolean inComment = false;
+    // the line, only needed for the error messages
+    private CharSequence lineChars = null;
+    private byte[] lineBytes = null;
+    private int lineOffset = 0;
+    private int lineLength = 0;
+    // the word that is currently read
+    private int curWord = NO_WORD;
+    private long mantissa = 0;
+    private int numberOfDigits = 0;
+    private int fractionDigits = 0;
+    private boolean hasDot = false;
+    private boolean isNegative = false;
+    private boolean isInvalidNumber = false;
+    private final StringBuilder numberText = new StringBuilder();
+
+    public GCodeTokenizer()
+    {
+    }
+
+    /** reads a line.
+     *
+     * @param line the G-Code line.
+     * @return true if the line is valid G-Code.
+     */
+    public boolean parse(CharSequence line)
+    {
+        startLine();
+        lineChars = line;
+        lineLength = line.length();
+        boolean isParsing = true;
+        for(int i = 0; i < lineLength; i++)
+        {
+            final char c = line.charAt(i);
+            if(false == checksumComplete)
+            {
+                addToChecksum(c);
+            }
+            if(true == isParsing)
+            {
+                isParsing = addChar(c);
+            }
+            else if(true == checksumComplete)
+            {
+                break;
+            }
+        }
+        endLine(isParsing);
+        return valid;
+    }
+
+    /** reads a line that is stored as bytes (ASCII).
+     *
+     * @param buf contains the G-Code line.
+     * @param offset index of the first byte of the line.
+     * @param length number of bytes in the line.
+     * @return true if the line is valid G-Code.
+     */
+    public boolean parse(byte[] buf, int offset, int length)
+    {
+        startLine();
+        lineBytes = buf;
+        lineOffset = offset;
+        lineLength = length;
+        boolean isParsing = true;
+        final int end = offset + length;
+        for(int i = offset; i < end; i++)
+        {
+            final char c = (char)(0xff & buf[i]);
+            if(false == checksumComplete)
+            {
+                addToChecksum(c);
+            }
+            if(true == isParsing)
+            {
+                isParsing = addChar(c);
+            }
+            else if(true == checksumComplete)
+            {
+                break;
+            }
+        }
+        endLine(isParsing);
+        return valid;
+    }
+
+    public boolean isValid()
+    {
+        return valid;
+    }
+
+    public boolean isEmpty()
+    {
+        return 0 == wordMask;
+    }
+
+    public boolean hasWord(char wordType)
+    {
+        final int idx = getWordIndex(wordType);
+        if(NO_WORD == idx)
+        {
+            return false;
+        }
+        return 0 != (wordMask & (1 << idx));
+    }
+
+    public double getWordValue(char wordType, double defaultValue)
+    {
+        final int idx = getWordIndex(wordType);
+        if(NO_WORD == idx)
+        {
+            return defaultValue;
+        }
+        if(0 == (wordMask & (1 << idx)))
+        {
+            return defaultValue;
+        }
+        return values[idx];
+    }
+
+    /**
+     * @return bit n set = word n (see getWordIndex()) is in the line.
+     */
+    public int getWordMask()
+    {
+        return wordMask;
+    }
+
+    /** copies the values of the words that are in the line.
+     *
+     * The values are copied in the order of the index of the word.
+     *
+     * @param dst receives the values.
+     * @param offset position in dst for the first value.
+     * @return number of values that have been copied.
+     */
+    public int copyValuesTo(double[] dst, int offset)
+    {
+        int pos = offset;
+        for(int i = 0; i < NUM_WORD_TYPES; i++)
+        {
+            if(0 != (wordMask & (1 << i)))
+            {
+                dst[pos] = values[i];
+                pos++;
+            }
+        }
+        return pos - offset;
+    }
+
+    /**
+     * @return the checksum of all characters in front of the first '*'.
+     */
+    public int getChecksum()
+    {
+        return checksum & 0xff;
+    }
+
+    /**
+     * @return the line that has been parsed last.
+     */
+    public String getLine()
+    {
+        if(null != lineChars)
+        {
+            return lineChars.toString();
+        }
+        if(null != lineBytes)
+        {
+            return new String(lineBytes, lineOffset, lineLength, LINE_CHARSET);
+        }
+        return "";
+    }
+
+    private void startLine()
+    {
+        wordMask = 0;
+        valid = true;
+        checksum = 0;
+        checksumComplete = false;
+        inComment = false;
+        lineChars = null;
+        lineBytes = null;
+        lineOffset = 0;
+        curWord = NO_WORD;
+        startNumber();
+    }
+
+    private void endLine(boolean isParsing)
+    {
+        if(true == isParsing)
+        {
+            // deal with last word
+            finishWord();
+        }
+        curWord = NO_WORD;
+    }
+
+    private void addToChecksum(char c)
+    {
+        if('*' == c)
+        {
+            checksumComplete = true;
+        }
+        else
+        {
+            checksum = checksum ^ c;
+        }
+    }
+
+    /**
+     * @return index of the word (0..NUM_WORD_TYPES - 1) or -1 if c does not start a word.
+     */
+    static int getWordIndex(char c)
+    {
+        switch(c)
+        {
+        case 'A': // A -axis
+        case 'B': // B -axis
+        case 'C': // C -axis
+        case 'D': // tool radius compensation number
+        case 'E': // extrude - not in standard ! 3d printing specific!
+        case 'F': // feedrate
+        case 'G': // General function
+        case 'H': // Tool length offset index
+        case 'I': // X axis offset for arcs or in G87
+        case 'J': // Y axis offset for arcs or in G87
+        case 'K': // Z axis offset for arcs or in G87
+        case 'L': // number of repetitions (G10)
+        case 'M': // Miscellaneous function
+        case 'N': // Line number
+        case 'P': // dwell time(G4) + G10
+        case 'Q': // feed increment (G83)
+        case 'R': // arc radius
+        case 'S': // Spindle speed
+        case 'T': // tool selection
+        case 'X': // X -axis
+        case 'Y': // Y -axis
+        case 'Z': // Z -axis
+            return c - 'A';
+
+        case '*': // Check sum
+            return CHECKSUM_WORD;
+
+        default:
+            return NO_WORD;
+        }
+    }
+
+    /**
+     * @return false if the rest of the line is not G-Code.
+     */
+    private boolean addChar(char c)
+    {
+        if(true == inComment)
+        {
+            if(')' == c)
+            {
+                inComment = false;
+            }
+            return true;
+        }
+        if(('a' <= c) && ('z' >= c))
+        {
+            // case insensitive
+            c = (char)(c - ('a' - 'A'));
+        }
+        switch(c)
+        {
+        // Numbers
+        case '0':
+        case '1':
+        case '2':
+        case '3':
+        case '4':
+        case '5':
+        case '6':
+        case '7':
+        case '8':
+        case '9':
+            if(NO_WORD != curWord)
+            {
+                numberText.append(c);
+                numberOfDigits++;
+                if(MAX_EXACT_DIGITS >= numberOfDigits)
+                {
+                    mantissa = (mantissa * 10) + (c - '0');
+                    if(true == hasDot)
+                    {
+                        fractionDigits++;
+                    }
+                }
+            }
+            return true;
+
+        case '.':
+            if(NO_WORD != curWord)
+            {
+                if(true == hasDot)
+                {
+                    isInvalidNumber = true;
+                }
+                numberText.append(c);
+                hasDot = true;
+            }
+            return true;
+
+        case '+':
+        case '-':
+            if(NO_WORD != curWord)
+            {
+                if(0 < numberText.length())
+                {
+                    // sign must be the first character
+                    isInvalidNumber = true;
+                }
+                numberText.append(c);
+                isNegative = ('-' == c);
+            }
+            return true;
+
+        case '#': // variable number 1 to 5399
+            if(NO_WORD != curWord)
+            {
+                // variables are not supported
+                numberText.append(c);
+                isInvalidNumber = true;
+            }
+            return true;
+
+        case '(': // comment start
+            inComment = true;
+            return true;
+
+        // non standard:
+        case ';':
+            // comment until end of line -> we are done here
+            finishWord();
+            return false;
+
+        // whitespace
+        case ' ':
+        case '\t':
+        case '\r':
+        case '\n':
+            // ignore whitespace
+            return true;
+
+        default:
+            final int idx = getWordIndex(c);
+            if(NO_WORD != idx)
+            {
+                // start of next word detected
+                if(false == finishWord())
+                {
+                    return false;
+                }
+                curWord = idx;
+                return true;
+            }
+            if(' ' > c)
+            {
+                // control characters (as removed by trim())
+                return true;
+            }
+            // ')' = comment end -> may never happen on it's own
+            valid = false;
+            log.error("Invalid character({}) in G-Code Line: {} !", c, getLine());
+            return true;
+        }
+    }
+
+    private void startNumber()
+    {
+        mantissa = 0;
+        numberOfDigits = 0;
+        fractionDigits = 0;
+        hasDot = false;
+        isNegative = false;
+        isInvalidNumber = false;
+        numberText.setLength(0);
+    }
+
+    /** stores the value of the current word.
+     *
+     * @return false if the rest of the line is not G-Code.
+     */
+    private boolean finishWord()
+    {
+        if(NO_WORD == curWord)
+        {
+            // no Word -> nothing to do
+            startNumber();
+            return true;
+        }
+        double d = 0.0;
+        if((true == isInvalidNumber) || (0 == numberOfDigits))
+        {
+            if((0 != (wordMask & (1 << ('M' - 'A')))) && (117 == values['M' - 'A']))
+            {
+                // In the Marlin version of M117 (Display Message) the
+                // message follows directly after the M Code.
+                // -> so right now we try to interpret the Message.
+                // -> we should not do that.
+                curWord = NO_WORD;
+                return false;
+            }
+            valid = false;
+            log.error("Invalid value({}) given for Word {} in line: {} !",
+                      numberText, getWordLetter(curWord), getLine());
+        }
+        else if(MAX_EXACT_DIGITS >= numberOfDigits)
+        {
+            // mantissa and power of ten are exact -> the division rounds like Double.parseDouble()
+            d = mantissa / POWERS_OF_TEN[fractionDigits];
+            if(true == isNegative)
+            {
+                d = -d;
+            }
+        }
+        else
+        {
+            d = Double.parseDouble(numberText.toString());
+        }
+        values[curWord] = d;
+        wordMask = wordMask | (1 << curWord);
+        startNumber();
+        return true;
+    }
+
+    private static char getWordLetter(int idx)
+    {
+        if(CHECKSUM_WORD == idx)
+        {
+            return '*';
+        }
+        return (char)('A' + idx);
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** reads a G-Code file line by line without creating a String for each line.
+ *
+ * The file is mapped into memory one chunk at a time, so that files that are
+ * larger than 2 GB (or larger than the heap) can be printed. The lines are
+ * handed out as a view into the mapped chunk. A line that is cut by the end
+ * of the chunk is read again from the start of the next chunk.
+ *
+ * The progress (bytes and lines read) can be read from other threads.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class MappedGCodeReader implements GCodeLineSource
+{
+    /** number of bytes that get mapped at once. */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int chunkSize;
+    private final ByteBufferLine line = new ByteBufferLine();
+    private MappedByteBuffer chunk = null;
+    // position of the chunk in the file
+    private long chunkStart = 0;
+    private int chunkLength = 0;
+    // position of the next line in the chunk
+    private int pos = 0;
+    private volatile long bytesRead = 0;
+    private volatile long linesRead = 0;
+
+    public MappedGCodeReader(File f) throws IOException
+    {
+        this(f, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param f the G-Code file.
+     * @param chunkSize number of bytes that get mapped at once. Must be longer than the longest line.
+     * @throws IOException if the file can not be read.
+     */
+    public MappedGCodeReader(File f, int chunkSize) throws IOException
+    {
+        if(1 > chunkSize)
+        {
+            throw new IllegalArgumentException("Chunk size of " + chunkSize + " is invalid !");
+        }
+        this.chunkSize = chunkSize;
+        file = new RandomAccessFile(f, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+        mapChunk(0);
+    }
+
+    private void mapChunk(long start) throws IOException
+    {
+        chunkStart = start;
+        chunkLength = (int)Math.min(chunkSize, fileSize - start);
+        chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkLength);
+        pos = 0;
+        if(true == log.isTraceEnabled())
+        {
+            log.trace("mapped {} bytes at {}", chunkLength, chunkStart);
+        }
+    }
+
+    /** reads the next line.
+     *
+     * The returned line is only valid until the next call. The line end
+     * (\n or \r\n) is not part of the line.
+     *
+     * @return the line or null if the end of the file has been reached.
+     * @throws IOException if a line is longer than the chunk size.
+     */
+    public CharSequence readLine() throws IOException
+    {
+        if(chunkStart + pos >= fileSize)
+        {
+            return null;
+        }
+        int end = pos;
+        while((end < chunkLength) && ('\n' != chunk.get(end)))
+        {
+            end++;
+        }
+        if((end == chunkLength) && (chunkStart + chunkLength < fileSize))
+        {
+            // the line continues in the next chunk
+            if(0 == pos)
+            {
+                throw new IOException("Line " + (linesRead + 1) + " is longer than " + chunkSize + " bytes !");
+            }
+            mapChunk(chunkStart + pos);
+            return readLine();
+        }
+        int length = end - pos;
+        if((0 < length) && ('\r' == chunk.get(end - 1)))
+        {
+            length--;
+        }
+        line.set(chunk, pos, length);
+        if(end < chunkLength)
+        {
+            // skip the '\n'
+            end++;
+        }
+        pos = end;
+        bytesRead = chunkStart + pos;
+        linesRead++;
+        return line;
+    }
+
+    @Override
+    public boolean next() throws IOException
+    {
+        return null != readLine();
+    }
+
+    /**
+     * @return the line that has been read last. Only valid until the next line gets read.
+     */
+    @Override
+    public CharSequence getLine()
+    {
+        return line;
+    }
+
+    /**
+     * @return null, as the lines do not get parsed.
+     */
+    @Override
+    public GCode getGCode()
+    {
+        return null;
+    }
+
+    /**
+     * @return size of the file in bytes.
+     */
+    public long getSize()
+    {
+        return fileSize;
+    }
+
+    /**
+     * @return number of bytes that have been read, including the line ends.
+     */
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    /**
+     * @return number of lines that have been read.
+     */
+    @Override
+    public long getLinesRead()
+    {
+        return linesRead;
+    }
+
+    /**
+     * @return 0..100
+     */
+    @Override
+    public int getPercentDone()
+    {
+        if(0 == fileSize)
+        {
+            return 100;
+        }
+        return (int)((bytesRead * 100) / fileSize);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        // the mapped chunk gets released by the garbage collector.
+        chunk = null;
+        channel.close();
+        file.close();
+    }
+
+}
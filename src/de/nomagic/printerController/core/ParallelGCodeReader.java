@@ -0,0 +1,300 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** reads a G-Code file and parses the lines in parallel.
+ *
+ * The file is mapped into memory one batch at a time. Each batch ends at a
+ * line end and gets parsed on a fork/join pool (see GCodeParseTask) into a
+ * compact form, while the lines of the batch before are handed out. The
+ * lines are handed out in the order of the file, so the modal state can be
+ * applied by the GCodeDecoder (see GCodeDecoder.sendCode()) as usual.
+ *
+ * The progress (bytes and lines read) can be read from other threads.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class ParallelGCodeReader implements GCodeLineSource
+{
+    /** number of bytes that get mapped and parsed at once. */
+    public static final int DEFAULT_BATCH_SIZE = 8 * 1024 * 1024;
+    /** number of bytes that one thread parses at once. */
+    public static final int DEFAULT_SPLIT_SIZE = 64 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final ForkJoinPool pool;
+    private final int batchSize;
+    private final int splitSize;
+    private final ParsedGCode code = new ParsedGCode();
+    private final ByteBufferLine line = new ByteBufferLine();
+
+    // the batch that gets read
+    private MappedByteBuffer batch = null;
+    private long batchStart = 0;
+    private final ArrayList<ParsedGCodeLines> segments = new ArrayList<ParsedGCodeLines>();
+    private int segmentIndex = 0;
+    private ParsedGCodeLines segment = null;
+    private int lineIndex = 0;
+
+    // the batch that gets parsed in the background
+    private GCodeParseTask nextTask = null;
+    private MappedByteBuffer nextBatch = null;
+    private long nextBatchStart = 0;
+    private long nextBatchEnd = 0;
+
+    private volatile long bytesRead = 0;
+    private volatile long linesRead = 0;
+
+    /** parses on the common fork/join pool.
+     *
+     * @param f the G-Code file.
+     * @throws IOException if the file can not be read.
+     */
+    public ParallelGCodeReader(File f) throws IOException
+    {
+        this(f, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param f the G-Code file.
+     * @param pool the lines get parsed by the threads of this pool.
+     * @throws IOException if the file can not be read.
+     */
+    public ParallelGCodeReader(File f, ForkJoinPool pool) throws IOException
+    {
+        this(f, pool, DEFAULT_BATCH_SIZE, DEFAULT_SPLIT_SIZE);
+    }
+
+    /**
+     * @param f the G-Code file.
+     * @param pool the lines get parsed by the threads of this pool.
+     * @param batchSize number of bytes that get mapped at once. Must be longer than the longest line.
+     * @param splitSize number of bytes that one thread parses at once.
+     * @throws IOException if the file can not be read.
+     */
+    public ParallelGCodeReader(File f, ForkJoinPool pool, int batchSize, int splitSize) throws IOException
+    {
+        if((null == pool) || (1 > batchSize) || (1 > splitSize))
+        {
+            throw new IllegalArgumentException("Invalid pool, batch size(" + batchSize
+                                               + ") or split size(" + splitSize + ") !");
+        }
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.splitSize = splitSize;
+        file = new RandomAccessFile(f, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+        if(0 < fileSize)
+        {
+            try
+            {
+                startBatch(0);
+            }
+            catch(final IOException e)
+            {
+                channel.close();
+                file.close();
+                throw e;
+            }
+        }
+    }
+
+    /** maps the next batch and starts parsing it. */
+    private void startBatch(final long start) throws IOException
+    {
+        int length = (int)Math.min(batchSize, fileSize - start);
+        final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        if(start + length < fileSize)
+        {
+            // the batch ends behind the last complete line
+            int end = length - 1;
+            while((0 <= end) && ('\n' != buf.get(end)))
+            {
+                end--;
+            }
+            if(0 > end)
+            {
+                throw new IOException("Line at byte " + start + " is longer than " + batchSize + " bytes !");
+            }
+            length = end + 1;
+        }
+        nextBatch = buf;
+        nextBatchStart = start;
+        nextBatchEnd = start + length;
+        nextTask = new GCodeParseTask(buf, 0, length, splitSize);
+        pool.execute(nextTask);
+        if(true == log.isTraceEnabled())
+        {
+            log.trace("parsing {} bytes at {}", length, start);
+        }
+    }
+
+    /** waits for the parsed batch and starts parsing the batch after that.
+     *
+     * @return false if the end of the file has been reached.
+     */
+    private boolean takeNextBatch() throws IOException
+    {
+        if(null == nextTask)
+        {
+            return false;
+        }
+        nextTask.join();
+        segments.clear();
+        nextTask.collectTo(segments);
+        nextTask = null;
+        batch = nextBatch;
+        batchStart = nextBatchStart;
+        segmentIndex = -1;
+        segment = null;
+        if(nextBatchEnd < fileSize)
+        {
+            startBatch(nextBatchEnd);
+        }
+        return true;
+    }
+
+    /** moves to the next line.
+     *
+     * @return false if the end of the file has been reached.
+     * @throws IOException if a line is longer than the batch size.
+     */
+    @Override
+    public boolean next() throws IOException
+    {
+        while(true)
+        {
+            if((null != segment) && (lineIndex + 1 < segment.size()))
+            {
+                lineIndex++;
+                break;
+            }
+            if(segmentIndex + 1 < segments.size())
+            {
+                segmentIndex++;
+                segment = segments.get(segmentIndex);
+                lineIndex = -1;
+            }
+            else if(false == takeNextBatch())
+            {
+                return false;
+            }
+        }
+        final int start = segment.getLineStart(lineIndex);
+        line.set(batch, start, segment.getLineLength(lineIndex));
+        code.set(segment, lineIndex, line);
+        if(lineIndex + 1 < segment.size())
+        {
+            bytesRead = batchStart + segment.getLineStart(lineIndex + 1);
+        }
+        else
+        {
+            bytesRead = batchStart + segment.getEnd();
+        }
+        linesRead++;
+        return true;
+    }
+
+    /**
+     * @return the parsed line. Only valid until next() gets called.
+     */
+    @Override
+    public GCode getGCode()
+    {
+        return code;
+    }
+
+    /**
+     * @return the line without the line end. Only valid until next() gets called.
+     */
+    @Override
+    public CharSequence getLine()
+    {
+        return line;
+    }
+
+    /**
+     * @return size of the file in bytes.
+     */
+    public long getSize()
+    {
+        return fileSize;
+    }
+
+    /**
+     * @return number of bytes that have been read, including the line ends.
+     */
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    /**
+     * @return number of lines that have been read.
+     */
+    @Override
+    public long getLinesRead()
+    {
+        return linesRead;
+    }
+
+    /**
+     * @return 0..100
+     */
+    @Override
+    public int getPercentDone()
+    {
+        if(0 == fileSize)
+        {
+            return 100;
+        }
+        return (int)((bytesRead * 100) / fileSize);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if(null != nextTask)
+        {
+            // the buffer must stay valid until the parsing has finished
+            nextTask.quietlyJoin();
+            nextTask = null;
+        }
+        // the mapped batches get released by the garbage collector.
+        batch = null;
+        nextBatch = null;
+        segments.clear();
+        channel.close();
+        file.close();
+    }
+
+}
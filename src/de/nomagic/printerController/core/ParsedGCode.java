@@ -0,0 +1,91 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+/** a G-Code that has been parsed by the ParallelGCodeReader.
+ *
+ * This only points to a line in the ParsedGCodeLines. The reader moves it
+ * to the next line, so it is only valid until the next line is read.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+final class ParsedGCode implements GCode
+{
+    private ParsedGCodeLines lines = null;
+    private int index = 0;
+    private CharSequence line = "";
+
+    ParsedGCode()
+    {
+    }
+
+    void set(final ParsedGCodeLines lines, final int index, final CharSequence line)
+    {
+        this.lines = lines;
+        this.index = index;
+        this.line = line;
+    }
+
+    @Override
+    public GCode getGCodeFrom(CharSequence line)
+    {
+        return new GCodeImpl(line);
+    }
+
+    @Override
+    public String getLineWithoutCommentWithoutWord(final Character wordType)
+    {
+        // only needed for the rare G-Codes that pass the line on
+        return new GCodeImpl(line).getLineWithoutCommentWithoutWord(wordType);
+    }
+
+    @Override
+    public boolean hasWord(final Character wordType)
+    {
+        return lines.hasWord(index, GCodeTokenizer.getWordIndex(wordType));
+    }
+
+    @Override
+    public Double getWordValue(final Character word)
+    {
+        return getWordValue(word, 0.0);
+    }
+
+    @Override
+    public Double getWordValue(final Character word, double defaultValue)
+    {
+        return lines.getWordValue(index, GCodeTokenizer.getWordIndex(word), defaultValue);
+    }
+
+    @Override
+    public int getCalculatedChecksum()
+    {
+        return lines.getChecksum(index);
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return lines.isEmpty(index);
+    }
+
+    @Override
+    public boolean isValid()
+    {
+        return lines.isValid(index);
+    }
+
+}
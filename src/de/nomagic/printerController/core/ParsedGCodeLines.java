@@ -0,0 +1,155 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.util.Arrays;
+
+/** the parsed lines of a part of a G-Code file.
+ *
+ * Instead of one object per line the lines are stored in a few arrays:
+ * the position of the line in the buffer, the words of the line as bit
+ * mask (see GCodeTokenizer.getWordMask()), the checksum and the start of
+ * the values. The values of all lines are stored back to back in one array,
+ * so a line only needs as many values as it has words.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+final class ParsedGCodeLines
+{
+    // the tokenizer only uses the lower bits of the word mask
+    private static final int INVALID_FLAG = 1 << 31;
+
+    // position behind the last line end in the buffer
+    private final int end;
+    private int numberOfLines = 0;
+    private int[] lineStart;
+    private int[] lineLength;
+    private int[] wordMask;
+    private byte[] checksum;
+    private int[] valueStart;
+    private int numberOfValues = 0;
+    private double[] values;
+
+    /**
+     * @param expectedLines number of lines that will probably be added.
+     * @param end position behind the last line end in the buffer.
+     */
+    ParsedGCodeLines(int expectedLines, final int end)
+    {
+        this.end = end;
+        if(1 > expectedLines)
+        {
+            expectedLines = 1;
+        }
+        lineStart = new int[expectedLines];
+        lineLength = new int[expectedLines];
+        wordMask = new int[expectedLines];
+        checksum = new byte[expectedLines];
+        valueStart = new int[expectedLines];
+        values = new double[expectedLines * 4];
+    }
+
+    /** adds the line that has just been parsed by the tokenizer.
+     *
+     * @param tokenizer has parsed the line.
+     * @param start position of the line in the buffer.
+     * @param length number of characters in the line.
+     */
+    void add(final GCodeTokenizer tokenizer, final int start, final int length)
+    {
+        if(numberOfLines == lineStart.length)
+        {
+            final int newSize = numberOfLines * 2;
+            lineStart = Arrays.copyOf(lineStart, newSize);
+            lineLength = Arrays.copyOf(lineLength, newSize);
+            wordMask = Arrays.copyOf(wordMask, newSize);
+            checksum = Arrays.copyOf(checksum, newSize);
+            valueStart = Arrays.copyOf(valueStart, newSize);
+        }
+        if(numberOfValues + GCodeTokenizer.NUM_WORD_TYPES > values.length)
+        {
+            values = Arrays.copyOf(values, values.length * 2 + GCodeTokenizer.NUM_WORD_TYPES);
+        }
+        lineStart[numberOfLines] = start;
+        lineLength[numberOfLines] = length;
+        int mask = tokenizer.getWordMask();
+        if(false == tokenizer.isValid())
+        {
+            mask = mask | INVALID_FLAG;
+        }
+        wordMask[numberOfLines] = mask;
+        checksum[numberOfLines] = (byte)tokenizer.getChecksum();
+        valueStart[numberOfLines] = numberOfValues;
+        numberOfValues = numberOfValues + tokenizer.copyValuesTo(values, numberOfValues);
+        numberOfLines++;
+    }
+
+    int size()
+    {
+        return numberOfLines;
+    }
+
+    int getEnd()
+    {
+        return end;
+    }
+
+    int getLineStart(int line)
+    {
+        return lineStart[line];
+    }
+
+    int getLineLength(int line)
+    {
+        return lineLength[line];
+    }
+
+    boolean isValid(int line)
+    {
+        return 0 == (wordMask[line] & INVALID_FLAG);
+    }
+
+    boolean isEmpty(int line)
+    {
+        return 0 == (wordMask[line] & ~INVALID_FLAG);
+    }
+
+    int getChecksum(int line)
+    {
+        return 0xff & checksum[line];
+    }
+
+    boolean hasWord(int line, int wordIndex)
+    {
+        if(0 > wordIndex)
+        {
+            return false;
+        }
+        return 0 != (wordMask[line] & (1 << wordIndex));
+    }
+
+    double getWordValue(int line, int wordIndex, double defaultValue)
+    {
+        if(false == hasWord(line, wordIndex))
+        {
+            return defaultValue;
+        }
+        // the values of the words with a lower index are stored in front of this value
+        final int lowerWords = wordMask[line] & ((1 << wordIndex) - 1);
+        return values[valueStart[line] + Integer.bitCount(lowerWords)];
+    }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** reads the lines of a file while a second thread reads ahead.
+ *
+ * The read ahead thread fills a few buffers with the next bytes of the file,
+ * so that reading a line (almost) never has to wait for the disk. The lines
+ * are handed out as view into the buffer. Only a line that is cut by the
+ * end of a buffer gets copied.
+ *
+ * The position is the number of bytes from the start of the file to the
+ * start of the next line. Reading can start at any position.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class ReadAheadLineReader implements Closeable
+{
+    /** number of bytes that get read at once. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    /** number of buffers that get filled ahead. */
+    public static final int DEFAULT_NUMBER_OF_BUFFERS = 4;
+    /** longer lines are not G-Code. */
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    // empty buffers for the read ahead thread
+    private final BlockingQueue<ByteBuffer> emptyBuffers;
+    // filled buffers in the order of the file, an empty buffer marks the end of the file
+    private final BlockingQueue<ByteBuffer> filledBuffers;
+    private final Thread readAheadThread;
+    private volatile IOException readError = null;
+    private volatile boolean isClosed = false;
+
+    private final ByteBufferLine line = new ByteBufferLine();
+    private ByteBuffer cur = null;
+    private boolean endOfFile = false;
+    // lines that are cut by the end of a buffer get put together here
+    private byte[] carry = new byte[256];
+    private ByteBuffer carryView = ByteBuffer.wrap(carry);
+    private int carryLength = 0;
+    private volatile long position;
+
+    /**
+     * @param file the file to read. Gets closed by close().
+     * @param startPosition number of bytes to skip at the start of the file.
+     * @throws IOException if the file can not be read.
+     */
+    public ReadAheadLineReader(RandomAccessFile file, long startPosition) throws IOException
+    {
+        this(file, startPosition, DEFAULT_BUFFER_SIZE, DEFAULT_NUMBER_OF_BUFFERS);
+    }
+
+    /**
+     * @param file the file to read. Gets closed by close().
+     * @param startPosition number of bytes to skip at the start of the file.
+     * @param bufferSize number of bytes that get read at once.
+     * @param numberOfBuffers number of buffers that get filled ahead.
+     * @throws IOException if the file can not be read.
+     */
+    public ReadAheadLineReader(RandomAccessFile file, final long startPosition, int bufferSize, int numberOfBuffers)
+            throws IOException
+    {
+        if((null == file) || (1 > bufferSize) || (1 > numberOfBuffers))
+        {
+            throw new IllegalArgumentException("Invalid file, buffer size(" + bufferSize
+                                               + ") or number of buffers(" + numberOfBuffers + ") !");
+        }
+        this.file = file;
+        channel = file.getChannel();
+        fileSize = channel.size();
+        if((0 > startPosition) || (fileSize < startPosition))
+        {
+            throw new IOException("Position " + startPosition + " is not in the file(" + fileSize + " bytes) !");
+        }
+        position = startPosition;
+        emptyBuffers = new ArrayBlockingQueue<ByteBuffer>(numberOfBuffers);
+        // + 1 for the end of file marker
+        filledBuffers = new ArrayBlockingQueue<ByteBuffer>(numberOfBuffers + 1);
+        for(int i = 0; i < numberOfBuffers; i++)
+        {
+            emptyBuffers.add(ByteBuffer.allocate(bufferSize));
+        }
+        readAheadThread = new Thread("SD Card read ahead")
+        {
+            @Override
+            public void run()
+            {
+                readAhead(startPosition);
+            }
+        };
+        readAheadThread.setDaemon(true);
+        readAheadThread.start();
+    }
+
+    private void readAhead(long filePos)
+    {
+        try
+        {
+            while((false == isClosed) && (filePos < fileSize))
+            {
+                final ByteBuffer buf = emptyBuffers.take();
+                buf.clear();
+                while((true == buf.hasRemaining()) && (filePos < fileSize))
+                {
+                    final int res = channel.read(buf, filePos);
+                    if(0 > res)
+                    {
+                        // file got shorter
+                        break;
+                    }
+                    filePos = filePos + res;
+                }
+                buf.flip();
+                if(0 == buf.limit())
+                {
+                    break;
+                }
+                filledBuffers.put(buf);
+            }
+        }
+        catch(final InterruptedException e)
+        {
+            // close() has been called
+            return;
+        }
+        catch(final IOException e)
+        {
+            if(false == isClosed)
+            {
+                log.error("Failed to read the file : {} !", e.getMessage());
+                readError = e;
+            }
+        }
+        // end of file
+        filledBuffers.offer(ByteBuffer.allocate(0));
+    }
+
+    /** reads the next line.
+     *
+     * The returned line is only valid until the next call. The line end
+     * (\n or \r\n) is not part of the line.
+     *
+     * @return the line or null if the end of the file has been reached.
+     * @throws IOException if the file could not be read or a line is too long.
+     */
+    public CharSequence readLine() throws IOException
+    {
+        if(true == isClosed)
+        {
+            throw new IOException("Reader has been closed !");
+        }
+        carryLength = 0;
+        while(false == endOfFile)
+        {
+            if((null == cur) || (false == cur.hasRemaining()))
+            {
+                nextBuffer();
+                continue;
+            }
+            final byte[] data = cur.array();
+            final int start = cur.position();
+            final int limit = cur.limit();
+            int end = start;
+            while((end < limit) && ('\n' != data[end]))
+            {
+                end++;
+            }
+            if(end < limit)
+            {
+                // found the line end
+                cur.position(end + 1);
+                position = position + (end + 1 - start);
+                if(0 == carryLength)
+                {
+                    return setLine(cur, start, end - start);
+                }
+                addToCarry(data, start, end - start);
+                return setLine(carryView, 0, carryLength);
+            }
+            // the line continues in the next buffer
+            addToCarry(data, start, limit - start);
+            position = position + (limit - start);
+            cur.position(limit);
+        }
+        if(0 < carryLength)
+        {
+            // last line without line end
+            return setLine(carryView, 0, carryLength);
+        }
+        return null;
+    }
+
+    private CharSequence setLine(ByteBuffer buf, int offset, int length)
+    {
+        if((0 < length) && ('\r' == buf.get(offset + length - 1)))
+        {
+            length--;
+        }
+        line.set(buf, offset, length);
+        return line;
+    }
+
+    private void addToCarry(byte[] data, int offset, int length) throws IOException
+    {
+        if(carryLength + length > carry.length)
+        {
+            if(carryLength + length > MAX_LINE_LENGTH)
+            {
+                throw new IOException("Line at byte " + (position - carryLength) + " is longer than "
+                                      + MAX_LINE_LENGTH + " bytes !");
+            }
+            final byte[] bigger = new byte[Math.min(MAX_LINE_LENGTH, 2 * (carryLength + length))];
+            System.arraycopy(carry, 0, bigger, 0, carryLength);
+            carry = bigger;
+            carryView = ByteBuffer.wrap(carry);
+        }
+        System.arraycopy(data, offset, carry, carryLength, length);
+        carryLength = carryLength + length;
+    }
+
+    private void nextBuffer() throws IOException
+    {
+        if(null != cur)
+        {
+            // hand it back to the read ahead thread
+            emptyBuffers.offer(cur);
+            cur = null;
+        }
+        try
+        {
+            cur = filledBuffers.take();
+        }
+        catch(final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading !");
+        }
+        if(0 == cur.limit())
+        {
+            endOfFile = true;
+            cur = null;
+            if(null != readError)
+            {
+                throw readError;
+            }
+        }
+    }
+
+    /**
+     * @return number of bytes from the start of the file to the start of the next line.
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * @return size of the file in bytes.
+     */
+    public long getSize()
+    {
+        return fileSize;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        isClosed = true;
+        readAheadThread.interrupt();
+        try
+        {
+            readAheadThread.join();
+        }
+        catch(final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        file.close();
+    }
+
+}
@@ -5,5 +5,8 @@ public interface SDCardPrinter
     boolean startResumePrinting(String selectedSDCardFile);
     String getPrintStatus();
     void pausePrinting();
+    /** @param position number of bytes from the start of the file to the line that gets printed next. */
     boolean setSDCardPosition(long position);
+    /** stops the print. */
+    void close();
 }
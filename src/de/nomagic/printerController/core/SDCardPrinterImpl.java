@@ -17,128 +17,251 @@ package de.nomagic.printerController.core;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
-/**
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** prints a file from the (simulated) SD Card.
+ *
+ * The file is read by a ReadAheadLineReader and the lines are send to the
+ * G-Code decoder by the print thread. While the print is paused the print
+ * thread waits on the lock, until the print is resumed or stopped.
+ *
+ * The position (M26, M27) is the number of bytes from the start of the
+ * file to the start of the next line that will be printed.
+ *
  * @author Lars P&ouml;tter
  * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
  *
  */
-public class SDCardPrinterImpl extends Thread implements SDCardPrinter
+public class SDCardPrinterImpl implements SDCardPrinter
 {
-    private volatile String currentFileName = "";
-    private volatile RandomAccessFile currenFile;
-    private SDCardSimulation sdCard;
-    private GCodeDecoder gCodeDecoder;
-    private volatile boolean isRunning = false;
-    private volatile boolean isPrinting = false;
-    private volatile boolean needsToRestart = false;
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+    private final SDCardSimulation sdCard;
+    private final GCodeDecoder gCodeDecoder;
+    // guards the state of the print, the print thread waits on it while paused
+    private final Object lock = new Object();
+    private String currentFileName = null;
+    private long fileLength = 0;
+    private Thread printThread = null;
+    // only read while not holding the lock, so that printing a line does not need the lock
+    private volatile boolean isPaused = false;
+    private volatile boolean shallStop = false;
+    private boolean isWaiting = false;
+    // -1 = continue with the next line
+    private long newPosition = -1;
+    private volatile long position = 0;
 
     public SDCardPrinterImpl(SDCardSimulation sdCard, GCodeDecoder gCodeDecoder)
     {
-        super("SD Card Printer");
         this.sdCard = sdCard;
         this.gCodeDecoder = gCodeDecoder;
     }
 
     public boolean startResumePrinting(String selectedSDCardFile)
     {
-        if(true == isRunning)
+        if(null == selectedSDCardFile)
+        {
+            log.error("No SD Card file selected !");
+            return false;
+        }
+        long startPosition = 0;
+        synchronized(lock)
         {
-            if(currentFileName != selectedSDCardFile)
+            if(Thread.currentThread() == printThread)
             {
-                // paused -> start new File
-                needsToRestart = true;
-                currentFileName = selectedSDCardFile;
-                isPrinting = true;
+                log.error("Can not start a print from the SD Card file that is printing !");
+                return false;
             }
-            else
+            if(null != printThread)
+            {
+                if(true == selectedSDCardFile.equals(currentFileName))
+                {
+                    // we have been paused -> resume
+                    isPaused = false;
+                    isWaiting = false;
+                    lock.notifyAll();
+                    return true;
+                }
+            }
+            else if(0 <= newPosition)
+            {
+                // start at the position set by M26
+                startPosition = newPosition;
+            }
+        }
+        // paused or done -> start new File
+        stopPrinting();
+        final RandomAccessFile file = sdCard.openFileForReading(selectedSDCardFile);
+        if(null == file)
+        {
+            log.error("Could not open {} : {} !", selectedSDCardFile, sdCard.getLastErrorReason());
+            return false;
+        }
+        final ReadAheadLineReader reader;
+        try
+        {
+            reader = new ReadAheadLineReader(file, startPosition);
+        }
+        catch(final IOException e)
+        {
+            log.error("Could not read {} : {} !", selectedSDCardFile, e.getMessage());
+            try
             {
-                // we have been paused -> resume
-                isPrinting = true;
+                file.close();
             }
+            catch(final IOException e1)
+            {
+                // nothing more to do
+            }
+            return false;
         }
-        else
+        synchronized(lock)
         {
-            // start of new print
             currentFileName = selectedSDCardFile;
-            this.start();
+            fileLength = reader.getSize();
+            position = startPosition;
+            newPosition = -1;
+            isPaused = false;
+            shallStop = false;
+            isWaiting = false;
+            printThread = new Thread("SD Card Printer")
+            {
+                @Override
+                public void run()
+                {
+                    print(reader, selectedSDCardFile);
+                }
+            };
+            printThread.start();
         }
         return true;
     }
 
-    private void print()
+    private void print(ReadAheadLineReader reader, final String fileName)
     {
-        boolean Done = false;
-        do
+        try
         {
-            String curLine;
-            try
+            long lineNumber = 0;
+            while(false == shallStop)
             {
-                if(false == isPrinting)
+                if(true == isPaused)
                 {
-                    do
+                    reader = waitWhilePaused(reader, fileName);
+                    if(null == reader)
                     {
-                        try
-                        {
-                            sleep(1);
-                        }
-                        catch(InterruptedException e)
-                        {
-                            Done = true;
-                        }
-                    }while(false == isPrinting);
+                        break;
+                    }
+                    continue;
                 }
-                curLine = currenFile.readUTF();
+                final CharSequence curLine = reader.readLine();
                 if(null == curLine)
                 {
-                    Done = true;
+                    log.info("Finished printing {}.", fileName);
+                    break;
+                }
+                lineNumber++;
+                position = reader.getPosition();
+                final String res = gCodeDecoder.sendLine(curLine, null);
+                if(true == res.startsWith("!!"))
+                {
+                    log.error("Failed to print line {} ({}) of {} : {} !", lineNumber, curLine, fileName, res);
+                    break;
+                }
+            }
+        }
+        catch(final IOException e)
+        {
+            log.error("Failed to read {} : {} !", fileName, e.getMessage());
+        }
+        finally
+        {
+            if(null != reader)
+            {
+                try
+                {
+                    reader.close();
                 }
-                else
+                catch(final IOException e)
                 {
-                    gCodeDecoder.sendLine(curLine, null);
+                    // nothing more to do
                 }
             }
-            catch(IOException e)
+            synchronized(lock)
             {
-                Done = true;
+                if(Thread.currentThread() == printThread)
+                {
+                    printThread = null;
+                }
+                lock.notifyAll();
             }
-        }while(false == Done);
-        isPrinting = false;
+        }
     }
 
-    public void run()
+    /** waits until the print gets resumed or stopped.
+     *
+     * @return the reader to continue with, or null if the print has been stopped.
+     */
+    private ReadAheadLineReader waitWhilePaused(ReadAheadLineReader reader, final String fileName)
+            throws IOException
     {
-        isRunning = true;
-        do
+        long seekTo;
+        synchronized(lock)
         {
-            needsToRestart = false;
-            currenFile = sdCard.openFileForReading(currentFileName);
-            if(null != currenFile)
+            isWaiting = true;
+            lock.notifyAll();
+            try
             {
-                isPrinting = true;
-                print();
+                while((true == isPaused) && (false == shallStop))
+                {
+                    lock.wait();
+                }
             }
-        } while(true == needsToRestart);
-        isRunning = false;
+            catch(final InterruptedException e)
+            {
+                shallStop = true;
+            }
+            isWaiting = false;
+            seekTo = newPosition;
+            newPosition = -1;
+        }
+        if(true == shallStop)
+        {
+            reader.close();
+            return null;
+        }
+        if(0 > seekTo)
+        {
+            return reader;
+        }
+        // resume at the position set by M26
+        reader.close();
+        final RandomAccessFile file = sdCard.openFileForReading(fileName);
+        if(null == file)
+        {
+            throw new IOException("Could not open the file again : " + sdCard.getLastErrorReason());
+        }
+        position = seekTo;
+        return new ReadAheadLineReader(file, seekTo);
     }
 
     public String getPrintStatus()
     {
         final StringBuffer res = new StringBuffer();
-        if(false == isPrinting)
+        synchronized(lock)
         {
-            res.append("No SD Card Print active.");
-        }
-        else
-        {
-            res.append("printing : " + currentFileName + "\n");
-            try
+            if(null == printThread)
             {
-                res.append("position in File : " + currenFile.getFilePointer() + "\n");
-                res.append("File Length : " + currenFile.length() + "\n");
+                res.append("No SD Card Print active.");
             }
-            catch(IOException e)
+            else
             {
-                res.append("IOException !\n");
+                res.append("printing : " + currentFileName + "\n");
+                if(true == isPaused)
+                {
+                    res.append("paused\n");
+                }
+                res.append("position in File : " + position + "\n");
+                res.append("File Length : " + fileLength + "\n");
             }
         }
         return res.toString();
@@ -146,35 +269,92 @@ public class SDCardPrinterImpl extends Thread implements SDCardPrinter
 
     public void pausePrinting()
     {
-        isPrinting = false;
+        synchronized(lock)
+        {
+            if(null != printThread)
+            {
+                isPaused = true;
+            }
+        }
     }
 
     public boolean setSDCardPosition(long position)
     {
-        if(null == currenFile)
+        if(0 > position)
         {
+            log.error("Invalid SD Card position {} !", position);
             return false;
         }
-        try
+        synchronized(lock)
         {
-            if(position > currenFile.length())
+            if(null != printThread)
             {
-                return false;
+                if(false == isPaused)
+                {
+                    log.error("Position can only be changed while the print is paused !");
+                    return false;
+                }
+                if(position > fileLength)
+                {
+                    log.error("Position {} is not in the file ({} bytes) !", position, fileLength);
+                    return false;
+                }
             }
+            // else the next start continues here
+            newPosition = position;
         }
-        catch(IOException e)
+        return true;
+    }
+
+    /** stops the print and waits for the print thread to end. */
+    private void stopPrinting()
+    {
+        final Thread t;
+        synchronized(lock)
         {
-            return false;
+            t = printThread;
+            shallStop = true;
+            lock.notifyAll();
         }
-        try
+        if(null != t)
         {
-            currenFile.seek(position);
+            try
+            {
+                t.join();
+            }
+            catch(final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
         }
-        catch(IOException e)
+    }
+
+    /** waits until the print has been paused or has ended.
+     *
+     * @param timeoutMs maximum time to wait.
+     * @return true if the print is paused or has ended.
+     */
+    boolean waitUntilIdle(long timeoutMs) throws InterruptedException
+    {
+        final long end = System.currentTimeMillis() + timeoutMs;
+        synchronized(lock)
         {
-            return false;
+            while((null != printThread) && (false == isWaiting))
+            {
+                final long waitMs = end - System.currentTimeMillis();
+                if(0 >= waitMs)
+                {
+                    return false;
+                }
+                lock.wait(waitMs);
+            }
         }
         return true;
     }
 
+    public void close()
+    {
+        stopPrinting();
+    }
+
 }
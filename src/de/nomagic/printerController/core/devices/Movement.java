@@ -29,7 +29,11 @@ import de.nomagic.printerController.core.Event;
 import de.nomagic.printerController.core.Reference;
 import de.nomagic.printerController.core.RelativeMove;
 import de.nomagic.printerController.core.TimeoutHandler;
+import de.nomagic.printerController.core.movement.ClientBlockSender;
+import de.nomagic.printerController.core.movement.MoveTransmitter;
+import de.nomagic.printerController.core.movement.MovementCoordinator;
 import de.nomagic.printerController.core.movement.PlannedMoves;
+import de.nomagic.printerController.core.movement.PrinterProperties;
 import de.nomagic.printerController.core.movement.XyzTable;
 import de.nomagic.printerController.pacemaker.DeviceInformation;
 import de.nomagic.printerController.pacemaker.Protocol;
@@ -52,6 +56,14 @@ public class Movement
 
     private Integer maxProtocol = 0;
     private XyzTable table;
+    private PlannedMoves planner = null;
+    private final MovementCoordinator coordinator = new MovementCoordinator();
+    // sends the planned moves, null = the planner sends them
+    private MoveTransmitter transmitter = null;
+    // the steppers of all clients are numbered in the order the clients are added
+    private int nextStepperNumber = 0;
+    // false = the moves do not go to a running client
+    private boolean realTime = true;
     private final TimeoutHandler to;
     private int TimeoutId;
     private Reference ref = new Reference("Movement Initialisation");
@@ -75,6 +87,32 @@ public class Movement
         return lastErrorReason;
     }
 
+    /** stops sending moves. */
+    public void close()
+    {
+        if(null != transmitter)
+        {
+            transmitter.close();
+        }
+        coordinator.close();
+    }
+
+    /** selects whether the moves go to a running client or get recorded.
+     *
+     * Recorded moves do not need to reach the client before it runs out of
+     * moves, so they always get the full look ahead.
+     *
+     * @param realTime true = moves go to a running client.
+     */
+    public void setRealTime(boolean realTime)
+    {
+        this.realTime = realTime;
+        if(null != planner)
+        {
+            planner.setReleaseDueMoves(realTime);
+        }
+    }
+
     public boolean addConnection(DeviceInformation di,
                               Cfg cfg,
                               Protocol pro,
@@ -98,6 +136,7 @@ public class Movement
 
         boolean first = true;
         int thisProtocolIdx = -1; // -1 is invalid
+        int thisClientIdx = -1; // -1 is invalid
         for(int i = 0; i < di.getNumberSteppers(); i++)
         {
             final Axis_enum ae = cfg.getFunctionOfAxis(ClientNumber, i);
@@ -112,9 +151,38 @@ public class Movement
                     if(true == first)
                     {
                         first = false;
-                        final PlannedMoves Queue = new PlannedMoves(di.getMaxSteppsPerSecond(), to);
-                        Queue.addProtocol(pro);
-                        table.addMovementQueue(Queue);
+                        thisClientIdx = coordinator.addClient(pro, di.getMaxSteppsPerSecond());
+                        if(0 > thisClientIdx)
+                        {
+                            lastErrorReason = coordinator.getLastErrorReason();
+                            return false;
+                        }
+                        if(null == planner)
+                        {
+                            // all clients share one queue, so that the moves stay in order
+                            planner = new PlannedMoves(di.getMaxSteppsPerSecond(),
+                                    cfg.getGeneralSetting(PlannedMoves.CFG_NAME_LOOK_AHEAD_MOVES,
+                                                          PlannedMoves.DEFAULT_LOOK_AHEAD_MOVES),
+                                    to);
+                            planner.addMovementCoordinator(coordinator);
+                            planner.setReleaseDueMoves(realTime);
+                            final int transmitQueueLength = cfg.getGeneralSetting(MoveTransmitter.CFG_NAME_QUEUE_LENGTH,
+                                                                                  MoveTransmitter.DEFAULT_QUEUE_LENGTH);
+                            if(0 < transmitQueueLength)
+                            {
+                                // planning and sending happen in different threads
+                                transmitter = new MoveTransmitter(coordinator, transmitQueueLength);
+                                planner.addMoveTransmitter(transmitter);
+                                transmitter.start();
+                            }
+                            if(true == realTime)
+                            {
+                                // recorded blocks have to stay in the order in which they have been created
+                                coordinator.useClientSenders(cfg.getGeneralSetting(ClientBlockSender.CFG_NAME_QUEUE_LENGTH,
+                                                                                   ClientBlockSender.DEFAULT_QUEUE_LENGTH));
+                            }
+                            table.addMovementQueue(planner);
+                        }
                         // we need this Protocol
                         protocols.put(maxProtocol, pro);
                         thisProtocolIdx = maxProtocol;
@@ -122,21 +190,42 @@ public class Movement
                         log.debug("Using this protocol as number {} !", thisProtocolIdx);
                     }
                     // else protocol already added
-                    log.trace("Using stepper number {} for axis {} !", i, ae);
+                    if(PrinterProperties.MAX_STEPPERS <= nextStepperNumber)
+                    {
+                        lastErrorReason = "Too many Steppers ! Can only use " + PrinterProperties.MAX_STEPPERS + " !";
+                        log.error(lastErrorReason);
+                        return false;
+                    }
+                    final int stepperNumber = nextStepperNumber;
+                    nextStepperNumber++;
+                    log.trace("Using stepper number {} (#{} on client {}) for axis {} !", stepperNumber, i, ClientNumber, ae);
                     final double maxAccelerationOfThisStepper = cfg.getMaxAccelerationFor(ClientNumber, i);
                     final int maxStepsPerSecond = cfg.getMaxSpeedFor(ClientNumber, i);
+                    // the client knows the stepper by its number on the client
                     final Stepper motor = new Stepper(i,
                                      maxAccelerationOfThisStepper,
                                      maxStepsPerSecond,
                                      cfg.isMovementDirectionInverted(ClientNumber, i),
                                      cfg.getStepsPerMillimeterFor(ClientNumber, i),
                                      cfg.getMaxJerkMmSfor(ClientNumber, i));
-                    table.addStepper(ae, motor);
+                    // the moves use the number of the stepper over all clients
+                    table.addStepper(ae, new Stepper(stepperNumber,
+                                     maxAccelerationOfThisStepper,
+                                     maxStepsPerSecond,
+                                     cfg.isMovementDirectionInverted(ClientNumber, i),
+                                     cfg.getStepsPerMillimeterFor(ClientNumber, i),
+                                     cfg.getMaxJerkMmSfor(ClientNumber, i)));
+                    if(false == coordinator.mapStepper(stepperNumber, thisClientIdx, i))
+                    {
+                        lastErrorReason = coordinator.getLastErrorReason();
+                        return false;
+                    }
 
                     if(false == connectEndSwitchesToStepper(ae, motor, switches, pro))
                     {
                         return false;
                     }
+                    mapEndSwitchesToClient(ae, switches, thisClientIdx);
                     if(false == configureStepperMaxSpeed(motor, pro))
                     {
                         return false;
@@ -146,7 +235,8 @@ public class Movement
                         return false;
                     }
                     table.addEndStopSwitches(switches);
-                    table.setMaxClientStepsPerSecond(di.getMaxSteppsPerSecond());
+                    // the speeds of the moves are relative to the step rate that all clients can do
+                    table.setMaxClientStepsPerSecond(coordinator.getMaxStepsPerSecond());
                     break;
 
                 default:
@@ -163,6 +253,41 @@ public class Movement
         return true;
     }
 
+    private void mapEndSwitchesToClient(Axis_enum ae, HashMap<Switch_enum, Switch> switches, int client)
+    {
+        Switch min = null;
+        Switch max = null;
+        switch(ae)
+        {
+        case X:
+            min = switches.get(Switch_enum.Xmin);
+            max = switches.get(Switch_enum.Xmax);
+            break;
+
+        case Y:
+            min = switches.get(Switch_enum.Ymin);
+            max = switches.get(Switch_enum.Ymax);
+            break;
+
+        case Z:
+            min = switches.get(Switch_enum.Zmin);
+            max = switches.get(Switch_enum.Zmax);
+            break;
+
+        default:
+            // No end Stops on E
+            break;
+        }
+        if(null != min)
+        {
+            coordinator.mapEndStopSwitch(min.getNumber(), client);
+        }
+        if(null != max)
+        {
+            coordinator.mapEndStopSwitch(max.getNumber(), client);
+        }
+    }
+
     private boolean configureUnderRunAvoidance(Stepper motor, Protocol pro)
     {
         final boolean res = pro.configureUnderRunAvoidance(motor.getStepperNumber(),
@@ -257,36 +382,88 @@ public class Movement
         return res;
     }
 
+    /** the clients wait once they have executed the moves that have been added before.
+     *
+     * @param seconds length of the pause.
+     */
     public boolean addPause(double seconds)
     {
-        double units = seconds * SECONDS_TO_UNITS_FACTOR;
-        do
+        // the pause gets planned like a move, so that it stays behind the moves in the look ahead.
+        final long ticks = ((long)(seconds * SECONDS_TO_UNITS_FACTOR)) + 1;
+        if(false == table.addPause(ticks, seconds))
         {
-            int pauseLength;
-            if(units > MAX_UNITS_PER_COMMAND)
-            {
-                pauseLength = (int)MAX_UNITS_PER_COMMAND;
-            }
-            else
-            {
-                pauseLength = ((int)units) + 1;
-            }
-            for(int i = 0; i < protocols.size(); i++)
-            {
-                final Protocol pro = protocols.get(i);
-                if(false == pro.addPauseToQueue(pauseLength))
-                {
-                    return false;
-                }
-                else
-                {
-                    units = units - pauseLength;
-                }
-            }
-        } while(units > 0);
+            lastErrorReason = "Movement: " + table.getLastErrorReason();
+            return false;
+        }
+        to.startTimeout(TimeoutId);
         return true;
     }
 
+    /** waits until the moves that the planner has released have been sent to the clients.
+     *
+     * Moves that are still needed for the look ahead stay in the planner.
+     * A move that is held back to merge it with following moves gets added to the planner.
+     */
+    public boolean waitUntilReleasedMovesSent()
+    {
+        if(null == planner)
+        {
+            return true;
+        }
+        if(false == table.sendHeldMove())
+        {
+            lastErrorReason = "Movement: " + table.getLastErrorReason();
+            return false;
+        }
+        if(false == planner.waitUntilReleasedMovesSent())
+        {
+            lastErrorReason = "Sending the moves failed !";
+            return false;
+        }
+        return true;
+    }
+
+    /** sends an already encoded queue block to a client.
+     *
+     * @param client number of the client in the movement.
+     * @param buf buffer that holds the block.
+     * @param offset position of the length byte of the block in buf.
+     */
+    public boolean addQueueBlock(int client, byte[] buf, int offset)
+    {
+        if(false == coordinator.addQueueBlock(client, buf, offset))
+        {
+            lastErrorReason = coordinator.getLastErrorReason();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of clients that take part in the movement.
+     */
+    public int getNumberOfClients()
+    {
+        return coordinator.getNumberOfClients();
+    }
+
+    /**
+     * @param pro the protocol of the client.
+     * @return number of the client in the movement or -1 if the client has no steppers.
+     */
+    public int getClientIndex(Protocol pro)
+    {
+        return coordinator.getClientIndex(pro);
+    }
+
+    /**
+     * @return the step rate that all clients can do.
+     */
+    public int getMaxClientStepsPerSecond()
+    {
+        return coordinator.getMaxStepsPerSecond();
+    }
+
     public boolean setStepsPerMillimeter(Axis_enum axis, Double steps)
     {
         return table.setStepsPerMillimeter(axis, steps);
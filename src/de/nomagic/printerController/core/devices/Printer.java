@@ -15,6 +15,7 @@
 package de.nomagic.printerController.core.devices;
 
 import de.nomagic.printerController.core.Reference;
+import de.nomagic.printerController.pacemaker.ConnectionMetrics;
 import de.nomagic.printerController.pacemaker.Protocol;
 import de.nomagic.printerController.pacemaker.Reply;
 
@@ -48,6 +49,11 @@ public class Printer
         return "Ptotocol=" + pro.toString();
     }
 
+    public ConnectionMetrics getConnectionMetrics()
+    {
+        return pro.getConnectionMetrics();
+    }
+
     public Reply sendRawOrderFrame(int Order, Integer[] parameterBytes, int length)
     {
         return pro.sendRawOrder(Order, parameterBytes, length);
@@ -14,6 +14,8 @@
  */
 package de.nomagic.printerController.core.devices;
 
+import java.util.concurrent.CompletableFuture;
+
 import de.nomagic.printerController.core.Reference;
 import de.nomagic.printerController.pacemaker.Protocol;
 
@@ -43,6 +45,16 @@ public class TemperatureSensor
         return pro.readTemperatureFrom(num, ref);
     }
 
+    /** requests the temperature without waiting for the reply.
+     *
+     * @param ref reference to the command that caused this request.
+     * @return the temperature once the client has replied.
+     */
+    public CompletableFuture<Double> getTemperatureAsync(Reference ref)
+    {
+        return pro.readTemperatureFromAsync(num, ref);
+    }
+
     @Override
     public String toString()
     {
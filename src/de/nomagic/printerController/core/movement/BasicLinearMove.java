@@ -14,11 +14,8 @@
  */
 package de.nomagic.printerController.core.movement;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,25 +35,46 @@ public class BasicLinearMove
 	private int primaryAxis = 0;
 	private int accelerationSteps = 0;
 	private int decellerationsteps = 0;
-	private HashMap<Integer, Integer> StepsOnAxis = new HashMap<Integer, Integer>();
-	private final int id;
+	// indexed by stepper number, only valid for steppers in activeSteppersMap
+	private final int[] StepsOnStepper = new int[PrinterProperties.MAX_STEPPERS];
+	private int numberOfSteppers = 0;
+	private int id;
     private byte[] movementCommand = null;
+    private ByteBuffer movementBuffer = null;
 
     public BasicLinearMove(int id)
     {
     	this.id = id;
     }
 
+    /** makes this move as good as new, so that it can be reused.
+     *
+     * @param id the id of the move this is a part of.
+     */
+    void reset(int id)
+    {
+    	this.id = id;
+    	maxSteps = 0;
+    	isHomingMove = false;
+    	TravelSpeedFraction = 0;
+    	EndSpeedFraction = 0;
+    	activeSteppersMap = 0;
+    	directionsMap = 0;
+    	primaryAxis = 0;
+    	accelerationSteps = 0;
+    	decellerationsteps = 0;
+    	numberOfSteppers = 0;
+    }
+
     @Override
 	public String toString() {
     	StringBuilder sb = new StringBuilder();
-        Iterator<Entry<Integer, Integer>> it = StepsOnAxis.entrySet().iterator();
-        while (it.hasNext())
+        for(int i = 0; i < StepsOnStepper.length; i++)
         {
-            Map.Entry<Integer, Integer> pair = (Map.Entry<Integer, Integer>)it.next();
-            Integer axis = pair.getKey();
-            Integer steps = pair.getValue();
-            sb.append("(" + steps + " steps on Stepper " + axis + ")");
+            if(0 != (activeSteppersMap & (1 << i)))
+            {
+                sb.append("(" + StepsOnStepper[i] + " steps on Stepper " + i + ")");
+            }
         }
 
 		return "BasicLinearMove " + sb.toString() + " [maxSteps=" + maxSteps + ", isHomingMove=" + isHomingMove
@@ -76,10 +94,14 @@ public class BasicLinearMove
 
     public void addAxis(int stepper, int steps)
     {
+    	if((0 > stepper) || (StepsOnStepper.length <= stepper))
+    	{
+    		log.error("Invalid Stepper {} !", stepper);
+    		return;
+    	}
     	if(0 > steps)
     	{
     		// inverted
-    		log.trace("Stepper {} is moving towards min endstop !", stepper);
     		steps = Math.abs(steps);
     	}
     	else if(0 == steps)
@@ -89,7 +111,6 @@ public class BasicLinearMove
     	}
     	else
     	{
-    		log.trace("Stepper {} is moving towards max endstop !", stepper);
     		directionsMap = directionsMap | (1<<stepper);
     	}
     	// steps is now bigger than 0 !
@@ -98,21 +119,41 @@ public class BasicLinearMove
     		primaryAxis = stepper;
     		maxSteps = steps;
     	}
-    	StepsOnAxis.put(stepper, steps);
+    	if(0 == (activeSteppersMap & (1<<stepper)))
+    	{
+    		numberOfSteppers++;
+    	}
+    	StepsOnStepper[stepper] = steps;
     	activeSteppersMap = activeSteppersMap | (1<<stepper);
     }
 
     public int getStepsOnStepper(int stepper)
     {
-    	Integer Steps = StepsOnAxis.get(stepper);
-    	if(null == Steps)
+    	if((0 > stepper) || (StepsOnStepper.length <= stepper) || (0 == (activeSteppersMap & (1<<stepper))))
     	{
     		return 0;
     	}
-    	else
+    	return StepsOnStepper[stepper];
+    }
+
+    /**
+     * @return true if the stepper moves in increasing direction.
+     */
+    public boolean isDirectionIncreasing(int stepper)
+    {
+    	if((0 > stepper) || (StepsOnStepper.length <= stepper))
     	{
-    		return Steps.intValue();
+    		return false;
     	}
+    	return 0 != (directionsMap & (1<<stepper));
+    }
+
+    /**
+     * @return steps on the primary axis.
+     */
+    public int getMaxSteps()
+    {
+    	return maxSteps;
     }
 
     public void setHoming(boolean isHoming)
@@ -120,6 +161,31 @@ public class BasicLinearMove
     	isHomingMove = isHoming;
     }
 
+    public boolean isHoming()
+    {
+    	return isHomingMove;
+    }
+
+    public int getTravelSpeedFraction()
+    {
+    	return TravelSpeedFraction;
+    }
+
+    public int getEndSpeedFraction()
+    {
+    	return EndSpeedFraction;
+    }
+
+    public int getAccelerationSteps()
+    {
+    	return accelerationSteps;
+    }
+
+    public int getDecellerationSteps()
+    {
+    	return decellerationsteps;
+    }
+
     public void setTravelSpeedFraction(int TravelSpeedFraction)
 	{
 	this.TravelSpeedFraction = TravelSpeedFraction;
@@ -140,175 +206,189 @@ public class BasicLinearMove
     	this.decellerationsteps = Math.abs(decellerationsteps);
     }
 
+    /**
+     * @return the encoded move. The array belongs to this move and gets overwritten once the move is reused.
+     */
     public  byte[] getMoveData()
     {
-        // Prepare data
-        int steppsStart;
-        if(StepsOnAxis.size() < 7)
+        final int length = getEncodedLength();
+        if(0 > length)
+        {
+            log.error("Too Many Steppers - Can only handle 15 !");
+            return null;
+        }
+        // reused as long as the length of the data does not change
+        if((null == movementCommand) || (length != movementCommand.length))
+        {
+            movementCommand = new byte[length];
+            movementBuffer = ByteBuffer.wrap(movementCommand);
+        }
+        movementBuffer.clear();
+        encodeTo(movementBuffer);
+        return movementCommand;
+    }
+
+    /**
+     * @return number of bytes of the encoded move (including the length byte) or -1 if the move can not be encoded.
+     */
+    public int getEncodedLength()
+    {
+        final int BytesPerStep = getBytesPerStep();
+        if(numberOfSteppers < 7)
         {
             // 1 byte Axis selection mode
-            if(255 > maxSteps)
-            {
-                fillTopPartForUpTo8Axis(1);
-            }
-            else
-            {
-                fillTopPartForUpTo8Axis(2);
-            }
-            steppsStart = 7;
+            return 7 + (BytesPerStep * (2 + numberOfSteppers));
         }
-        else if(StepsOnAxis.size() < 15)
+        else if(numberOfSteppers < 15)
         {
             // 2 byte Axis selection mode
-            if(255 > maxSteps)
-            {
-                fillTopPartForUpTo16Axis(1);
-            }
-            else
-            {
-                fillTopPartForUpTo16Axis(2);
-            }
-            steppsStart = 9;
+            return 9 + (BytesPerStep * (2 + numberOfSteppers));
         }
         else
+        {
+            return -1;
+        }
+    }
+
+    /** writes the encoded move to the buffer, starting at its current position.
+     *
+     * The encoding is the same as the one returned by getMoveData(), but no
+     * array gets allocated or copied. The position of the buffer gets advanced
+     * by getEncodedLength() bytes.
+     *
+     * @param buf the buffer to write to.
+     * @return true = success; false = the move could not be encoded or does not fit into the buffer.
+     */
+    public boolean encodeTo(final ByteBuffer buf)
+    {
+        final int length = getEncodedLength();
+        if(0 > length)
         {
             log.error("Too Many Steppers - Can only handle 15 !");
-            return null;
+            return false;
+        }
+        if(length > buf.remaining())
+        {
+            log.error("Not enough room in buffer for the move !");
+            return false;
+        }
+        final int BytesPerStep = getBytesPerStep();
+        buf.put((byte)(0xff & (length - 1))); // Length
+        buf.put(Protocol.MOVEMENT_BLOCK_TYPE_BASIC_LINEAR_MOVE); // Type
+        if(numberOfSteppers < 7)
+        {
+            putTopPartForUpTo8Axis(buf, BytesPerStep);
+        }
+        else
+        {
+            putTopPartForUpTo16Axis(buf, BytesPerStep);
         }
         // Add Steps
-        if(255 > maxSteps)
+        if(1 == BytesPerStep)
         {
-            fillBottomPartUsingOneByteForSteps(steppsStart);
+            putBottomPartUsingOneByteForSteps(buf);
         }
         else
         {
-            fillBottomPartUsingTwoByteForSteps(steppsStart);
+            putBottomPartUsingTwoByteForSteps(buf);
         }
-    	return movementCommand;
+        return true;
     }
 
-    private void fillTopPartForUpTo8Axis(int BytesPerStep)
+    private int getBytesPerStep()
     {
-        movementCommand = new byte[7 + (BytesPerStep * (2 + StepsOnAxis.size()))];
-        movementCommand[0] = (byte)(0xff & movementCommand.length - 1); // Length
-        movementCommand[1] = Protocol.MOVEMENT_BLOCK_TYPE_BASIC_LINEAR_MOVE; // Type
-        // active Steppers
-        movementCommand[2] = (byte)activeSteppersMap;
-        // Byte per steps
-        if(1 == BytesPerStep)
+        if(255 > maxSteps)
         {
-            movementCommand[3] = 0;
+            return 1;
         }
         else
         {
-            movementCommand[3] = (byte) 0x80;
+            return 2;
         }
-        // directions
-        log.trace("Directions: {}", directionsMap);
-        movementCommand[3] =  (byte)(movementCommand[3] | (0x7f & directionsMap));
-        // Homing
-        if(true == isHomingMove)
+    }
+
+    private void putTopPartForUpTo8Axis(final ByteBuffer buf, int BytesPerStep)
+    {
+        // active Steppers
+        buf.put((byte)activeSteppersMap);
+        // Byte per steps + directions
+        int stepsAndDirections = 0x7f & directionsMap;
+        if(2 == BytesPerStep)
         {
-            movementCommand[4] = 0x10;
+            stepsAndDirections = stepsAndDirections | 0x80;
         }
-        // Primary Axis
-        movementCommand[4] =(byte)(movementCommand[4] | (0x0f & primaryAxis));
+        buf.put((byte)stepsAndDirections);
+        // Homing + Primary Axis
+        putHomingAndPrimaryAxis(buf, primaryAxis);
         // Nominal Speed
-        movementCommand[5] = (byte)(0xff & TravelSpeedFraction);
+        buf.put((byte)(0xff & TravelSpeedFraction));
         // end Speed
-        movementCommand[6] = (byte)(0xff & EndSpeedFraction);
+        buf.put((byte)(0xff & EndSpeedFraction));
     }
 
-    private void fillTopPartForUpTo16Axis(int BytesPerStep)
+    private void putTopPartForUpTo16Axis(final ByteBuffer buf, int BytesPerStep)
     {
-        movementCommand = new byte[9 + (BytesPerStep * (2 + StepsOnAxis.size()))];
-        movementCommand[0] = (byte)(0xff & movementCommand.length - 1); // Length
-        movementCommand[1] = Protocol.MOVEMENT_BLOCK_TYPE_BASIC_LINEAR_MOVE; // Type
         // Active Steppers
-        final int ActiveSteppersMap =  activeSteppersMap;
-        movementCommand[3] = (byte)(0xff & ActiveSteppersMap);
-        movementCommand[2] = (byte)(0x80 | (0x7f & (ActiveSteppersMap >> 8)));
-        // Byte per steps
-        if(1 == BytesPerStep)
+        buf.put((byte)(0x80 | (0x7f & (activeSteppersMap >> 8))));
+        buf.put((byte)(0xff & activeSteppersMap));
+        // Byte per steps + directions
+        int stepsAndDirections = 0x7f & (directionsMap >> 8);
+        if(2 == BytesPerStep)
         {
-            movementCommand[4] = 0;
+            stepsAndDirections = stepsAndDirections | 0x80;
         }
-        else
-        {
-            movementCommand[4] = (byte) 0x80;
-        }
-        // directions
-        final int DirectionMap = directionsMap;
-        log.trace("Directions: {}", DirectionMap);
-        movementCommand[5] =  (byte)(0xff & DirectionMap);
-        movementCommand[4] =  (byte)(movementCommand[4] | (0x7f & (DirectionMap>>8)));
-        // Homing
+        buf.put((byte)stepsAndDirections);
+        buf.put((byte)(0xff & directionsMap));
+        // Homing + Primary Axis
+        putHomingAndPrimaryAxis(buf, primaryAxis + 1); // TODO
+        // Nominal Speed
+        buf.put((byte)(0xff & TravelSpeedFraction));
+        // end Speed
+        buf.put((byte)(0xff & EndSpeedFraction));
+    }
+
+    private void putHomingAndPrimaryAxis(final ByteBuffer buf, int axis)
+    {
+        int value = 0x0f & axis;
         if(true == isHomingMove)
         {
-            movementCommand[6] = 0x10;
+            value = value | 0x10;
         }
-        // Primary Axis
-        movementCommand[6] =(byte)(movementCommand[6] | (0x0f & (primaryAxis + 1))); // TODO
-        // Nominal Speed
-        movementCommand[7] = (byte)(0xff & TravelSpeedFraction);
-        // end Speed
-        movementCommand[8] = (byte)(0xff & EndSpeedFraction);
+        buf.put((byte)value);
     }
 
-    private void fillBottomPartUsingOneByteForSteps(int offset)
+    private void putBottomPartUsingOneByteForSteps(final ByteBuffer buf)
     {
-        movementCommand[offset    ] = (byte)(0xff & accelerationSteps);
-        movementCommand[offset + 1] = (byte)(0xff & decellerationsteps);
-        final int numStepperToGo = StepsOnAxis.size();
-        int stepperfound = 0;
-        for(int i = 0; i < 16; i++)
+        buf.put((byte)(0xff & accelerationSteps));
+        buf.put((byte)(0xff & decellerationsteps));
+        for(int i = 0; i < StepsOnStepper.length; i++)
         {
-        	Integer steps = StepsOnAxis.get(i);
-        	if(null == steps)
-        	{
-        		continue;
-        	}
-            if(0 != steps)
+            if(0 != (activeSteppersMap & (1 << i)))
             {
-                movementCommand[offset + 2 + stepperfound] = (byte)(0xff & steps);
-                stepperfound ++;
-                if(stepperfound == numStepperToGo)
-                {
-                    break;
-                }
+                buf.put((byte)(0xff & StepsOnStepper[i]));
             }
         }
     }
 
-    private void fillBottomPartUsingTwoByteForSteps(int offset)
+    private void putBottomPartUsingTwoByteForSteps(final ByteBuffer buf)
     {
-        movementCommand[offset    ] = (byte)(0xff & (accelerationSteps>>8));
-        movementCommand[offset + 1] = (byte)(0xff & accelerationSteps);
-        movementCommand[offset + 2] = (byte)(0xff & (decellerationsteps>>8));
-        movementCommand[offset + 3] = (byte)(0xff & decellerationsteps);
-        final int numStepperToGo = StepsOnAxis.size();
-        int stepperfound = 0;
-        // highest Stepper Number can be 0 -> then we still have one stepper
-        for(int i = 0; i < 16; i++)
+        putTwoBytes(buf, accelerationSteps);
+        putTwoBytes(buf, decellerationsteps);
+        for(int i = 0; i < StepsOnStepper.length; i++)
         {
-        	Integer steps = StepsOnAxis.get(i);
-        	if(null == steps)
-        	{
-        		continue;
-        	}
-            if(0 != steps)
+            if(0 != (activeSteppersMap & (1 << i)))
             {
-                movementCommand[offset + 4 + stepperfound*2] = (byte)(0xff & (steps>>8));
-                movementCommand[offset + 5 + stepperfound*2] = (byte)(0xff & steps);
-                stepperfound ++;
-                if(stepperfound == numStepperToGo)
-                {
-                    break;
-                }
+                putTwoBytes(buf, StepsOnStepper[i]);
             }
         }
     }
 
+    // big endian, independent of the byte order set on the buffer
+    private void putTwoBytes(final ByteBuffer buf, int value)
+    {
+        buf.put((byte)(0xff & (value>>8)));
+        buf.put((byte)(0xff & value));
+    }
 
 }
 
@@ -1,16 +1,11 @@
 package de.nomagic.printerController.core.movement;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Vector;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.nomagic.printerController.Axis_enum;
-import de.nomagic.printerController.pacemaker.Protocol;
 
 /** represents a movement in a Cartesian machine relative to the last position.
 *
@@ -34,30 +29,48 @@ public class CartesianMove
     public static final double MOVEMENT_SPEED_TOLERANCE_MM_SECOND = 0.0001;
     /** if the axis has steps the speed may not be 0. So this is the speed is will have at least */
     public static final double MIN_MOVEMENT_SPEED_MM_SECOND = 0.1;
+    /** cos of the junction angle below which two moves are treated as one straight line */
+    public static final double JUNCTION_STRAIGHT_COS_THETA = -0.999999;
+    /** cos of the junction angle above which the direction is reversed */
+    public static final double JUNCTION_REVERSAL_COS_THETA = 0.999999;
 
+    private static final Axis_enum[] AXES = Axis_enum.values();
     private static int nextId = 0; // singleton
     private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
-    private final int MaxPossibleClientSpeedInStepsPerSecond;
+    private int MaxPossibleClientSpeedInStepsPerSecond;
     private double feedrateMmPerSecond = MIN_MOVEMENT_SPEED_MM_SECOND;
     private boolean isHoming = false;
     private boolean hasMovement = false;
     private boolean hasEndSpeed = false;
     private double endSpeedMms = 0.0;
+    private double maxEndSpeedMms = Double.MAX_VALUE;
     private boolean hasStartSpeed = false;
     private double startSpeedMms = 0.0;
     private int primaryAxis = -1;
     private int numParts = 1;
-    private HashMap<Axis_enum, Double> distancesMm = new HashMap<Axis_enum, Double>();
-    private Vector<Integer> activeAxises = new Vector<Integer>();
-    private HashMap<Integer, Integer> StepsOnAxis = new HashMap<Integer, Integer>();
-    private HashMap<Integer, Boolean> AxisDirectionIncreasing = new HashMap<Integer, Boolean>();
+    // indexed by the ordinal of the axis
+    private final double[] distancesMm = new double[Axis_enum.size];
+    // bit (1 << ordinal of axis) is set if a distance has been set for the axis
+    private int axisMap = 0;
+    private final double[] unitVector = new double[Axis_enum.size];
+    private boolean hasUnitVector = false;
+    // indexed by the stepper number
+    private final int[] StepsOnStepper = new int[PrinterProperties.MAX_STEPPERS];
+    // bit (1 << stepper number) is set if the stepper is used by this move
+    private int stepperMap = 0;
     private int StepsOnPrimaryAxis = -1;
     private boolean hasCommand = false;
     private boolean Command_on = true;
     private Integer[] Command_switches;
-    private int maxStepperNumber = -1;
+    // pause after the move in units of the delay block, 0 = no pause
+    private long pauseTicks = 0;
+    private double pauseSeconds = 0.0;
     private int myId;
     private PrinterProperties printer;
+    // the pool this move came from, null = not pooled
+    private MovePool pool = null;
+    // the parts of this move, reused if the number of parts does not change
+    private BasicLinearMove[] parts = null;
 
     public CartesianMove(int MaxPossibleClientSpeedStepsPerSecond, PrinterProperties printer)
     {
@@ -67,6 +80,55 @@ public class CartesianMove
         nextId++;
     }
 
+    /** makes this move as good as new, so that it can be reused. */
+    void reset(int MaxPossibleClientSpeedStepsPerSecond, PrinterProperties printer)
+    {
+        this.MaxPossibleClientSpeedInStepsPerSecond = MaxPossibleClientSpeedStepsPerSecond;
+        this.printer = printer;
+        myId = nextId;
+        nextId++;
+        feedrateMmPerSecond = MIN_MOVEMENT_SPEED_MM_SECOND;
+        isHoming = false;
+        hasMovement = false;
+        hasEndSpeed = false;
+        endSpeedMms = 0.0;
+        maxEndSpeedMms = Double.MAX_VALUE;
+        hasStartSpeed = false;
+        startSpeedMms = 0.0;
+        primaryAxis = -1;
+        numParts = 1;
+        Arrays.fill(distancesMm, 0.0);
+        axisMap = 0;
+        hasUnitVector = false;
+        stepperMap = 0;
+        StepsOnPrimaryAxis = -1;
+        hasCommand = false;
+        Command_on = true;
+        Command_switches = null;
+        pauseTicks = 0;
+        pauseSeconds = 0.0;
+        pool = null;
+    }
+
+    void setPool(MovePool pool)
+    {
+        this.pool = pool;
+    }
+
+    /** gives the parts of this move back to the pool. */
+    void recycleBasicLinearMoves()
+    {
+        if((null == pool) || (null == parts))
+        {
+            return;
+        }
+        for(int i = 0; i < parts.length; i++)
+        {
+            pool.recycle(parts[i]);
+            parts[i] = null;
+        }
+    }
+
     public void setFeedrateMmPerMinute(double feedrateMmPerMinute)
     {
         if(MIN_MOVEMENT_SPEED_MM_SECOND * 60 < feedrateMmPerMinute)
@@ -78,8 +140,13 @@ public class CartesianMove
 
     public void setDistanceMm(Axis_enum axis, double distanceMm)
     {
-        log.debug("ID{}: adding {} = {} mm", myId, axis, distanceMm);
-        distancesMm.put(axis, distanceMm);
+        if(true == log.isDebugEnabled())
+        {
+            log.debug("ID{}: adding {} = {} mm", myId, axis, distanceMm);
+        }
+        distancesMm[axis.ordinal()] = distanceMm;
+        axisMap = axisMap | (1 << axis.ordinal());
+        hasUnitVector = false;
         if(MIN_MOVEMENT_DISTANCE_MM_SECOND < Math.abs(distanceMm))
         {
             hasMovement = true;
@@ -103,13 +170,309 @@ public class CartesianMove
         hasStartSpeed = true;
     }
 
+    /** the move must not end faster than this.
+     *
+     * @param theSpeedMms speed along the path.
+     */
     public void setEndSpeedMms(double theSpeedMms)
     {
         endSpeedMms = theSpeedMms;
+        maxEndSpeedMms = theSpeedMms;
         log.trace("ID{}: end speed set to {} mm/s", myId, theSpeedMms);
         hasEndSpeed = true;
     }
 
+    /** sets the speeds calculated by the planner.
+     *
+     * @param startMms speed along the path at the start of the move.
+     * @param endMms speed along the path at the end of the move.
+     */
+    void setPlannedSpeedsMms(double startMms, double endMms)
+    {
+        startSpeedMms = startMms;
+        hasStartSpeed = true;
+        endSpeedMms = endMms;
+        if(true == log.isTraceEnabled())
+        {
+            log.trace("ID{}: planned speeds {} mm/s -> {} mm/s", myId, startMms, endMms);
+        }
+    }
+
+    public double getStartSpeedMms()
+    {
+        return startSpeedMms;
+    }
+
+    public double getEndSpeedMms()
+    {
+        return endSpeedMms;
+    }
+
+    /**
+     * @return the highest allowed speed at the end of this move.
+     */
+    public double getMaxEndSpeedMms()
+    {
+        if((true == hasCommand) || (false == hasMovement) || (0 < pauseTicks))
+        {
+            // switch commands and pauses are executed after the move -> stop.
+            return 0.0;
+        }
+        return maxEndSpeedMms;
+    }
+
+    public double getDistanceMm(Axis_enum axis)
+    {
+        return distancesMm[axis.ordinal()];
+    }
+
+    /**
+     * @return length of the path in mm. Moves of only the extruder have the length of the extruder move.
+     */
+    public double getLengthMm()
+    {
+        final double x = getDistanceMm(Axis_enum.X);
+        final double y = getDistanceMm(Axis_enum.Y);
+        final double z = getDistanceMm(Axis_enum.Z);
+        final double res = Math.sqrt((x * x) + (y * y) + (z * z));
+        if(MIN_MOVEMENT_DISTANCE_MM_SECOND < res)
+        {
+            return res;
+        }
+        return Math.abs(getDistanceMm(Axis_enum.E));
+    }
+
+    /**
+     * @return the speed along the path that the feedrate and all steppers allow.
+     */
+    public double getNominalSpeedMms()
+    {
+        double res = feedrateMmPerSecond;
+        final double length = getLengthMm();
+        if(MIN_MOVEMENT_DISTANCE_MM_SECOND > length)
+        {
+            return res;
+        }
+        for(int i = 0; i < AXES.length; i++)
+        {
+            final double partOfPath = Math.abs(distancesMm[i]) / length;
+            final int stepper = printer.getStepperNumberFor(AXES[i]);
+            final double stepsPerMm = printer.getStepsPerMmOn(stepper);
+            if((MIN_MOVEMENT_DISTANCE_MM_SECOND > partOfPath) || (0.0 >= stepsPerMm))
+            {
+                continue;
+            }
+            final double maxStepsPerSecond = printer.getMaxSpeedStepsPerSecond(stepper);
+            if(0.0 < maxStepsPerSecond)
+            {
+                res = Math.min(res, maxStepsPerSecond / stepsPerMm / partOfPath);
+            }
+            if(0 < MaxPossibleClientSpeedInStepsPerSecond)
+            {
+                res = Math.min(res, MaxPossibleClientSpeedInStepsPerSecond / stepsPerMm / partOfPath);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return acceleration along the path in mm/s^2 that all steppers allow. 0 = no limit.
+     */
+    public double getMaxAccelerationMms2()
+    {
+        double res = Double.MAX_VALUE;
+        final double length = getLengthMm();
+        if(MIN_MOVEMENT_DISTANCE_MM_SECOND > length)
+        {
+            return 0.0;
+        }
+        for(int i = 0; i < AXES.length; i++)
+        {
+            final double partOfPath = Math.abs(distancesMm[i]) / length;
+            final int stepper = printer.getStepperNumberFor(AXES[i]);
+            final double stepsPerMm = printer.getStepsPerMmOn(stepper);
+            final double accel = printer.getMaxAccelerationStepsPerSecond2(stepper);
+            if(   (MIN_MOVEMENT_DISTANCE_MM_SECOND > partOfPath)
+               || (0.0 >= stepsPerMm) || (0.0 >= accel))
+            {
+                continue;
+            }
+            res = Math.min(res, accel / stepsPerMm / partOfPath);
+        }
+        if(Double.MAX_VALUE == res)
+        {
+            return 0.0;
+        }
+        return res;
+    }
+
+    /** estimates how long the client will need to execute this move.
+     *
+     * Uses the planned start and end speeds.
+     *
+     * @return time in seconds.
+     */
+    public double getDurationSeconds()
+    {
+        final double length = getLengthMm();
+        if((false == hasMovement) || (MIN_MOVEMENT_DISTANCE_MM_SECOND > length))
+        {
+            return 0.0;
+        }
+        final double nominal = getNominalSpeedMms();
+        final double accel = getMaxAccelerationMms2();
+        if(0.0 >= accel)
+        {
+            return length / nominal;
+        }
+        final double accelDistance = ((nominal * nominal) - (startSpeedMms * startSpeedMms)) / (2 * accel);
+        final double decelDistance = ((nominal * nominal) - (endSpeedMms * endSpeedMms)) / (2 * accel);
+        if(length >= accelDistance + decelDistance)
+        {
+            return   ((nominal - startSpeedMms) / accel)
+                   + ((nominal - endSpeedMms) / accel)
+                   + ((length - accelDistance - decelDistance) / nominal);
+        }
+        // triangle
+        final double peak = Math.sqrt(  ((2 * accel * length)
+                                      + (startSpeedMms * startSpeedMms)
+                                      + (endSpeedMms * endSpeedMms)) / 2);
+        return ((peak - startSpeedMms) / accel) + ((peak - endSpeedMms) / accel);
+    }
+
+    /**
+     * @return direction of the move as unit vector indexed by the ordinal of the axis.
+     */
+    public double[] getUnitVector()
+    {
+        if(false == hasUnitVector)
+        {
+            final double length = getLengthMm();
+            for(Axis_enum axis : AXES)
+            {
+                if(MIN_MOVEMENT_DISTANCE_MM_SECOND < length)
+                {
+                    unitVector[axis.ordinal()] = getDistanceMm(axis) / length;
+                }
+                else
+                {
+                    unitVector[axis.ordinal()] = 0.0;
+                }
+            }
+            hasUnitVector = true;
+        }
+        return unitVector;
+    }
+
+    /** the speed at which this move can go over into the next move.
+     *
+     * No axis may change its speed by more than its jerk speed. If a junction
+     * deviation is configured then the speed is also limited to the speed at which
+     * the print head can go around the corner on an arc that stays within
+     * the junction deviation of the corner, using the allowed acceleration as
+     * centripetal acceleration.
+     *
+     * @param next the following move.
+     * @return speed along the path in mm/s.
+     */
+    public double getMaxJunctionSpeedMms(CartesianMove next)
+    {
+        if((null == next) || (false == hasMovement) || (false == next.hasMovement()))
+        {
+            return 0.0;
+        }
+        if((true == isHoming) || (true == next.isHoming))
+        {
+            return 0.0;
+        }
+        double res = Math.min(getMaxEndSpeedMms(), Math.min(getNominalSpeedMms(), next.getNominalSpeedMms()));
+        final double deviationLimit = getJunctionDeviationSpeedMms(next);
+        final boolean useDeviation = (0.0 <= deviationLimit);
+        if(true == useDeviation)
+        {
+            res = Math.min(res, deviationLimit);
+        }
+        final double[] u = getUnitVector();
+        final double[] nextU = next.getUnitVector();
+        for(Axis_enum axis : AXES)
+        {
+            final double change = Math.abs(u[axis.ordinal()] - nextU[axis.ordinal()]);
+            if(MIN_MOVEMENT_DISTANCE_MM_SECOND > change)
+            {
+                continue;
+            }
+            final double jerk = printer.getMaxJerkMms(printer.getStepperNumberFor(axis));
+            if(0.0 < jerk)
+            {
+                res = Math.min(res, jerk / change);
+            }
+            else if(false == useDeviation)
+            {
+                // no jerk configured and no cornering model -> stop
+                return 0.0;
+            }
+            // else the junction deviation limits this corner
+        }
+        return Math.max(0.0, res);
+    }
+
+    /**
+     * @return speed along the path in mm/s or -1 if the junction deviation can not be used.
+     */
+    private double getJunctionDeviationSpeedMms(CartesianMove next)
+    {
+        final double deviation = printer.getJunctionDeviationMm();
+        if(0.0 >= deviation)
+        {
+            return -1.0;
+        }
+        final double[] u = getUnitVector();
+        final double[] nextU = next.getUnitVector();
+        double cosTheta = 0.0;
+        double sq = 0.0;
+        double nextSq = 0.0;
+        for(int i = 0; i < Axis_enum.size; i++)
+        {
+            if(Axis_enum.E.ordinal() == i)
+            {
+                // the extruder does not go around the corner
+                continue;
+            }
+            // angle between the reversed entry direction and the exit direction
+            cosTheta = cosTheta - (u[i] * nextU[i]);
+            sq = sq + (u[i] * u[i]);
+            nextSq = nextSq + (nextU[i] * nextU[i]);
+        }
+        if((0.5 > sq) || (0.5 > nextSq))
+        {
+            // extruder only move -> only the jerk applies
+            return -1.0;
+        }
+        if(JUNCTION_STRAIGHT_COS_THETA > cosTheta)
+        {
+            // (nearly) straight line
+            return Double.MAX_VALUE;
+        }
+        if(JUNCTION_REVERSAL_COS_THETA < cosTheta)
+        {
+            // (nearly) reversing the direction
+            return 0.0;
+        }
+        double acceleration = getMaxAccelerationMms2();
+        final double nextAcceleration = next.getMaxAccelerationMms2();
+        if((0.0 >= acceleration) || ((0.0 < nextAcceleration) && (nextAcceleration < acceleration)))
+        {
+            acceleration = nextAcceleration;
+        }
+        if(0.0 >= acceleration)
+        {
+            // no acceleration limit
+            return Double.MAX_VALUE;
+        }
+        final double sinThetaHalf = Math.sqrt(0.5 * (1.0 - cosTheta));
+        return Math.sqrt(acceleration * deviation * sinThetaHalf / (1.0 - sinThetaHalf));
+    }
+
     public boolean hasEndSpeedSet()
     {
         return hasEndSpeed;
@@ -127,7 +490,31 @@ public class CartesianMove
         Command_switches = switches;
     }
 
-	public boolean send(Protocol pro, CartesianMove nextMove)
+    /** the clients wait after this move.
+     *
+     * @param ticks length of the pause in units of the delay block.
+     * @param seconds length of the pause.
+     */
+    public void addPause(long ticks, double seconds)
+    {
+        pauseTicks = pauseTicks + ticks;
+        pauseSeconds = pauseSeconds + seconds;
+    }
+
+    public boolean hasPause()
+    {
+        return 0 < pauseTicks;
+    }
+
+    /**
+     * @return time the clients wait after this move.
+     */
+    public double getPauseSeconds()
+    {
+        return pauseSeconds;
+    }
+
+	public boolean send(MovementCoordinator pro)
 	{
         if((null == pro))
         {
@@ -145,9 +532,12 @@ public class CartesianMove
 	        }
 			// calculate speeds and accelerations
 			// convert into BasicLinearMoves
-			BasicLinearMove[] basicMoves = getMoveDataAsBasicLinearMove(nextMove);
+			BasicLinearMove[] basicMoves = getMoveDataAsBasicLinearMove();
 			// send BasicLinearMoves
-	        if(false == pro.addBasicLinearMove(basicMoves))
+	        final boolean sent = pro.addBasicLinearMove(basicMoves, getDurationSeconds());
+	        // the moves have been encoded -> not needed anymore
+	        recycleBasicLinearMoves();
+	        if(false == sent)
 	        {
 	        	log.error("Failed to send the Basic Linear Move !");
 	            return false;
@@ -156,6 +546,14 @@ public class CartesianMove
         else
         {
         	log.trace("No movement to send available in move {}", myId);
+        }
+        if(0 < pauseTicks)
+        {
+            if(false == pro.addPause(pauseTicks))
+            {
+                log.error("Failed to send the pause !");
+                return false;
+            }
         }
 		// send switch commands
         if(true == hasCommand)
@@ -165,7 +563,7 @@ public class CartesianMove
         return true;
 	}
 
-    private BasicLinearMove[] getMoveDataAsBasicLinearMove(CartesianMove nextMove)
+    private BasicLinearMove[] getMoveDataAsBasicLinearMove()
     {
     	// convert distances in mm to distances in steps
     	convertToSteps();
@@ -178,155 +576,93 @@ public class CartesianMove
     	numParts = (StepsOnPrimaryAxis/MAX_POSSIBLE_STEPPS_PER_BASICLINEARMOVE) + 1; // 0..65534 = 1; 65535.. 131069 =2; ...
     	// create all the moves
     	BasicLinearMove[] moves = createMovesWithSteps();
-    	moves = calculateSpeedsFor(moves, nextMove);
+    	moves = calculateSpeedsFor(moves);
     	return moves;
     }
 
-    private BasicLinearMove[] calculateSpeedsFor(BasicLinearMove[] moves, CartesianMove nextMove)
+    private BasicLinearMove[] calculateSpeedsFor(BasicLinearMove[] moves)
     {
-    	SpeedCalculation calc = new SpeedCalculation(this, nextMove);
+    	// primary stepper steps per mm of the path
+    	final double length = getLengthMm();
+    	double stepsPerMm;
+    	if(MIN_MOVEMENT_DISTANCE_MM_SECOND < length)
+    	{
+    		stepsPerMm = StepsOnPrimaryAxis / length;
+    	}
+    	else
+    	{
+    		stepsPerMm = printer.getStepsPerMmOn(primaryAxis);
+    	}
+    	SpeedCalculation calc = new SpeedCalculation(StepsOnPrimaryAxis,
+    			                                     startSpeedMms * stepsPerMm,
+    			                                     getNominalSpeedMms() * stepsPerMm,
+    			                                     endSpeedMms * stepsPerMm,
+    			                                     getMaxAccelerationMms2() * stepsPerMm,
+    			                                     MaxPossibleClientSpeedInStepsPerSecond);
     	if(false == calc.isValid())
     	{
     		return null;
     	}
-    	int endSpeedFraction = calc.getEndSpeedFraction();
-    	log.trace("endSpeedFraction = {}", endSpeedFraction);
-    	int travelSpeedFraction = calc.getTravelSpeedFraction();
-    	log.trace("travelSpeedFraction = {}", travelSpeedFraction);
-    	int accelerationSteps = calc.getAccelerationSteps();
-    	log.trace("accelearionSteps = {}", accelerationSteps);
-    	int decelerationSteps = calc.getDecelerationSteps();
-    	log.trace("decelerationSteps = {}", decelerationSteps);
-		int StepsOnPrimaryAxis = moves[0].getStepsOnStepper(primaryAxis);
-    	log.trace("StepsOnPrimaryAxis = {}", StepsOnPrimaryAxis);
-		int travelSteps = calc.getTravelSteps();
-    	log.trace("travelSteps = {}", travelSteps);
-    	log.trace("numParts = {}", numParts);
+    	final int accelerationSteps = calc.getAccelerationSteps();
+    	final int decelerationStart = StepsOnPrimaryAxis - calc.getDecelerationSteps();
+    	if(true == log.isTraceEnabled())
+    	{
+    		log.trace("ID{}: accel = {}, travel = {}, decel = {} steps, travel speed = {}, end speed = {}",
+    				  myId, accelerationSteps, calc.getTravelSteps(), calc.getDecelerationSteps(),
+    				  calc.getTravelSpeedFraction(), calc.getEndSpeedFraction());
+    	}
+    	// each part gets the part of the speed profile that it covers.
+    	int partStart = 0;
 		for(int i = 0; i < numParts; i++)
 		{
+			final int partEnd = partStart + moves[i].getStepsOnStepper(primaryAxis);
 			moves[i].setHoming(isHoming);
-		}
-
-		int primaryStepsPerMove = StepsOnPrimaryAxis/numParts;
-		// acceleration steps
-		int AllaccelearionSteps = accelerationSteps;
-		int AlldecelerationSteps = decelerationSteps;
-        int startSpeedFraction =  (int)((startSpeedMms * printer.getStepsPerMm(primaryAxis) * 255)
-                / MaxPossibleClientSpeedInStepsPerSecond);
-		double fracDiffAccel = travelSpeedFraction - startSpeedFraction;
-		double fracDiffDeccel = travelSpeedFraction - endSpeedFraction;
-		int curMove = 0;
-		do
-		{
-			if(accelerationSteps < primaryStepsPerMove)
+			moves[i].setAccelerationSteps(Math.max(0, Math.min(partEnd, accelerationSteps) - partStart));
+			moves[i].setDecellerationSteps(Math.max(0, partEnd - Math.max(partStart, decelerationStart)));
+			// fastest speed in this part
+			final int fastestStep = Math.min(Math.max(accelerationSteps, partStart), partEnd);
+			moves[i].setTravelSpeedFraction(Math.max(1, calc.toFraction(calc.getSpeedAtStep(fastestStep))));
+			if(numParts - 1 == i)
 			{
-				moves[curMove].setAccelerationSteps(accelerationSteps);
-				moves[curMove].setTravelSpeedFraction(travelSpeedFraction);
-				int remainingSteps = primaryStepsPerMove - accelerationSteps;
-				if(travelSteps > remainingSteps)
-				{
-					travelSteps = travelSteps - remainingSteps;
-				}
-				else
-				{
-					remainingSteps = remainingSteps - travelSteps;
-					travelSteps = 0;
-				}
-				if(0 < remainingSteps)
-				{
-					moves[curMove].setDecellerationSteps(remainingSteps);
-					decelerationSteps = decelerationSteps - remainingSteps;
-					if(0 < decelerationSteps)
-					{
-						int remainingSpeedDown = (int)Math.round((decelerationSteps/AlldecelerationSteps) * fracDiffDeccel);
-						moves[curMove].setEndSpeedFraction(endSpeedFraction + remainingSpeedDown);
-					}
-					else
-					{
-						moves[curMove].setEndSpeedFraction(endSpeedFraction);
-					}
-				}
-				accelerationSteps = 0;
+				moves[i].setEndSpeedFraction(calc.getEndSpeedFraction());
 			}
 			else
 			{
-				moves[curMove].setAccelerationSteps(primaryStepsPerMove);
-				accelerationSteps = accelerationSteps - primaryStepsPerMove;
-				if(0 < accelerationSteps)
-				{
-					int remainingSpeedUp = (int)Math.round((accelerationSteps/AllaccelearionSteps) * fracDiffAccel);
-					moves[curMove].setTravelSpeedFraction(travelSpeedFraction - remainingSpeedUp);
-				}
-				else
-				{
-					moves[curMove].setTravelSpeedFraction(travelSpeedFraction);
-				}
+				moves[i].setEndSpeedFraction(calc.toFraction(calc.getSpeedAtStep(partEnd)));
 			}
-			curMove++;
-		} while((0 < accelerationSteps) && (curMove < numParts));
-
-		// travel Steps
-		while((0 < travelSteps) && (curMove < numParts))
-		{
-			if(travelSteps > primaryStepsPerMove)
-			{
-				travelSteps = travelSteps - primaryStepsPerMove;
-			}
-			else
-			{
-				int remainingSteps = primaryStepsPerMove - travelSteps;
-				travelSteps = 0;
-				moves[curMove].setDecellerationSteps(remainingSteps);
-				decelerationSteps = decelerationSteps - remainingSteps;
-				if(0 < decelerationSteps)
-				{
-					int remainingSpeedDown = (int)Math.round((decelerationSteps/AlldecelerationSteps) * fracDiffDeccel);
-					moves[curMove].setEndSpeedFraction(endSpeedFraction + remainingSpeedDown);
-				}
-				else
-				{
-					moves[curMove].setEndSpeedFraction(endSpeedFraction);
-				}
-			}
-			curMove++;
+			partStart = partEnd;
 		}
-
-		// decel steps
-		while((0 < decelerationSteps) && (curMove < numParts))
-		{
-			moves[curMove].setDecellerationSteps(primaryStepsPerMove);
-			decelerationSteps = decelerationSteps - primaryStepsPerMove;
-			if(0 < decelerationSteps)
-			{
-				int remainingSpeedDown = (int)Math.round((decelerationSteps/AlldecelerationSteps) * fracDiffDeccel);
-				moves[curMove].setEndSpeedFraction(endSpeedFraction + remainingSpeedDown);
-			}
-			else
-			{
-				moves[curMove].setEndSpeedFraction(endSpeedFraction);
-			}
-			curMove++;
-		}
-
 		return moves;
 	}
 
 	private BasicLinearMove[] createMovesWithSteps()
     {
-    	BasicLinearMove[] res = new BasicLinearMove[numParts];
+    	if((null == parts) || (numParts != parts.length))
+    	{
+    		parts = new BasicLinearMove[numParts];
+    	}
+    	final BasicLinearMove[] res = parts;
     	for(int i = 0; i < numParts; i++)
     	{
-    		res[i] = new BasicLinearMove(myId);
+    		if(null == pool)
+    		{
+    			res[i] = new BasicLinearMove(myId);
+    		}
+    		else
+    		{
+    			res[i] = pool.getBasicLinearMove(myId);
+    		}
     	}
-        Iterator<Entry<Integer, Integer>> it = StepsOnAxis.entrySet().iterator();
-        while (it.hasNext())
+        for(int stepper = 0; stepper < StepsOnStepper.length; stepper++)
         {
-            Map.Entry<Integer, Integer> pair = (Map.Entry<Integer, Integer>)it.next();
-            Integer stepper = pair.getKey();
-            Integer steps = pair.getValue();
+            if(0 == (stepperMap & (1 << stepper)))
+            {
+                continue;
+            }
+            final int steps = StepsOnStepper[stepper];
             if(numParts > 1)
             {
-	            Integer StepsPerPart = steps/numParts;
+	            final int StepsPerPart = steps/numParts;
 	            for(int i = 0; i < numParts -1; i++)
 	            {
 	            	res[i].addAxis(stepper, StepsPerPart);
@@ -344,29 +680,30 @@ public class CartesianMove
 
     private void convertToSteps()
     {
-    	maxStepperNumber = -1;
-
-        Iterator<Entry<Axis_enum, Double>> it = distancesMm.entrySet().iterator();
-        while (it.hasNext())
+        for(int i = 0; i < AXES.length; i++)
         {
-            Map.Entry<Axis_enum, Double> pair = (Map.Entry<Axis_enum, Double>)it.next();
-            Axis_enum axis = pair.getKey();
-	    	// rounding error
-            final double exactSteps = printer.getGathereddRoundingErrorOn(axis)
-            		                  + (distancesMm.get(pair.getKey()) * printer.getStepsPerMm(printer.getStepperNumberFor(axis)));
-            int steps = (int) Math.round(exactSteps);
-	        log.debug("ID{}: exact Steps = {}, got rounded to {}", myId, exactSteps, steps);
-	        final Double difference = exactSteps - steps;
-	        printer.setGathereddRoundingErrorOn(axis, difference);
+            if(0 == (axisMap & (1 << i)))
+            {
+                continue;
+            }
+            final Axis_enum axis = AXES[i];
 	        // stepper number
-	        int stepperNumber = printer.getStepperNumberFor(axis);
-	        log.debug("ID{}: adding Stepper {} for Axis {}", myId, stepperNumber, axis);
-	        activeAxises.add(stepperNumber);
-	        // max Stepper Number
-	        if(maxStepperNumber < stepperNumber)
+	        final int stepperNumber = printer.getStepperNumberFor(axis);
+	        if(0 > stepperNumber)
 	        {
-	        	maxStepperNumber = stepperNumber;
+	            log.error("ID{}: no stepper for axis {} !", myId, axis);
+	            continue;
 	        }
+	    	// rounding error
+            final double exactSteps = printer.getGathereddRoundingErrorOn(axis)
+            		                  + (distancesMm[i] * printer.getStepsPerMmOn(stepperNumber));
+            final int steps = (int) Math.round(exactSteps);
+            if(true == log.isDebugEnabled())
+            {
+                log.debug("ID{}: exact Steps = {}, got rounded to {}", myId, exactSteps, steps);
+                log.debug("ID{}: adding Stepper {} for Axis {}", myId, stepperNumber, axis);
+            }
+	        printer.setGathereddRoundingErrorOn(axis, exactSteps - steps);
 	        // steps
 	        addSteppersSteps(stepperNumber, steps);
         }
@@ -374,18 +711,12 @@ public class CartesianMove
 
     private void addSteppersSteps(int stepperNumber, int steps)
     {
-        if(0 < steps)
+        if(true == log.isTraceEnabled())
         {
-        	log.trace("stepper {} is increasing", stepperNumber);
-            AxisDirectionIncreasing.put(stepperNumber, true);
+            log.trace("adding {} steps to Stepper {}", steps, stepperNumber);
         }
-        else
-        {
-        	log.trace("stepper {} is decreasing", stepperNumber);
-            AxisDirectionIncreasing.put(stepperNumber, false);
-        }
-        log.trace("adding {} steps to Stepper {}", steps, stepperNumber);
-        StepsOnAxis.put(stepperNumber, steps);
+        StepsOnStepper[stepperNumber] = steps;
+        stepperMap = stepperMap | (1 << stepperNumber);
         if(StepsOnPrimaryAxis < Math.abs(steps))
         {
         	StepsOnPrimaryAxis = Math.abs(steps);
@@ -400,17 +731,11 @@ public class CartesianMove
 
     public int getStepsOnStepper(int stepper)
     {
-    	Integer res = StepsOnAxis.get(stepper);
-    	if(null == res)
+    	if((0 > stepper) || (StepsOnStepper.length <= stepper))
     	{
     		return 0;
     	}
-    	else
-    	{
-    		log.trace("getting {} steps on Stepper {}", res, stepper);
-    		return res.intValue();
-    	}
+    	return StepsOnStepper[stepper];
     }
 
 }
-
@@ -0,0 +1,168 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core.movement;
+
+import java.nio.ByteBuffer;
+
+import de.nomagic.printerController.pacemaker.Protocol;
+
+/** the thread that feeds the queue of one client.
+ *
+ * If the movement uses several clients, each of them gets one of these. The
+ * coordinator encodes the blocks and hands them over. Waiting for free
+ * slots in the client queue is then done in this thread, so that a client
+ * with a full queue does not hold back the other clients.
+ *
+ * The blocks are encoded into a fixed number of buffers, so that handing
+ * over a block does not allocate memory. If all buffers are in use the
+ * coordinator has to wait. The buffers are the slots of the HandOverThread.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class ClientBlockSender extends HandOverThread
+{
+    /** number of blocks that can wait to be send to each client. 0 = the clients get fed one after the other. */
+    public static final int DEFAULT_QUEUE_LENGTH = 32;
+    public static final String CFG_NAME_QUEUE_LENGTH = "client send queue length";
+    // the length byte counts the bytes after it.
+    public static final int MAX_BLOCK_LENGTH = 256;
+
+    private final Protocol client;
+    private final int clientNumber;
+    private final byte[][] blocks;
+    private final ByteBuffer[] views;
+
+    /**
+     * @param client the blocks get send to this client.
+     * @param clientNumber number of the client in the movement.
+     * @param queueLength number of blocks that can wait to be send.
+     */
+    public ClientBlockSender(Protocol client, int clientNumber, int queueLength)
+    {
+        super("ClientBlockSender-" + clientNumber, queueLength, "blocks");
+        this.client = client;
+        this.clientNumber = clientNumber;
+        blocks = new byte[getNumberOfSlots()][MAX_BLOCK_LENGTH];
+        views = new ByteBuffer[blocks.length];
+        for(int i = 0; i < blocks.length; i++)
+        {
+            views[i] = ByteBuffer.wrap(blocks[i]);
+        }
+    }
+
+    /** encodes the move into the queue.
+     *
+     * @param move the move to send. It can be reused once this returns.
+     * @return false if the move can not be send.
+     */
+    public boolean addMove(BasicLinearMove move)
+    {
+        final ByteBuffer buf = getFreeBuffer();
+        if(null == buf)
+        {
+            return false;
+        }
+        if(false == move.encodeTo(buf))
+        {
+            reportError("Could not encode move " + move.getId() + " for client " + clientNumber + " !");
+            return false;
+        }
+        commitSlot();
+        return true;
+    }
+
+    /** adds a delay block to the queue.
+     *
+     * @param ticks allowed 0..65535 (0xffff)
+     * @return false if the block can not be send.
+     */
+    public boolean addPause(int ticks)
+    {
+        final ByteBuffer buf = getFreeBuffer();
+        if(null == buf)
+        {
+            return false;
+        }
+        Protocol.encodePauseTo(buf, ticks);
+        commitSlot();
+        return true;
+    }
+
+    /** copies the block into the queue.
+     *
+     * @param buf buffer that holds the block.
+     * @param offset position of the length byte of the block in buf.
+     * @return false if the block can not be send.
+     */
+    public boolean addBlock(byte[] buf, int offset)
+    {
+        final int length = (0xff & buf[offset]) + 1;
+        if(length > buf.length - offset)
+        {
+            reportError("Block for client " + clientNumber + " is incomplete !");
+            return false;
+        }
+        final ByteBuffer dst = getFreeBuffer();
+        if(null == dst)
+        {
+            return false;
+        }
+        dst.put(buf, offset, length);
+        commitSlot();
+        return true;
+    }
+
+    /** waits for a free buffer.
+     *
+     * Only one thread may add blocks, so the buffer stays free until commitSlot().
+     *
+     * @return the cleared buffer or null if the sender has stopped.
+     */
+    private ByteBuffer getFreeBuffer()
+    {
+        final int slot = getFreeSlot();
+        if(0 > slot)
+        {
+            return null;
+        }
+        final ByteBuffer buf = views[slot];
+        buf.clear();
+        return buf;
+    }
+
+    @Override
+    protected boolean send(int slot)
+    {
+        // The buffer stays in use until the block has been copied into the send queue.
+        if(false == client.addQueueBlock(blocks[slot], 0))
+        {
+            reportError("Failed to send block to client " + clientNumber + " !");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of blocks that have not been send to the client yet.
+     */
+    public int getNumberOfWaitingBlocks()
+    {
+        // the block that is being send is still counted
+        return getNumberOfUsedSlots();
+    }
+
+}
@@ -0,0 +1,371 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core.movement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** a thread that sends the entries that another thread hands over to it.
+ *
+ * The entries wait in a fixed number of slots. The subclass keeps the data of
+ * the entries in its own arrays, indexed by the number of the slot, so that
+ * handing over an entry does not allocate memory. A slot stays in use until its
+ * entry has been send, so there is one more slot than entries that can wait.
+ *
+ * If the queue is full the thread that hands over has to wait (producer stall).
+ * If the queue is empty this thread has to wait (sender stall). Both get counted,
+ * so that it is possible to see which stage limits the speed of the print.
+ *
+ * Only one thread may hand over entries.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public abstract class HandOverThread extends Thread
+{
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private final int queueLength;
+    private final int numberOfSlots;
+    // name of the entries in the log, like "moves"
+    private final String entryName;
+    // protects all the state below. Everybody that changes something notifies the others.
+    private final Object lock = new Object();
+    private int firstSlot = 0;
+    private int usedSlots = 0;
+    // true while the entry in the first slot is being send
+    private boolean isSending = false;
+    private boolean hasFailed = false;
+    private boolean isClosed = false;
+    private String lastErrorReason = null;
+    // statistics
+    private long sendEntries = 0;
+    private int maxWaitingEntries = 0;
+    private long producerStalls = 0;
+    private long producerStallNs = 0;
+    private long senderStalls = 0;
+    private long senderStallNs = 0;
+
+    /**
+     * @param name name of the thread.
+     * @param queueLength number of entries that can wait to be send.
+     * @param entryName name of the entries in the log messages.
+     */
+    protected HandOverThread(String name, int queueLength, String entryName)
+    {
+        super(name);
+        if(1 > queueLength)
+        {
+            queueLength = 1;
+        }
+        this.queueLength = queueLength;
+        numberOfSlots = queueLength + 1;
+        this.entryName = entryName;
+        // must not keep the application alive
+        setDaemon(true);
+    }
+
+    /** sends the entry in the slot.
+     *
+     * Called from this thread without holding the lock.
+     *
+     * @param slot number of the slot.
+     * @return false if sending failed. The reason should have been reported with reportError().
+     */
+    protected abstract boolean send(int slot);
+
+    /** waits for a free slot.
+     *
+     * The slot stays free until commitSlot() gets called.
+     *
+     * @return number of the slot or -1 if the thread has stopped.
+     */
+    protected final int getFreeSlot()
+    {
+        synchronized(lock)
+        {
+            if(queueLength <= getWaiting())
+            {
+                producerStalls++;
+                final long start = System.nanoTime();
+                while((queueLength <= getWaiting()) && (false == hasFailed) && (false == isClosed))
+                {
+                    try
+                    {
+                        lock.wait();
+                    }
+                    catch(InterruptedException e)
+                    {
+                        // is OK
+                    }
+                }
+                producerStallNs = producerStallNs + (System.nanoTime() - start);
+            }
+            if((true == hasFailed) || (true == isClosed))
+            {
+                if(null == lastErrorReason)
+                {
+                    lastErrorReason = getName() + " has been closed !";
+                }
+                return -1;
+            }
+            return (firstSlot + usedSlots) % numberOfSlots;
+        }
+    }
+
+    /** hands the entry in the slot that getFreeSlot() returned over to this thread. */
+    protected final void commitSlot()
+    {
+        synchronized(lock)
+        {
+            usedSlots++;
+            final int waiting = getWaiting();
+            if(maxWaitingEntries < waiting)
+            {
+                maxWaitingEntries = waiting;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @param reason gets logged and reported by getLastErrorReason().
+     */
+    protected final void reportError(String reason)
+    {
+        synchronized(lock)
+        {
+            lastErrorReason = reason;
+            log.error(lastErrorReason);
+        }
+    }
+
+    public String getLastErrorReason()
+    {
+        synchronized(lock)
+        {
+            return lastErrorReason;
+        }
+    }
+
+    // the lock must be held
+    private int getWaiting()
+    {
+        if(true == isSending)
+        {
+            return usedSlots - 1;
+        }
+        return usedSlots;
+    }
+
+    /**
+     * @return true if handing over an entry would not have to wait.
+     */
+    public boolean hasRoom()
+    {
+        synchronized(lock)
+        {
+            return queueLength > getWaiting();
+        }
+    }
+
+    /**
+     * @return true if all entries that have been handed over have been send.
+     */
+    public boolean isIdle()
+    {
+        synchronized(lock)
+        {
+            return 0 == usedSlots;
+        }
+    }
+
+    /** waits until all entries that have been handed over have been send.
+     *
+     * @return false if sending of an entry failed.
+     */
+    public boolean waitUntilAllSent()
+    {
+        synchronized(lock)
+        {
+            while((0 < usedSlots) && (false == hasFailed) && (false == isClosed))
+            {
+                try
+                {
+                    lock.wait();
+                }
+                catch(InterruptedException e)
+                {
+                    // is OK
+                }
+            }
+            return false == hasFailed;
+        }
+    }
+
+    /** stops the thread. Entries that have not been send get dropped. */
+    public void close()
+    {
+        interrupt();
+    }
+
+    public int getQueueLength()
+    {
+        return queueLength;
+    }
+
+    public int getNumberOfSlots()
+    {
+        return numberOfSlots;
+    }
+
+    /**
+     * @return number of entries that have not been send yet, including the one that is being send.
+     */
+    public int getNumberOfUsedSlots()
+    {
+        synchronized(lock)
+        {
+            return usedSlots;
+        }
+    }
+
+    /**
+     * @return number of entries that wait to be send, not including the one that is being send.
+     */
+    public int getNumberOfWaitingEntries()
+    {
+        synchronized(lock)
+        {
+            return getWaiting();
+        }
+    }
+
+    public int getMaxNumberOfWaitingEntries()
+    {
+        synchronized(lock)
+        {
+            return maxWaitingEntries;
+        }
+    }
+
+    public long getNumberOfSendEntries()
+    {
+        synchronized(lock)
+        {
+            return sendEntries;
+        }
+    }
+
+    /**
+     * @return number of times the producer had to wait for a free slot.
+     */
+    public long getNumberOfProducerStalls()
+    {
+        synchronized(lock)
+        {
+            return producerStalls;
+        }
+    }
+
+    /**
+     * @return number of times this thread had to wait for an entry.
+     */
+    public long getNumberOfSenderStalls()
+    {
+        synchronized(lock)
+        {
+            return senderStalls;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        synchronized(lock)
+        {
+            return getName() + ": " + getWaiting() + "/" + queueLength + " " + entryName + " (max " + maxWaitingEntries + ")"
+                    + ", send " + sendEntries + " " + entryName
+                    + ", producer stalls: " + producerStalls + " (" + (producerStallNs / 1000000) + "ms)"
+                    + ", sender stalls: " + senderStalls + " (" + (senderStallNs / 1000000) + "ms)";
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while(false == isInterrupted())
+            {
+                int slot;
+                synchronized(lock)
+                {
+                    isSending = false;
+                    lock.notifyAll();
+                    if(0 == usedSlots)
+                    {
+                        senderStalls++;
+                        final long start = System.nanoTime();
+                        while(0 == usedSlots)
+                        {
+                            lock.wait();
+                        }
+                        senderStallNs = senderStallNs + (System.nanoTime() - start);
+                    }
+                    slot = firstSlot;
+                    isSending = true;
+                }
+                // sending is done without holding the lock.
+                final boolean sent = send(slot);
+                synchronized(lock)
+                {
+                    if(false == sent)
+                    {
+                        if(null == lastErrorReason)
+                        {
+                            lastErrorReason = getName() + " failed to send !";
+                            log.error(lastErrorReason);
+                        }
+                        hasFailed = true;
+                        break;
+                    }
+                    firstSlot = (firstSlot + 1) % numberOfSlots;
+                    usedSlots--;
+                    sendEntries++;
+                }
+            }
+        }
+        catch(InterruptedException e)
+        {
+            log.info("Has been Interrupted !");
+        }
+        // nobody will send the remaining entries
+        synchronized(lock)
+        {
+            isClosed = true;
+            isSending = false;
+            if(0 < usedSlots)
+            {
+                log.warn("Dropped {} {} that have not been send !", usedSlots, entryName);
+            }
+            usedSlots = 0;
+            lock.notifyAll();
+        }
+        log.info("{} stopped !", getName());
+    }
+
+}
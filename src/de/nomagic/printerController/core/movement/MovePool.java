@@ -0,0 +1,150 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core.movement;
+
+/** keeps moves that have been send to the client, so that they can be reused.
+ *
+ * Creating new moves for every line of G-Code creates a lot of garbage.
+ * On small hosts the garbage collection can then stop the sending of moves
+ * long enough for the client queue to run empty.
+ *
+ * A CartesianMove gets back into the pool once it has been send,
+ * and a BasicLinearMove once the Protocol has encoded it.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class MovePool
+{
+    /** number of unused moves of each type that are kept. */
+    public static final int DEFAULT_POOL_SIZE = 64;
+
+    private final CartesianMove[] freeCartesianMoves;
+    private int numFreeCartesianMoves = 0;
+    private final BasicLinearMove[] freeBasicLinearMoves;
+    private int numFreeBasicLinearMoves = 0;
+    private long createdMoves = 0;
+    private long reusedMoves = 0;
+
+    public MovePool()
+    {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    public MovePool(int poolSize)
+    {
+        freeCartesianMoves = new CartesianMove[poolSize];
+        freeBasicLinearMoves = new BasicLinearMove[poolSize];
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "created " + createdMoves + " moves, reused " + reusedMoves + " moves";
+    }
+
+    public synchronized CartesianMove getCartesianMove(int MaxPossibleClientSpeedStepsPerSecond, PrinterProperties printer)
+    {
+        CartesianMove res;
+        if(0 < numFreeCartesianMoves)
+        {
+            numFreeCartesianMoves--;
+            res = freeCartesianMoves[numFreeCartesianMoves];
+            freeCartesianMoves[numFreeCartesianMoves] = null;
+            res.reset(MaxPossibleClientSpeedStepsPerSecond, printer);
+            reusedMoves++;
+        }
+        else
+        {
+            res = new CartesianMove(MaxPossibleClientSpeedStepsPerSecond, printer);
+            createdMoves++;
+        }
+        res.setPool(this);
+        return res;
+    }
+
+    /** the move must not be used after this call.
+     *
+     * The BasicLinearMoves of the move also go back into the pool.
+     */
+    public void recycle(CartesianMove move)
+    {
+        if(null == move)
+        {
+            return;
+        }
+        move.recycleBasicLinearMoves();
+        synchronized(this)
+        {
+            if(freeCartesianMoves.length > numFreeCartesianMoves)
+            {
+                freeCartesianMoves[numFreeCartesianMoves] = move;
+                numFreeCartesianMoves++;
+            }
+            // else pool is full -> garbage collector
+        }
+    }
+
+    public synchronized BasicLinearMove getBasicLinearMove(int id)
+    {
+        if(0 < numFreeBasicLinearMoves)
+        {
+            numFreeBasicLinearMoves--;
+            final BasicLinearMove res = freeBasicLinearMoves[numFreeBasicLinearMoves];
+            freeBasicLinearMoves[numFreeBasicLinearMoves] = null;
+            res.reset(id);
+            reusedMoves++;
+            return res;
+        }
+        else
+        {
+            createdMoves++;
+            return new BasicLinearMove(id);
+        }
+    }
+
+    /** the move must not be used after this call. */
+    public synchronized void recycle(BasicLinearMove move)
+    {
+        if(null == move)
+        {
+            return;
+        }
+        if(freeBasicLinearMoves.length > numFreeBasicLinearMoves)
+        {
+            freeBasicLinearMoves[numFreeBasicLinearMoves] = move;
+            numFreeBasicLinearMoves++;
+        }
+        // else pool is full -> garbage collector
+    }
+
+    /**
+     * @return number of moves that had to be created.
+     */
+    public synchronized long getNumberOfCreatedMoves()
+    {
+        return createdMoves;
+    }
+
+    /**
+     * @return number of moves that have been taken out of the pool.
+     */
+    public synchronized long getNumberOfReusedMoves()
+    {
+        return reusedMoves;
+    }
+
+}
@@ -0,0 +1,31 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core.movement;
+
+/** adds moves to the planner, but might hold back the last move to merge it with the following moves.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public interface MoveSource
+{
+    /** called by the planner once it has no moves left to send.
+     *
+     * @param heldBeforeNs a move that is held back since before this time (System.nanoTime()) gets added to the planner.
+     * @return false if adding the move failed.
+     */
+    boolean releaseHeldMove(long heldBeforeNs);
+}
@@ -0,0 +1,150 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core.movement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** the thread that sends the planned moves to the clients.
+ *
+ * The planner hands the moves over as soon as their speeds are final.
+ * Encoding the moves and waiting for free slots in the client queues is then
+ * done in this thread, so that parsing and planning of the following moves
+ * can go on while the client is busy.
+ *
+ * The hand over queue has a fixed length. If it is full the planner has to
+ * wait (planner stall). If it is empty the transmitter has to wait
+ * (transmitter stall). Both get counted, so that it is possible to see which
+ * stage limits the speed of the print. The queue itself is a HandOverThread.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class MoveTransmitter extends HandOverThread
+{
+    /** number of moves that can wait to be send. 0 = moves get send by the planner. */
+    public static final int DEFAULT_QUEUE_LENGTH = 32;
+    public static final int MAX_QUEUE_LENGTH = 1024;
+    public static final String CFG_NAME_QUEUE_LENGTH = "transmit queue length";
+
+    private final MovementCoordinator pro;
+    private final CartesianMove[] moves;
+    private volatile MovePool pool = null;
+
+    /**
+     * @param pro the moves get send to the clients of this coordinator.
+     * @param queueLength number of moves that can wait to be send.
+     */
+    public MoveTransmitter(MovementCoordinator pro, int queueLength)
+    {
+        super("MoveTransmitter", getValidQueueLength(queueLength), "moves");
+        this.pro = pro;
+        moves = new CartesianMove[getNumberOfSlots()];
+    }
+
+    private static int getValidQueueLength(int queueLength)
+    {
+        if(1 > queueLength)
+        {
+            return 1;
+        }
+        else if(MAX_QUEUE_LENGTH < queueLength)
+        {
+            final Logger log = LoggerFactory.getLogger(MoveTransmitter.class.getName());
+            log.warn("Transmit queue of {} moves is too large, using {} !", queueLength, MAX_QUEUE_LENGTH);
+            return MAX_QUEUE_LENGTH;
+        }
+        return queueLength;
+    }
+
+    /**
+     * @param pool moves that have been send get recycled into this pool, null = no pool.
+     */
+    public void setMovePool(MovePool pool)
+    {
+        this.pool = pool;
+    }
+
+    /** hands the move over to the transmitter.
+     *
+     * If the queue is full this waits until the transmitter has taken a move out of it.
+     * The move must not be used after this call, if it succeeded.
+     *
+     * @param aMove the move to send.
+     * @return false if the move can not be send.
+     */
+    public boolean add(CartesianMove aMove)
+    {
+        final int slot = getFreeSlot();
+        if(0 > slot)
+        {
+            return false;
+        }
+        moves[slot] = aMove;
+        commitSlot();
+        return true;
+    }
+
+    @Override
+    protected boolean send(int slot)
+    {
+        final CartesianMove aMove = moves[slot];
+        moves[slot] = null;
+        if(false == aMove.send(pro))
+        {
+            reportError("Failed to send move " + aMove.getId() + " !");
+            return false;
+        }
+        final MovePool recycler = pool;
+        if(null != recycler)
+        {
+            recycler.recycle(aMove);
+        }
+        return true;
+    }
+
+    public int getQueueDepth()
+    {
+        return getNumberOfWaitingEntries();
+    }
+
+    public int getMaxQueueDepth()
+    {
+        return getMaxNumberOfWaitingEntries();
+    }
+
+    public long getNumberOfSendMoves()
+    {
+        return getNumberOfSendEntries();
+    }
+
+    /**
+     * @return number of times the planner had to wait for room in the queue.
+     */
+    public long getNumberOfPlannerStalls()
+    {
+        return getNumberOfProducerStalls();
+    }
+
+    /**
+     * @return number of times the transmitter had to wait for a move.
+     */
+    public long getNumberOfTransmitterStalls()
+    {
+        return getNumberOfSenderStalls();
+    }
+
+}
@@ -0,0 +1,646 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core.movement;
+
+import java.util.HashMap;
+import java.util.Vector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.nomagic.printerController.core.Reference;
+import de.nomagic.printerController.pacemaker.Protocol;
+
+/** distributes the moves to the clients that control the steppers.
+ *
+ * The steppers of all clients get one number space. Each planned move is
+ * split into one basic linear move per client that has steps in it. All
+ * parts of a move get the same duration, so that the clients stay in lock
+ * step. A client that has no steps in a move gets a delay of the same
+ * length. The protocol has no block to synchronise clients, so the speeds
+ * that have been rounded for a client let it run a bit ahead of the others.
+ * This lead gets added up for every client. Once a client is
+ * MIN_SYNC_DELAY_UNITS ahead of the slowest client it gets a delay block,
+ * so the clients never drift apart by more than that.
+ *
+ * With several clients each client can get its own ClientBlockSender
+ * thread. The clients then get fed at the same time, and a client with a
+ * full queue does not hold back the others.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class MovementCoordinator
+{
+    /** the delay command block counts in units of 10us */
+    public static final double DELAY_UNITS_PER_SECOND = 100000;
+    public static final int MAX_DELAY_UNITS_PER_BLOCK = 65535;
+    public static final int MAX_CLIENTS = PrinterProperties.MAX_STEPPERS;
+    /** a client that is this far (1ms) ahead of the slowest client waits for the others. */
+    public static final int MIN_SYNC_DELAY_UNITS = 100;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+    private final Protocol[] clients = new Protocol[MAX_CLIENTS];
+    private final int[] clientStepsPerSecond = new int[MAX_CLIENTS];
+    private int numberOfClients = 0;
+    // indexed by the stepper number used in the moves, -1 = not mapped -> client 0, same number
+    private final int[] clientOfStepper = new int[PrinterProperties.MAX_STEPPERS];
+    private final int[] localStepperNumber = new int[PrinterProperties.MAX_STEPPERS];
+    private boolean isSingleClient = true;
+    // switch number -> client
+    private final HashMap<Integer, Integer> clientOfSwitch = new HashMap<Integer, Integer>();
+    // reused for the part of a move that one client executes
+    private final BasicLinearMove clientPart = new BasicLinearMove(0);
+    private final BasicLinearMove[] clientParts = new BasicLinearMove[] {clientPart};
+    // time the client needs for clientPart compared to the planned time
+    private double clientPartTimeFactor = 1.0;
+    // estimated time that each client needs for the current part
+    private final double[] clientPartSeconds = new double[MAX_CLIENTS];
+    // time that each client is ahead of the slowest client
+    private final double[] clientLeadSeconds = new double[MAX_CLIENTS];
+    // null = the blocks get send from the calling thread
+    private final ClientBlockSender[] senders = new ClientBlockSender[MAX_CLIENTS];
+    private int senderQueueLength = 0;
+    private String lastErrorReason = null;
+
+    public MovementCoordinator()
+    {
+        for(int i = 0; i < clientOfStepper.length; i++)
+        {
+            clientOfStepper[i] = -1;
+            localStepperNumber[i] = i;
+        }
+    }
+
+    public String getLastErrorReason()
+    {
+        return lastErrorReason;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuffer sb = new StringBuffer();
+        for(int i = 0; i < numberOfClients; i++)
+        {
+            sb.append("client " + i + " : " + clients[i] + " (" + clientStepsPerSecond[i] + " steps/second) Steppers:");
+            for(int s = 0; s < clientOfStepper.length; s++)
+            {
+                if(getClientOf(s) == i)
+                {
+                    sb.append(" " + s + "->" + localStepperNumber[s]);
+                }
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param pro the protocol of the client.
+     * @param maxStepsPerSecond maximum step rate of the client.
+     * @return number of the client or -1 if there are too many clients.
+     */
+    public int addClient(Protocol pro, int maxStepsPerSecond)
+    {
+        for(int i = 0; i < numberOfClients; i++)
+        {
+            if(pro == clients[i])
+            {
+                return i;
+            }
+        }
+        if(MAX_CLIENTS <= numberOfClients)
+        {
+            lastErrorReason = "Too many clients for the movement !";
+            log.error(lastErrorReason);
+            return -1;
+        }
+        clients[numberOfClients] = pro;
+        clientStepsPerSecond[numberOfClients] = maxStepsPerSecond;
+        numberOfClients++;
+        updateIsSingleClient();
+        startSenders();
+        return numberOfClients - 1;
+    }
+
+    /** lets every client be fed by its own thread, once there is more than one client.
+     *
+     * @param queueLength number of blocks that can wait for each client. 0 = send from the calling thread.
+     */
+    public void useClientSenders(int queueLength)
+    {
+        senderQueueLength = queueLength;
+        startSenders();
+    }
+
+    private void startSenders()
+    {
+        if((2 > numberOfClients) || (1 > senderQueueLength))
+        {
+            // with only one client the calling thread can just as well wait for it.
+            return;
+        }
+        for(int i = 0; i < numberOfClients; i++)
+        {
+            if(null == senders[i])
+            {
+                senders[i] = new ClientBlockSender(clients[i], i, senderQueueLength);
+                senders[i].start();
+            }
+        }
+    }
+
+    /** stops the sender threads. Blocks that have not been send get dropped. */
+    public void close()
+    {
+        for(int i = 0; i < numberOfClients; i++)
+        {
+            if(null != senders[i])
+            {
+                senders[i].close();
+            }
+        }
+    }
+
+    /** waits until the sender threads have send all blocks to the clients.
+     *
+     * @return false if sending failed.
+     */
+    public boolean waitUntilAllSent()
+    {
+        for(int i = 0; i < numberOfClients; i++)
+        {
+            if(null != senders[i])
+            {
+                if(false == senders[i].waitUntilAllSent())
+                {
+                    lastErrorReason = senders[i].getLastErrorReason();
+                    log.error(lastErrorReason);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public int getNumberOfClients()
+    {
+        return numberOfClients;
+    }
+
+    /**
+     * @param pro the protocol of the client.
+     * @return number of the client or -1 if the client is not used for the movement.
+     */
+    public int getClientIndex(Protocol pro)
+    {
+        for(int i = 0; i < numberOfClients; i++)
+        {
+            if(pro == clients[i])
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the step rate that all clients can do.
+     */
+    public int getMaxStepsPerSecond()
+    {
+        int res = 0;
+        for(int i = 0; i < numberOfClients; i++)
+        {
+            if((0 == res) || (clientStepsPerSecond[i] < res))
+            {
+                res = clientStepsPerSecond[i];
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @param stepper number of the stepper in the moves.
+     * @param client number of the client as returned by addClient().
+     * @param localStepper number of the stepper on the client.
+     * @return true = success; false = invalid number.
+     */
+    public boolean mapStepper(int stepper, int client, int localStepper)
+    {
+        if(   (0 > stepper) || (clientOfStepper.length <= stepper)
+           || (0 > client) || (numberOfClients <= client)
+           || (0 > localStepper) || (PrinterProperties.MAX_STEPPERS <= localStepper) )
+        {
+            lastErrorReason = "Invalid Stepper mapping " + stepper + " -> " + client + ":" + localStepper + " !";
+            log.error(lastErrorReason);
+            return false;
+        }
+        clientOfStepper[stepper] = client;
+        localStepperNumber[stepper] = localStepper;
+        updateIsSingleClient();
+        return true;
+    }
+
+    /**
+     * @param switchNumber number of the end stop switch on the client.
+     * @param client number of the client as returned by addClient().
+     */
+    public void mapEndStopSwitch(int switchNumber, int client)
+    {
+        final Integer old = clientOfSwitch.put(switchNumber, client);
+        if((null != old) && (client != old))
+        {
+            log.warn("End stop switch {} is used on client {} and client {} !", switchNumber, old, client);
+        }
+    }
+
+    private int getClientOf(int stepper)
+    {
+        if(-1 == clientOfStepper[stepper])
+        {
+            return 0;
+        }
+        return clientOfStepper[stepper];
+    }
+
+    private void updateIsSingleClient()
+    {
+        if(1 < numberOfClients)
+        {
+            isSingleClient = false;
+            return;
+        }
+        for(int i = 0; i < clientOfStepper.length; i++)
+        {
+            if(i != localStepperNumber[i])
+            {
+                isSingleClient = false;
+                return;
+            }
+        }
+        isSingleClient = true;
+    }
+
+    /** sends the move to the clients.
+     *
+     * @param parts the move as basic linear moves using the stepper numbers of the moves.
+     * @param durationSeconds duration of the whole move.
+     * @return true = success; false = sending failed.
+     */
+    public boolean addBasicLinearMove(BasicLinearMove[] parts, double durationSeconds)
+    {
+        if(0 == numberOfClients)
+        {
+            lastErrorReason = "No client to send the move to !";
+            log.error(lastErrorReason);
+            return false;
+        }
+        if(true == isSingleClient)
+        {
+            return clients[0].addBasicLinearMove(parts);
+        }
+        if(null == parts)
+        {
+            return true;
+        }
+        int allSteps = 0;
+        for(int i = 0; i < parts.length; i++)
+        {
+            allSteps = allSteps + parts[i].getMaxSteps();
+        }
+        for(int i = 0; i < parts.length; i++)
+        {
+            double partSeconds = 0.0;
+            if(0 < allSteps)
+            {
+                partSeconds = durationSeconds * parts[i].getMaxSteps() / allSteps;
+            }
+            double slowestSeconds = 0.0;
+            for(int c = 0; c < numberOfClients; c++)
+            {
+                if(true == createClientPart(parts[i], c))
+                {
+                    if(false == sendClientPart(c))
+                    {
+                        return false;
+                    }
+                    clientPartSeconds[c] = partSeconds * clientPartTimeFactor;
+                }
+                else if(0 < allSteps)
+                {
+                    // this client has nothing to do -> wait as long as the others move.
+                    // It also waits for the time it is ahead, as that needs no extra block.
+                    final long units = Math.round((partSeconds + clientLeadSeconds[c]) * DELAY_UNITS_PER_SECOND);
+                    if(false == addDelayTicks(c, units))
+                    {
+                        return false;
+                    }
+                    clientLeadSeconds[c] = clientLeadSeconds[c] - ((units / DELAY_UNITS_PER_SECOND) - partSeconds);
+                    clientPartSeconds[c] = partSeconds;
+                }
+                else
+                {
+                    clientPartSeconds[c] = 0.0;
+                }
+                if(slowestSeconds < clientPartSeconds[c])
+                {
+                    slowestSeconds = clientPartSeconds[c];
+                }
+            }
+            if(false == keepClientsInStep(slowestSeconds))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean sendClientPart(int client)
+    {
+        boolean sent;
+        if(null != senders[client])
+        {
+            sent = senders[client].addMove(clientPart);
+        }
+        else
+        {
+            sent = clients[client].addBasicLinearMove(clientParts);
+        }
+        if(false == sent)
+        {
+            lastErrorReason = "Failed to send move to client " + client + " !";
+            log.error(lastErrorReason);
+        }
+        return sent;
+    }
+
+    /** lets the clients that got ahead of the slowest client wait for it.
+     *
+     * @param slowestSeconds time that the slowest client needs for the current part.
+     * @return true = success; false = sending failed.
+     */
+    private boolean keepClientsInStep(double slowestSeconds)
+    {
+        for(int c = 0; c < numberOfClients; c++)
+        {
+            clientLeadSeconds[c] = clientLeadSeconds[c] + (slowestSeconds - clientPartSeconds[c]);
+            final long units = (long)(clientLeadSeconds[c] * DELAY_UNITS_PER_SECOND);
+            if(MIN_SYNC_DELAY_UNITS <= units)
+            {
+                if(true == log.isTraceEnabled())
+                {
+                    log.trace("client {} is {} units ahead -> delay", c, units);
+                }
+                if(false == addDelayTicks(c, units))
+                {
+                    return false;
+                }
+                clientLeadSeconds[c] = clientLeadSeconds[c] - (units / DELAY_UNITS_PER_SECOND);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param client number of the client.
+     * @return time in seconds that the client is ahead of the slowest client.
+     */
+    public double getClientLeadSeconds(int client)
+    {
+        return clientLeadSeconds[client];
+    }
+
+    /** fills clientPart with the steps that the client does in the part.
+     *
+     * The speeds and the acceleration get scaled to the primary stepper of
+     * the client, so that the part takes as long on all clients.
+     *
+     * @return false if the client has no steps in this part.
+     */
+    private boolean createClientPart(BasicLinearMove part, int client)
+    {
+        clientPart.reset(part.getId());
+        for(int s = 0; s < clientOfStepper.length; s++)
+        {
+            if(client != getClientOf(s))
+            {
+                continue;
+            }
+            final int steps = part.getStepsOnStepper(s);
+            if(0 == steps)
+            {
+                continue;
+            }
+            if(true == part.isDirectionIncreasing(s))
+            {
+                clientPart.addAxis(localStepperNumber[s], steps);
+            }
+            else
+            {
+                clientPart.addAxis(localStepperNumber[s], -steps);
+            }
+        }
+        if((1 > clientPart.getMaxSteps()) || (1 > part.getMaxSteps()))
+        {
+            return false;
+        }
+        final double stepFactor = (double)clientPart.getMaxSteps() / part.getMaxSteps();
+        final double speedFactor = stepFactor * getMaxStepsPerSecond() / clientStepsPerSecond[client];
+        clientPart.setHoming(part.isHoming());
+        clientPart.setTravelSpeedFraction(Math.max(1, scaleFraction(part.getTravelSpeedFraction(), speedFactor)));
+        // the rounded speed changes the time the client needs
+        final double exactFraction = part.getTravelSpeedFraction() * speedFactor;
+        if(0.0 < exactFraction)
+        {
+            clientPartTimeFactor = exactFraction / clientPart.getTravelSpeedFraction();
+        }
+        else
+        {
+            clientPartTimeFactor = 1.0;
+        }
+        clientPart.setEndSpeedFraction(scaleFraction(part.getEndSpeedFraction(), speedFactor));
+        // rounding must not give the client more acceleration and deceleration steps than it has steps
+        final int clientSteps = clientPart.getMaxSteps();
+        final int accelerationSteps = Math.min(clientSteps, (int)Math.round(part.getAccelerationSteps() * stepFactor));
+        clientPart.setAccelerationSteps(accelerationSteps);
+        clientPart.setDecellerationSteps(Math.min(clientSteps - accelerationSteps,
+                                                  (int)Math.round(part.getDecellerationSteps() * stepFactor)));
+        return true;
+    }
+
+    private static int scaleFraction(int fraction, double factor)
+    {
+        if(0 == fraction)
+        {
+            return 0;
+        }
+        return Math.max(1, Math.min(255, (int)Math.round(fraction * factor)));
+    }
+
+    /** all clients wait.
+     *
+     * @param ticks length of the pause in units of the delay block.
+     * @return true = success; false = sending failed.
+     */
+    public boolean addPause(long ticks)
+    {
+        if(0 == numberOfClients)
+        {
+            lastErrorReason = "No client to send the pause to !";
+            log.error(lastErrorReason);
+            return false;
+        }
+        for(int c = 0; c < numberOfClients; c++)
+        {
+            if(false == addDelayTicks(c, ticks))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean addDelayTicks(int client, long units)
+    {
+        while(0 < units)
+        {
+            final int ticks = (int)Math.min(units, MAX_DELAY_UNITS_PER_BLOCK);
+            boolean sent;
+            if(null != senders[client])
+            {
+                sent = senders[client].addPause(ticks);
+            }
+            else
+            {
+                sent = clients[client].addPauseToQueue(ticks);
+            }
+            if(false == sent)
+            {
+                lastErrorReason = "Failed to send delay to client " + client + " !";
+                log.error(lastErrorReason);
+                return false;
+            }
+            units = units - ticks;
+        }
+        return true;
+    }
+
+    /** sends an already encoded queue block to one client.
+     *
+     * @param client number of the client.
+     * @param buf buffer that holds the block.
+     * @param offset position of the length byte of the block in buf.
+     */
+    public boolean addQueueBlock(int client, byte[] buf, int offset)
+    {
+        if((0 > client) || (numberOfClients <= client))
+        {
+            lastErrorReason = "No client " + client + " to send the block to !";
+            log.error(lastErrorReason);
+            return false;
+        }
+        boolean sent;
+        if(null != senders[client])
+        {
+            sent = senders[client].addBlock(buf, offset);
+        }
+        else
+        {
+            sent = clients[client].addQueueBlock(buf, offset);
+        }
+        if(false == sent)
+        {
+            lastErrorReason = "Failed to send block to client " + client + " !";
+            log.error(lastErrorReason);
+            return false;
+        }
+        return true;
+    }
+
+    /** sends the end stop command to the clients that have these switches. */
+    public boolean endStopOnOff(boolean on, Integer[] switches)
+    {
+        if(0 == numberOfClients)
+        {
+            lastErrorReason = "No client to send the end stop command to !";
+            log.error(lastErrorReason);
+            return false;
+        }
+        if(1 == numberOfClients)
+        {
+            return clients[0].endStopOnOff(on, switches);
+        }
+        for(int c = 0; c < numberOfClients; c++)
+        {
+            final Vector<Integer> clientSwitches = new Vector<Integer>();
+            for(int i = 0; i < switches.length; i++)
+            {
+                Integer client = clientOfSwitch.get(switches[i]);
+                if(null == client)
+                {
+                    client = 0;
+                }
+                if(c == client)
+                {
+                    clientSwitches.add(switches[i]);
+                }
+            }
+            if(0 < clientSwitches.size())
+            {
+                boolean sent;
+                if(null != senders[c])
+                {
+                    sent = senders[c].addBlock(Protocol.encodeEndStopOnOff(on, clientSwitches.toArray(new Integer[0])), 0);
+                }
+                else
+                {
+                    sent = clients[c].endStopOnOff(on, clientSwitches.toArray(new Integer[0]));
+                }
+                if(false == sent)
+                {
+                    lastErrorReason = "Failed to send end stop command to client " + c + " !";
+                    log.error(lastErrorReason);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of commands in the queues of all clients or -1 if a client is in stopped mode.
+     */
+    public int getNumberOfCommandsInClientQueue(Reference ref)
+    {
+        int res = 0;
+        for(int i = 0; i < numberOfClients; i++)
+        {
+            final int cur = clients[i].getNumberOfCommandsInClientQueue(ref);
+            if(0 > cur)
+            {
+                return -1;
+            }
+            res = res + cur;
+            if(null != senders[i])
+            {
+                // not yet in the queue of the client
+                res = res + senders[i].getNumberOfWaitingBlocks();
+            }
+        }
+        return res;
+    }
+}
@@ -14,8 +14,10 @@
  */
 package de.nomagic.printerController.core.movement;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.Collection;
 import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,29 +30,101 @@ import de.nomagic.printerController.core.Reference;
 import de.nomagic.printerController.core.TimeoutHandler;
 import de.nomagic.printerController.pacemaker.Protocol;
 
-/**
+/** the moves that have not been send to the client yet.
+ *
+ * The speeds of the moves are planned over all moves in the queue (look ahead).
+ * The last move in the queue has to stop, as nothing is known about the following move.
+ * The backward pass makes sure that every move can decelerate in time,
+ * the forward pass makes sure that every move can accelerate to its end speed.
+ * The first move is only send once the queue is full or once its deadline has been reached.
+ * While the client is idle a move waits only IDLE_START_DELAY_MS for following moves.
+ * While the client executes moves the next move is released shortly before
+ * the client will run out of moves, so that the queue can collect as many moves as possible.
+ * If a MoveTransmitter has been added the released moves are send from its thread,
+ * otherwise they are send by the thread that released them.
+ * Moves get send without holding the lock of the queue, as sending might have to wait
+ * for the client. The deadline check runs in the timeout thread and skips the check
+ * if another thread is sending, so that the other timeouts never wait for the client.
+ *
  * @author Lars P&ouml;tter
  * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
  *
  */
 public class PlannedMoves implements EventSource
 {
-    public static final int QUEUE_FLUSH_TIMEOUT_MS = 50;
+    /** interval in which the deadline of the first move is checked. */
+    public static final int FLUSH_CHECK_INTERVAL_MS = 2;
+    /** time a move waits for following moves if the client has nothing to do. */
+    public static final int IDLE_START_DELAY_MS = 5;
+    /** moves get released this long before the client has executed all moves. */
+    public static final int CLIENT_QUEUE_RESERVE_MS = 20;
+    /** number of moves that are planned before the first of them gets send. */
+    public static final int DEFAULT_LOOK_AHEAD_MOVES = 16;
+    public static final int MIN_LOOK_AHEAD_MOVES = 1;
+    public static final int MAX_LOOK_AHEAD_MOVES = 256;
+    public static final String CFG_NAME_LOOK_AHEAD_MOVES = "look ahead moves";
     private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
 
-    private LinkedList<CartesianMove> entries = new LinkedList<CartesianMove>();
-    private volatile boolean needsFlushing = false;
-    private Protocol pro;
+    private final ArrayDeque<CartesianMove> entries;
+    // held while moves get taken out of the queue and send, so that they get send in order.
+    private final ReentrantLock sendLock = new ReentrantLock();
+    // true while a move has been taken out of the queue but has not been handed over yet
+    private boolean isHandingOver = false;
+    private MovementCoordinator pro;
     private int MaxClientStepsPerSecond;
+    private final int lookAheadMoves;
     private final int timeoutID;
     private final TimeoutHandler to;
-    private boolean firstMove = true;
+    // moves that have been send go back into the pool, null = no pool
+    private MovePool pool = null;
+    // sends the released moves, null = moves get send directly
+    private MoveTransmitter transmitter = null;
+    // might hold back the last move, null = all moves get added at once
+    private volatile MoveSource source = null;
+    // used by the planner to avoid allocations for every move
+    private CartesianMove[] planMoves;
+    private double[] planSpeeds;
+    // speed at the end of the last move that has been send to the client
+    private double lastEndSpeedMms = 0.0;
+    // estimated time at which the client will have executed all moves that have been send
+    private long clientBusyUntilNs;
+    // time since which the first move in the queue waits
+    private long firstMoveWaitingSinceNs;
+    // false = moves only get send when the look ahead is full
+    private volatile boolean releaseDueMoves = true;
 
     public PlannedMoves(int MaxClientStepsPerSecond, TimeoutHandler to)
+    {
+        this(MaxClientStepsPerSecond, DEFAULT_LOOK_AHEAD_MOVES, to);
+    }
+
+    /**
+     * @param MaxClientStepsPerSecond maximum step rate of the client.
+     * @param lookAheadMoves number of moves that are planned before the first of them gets send.
+     * @param to used to check the deadline of the first move.
+     */
+    public PlannedMoves(int MaxClientStepsPerSecond, int lookAheadMoves, TimeoutHandler to)
     {
         this.MaxClientStepsPerSecond = MaxClientStepsPerSecond;
+        if(MIN_LOOK_AHEAD_MOVES > lookAheadMoves)
+        {
+            log.warn("Look ahead of {} moves is too small, using {} !", lookAheadMoves, MIN_LOOK_AHEAD_MOVES);
+            lookAheadMoves = MIN_LOOK_AHEAD_MOVES;
+        }
+        else if(MAX_LOOK_AHEAD_MOVES < lookAheadMoves)
+        {
+            log.warn("Look ahead of {} moves is too large, using {} !", lookAheadMoves, MAX_LOOK_AHEAD_MOVES);
+            lookAheadMoves = MAX_LOOK_AHEAD_MOVES;
+        }
+        this.lookAheadMoves = lookAheadMoves;
+        entries = new ArrayDeque<CartesianMove>(lookAheadMoves + 1);
+        planMoves = new CartesianMove[lookAheadMoves + 2];
+        planSpeeds = new double[lookAheadMoves + 2];
+        final long now = System.nanoTime();
+        clientBusyUntilNs = now;
+        firstMoveWaitingSinceNs = now;
         this.to= to;
-        timeoutID = to.createTimeout(new Event(Action_enum.timeOut, null, this), QUEUE_FLUSH_TIMEOUT_MS);
+        timeoutID = to.createTimeout(new Event(Action_enum.timeOut, null, this), FLUSH_CHECK_INTERVAL_MS);
         if(TimeoutHandler.ERROR_FAILED_TO_CREATE_TIMEOUT == timeoutID)
         {
             log.error("Failed to create Queue Flush Timeout !");
@@ -64,44 +138,125 @@ public class PlannedMoves implements EventSource
     @Override
     public String toString()
     {
-        return "pro=" + pro + ", Max Steps =" + MaxClientStepsPerSecond + "/second\n";
+        String res = "pro=" + pro + ", Max Steps =" + MaxClientStepsPerSecond + "/second, look ahead = " + lookAheadMoves + " moves"
+                + ", planned moves: " + entriesSize() + "\n";
+        if(null != transmitter)
+        {
+            res = res + transmitter.toString() + "\n";
+        }
+        return res;
     }
 
+    /** the moves get send to this client only.
+     *
+     * @param pro protocol of the client.
+     */
     public void addProtocol(Protocol pro)
     {
-        this.pro = pro;
+        final MovementCoordinator coordinator = new MovementCoordinator();
+        coordinator.addClient(pro, MaxClientStepsPerSecond);
+        this.pro = coordinator;
+    }
+
+    /**
+     * @param coordinator distributes the moves to the clients.
+     */
+    public void addMovementCoordinator(MovementCoordinator coordinator)
+    {
+        this.pro = coordinator;
+    }
+
+    /**
+     * @param pool moves that have been send to the client get recycled into this pool.
+     */
+    public void addMovePool(MovePool pool)
+    {
+        this.pool = pool;
+        if(null != transmitter)
+        {
+            transmitter.setMovePool(pool);
+        }
+    }
+
+    /**
+     * @param transmitter sends the moves from its own thread. The moves get recycled by the transmitter.
+     */
+    public void addMoveTransmitter(MoveTransmitter transmitter)
+    {
+        this.transmitter = transmitter;
+        if(null != transmitter)
+        {
+            transmitter.setMovePool(pool);
+        }
+    }
+
+    /**
+     * @param source gets asked to add the move it holds back once the queue is empty.
+     */
+    public void addMoveSource(MoveSource source)
+    {
+        this.source = source;
+    }
+
+    /**
+     * @return number of moves that wait to be planned and released.
+     */
+    public int getNumberOfPlannedMoves()
+    {
+        return entriesSize();
+    }
+
+    /** waits until the moves that have been released have been send to the client.
+     *
+     * @return false if sending failed.
+     */
+    public boolean waitUntilReleasedMovesSent()
+    {
+        if(null != transmitter)
+        {
+            if(false == transmitter.waitUntilAllSent())
+            {
+                log.error(transmitter.getLastErrorReason());
+                return false;
+            }
+        }
+        // else moves get send when they are released.
+        // the coordinator might still have to feed the clients
+        return pro.waitUntilAllSent();
+    }
+
+    public int getLookAheadMoves()
+    {
+        return lookAheadMoves;
     }
 
     /** only called by timeout.
-     *  Timeout thing to make sure single moves get send out.
+     *  Timeout thing to make sure moves get send out before their deadline.
      */
     @Override
     public void reportEventStatus(ActionResponse response, Reference ref)
     {
         to.startTimeout(timeoutID);
-        final int size= entriesSize();
-        if(1 == size)
+        if(false == sendLock.tryLock())
         {
-            if(false == needsFlushing)
-            {
-                needsFlushing = true;
-            }
-            else
+            // another thread is sending and checks the deadlines when it is done.
+            return;
+        }
+        final long now = System.nanoTime();
+        try
+        {
+            if(false == sendDueMoves(now))
             {
-                // OK the queue has been with a single move for two times -> flush the Queue
-                if(true == flushQueueToClient(ref))
-                {
-                    needsFlushing = false;
-                }
-                else
-                {
-                    System.exit(99);
-                }
+                System.exit(99);
             }
         }
-        else
+        finally
         {
-            needsFlushing = false;
+            sendLock.unlock();
+        }
+        if(false == releaseHeldMove(now))
+        {
+            System.exit(99);
         }
     }
 
@@ -114,6 +269,10 @@ public class PlannedMoves implements EventSource
             res = sendLastMoves();
         }
         // else no moves to send
+        if(false == waitUntilReleasedMovesSent())
+        {
+            res = false;
+        }
         // wait for client to execute all the queued moves
         while(0 < pro.getNumberOfCommandsInClientQueue(ref))
         {
@@ -131,17 +290,38 @@ public class PlannedMoves implements EventSource
 
     public boolean addMove(CartesianMove aMove)
     {
-    	if(true == firstMove)
-    	{
-    		aMove.setStartSpeedMms(0);
-    		firstMove = false;
-    	}
-        synchronized(entries)
+        return addMove(aMove, System.nanoTime());
+    }
+
+    /**
+     * @param aMove the move to plan.
+     * @param waitingSinceNs time since which the move waits to be send.
+     * @return false if sending failed.
+     */
+    public boolean addMove(CartesianMove aMove, long waitingSinceNs)
+    {
+        sendLock.lock();
+        try
         {
-            entries.addLast(aMove);
+            final long now = System.nanoTime();
+            synchronized(entries)
+            {
+                if(true == entries.isEmpty())
+                {
+                    firstMoveWaitingSinceNs = waitingSinceNs;
+                }
+                entries.addLast(aMove);
+            }
+            if(false == sendAllPossibleMoves(lookAheadMoves))
+            {
+                return false;
+            }
+            return sendDueMoves(now);
+        }
+        finally
+        {
+            sendLock.unlock();
         }
-        sendAllPossibleMoves();
-        return true;
     }
 
     public void addEndStopOnOffCommand(boolean on, Integer[] switches, PrinterProperties printerProps)
@@ -161,18 +341,60 @@ public class PlannedMoves implements EventSource
         }
         if(null == aMove)
         {
-            aMove = new CartesianMove(MaxClientStepsPerSecond, printerProps);
+            if(null == pool)
+            {
+                aMove = new CartesianMove(MaxClientStepsPerSecond, printerProps);
+            }
+            else
+            {
+                aMove = pool.getCartesianMove(MaxClientStepsPerSecond, printerProps);
+            }
             log.trace("created Move({}) to hold end stop command.", aMove.getId());
         }
         aMove.addEndStopOnOffCommand(on, switches);
         addMove(aMove);
     }
 
+    /** the clients wait once the moves that are in the queue now have been executed.
+     *
+     * The pause is an entry in the queue, so that the moves in front of it stop before it.
+     *
+     * @param ticks length of the pause in units of the delay block.
+     * @param seconds length of the pause.
+     * @return false if sending failed.
+     */
+    public boolean addPause(long ticks, double seconds, PrinterProperties printerProps)
+    {
+        CartesianMove aMove;
+        if(null == pool)
+        {
+            aMove = new CartesianMove(MaxClientStepsPerSecond, printerProps);
+        }
+        else
+        {
+            aMove = pool.getCartesianMove(MaxClientStepsPerSecond, printerProps);
+        }
+        if(true == log.isTraceEnabled())
+        {
+            log.trace("created Move({}) to hold a pause of {} s.", aMove.getId(), seconds);
+        }
+        aMove.addPause(ticks, seconds);
+        return addMove(aMove);
+    }
+
     public boolean hasAllMovementFinished()
     {
         synchronized(entries)
         {
-            return entries.isEmpty();
+            if((false == entries.isEmpty()) || (true == isHandingOver))
+            {
+                return false;
+            }
+            if(null == transmitter)
+            {
+                return true;
+            }
+            return transmitter.isIdle();
         }
     }
 
@@ -184,6 +406,199 @@ public class PlannedMoves implements EventSource
         }
     }
 
+    /** plans the speeds of the moves.
+     *
+     * @param moves the moves in the order of execution.
+     * @param entrySpeedMms speed at the start of the first move.
+     */
+    static void planSpeeds(Collection<CartesianMove> moves, double entrySpeedMms)
+    {
+        final int num = moves.size();
+        planSpeeds(moves, entrySpeedMms, new CartesianMove[num + 1], new double[num + 1]);
+    }
+
+    /** plans the speeds of the moves.
+     *
+     * @param moves the moves in the order of execution.
+     * @param entrySpeedMms speed at the start of the first move.
+     * @param move used to avoid allocations, needs one more element than moves.
+     * @param speed used to avoid allocations, needs one more element than moves.
+     */
+    private static void planSpeeds(Collection<CartesianMove> moves, double entrySpeedMms,
+                                   CartesianMove[] move, double[] speed)
+    {
+        final int num = moves.size();
+        if(0 == num)
+        {
+            return;
+        }
+        if((num >= move.length) || (num >= speed.length))
+        {
+            move = new CartesianMove[num + 1];
+            speed = new double[num + 1];
+        }
+        moves.toArray(move);
+        // speed[i] = speed at the start of move i, speed[num] = speed at the end of the last move
+        speed[0] = entrySpeedMms;
+        for(int i = 1; i < num; i++)
+        {
+            speed[i] = move[i - 1].getMaxJunctionSpeedMms(move[i]);
+        }
+        speed[num] = 0.0;
+        // backward pass: each move must be able to decelerate to the speed at its end.
+        for(int i = num - 1; i > 0; i--)
+        {
+            speed[i] = Math.min(speed[i], getReachableSpeed(move[i], speed[i + 1]));
+        }
+        // forward pass: each move must be able to accelerate to the speed at its end.
+        for(int i = 0; i < num; i++)
+        {
+            speed[i + 1] = Math.min(speed[i + 1], getReachableSpeed(move[i], speed[i]));
+        }
+        for(int i = 0; i < num; i++)
+        {
+            move[i].setPlannedSpeedsMms(speed[i], speed[i + 1]);
+            move[i] = null;
+        }
+    }
+
+    /**
+     * @return the highest speed that can be changed to startMms within the length of the move.
+     */
+    private static double getReachableSpeed(CartesianMove move, double startMms)
+    {
+        if(false == move.hasMovement())
+        {
+            return 0.0;
+        }
+        final double accel = move.getMaxAccelerationMms2();
+        if(0.0 >= accel)
+        {
+            // no limit
+            return Double.MAX_VALUE;
+        }
+        return Math.sqrt((startMms * startMms) + (2 * accel * move.getLengthMm()));
+    }
+
+    /** moves that are not sent to a running client do not have a deadline.
+     *
+     * @param release false = moves only get send when the look ahead is full or the queue gets flushed.
+     */
+    public void setReleaseDueMoves(boolean release)
+    {
+        releaseDueMoves = release;
+    }
+
+    /** the time at which the first move in the queue has to be send.
+     *
+     * @param clientBusyUntilNs estimated time at which the client will have executed all moves.
+     * @param waitingSinceNs time since which the first move waits in the queue.
+     * @param nowNs current time.
+     * @return time in nanoseconds (System.nanoTime()).
+     */
+    static long getDeadlineNs(long clientBusyUntilNs, long waitingSinceNs, long nowNs)
+    {
+        if(0 < clientBusyUntilNs - nowNs)
+        {
+            // client is busy -> send before it runs out of moves
+            return clientBusyUntilNs - (CLIENT_QUEUE_RESERVE_MS * 1000000L);
+        }
+        else
+        {
+            // client is idle -> give the following moves a chance to arrive
+            return waitingSinceNs + (IDLE_START_DELAY_MS * 1000000L);
+        }
+    }
+
+    /** sends moves whose deadline has been reached.
+     *
+     * The caller must hold the send lock.
+     *
+     * @param now current time.
+     * @return false if sending failed.
+     */
+    private boolean sendDueMoves(long now)
+    {
+        if(false == releaseDueMoves)
+        {
+            return true;
+        }
+        for(;;)
+        {
+            int movesToKeep;
+            synchronized(entries)
+            {
+                if(true == entries.isEmpty())
+                {
+                    return true;
+                }
+                if(0 < getDeadlineNs(clientBusyUntilNs, firstMoveWaitingSinceNs, now) - now)
+                {
+                    // not yet
+                    return true;
+                }
+                movesToKeep = entries.size() - 1;
+            }
+            if((null != transmitter) && (false == transmitter.hasRoom()))
+            {
+                // the transmitter has enough moves to send, so the client is busy.
+                // Only the holder of the send lock adds moves, so the move can be added without waiting.
+                return true;
+            }
+            if(false == sendAllPossibleMoves(movesToKeep))
+            {
+                return false;
+            }
+            synchronized(entries)
+            {
+                firstMoveWaitingSinceNs = now;
+            }
+        }
+    }
+
+    /** asks the move source for the move it holds back, once the queue is empty and the move is due.
+     *
+     * @param now current time.
+     * @return false if sending failed.
+     */
+    private boolean releaseHeldMove(long now)
+    {
+        final MoveSource src = source;
+        if((null == src) || (false == releaseDueMoves))
+        {
+            return true;
+        }
+        if((null != transmitter) && (false == transmitter.hasRoom()))
+        {
+            // the client is busy, adding the move would have to wait for it.
+            return true;
+        }
+        long heldBeforeNs;
+        synchronized(entries)
+        {
+            if(false == entries.isEmpty())
+            {
+                // the held move is the last move, so it has to wait for these moves.
+                return true;
+            }
+            if(0 < clientBusyUntilNs - now)
+            {
+                if(0 < getDeadlineNs(clientBusyUntilNs, now, now) - now)
+                {
+                    // not yet
+                    return true;
+                }
+                heldBeforeNs = now;
+            }
+            else
+            {
+                heldBeforeNs = now - (IDLE_START_DELAY_MS * 1000000L);
+            }
+        }
+        // not holding the lock, as the move source adds the move to this queue.
+        return src.releaseHeldMove(heldBeforeNs);
+    }
+
     private CartesianMove getFirstMove()
     {
         CartesianMove firstMove;
@@ -201,59 +616,79 @@ public class PlannedMoves implements EventSource
         return firstMove;
     }
 
-    private void sendAllPossibleMoves()
+    /** sends the first moves until only the given number of moves is left.
+     *
+     * The caller must hold the send lock. The moves get send without holding
+     * the lock of the queue, as sending might have to wait for the client.
+     *
+     * @param movesToKeep number of moves that stay in the queue.
+     * @return false if sending failed.
+     */
+    private boolean sendAllPossibleMoves(int movesToKeep)
     {
-    	synchronized(entries)
-    	{
-	        CartesianMove firstMove;
-	        while(0 < entriesSize())
-	        {
-		        firstMove = getFirstMove();
-		        if(null == firstMove)
-		        {
-		        	log.trace("Could not get move!(size = {})", entriesSize());
-		        	return;
-		        }
-		        CartesianMove secondMove;
-		        if(false == firstMove.hasEndSpeedSet())
-		        {
-		        	if(false == firstMove.hasMovement())
-		        	{
-		        		if(false == firstMove.send(pro, null))
-		        		{
-			        		log.error("Failed to send Switch commands");
-			        		return;
-		        		}
-		        	}
-		        	else
-		        	{
-			        	secondMove = getFirstMove();
-			        	if(null == secondMove)
-			        	{
-			        		// there are no more moves and "firstmove" has no end speed, so we can not send it yet.
-			        		// therefore all possible moves have been send.
-			        		entries.addFirst(firstMove);
-			        		return;
-			        	}
-			        	boolean res = firstMove.send(pro, secondMove);
-			            entries.addFirst(secondMove);
-			            if(false == res)
-			            {
-			            	log.error("Failed to send move");
-			            	return;
-			            }
-		        	}
-		        }
-		        else
-		        {
-		        	if(false == firstMove.send(pro, null))
-		        	{
-		        		log.error("Failed to send move with end speed set.");
-		        		return;
-		        	}
-		        }
-	        }
-    	}
+        for(;;)
+        {
+            CartesianMove firstMove;
+            synchronized(entries)
+            {
+                if(movesToKeep >= entries.size())
+                {
+                    return true;
+                }
+                planSpeeds(entries, lastEndSpeedMms, planMoves, planSpeeds);
+                firstMove = getFirstMove();
+                double durationSeconds = firstMove.getPauseSeconds();
+                if(true == firstMove.hasMovement())
+                {
+                    lastEndSpeedMms = firstMove.getEndSpeedMms();
+                    durationSeconds = durationSeconds + firstMove.getDurationSeconds();
+                }
+                if(0.0 < durationSeconds)
+                {
+                    final long now = System.nanoTime();
+                    if(0 < now - clientBusyUntilNs)
+                    {
+                        clientBusyUntilNs = now;
+                    }
+                    clientBusyUntilNs = clientBusyUntilNs + (long)(durationSeconds * 1000000000.0);
+                }
+                isHandingOver = true;
+            }
+            // the transmitter owns the move once it has been handed over.
+            final int id = firstMove.getId();
+            final boolean sent = sendMove(firstMove);
+            synchronized(entries)
+            {
+                isHandingOver = false;
+            }
+            if(false == sent)
+            {
+                log.error("Failed to send move {}", id);
+                return false;
+            }
+        }
+    }
+
+    private boolean sendMove(CartesianMove aMove)
+    {
+        if(null != transmitter)
+        {
+            if(false == transmitter.add(aMove))
+            {
+                log.error(transmitter.getLastErrorReason());
+                return false;
+            }
+            return true;
+        }
+        if(false == aMove.send(pro))
+        {
+            return false;
+        }
+        if(null != pool)
+        {
+            pool.recycle(aMove);
+        }
+        return true;
     }
 
     private boolean sendLastMoves()
@@ -265,16 +700,19 @@ public class PlannedMoves implements EventSource
         	log.trace("No last move to send.");
             return true;
         }
-        synchronized(entries)
+        // the plan always ends with the last move stopping.
+        sendLock.lock();
+        try
         {
-            final CartesianMove aMove = entries.removeLast();
-            if(null != aMove)
+            if(false == sendAllPossibleMoves(0))
             {
-	            aMove.setEndSpeedMms(0.0);
-	            entries.addLast(aMove);
+                return false;
             }
         }
-        sendAllPossibleMoves();
+        finally
+        {
+            sendLock.unlock();
+        }
         // now the Queue _must_ be empty!
         size = entriesSize();
         if(0 != size)
@@ -1,45 +1,63 @@
 package de.nomagic.printerController.core.movement;
 
-import java.util.HashMap;
-
 import de.nomagic.printerController.Axis_enum;
 
+/** properties of the steppers that are needed to convert moves into steps.
+ *
+ * All values are kept in arrays indexed by the axis ordinal or the stepper number,
+ * as they get read for every move.
+ */
 public class PrinterProperties 
 {
+	/** the basic linear move can not address more steppers. */
+	public static final int MAX_STEPPERS = 16;
+
 	private double[]  roundingErrors = new double[Axis_enum.size];
-    private HashMap<Axis_enum, Integer> StepperNumberOfAxis = new HashMap<Axis_enum, Integer>();
-    private HashMap<Integer, Double> StepsPerMmOnStepper = new HashMap<Integer, Double>();
-    private HashMap<Integer, Boolean> isDirectionInvertedOnStepper = new HashMap<Integer, Boolean>();
+	private int[] StepperNumberOfAxis = new int[Axis_enum.size];
+	private double[] StepsPerMmOnStepper = new double[MAX_STEPPERS];
+	private boolean[] isDirectionInvertedOnStepper = new boolean[MAX_STEPPERS];
+	private double[] MaxAccelerationOnStepper = new double[MAX_STEPPERS];
+	private double[] MaxSpeedOnStepper = new double[MAX_STEPPERS];
+	private double[] MaxJerkOnStepper = new double[MAX_STEPPERS];
+	private double junctionDeviationMm = 0.0;
     
 	public PrinterProperties()
 	{
 		for(int i = 0; i < Axis_enum.size; i++)
 		{
 			roundingErrors[i] = 0.0;
+			StepperNumberOfAxis[i] = -1;
 		}
 	}
 
+	private static boolean isValidStepper(int stepperNumber)
+	{
+		return (-1 < stepperNumber) && (MAX_STEPPERS > stepperNumber);
+	}
+
 	public void addStepperForAxis(Axis_enum axis, int Number)
 	{
-		StepperNumberOfAxis.put(axis, Number);
+		if(true == isValidStepper(Number))
+		{
+			StepperNumberOfAxis[axis.ordinal()] = Number;
+		}
+		// else can not be used in a move
 	}
 	
+	/**
+	 * @return number of the stepper or -1 if the axis has no stepper.
+	 */
 	public int getStepperNumberFor(Axis_enum axis) 
 	{
-		Integer Number = StepperNumberOfAxis.get(axis);
-		if(null == Number)
-		{
-			return -1;
-		}
-		else
-		{
-			return Number.intValue();
-		}
+		return StepperNumberOfAxis[axis.ordinal()];
 	}
 
-	public void setGathereddRoundingErrorOn(Axis_enum axis, double difference) 
+	/**
+	 * @param error steps that have not been send yet. This already contains the errors of the moves before.
+	 */
+	public void setGathereddRoundingErrorOn(Axis_enum axis, double error) 
 	{
-		roundingErrors[axis.ordinal()] = roundingErrors[axis.ordinal()] + difference;
+		roundingErrors[axis.ordinal()] = error;
 	}
 
 	public double getGathereddRoundingErrorOn(Axis_enum axis) 
@@ -49,30 +67,134 @@ public class PrinterProperties
 
 	public void setSteppsPerMmOn(int stepper, Double stepsPerMm)
 	{
-		StepsPerMmOnStepper.put(stepper, stepsPerMm);
+		if((true == isValidStepper(stepper)) && (null != stepsPerMm))
+		{
+			StepsPerMmOnStepper[stepper] = stepsPerMm.doubleValue();
+		}
 	}
 	
+	/**
+	 * @return steps per mm or null if not configured.
+	 */
 	public Double getStepsPerMm(int stepperNumber) 
 	{
-		return StepsPerMmOnStepper.get(stepperNumber);
+		final double res = getStepsPerMmOn(stepperNumber);
+		if(0.0 == res)
+		{
+			return null;
+		}
+		return res;
+	}
+
+	/**
+	 * @return steps per mm or 0 if not configured.
+	 */
+	public double getStepsPerMmOn(int stepperNumber)
+	{
+		if(false == isValidStepper(stepperNumber))
+		{
+			return 0.0;
+		}
+		return StepsPerMmOnStepper[stepperNumber];
 	}
 
 	public void setDirectionOnStepper(int stepper, boolean isInverted)
 	{
-		isDirectionInvertedOnStepper.put(stepper, isInverted);
+		if(true == isValidStepper(stepper))
+		{
+			isDirectionInvertedOnStepper[stepper] = isInverted;
+		}
 	}
 	
 	public boolean isDirectionInverted(int stepperNumber) 
 	{
-		Boolean res = isDirectionInvertedOnStepper.get(stepperNumber);
-		if(null == res)
+		if(false == isValidStepper(stepperNumber))
 		{
 			return false;
 		}
-		else
+		return isDirectionInvertedOnStepper[stepperNumber];
+	}
+	
+	/**
+	 * @param stepsPerSecond2 0 = no limit
+	 */
+	public void setMaxAccelerationOn(int stepper, double stepsPerSecond2)
+	{
+		setOn(MaxAccelerationOnStepper, stepper, stepsPerSecond2);
+	}
+
+	/**
+	 * @return steps per second squared. 0 = no limit
+	 */
+	public double getMaxAccelerationStepsPerSecond2(int stepperNumber)
+	{
+		return getOrZero(MaxAccelerationOnStepper, stepperNumber);
+	}
+
+	/**
+	 * @param stepsPerSecond 0 = no limit
+	 */
+	public void setMaxSpeedOn(int stepper, double stepsPerSecond)
+	{
+		setOn(MaxSpeedOnStepper, stepper, stepsPerSecond);
+	}
+
+	/**
+	 * @return steps per second. 0 = no limit
+	 */
+	public double getMaxSpeedStepsPerSecond(int stepperNumber)
+	{
+		return getOrZero(MaxSpeedOnStepper, stepperNumber);
+	}
+
+	/**
+	 * @param jerkMms speed change that the stepper can do without acceleration.
+	 */
+	public void setMaxJerkOn(int stepper, double jerkMms)
+	{
+		setOn(MaxJerkOnStepper, stepper, jerkMms);
+	}
+
+	/**
+	 * @return mm/s
+	 */
+	public double getMaxJerkMms(int stepperNumber)
+	{
+		return getOrZero(MaxJerkOnStepper, stepperNumber);
+	}
+
+	/**
+	 * @param deviationMm distance between the corner and the arc that the
+	 *                    print head may take through the corner. 0 = not used.
+	 */
+	public void setJunctionDeviationMm(double deviationMm)
+	{
+		junctionDeviationMm = deviationMm;
+	}
+
+	/**
+	 * @return mm. 0 = only the jerk limits are used for corners.
+	 */
+	public double getJunctionDeviationMm()
+	{
+		return junctionDeviationMm;
+	}
+
+	private static void setOn(double[] values, int stepperNumber, double value)
+	{
+		if(true == isValidStepper(stepperNumber))
+		{
+			values[stepperNumber] = value;
+		}
+	}
+
+	private static double getOrZero(double[] values, int stepperNumber)
+	{
+		if(false == isValidStepper(stepperNumber))
 		{
-			return res.booleanValue();
+			return 0.0;
 		}
+		return values[stepperNumber];
 	}
-	
+
 }
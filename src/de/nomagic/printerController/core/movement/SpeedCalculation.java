@@ -3,39 +3,148 @@ package de.nomagic.printerController.core.movement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/** calculates the trapezoidal speed profile of a move on the primary stepper.
+ *
+ * The move accelerates from the start speed to the travel speed, travels,
+ * and decelerates to the end speed. If the move is too short to reach the
+ * travel speed the profile becomes a triangle with a lower peak speed.
+ * All speeds are in steps per second on the primary stepper.
+ */
 public class SpeedCalculation
 {
 	private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
-	private boolean valid;
+	private boolean valid = false;
 	private int endSpeedFraction;
 	private int travelSpeedFraction;
 	private int acceleartionSteps;
 	private int decceleartionSteps;
 	private int travelSteps;
+	private final int steps;
+	private final int maxClientStepsPerSecond;
+	private final double acceleration;
+	private double startSpeed;
+	private double peakSpeed;
+	private double endSpeed;
 
-	public SpeedCalculation(CartesianMove firstMove, CartesianMove nextMove)
+	/**
+	 * @param steps steps on the primary stepper.
+	 * @param startSpeed steps per second
+	 * @param nominalSpeed steps per second
+	 * @param endSpeed steps per second
+	 * @param acceleration steps per second squared. 0 = no limit.
+	 * @param maxClientStepsPerSecond the speed that is sent as fraction 255.
+	 */
+	public SpeedCalculation(int steps,
+			                double startSpeed,
+			                double nominalSpeed,
+			                double endSpeed,
+			                double acceleration,
+			                int maxClientStepsPerSecond)
 	{
-		// simplest version (start Speed = end Speed = 0; No speed limit);
-		firstMove.setEndSpeedMms(0);
-		endSpeedFraction = 0;
-		travelSpeedFraction = 1;
-		travelSteps = 0;
-		int steps = Math.abs(firstMove.getStepsOnStepper(firstMove.getPrimaryStepper()));
-		if(0 == steps)
+		this.steps = steps;
+		this.maxClientStepsPerSecond = maxClientStepsPerSecond;
+		this.acceleration = acceleration;
+		if(1 > steps)
 		{
 			log.error("No Steps on Primary Axis !");
+			return;
 		}
-		acceleartionSteps = steps/2;
-		decceleartionSteps = acceleartionSteps;
-		travelSteps = steps - acceleartionSteps - decceleartionSteps;
-		// set startSpeed of second move to end speed of first move.
-		if(null != nextMove)
+		if(1 > maxClientStepsPerSecond)
+		{
+			log.error("Maximum speed of client unknown !");
+			return;
+		}
+		this.startSpeed = Math.max(0.0, Math.min(startSpeed, nominalSpeed));
+		this.endSpeed = Math.max(0.0, Math.min(endSpeed, nominalSpeed));
+		peakSpeed = nominalSpeed;
+		if(0.0 >= acceleration)
 		{
-			nextMove.setStartSpeedMms(0);
+			// no acceleration limit -> speed changes immediately
+			acceleartionSteps = 0;
+			decceleartionSteps = 0;
 		}
+		else
+		{
+			final double nominal2 = nominalSpeed * nominalSpeed;
+			double accelExact = (nominal2 - (this.startSpeed * this.startSpeed)) / (2 * acceleration);
+			double decelExact = (nominal2 - (this.endSpeed * this.endSpeed)) / (2 * acceleration);
+			if(accelExact + decelExact > steps)
+			{
+				// the travel speed can not be reached -> triangle
+				accelExact = ((2 * acceleration * steps)
+						      + (this.endSpeed * this.endSpeed)
+						      - (this.startSpeed * this.startSpeed)) / (4 * acceleration);
+				if(0 > accelExact)
+				{
+					// the move is too short to slow down to the end speed
+					accelExact = 0;
+					this.endSpeed = Math.sqrt(Math.max(0.0, (this.startSpeed * this.startSpeed) - (2 * acceleration * steps)));
+				}
+				if(steps < accelExact)
+				{
+					// the move is too short to reach the end speed
+					accelExact = steps;
+					this.endSpeed = Math.sqrt((this.startSpeed * this.startSpeed) + (2 * acceleration * steps));
+				}
+				decelExact = steps - accelExact;
+				peakSpeed = Math.sqrt((this.startSpeed * this.startSpeed) + (2 * acceleration * accelExact));
+			}
+			acceleartionSteps = (int)Math.round(accelExact);
+			decceleartionSteps = (int)Math.round(decelExact);
+			if(acceleartionSteps + decceleartionSteps > steps)
+			{
+				decceleartionSteps = steps - acceleartionSteps;
+			}
+		}
+		travelSteps = steps - acceleartionSteps - decceleartionSteps;
+		travelSpeedFraction = Math.max(1, toFraction(peakSpeed));
+		endSpeedFraction = toFraction(this.endSpeed);
 		valid = true;
 	}
 
+	/**
+	 * @param speed steps per second
+	 * @return speed as sent to the client (0..255)
+	 */
+	public int toFraction(double speed)
+	{
+		final long res = Math.round((speed * 255) / maxClientStepsPerSecond);
+		if(0 > res)
+		{
+			return 0;
+		}
+		if(255 < res)
+		{
+			return 255;
+		}
+		return (int)res;
+	}
+
+	/**
+	 * @param step 0..steps
+	 * @return the speed in steps per second after this many steps.
+	 */
+	public double getSpeedAtStep(int step)
+	{
+		if(0.0 >= acceleration)
+		{
+			if(step >= steps)
+			{
+				return endSpeed;
+			}
+			return peakSpeed;
+		}
+		if(step < acceleartionSteps)
+		{
+			return Math.min(peakSpeed, Math.sqrt((startSpeed * startSpeed) + (2 * acceleration * step)));
+		}
+		if(step <= steps - decceleartionSteps)
+		{
+			return peakSpeed;
+		}
+		return Math.min(peakSpeed, Math.sqrt((endSpeed * endSpeed) + (2 * acceleration * (steps - step))));
+	}
+
 	public boolean isValid()
 	{
 		return valid;
@@ -66,5 +175,20 @@ public class SpeedCalculation
 		return travelSteps;
 	}
 
+	/**
+	 * @return steps per second
+	 */
+	public double getPeakSpeed()
+	{
+		return peakSpeed;
+	}
+
+	/**
+	 * @return steps per second
+	 */
+	public double getEndSpeed()
+	{
+		return endSpeed;
+	}
 
 }
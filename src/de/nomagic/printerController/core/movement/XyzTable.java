@@ -33,7 +33,7 @@ import de.nomagic.printerController.core.devices.Switch;
  * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
  *
  */
-public class XyzTable
+public class XyzTable implements MoveSource
 {
     /** used to calculate the length of the homing movement.
      * minimum Value is 1.0. Everything more is just to be sure.
@@ -54,6 +54,17 @@ public class XyzTable
     public static final double DEFAULT_END_STOP_ALLOWANCE = 0.5;
     /** maximum supported number of Steppers on a axis */
     public static final int MAX_STEPPERS_PER_AXIS = 2;
+    /** distance in mm between the corner of two moves and the arc that
+     * the print head may take through it. Limits the cornering speed. */
+    public static final double DEFAULT_JUNCTION_DEVIATION_MM = 0.05;
+    /** consecutive moves that deviate less than this (in mm) from a straight
+     * line get merged into one move. 0 = do not merge moves. */
+    public static final double DEFAULT_SEGMENT_MERGE_TOLERANCE_MM = 0.0;
+    /** maximum number of moves that get merged into one move */
+    public static final int MAX_MERGED_SEGMENTS = 32;
+    /** moves only get merged if the extrusion (mm of E per mm of XYZ)
+     * differs by less than this fraction. */
+    public static final double MERGE_EXTRUSION_RATIO_TOLERANCE = 0.001;
     // configuration:
     public static final double DEFAULT_PRINT_AREA_MIN = 0.0;
     public static final double DEFAULT_PRINT_AREA_MAX = 300.0;
@@ -65,6 +76,8 @@ public class XyzTable
     public static final String CFG_NAME_HOME_BACK_OFF_SPEED = "homing back off speed";
     public static final String CFG_NAME_HOME_APPROACH_SPEED = "homing slow approach speed";
     public static final String CFG_NAME_HOME_BACK_OFF_DISTANCE = "homing back off distance";
+    public static final String CFG_NAME_JUNCTION_DEVIATION = "junction deviation";
+    public static final String CFG_NAME_SEGMENT_MERGE_TOLERANCE = "segment merge tolerance";
 
     private final double homeMaxSpeedMms;
     private final double homeBackOffSpeedMms;
@@ -82,12 +95,25 @@ public class XyzTable
     private boolean[] endStopmaxOn;
     private int[] endStop_min;
     private int[] endStop_max;
-    private Vector<Integer> stopsOn;
-    private Vector<Integer> stopsOff;
+    private Vector<Integer> stopsOn = new Vector<Integer>();
+    private Vector<Integer> stopsOff = new Vector<Integer>();
     private PlannedMoves planner;
     private double FeedrateMmPerMinute = 9000;
     private int MaxClientStepsPerSecond = 0;
     private PrinterProperties printerProps = new PrinterProperties();
+    private final MovePool pool = new MovePool();
+    private double segmentMergeToleranceMm = DEFAULT_SEGMENT_MERGE_TOLERANCE_MM;
+    // the move that waits for the next move to be merged into it, null = none
+    private CartesianMove pendingMove = null;
+    private double pendingFeedrateMmPerMinute = 0.0;
+    // time since which the pending move waits for moves to merge
+    private long pendingSinceNs = 0;
+    // position at the end of the pending move
+    private final double[] pendingEndPositionMm = new double[Axis_enum.size];
+    // X,Y,Z of the points between the merged moves, relative to the start of the pending move
+    private final double[][] pendingJointsMm = new double[MAX_MERGED_SEGMENTS][3];
+    private int numberOfPendingJoints = 0;
+    private long numberOfMergedSegments = 0;
     private String lastErrorReason = null;
 
     public XyzTable(Cfg cfg)
@@ -129,6 +155,10 @@ public class XyzTable
                                                       DEFAULT_HOMING_MOVE_SLOW_APPROACH_SPEED);
         homeBackOffDistanceMm   = cfg.getGeneralSetting(CFG_NAME_HOME_BACK_OFF_DISTANCE,
                                                       DEFAULT_HOMING_BACK_OFF_DISTANCE_MM);
+        printerProps.setJunctionDeviationMm(cfg.getGeneralSetting(CFG_NAME_JUNCTION_DEVIATION,
+                                                      DEFAULT_JUNCTION_DEVIATION_MM));
+        setSegmentMergeToleranceMm(cfg.getGeneralSetting(CFG_NAME_SEGMENT_MERGE_TOLERANCE,
+                                                      DEFAULT_SEGMENT_MERGE_TOLERANCE_MM));
     }
 
     public String getLastErrorReason()
@@ -140,6 +170,8 @@ public class XyzTable
     {
         log.info("Adding Queue !");
         planner = queue;
+        planner.addMovePool(pool);
+        planner.addMoveSource(this);
     }
 
     public void setMaxClientStepsPerSecond(int maxSteppsPerSecond)
@@ -147,6 +179,27 @@ public class XyzTable
         MaxClientStepsPerSecond = maxSteppsPerSecond;
     }
 
+    /**
+     * @param toleranceMm consecutive moves that deviate less than this from a
+     *                    straight line get merged into one move. 0 = do not merge.
+     */
+    public void setSegmentMergeToleranceMm(double toleranceMm)
+    {
+        if(0.0 > toleranceMm)
+        {
+            toleranceMm = 0.0;
+        }
+        segmentMergeToleranceMm = toleranceMm;
+    }
+
+    /**
+     * @return number of moves that have been merged into the move before them.
+     */
+    public long getNumberOfMergedSegments()
+    {
+        return numberOfMergedSegments;
+    }
+
     @Override
     public String toString()
     {
@@ -162,6 +215,7 @@ public class XyzTable
                 }
             }
         }
+        sb.append("Merged segments: " + numberOfMergedSegments + "\n");
         sb.append("Queue:" + planner + "\n");
         return sb.toString();
     }
@@ -240,7 +294,7 @@ public class XyzTable
         }
     }
 
-    private void calculateEndStopsThatNeedToChangeTheirEnabledState()
+    private void calculateEndStopsThatNeedToChangeTheirEnabledState(double[] positionMm)
     {
         if(true == autoEndStopDisable)
         {
@@ -253,7 +307,7 @@ public class XyzTable
 
                 if(true == isHomed[axis.ordinal()])
                 {
-                    final double posOnAxisMm = curPositionMm[axis.ordinal()];
+                    final double posOnAxisMm = positionMm[axis.ordinal()];
                     if(   (MinMm[axis.ordinal()] <= posOnAxisMm)
                        && ((MinMm[axis.ordinal()] + endstopAllowance)>= posOnAxisMm) )
                     {
@@ -293,6 +347,16 @@ public class XyzTable
     }
 
     private boolean updateEndStopActivation(CartesianMove move)
+    {
+        return updateEndStopActivation(move, curPositionMm, System.nanoTime());
+    }
+
+    /**
+     * @param move the move to add to the queue.
+     * @param positionMm position at the end of the move.
+     * @param waitingSinceNs time since which the move waits to be send.
+     */
+    private boolean updateEndStopActivation(CartesianMove move, double[] positionMm, long waitingSinceNs)
     {
         if(null == planner)
         {
@@ -301,10 +365,10 @@ public class XyzTable
         }
         boolean success = true;
         // make sure that these class variables are clean
-        stopsOn = new Vector<Integer>();
-        stopsOff = new Vector<Integer>();
+        stopsOn.clear();
+        stopsOff.clear();
 
-        calculateEndStopsThatNeedToChangeTheirEnabledState();
+        calculateEndStopsThatNeedToChangeTheirEnabledState(positionMm);
         if(   (false == isHomed[Axis_enum.X.ordinal()])
            || (false == isHomed[Axis_enum.Y.ordinal()])
            || (false == isHomed[Axis_enum.Z.ordinal()]) )
@@ -324,7 +388,7 @@ public class XyzTable
         if(null != move)
         {
             log.trace("Adding the move!");
-            success = planner.addMove(move);
+            success = planner.addMove(move, waitingSinceNs);
         }
         if(0 < stopsOn.size())
         {
@@ -338,6 +402,9 @@ public class XyzTable
     {
         printerProps.addStepperForAxis(ae, motor.getStepperNumber());
         printerProps.setSteppsPerMmOn(motor.getStepperNumber(), motor.getStepsPerMm());
+        printerProps.setMaxAccelerationOn(motor.getStepperNumber(), motor.getMaxAccelerationStepsPerSecond());
+        printerProps.setMaxSpeedOn(motor.getStepperNumber(), motor.getMaxPossibleSpeedStepsPerSecond());
+        printerProps.setMaxJerkOn(motor.getStepperNumber(), motor.getMaxJerkSpeedMmS());
         for(int i = 0; i < MAX_STEPPERS_PER_AXIS; i++)
         {
             if(null == Steppers[ae.ordinal()][i])
@@ -377,22 +444,88 @@ public class XyzTable
        }
        else
        {
+           if(false == sendHeldMove())
+           {
+               return false;
+           }
            return planner.flushQueueToClient(ref);
        }
    }
 
-   public boolean addRelativeMove(RelativeMove relMov, Reference ref)
+   /** adds the move that waits for moves to merge with to the planner.
+    *
+    * @return false if adding the move failed.
+    */
+   public synchronized boolean sendHeldMove()
+   {
+       return sendPendingMove();
+   }
+
+   @Override
+   public synchronized boolean releaseHeldMove(long heldBeforeNs)
+   {
+       if(null == pendingMove)
+       {
+           return true;
+       }
+       if(0 < pendingSinceNs - heldBeforeNs)
+       {
+           // there is still time for moves to merge with
+           return true;
+       }
+       if(true == log.isTraceEnabled())
+       {
+           log.trace("releasing the held Move({})", pendingMove.getId());
+       }
+       return sendPendingMove();
+   }
+
+   /** the clients wait after all moves that have been added before.
+    *
+    * @param ticks length of the pause in units of the delay block.
+    * @param seconds length of the pause.
+    */
+   public synchronized boolean addPause(long ticks, double seconds)
+   {
+       if(null == planner)
+       {
+           lastErrorReason = "Can not pause as no steppers available !";
+           log.error(lastErrorReason);
+           return false;
+       }
+       if(false == sendPendingMove())
+       {
+           lastErrorReason = "Sending the last move Failed !";
+           log.error(lastErrorReason);
+           return false;
+       }
+       if(false == planner.addPause(ticks, seconds, printerProps))
+       {
+           lastErrorReason = "Adding the pause Failed !";
+           log.error(lastErrorReason);
+           return false;
+       }
+       return true;
+   }
+
+   public synchronized boolean addRelativeMove(RelativeMove relMov, Reference ref)
    {
        log.trace("adding the move {}", relMov);
-       final CartesianMove aMove = new CartesianMove(MaxClientStepsPerSecond, printerProps);
-       log.trace("created Move({}) to hold the move{}.", aMove.getId(), relMov);
+       final CartesianMove aMove = pool.getCartesianMove(MaxClientStepsPerSecond, printerProps);
+       if(true == log.isTraceEnabled())
+       {
+           log.trace("created Move({}) to hold the move{}.", aMove.getId(), relMov);
+       }
        // Feedrate
        if(true == relMov.hasFeedrate())
        {
            FeedrateMmPerMinute = relMov.getFeedrate();
        }
        // else  reuse last Feedrate
-       log.trace("Feedrate = {} mm/Minute", FeedrateMmPerMinute);
+       if(true == log.isTraceEnabled())
+       {
+           log.trace("Feedrate = {} mm/Minute", FeedrateMmPerMinute);
+       }
        aMove.setFeedrateMmPerMinute(FeedrateMmPerMinute);
 
        for(Axis_enum ax: Axis_enum.values())
@@ -437,6 +570,10 @@ public class XyzTable
            // else axis not used
        }
 
+       if(0.0 < segmentMergeToleranceMm)
+       {
+           return addOrMergeMove(aMove);
+       }
        return updateEndStopActivation(aMove);
    }
 
@@ -448,6 +585,30 @@ public class XyzTable
            lastErrorReason = "Cann not home as no steppers available !";
            return false;
        }
+       if(false == addHomingMoves(axis))
+       {
+           return false;
+       }
+       if(false == planner.flushQueueToClient(ref))
+       {
+           log.error("Flush to Client failed !");
+           lastErrorReason = "Flush to Client failed";
+           return false;
+       }
+       else
+       {
+           return true;
+       }
+   }
+
+   private synchronized boolean addHomingMoves(Axis_enum[] axis)
+   {
+       if(false == sendPendingMove())
+       {
+           log.error("Sending the last move Failed !");
+           lastErrorReason = "Sending the last move Failed !";
+           return false;
+       }
        log.trace("homing Axis");
        if(false == sendInitialHomingMoveToEndStops(axis))
        {
@@ -474,21 +635,12 @@ public class XyzTable
            isHomed[ax.ordinal()] = true; // axis is now homed
            curPositionMm[ax.ordinal()] = 0.0;
        }
-       if(false == planner.flushQueueToClient(ref))
-       {
-           log.error("Flush to Client failed !");
-           lastErrorReason = "Flush to Client failed";
-           return false;
-       }
-       else
-       {
-           return true;
-       }
+       return true;
    }
 
    private boolean sendInitialHomingMoveToEndStops(Axis_enum[] axis)
    {
-       final CartesianMove aMove = new CartesianMove(MaxClientStepsPerSecond, printerProps);
+       final CartesianMove aMove = pool.getCartesianMove(MaxClientStepsPerSecond, printerProps);
        log.trace("created Move({}) to hold the initial homing move", aMove.getId());
        aMove.setIsHoming(true);
        aMove.setFeedrateMmPerMinute(homeMaxSpeedMms * 60);
@@ -524,7 +676,7 @@ public class XyzTable
 
    private boolean sendHomingBackOffMove(Axis_enum[] axis)
    {
-       final CartesianMove aMove = new CartesianMove(MaxClientStepsPerSecond, printerProps);
+       final CartesianMove aMove = pool.getCartesianMove(MaxClientStepsPerSecond, printerProps);
        log.trace("created Move({}) to hold the homing back off move", aMove.getId());
        aMove.setIsHoming(true);
        aMove.setFeedrateMmPerMinute(homeBackOffSpeedMms * 60);
@@ -560,7 +712,7 @@ public class XyzTable
 
    private boolean sendHomingSlowApproachMoveToEndStops(Axis_enum[] axis)
    {
-       final CartesianMove aMove = new CartesianMove(MaxClientStepsPerSecond, printerProps);
+       final CartesianMove aMove = pool.getCartesianMove(MaxClientStepsPerSecond, printerProps);
        log.trace("created Move({}) to hold the slow approach homing move", aMove.getId());
        aMove.setIsHoming(true);
        aMove.setFeedrateMmPerMinute(homeSlowApproachSpeedMms * 60);
@@ -594,12 +746,187 @@ public class XyzTable
        return updateEndStopActivation(aMove);
    }
 
+    /** merges the move into the pending move or makes it the pending move.
+     *
+     * The pending move is send once a move can not be merged into it,
+     * or once the planner runs out of moves and the move has waited long enough.
+     */
+    private boolean addOrMergeMove(CartesianMove aMove)
+    {
+        if(null != pendingMove)
+        {
+            if(true == canBeMerged(aMove))
+            {
+                mergeIntoPendingMove(aMove);
+                pool.recycle(aMove);
+                numberOfMergedSegments++;
+                return true;
+            }
+            if(false == sendPendingMove())
+            {
+                pool.recycle(aMove);
+                return false;
+            }
+        }
+        if(false == aMove.hasMovement())
+        {
+            return updateEndStopActivation(aMove);
+        }
+        pendingMove = aMove;
+        pendingSinceNs = System.nanoTime();
+        pendingFeedrateMmPerMinute = FeedrateMmPerMinute;
+        numberOfPendingJoints = 0;
+        System.arraycopy(curPositionMm, 0, pendingEndPositionMm, 0, curPositionMm.length);
+        return true;
+    }
+
+    private boolean sendPendingMove()
+    {
+        if(null == pendingMove)
+        {
+            return true;
+        }
+        final CartesianMove aMove = pendingMove;
+        pendingMove = null;
+        return updateEndStopActivation(aMove, pendingEndPositionMm, pendingSinceNs);
+    }
+
+    private boolean canBeMerged(CartesianMove aMove)
+    {
+        if(   (MAX_MERGED_SEGMENTS <= numberOfPendingJoints + 1)
+           || (pendingFeedrateMmPerMinute != FeedrateMmPerMinute)
+           || (false == aMove.hasMovement()) )
+        {
+            return false;
+        }
+        // the end stops must not change their state during the merged move
+        for(Axis_enum axis: Axis_enum.values())
+        {
+            if(   (Axis_enum.E != axis)
+               && (getEndStopZone(axis, pendingEndPositionMm[axis.ordinal()])
+                   != getEndStopZone(axis, curPositionMm[axis.ordinal()])) )
+            {
+                return false;
+            }
+        }
+        // extrusion ratio
+        final double pendingLengthMm = getXyzLengthMm(pendingMove);
+        final double newLengthMm = getXyzLengthMm(aMove);
+        if((MIN_MOVEMENT_DISTANCE > pendingLengthMm) || (MIN_MOVEMENT_DISTANCE > newLengthMm))
+        {
+            // extruder only moves
+            return false;
+        }
+        final double pendingRatio = pendingMove.getDistanceMm(Axis_enum.E) / pendingLengthMm;
+        final double newRatio = aMove.getDistanceMm(Axis_enum.E) / newLengthMm;
+        if(Math.abs(pendingRatio - newRatio)
+                > MERGE_EXTRUSION_RATIO_TOLERANCE * Math.max(Math.abs(pendingRatio), Math.abs(newRatio)))
+        {
+            return false;
+        }
+        // all points between the moves must be close to the merged move
+        final double mx = pendingMove.getDistanceMm(Axis_enum.X) + aMove.getDistanceMm(Axis_enum.X);
+        final double my = pendingMove.getDistanceMm(Axis_enum.Y) + aMove.getDistanceMm(Axis_enum.Y);
+        final double mz = pendingMove.getDistanceMm(Axis_enum.Z) + aMove.getDistanceMm(Axis_enum.Z);
+        final double mergedSquared = (mx * mx) + (my * my) + (mz * mz);
+        if(false == isCloseToLine(pendingMove.getDistanceMm(Axis_enum.X),
+                                  pendingMove.getDistanceMm(Axis_enum.Y),
+                                  pendingMove.getDistanceMm(Axis_enum.Z),
+                                  mx, my, mz, mergedSquared))
+        {
+            return false;
+        }
+        for(int i = 0; i < numberOfPendingJoints; i++)
+        {
+            if(false == isCloseToLine(pendingJointsMm[i][0], pendingJointsMm[i][1], pendingJointsMm[i][2],
+                                      mx, my, mz, mergedSquared))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the point is within the merge tolerance of the line from 0 to m and between both ends.
+     */
+    private boolean isCloseToLine(double x, double y, double z,
+                                  double mx, double my, double mz, double mSquared)
+    {
+        final double dot = (x * mx) + (y * my) + (z * mz);
+        if((0.0 >= dot) || (mSquared <= dot))
+        {
+            return false;
+        }
+        final double distanceSquared = (x * x) + (y * y) + (z * z) - ((dot * dot) / mSquared);
+        return distanceSquared <= segmentMergeToleranceMm * segmentMergeToleranceMm;
+    }
+
+    private void mergeIntoPendingMove(CartesianMove aMove)
+    {
+        pendingJointsMm[numberOfPendingJoints][0] = pendingMove.getDistanceMm(Axis_enum.X);
+        pendingJointsMm[numberOfPendingJoints][1] = pendingMove.getDistanceMm(Axis_enum.Y);
+        pendingJointsMm[numberOfPendingJoints][2] = pendingMove.getDistanceMm(Axis_enum.Z);
+        numberOfPendingJoints++;
+        for(Axis_enum axis: Axis_enum.values())
+        {
+            final double distanceMm = aMove.getDistanceMm(axis);
+            if(0.0 != distanceMm)
+            {
+                // the steps get calculated from the sum, so the rounding error stays the same
+                pendingMove.setDistanceMm(axis, pendingMove.getDistanceMm(axis) + distanceMm);
+            }
+        }
+        System.arraycopy(curPositionMm, 0, pendingEndPositionMm, 0, curPositionMm.length);
+        if(true == log.isTraceEnabled())
+        {
+            log.trace("merged Move({}) into Move({})", aMove.getId(), pendingMove.getId());
+        }
+    }
+
+    private static double getXyzLengthMm(CartesianMove aMove)
+    {
+        final double x = aMove.getDistanceMm(Axis_enum.X);
+        final double y = aMove.getDistanceMm(Axis_enum.Y);
+        final double z = aMove.getDistanceMm(Axis_enum.Z);
+        return Math.sqrt((x * x) + (y * y) + (z * z));
+    }
+
+    /**
+     * @return 0 = both end stops on, 1 = min end stop off, 2 = max end stop off
+     */
+    private int getEndStopZone(Axis_enum axis, double posOnAxisMm)
+    {
+        if((false == autoEndStopDisable) || (false == isHomed[axis.ordinal()]))
+        {
+            return 0;
+        }
+        if(   (MinMm[axis.ordinal()] <= posOnAxisMm)
+           && ((MinMm[axis.ordinal()] + endstopAllowance)>= posOnAxisMm) )
+        {
+            return 1;
+        }
+        else if(   (MaxMm[axis.ordinal()] >= posOnAxisMm)
+                && ((MaxMm[axis.ordinal()] - endstopAllowance) <= posOnAxisMm) )
+        {
+            return 2;
+        }
+        else
+        {
+            return 0;
+        }
+    }
+
     public boolean hasAllMovementFinished()
     {
         if(null == planner)
         {
             return true;
         }
+        else if(null != pendingMove)
+        {
+            return false;
+        }
         else
         {
             return planner.hasAllMovementFinished();
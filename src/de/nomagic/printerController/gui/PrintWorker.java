@@ -14,13 +14,9 @@
  */
 package de.nomagic.printerController.gui;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
 
 import javax.swing.SwingWorker;
 
@@ -28,6 +24,7 @@ import org.jfree.util.Log;
 
 import de.nomagic.printerController.GCodeResultStream;
 import de.nomagic.printerController.core.CoreStateMachine;
+import de.nomagic.printerController.core.MappedGCodeReader;
 
 /**
  * @author Lars P&ouml;tter
@@ -49,13 +46,11 @@ public class PrintWorker extends SwingWorker<Void, Void>
 
     protected Void doInBackground()
     {
-        BufferedReader br = null;
-        FileInputStream fin = null;
+        MappedGCodeReader reader = null;
         try
         {
-            fin = new FileInputStream(GCodeFile);
-            br = new BufferedReader(new InputStreamReader(fin, Charset.forName("UTF-8")));
-            String curLine = br.readLine();
+            reader = new MappedGCodeReader(GCodeFile);
+            CharSequence curLine = reader.readLine();
             while(null != curLine)
             {
                 final String res = pp.executeGCode(curLine, resultStream);
@@ -64,7 +59,8 @@ public class PrintWorker extends SwingWorker<Void, Void>
                     Log.error(res);
                     return null;
                 }
-                curLine = br.readLine();
+                setProgress(reader.getPercentDone());
+                curLine = reader.readLine();
             }
         }
         catch (FileNotFoundException e1)
@@ -77,22 +73,11 @@ public class PrintWorker extends SwingWorker<Void, Void>
         }
         finally
         {
-            if(null != br)
+            if(null != reader)
             {
                 try
                 {
-                    br.close();
-                }
-                catch (IOException e1)
-                {
-                    e1.printStackTrace();
-                }
-            }
-            if(null != fin)
-            {
-                try
-                {
-                    fin.close();
+                    reader.close();
                 }
                 catch (IOException e1)
                 {
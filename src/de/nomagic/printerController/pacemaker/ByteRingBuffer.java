@@ -0,0 +1,176 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+/** a fixed size FIFO of bytes that is filled directly by the read() of the connection.
+ *
+ * Writers get the free space at the end of the array with
+ * getWritePosition() and getContiguousFreeSpace() and then call commitWrite().
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class ByteRingBuffer
+{
+    private final byte[] data;
+    private int readPos = 0;
+    private int writePos = 0;
+    private int numberOfBytes = 0;
+
+    public ByteRingBuffer(int capacity)
+    {
+        data = new byte[capacity];
+    }
+
+    public int getCapacity()
+    {
+        return data.length;
+    }
+
+    public int size()
+    {
+        return numberOfBytes;
+    }
+
+    public void clear()
+    {
+        readPos = 0;
+        writePos = 0;
+        numberOfBytes = 0;
+    }
+
+    public byte[] getArray()
+    {
+        return data;
+    }
+
+    public int getWritePosition()
+    {
+        return writePos;
+    }
+
+    /**
+     * @return number of bytes that can be written starting at the write position without wrapping around.
+     */
+    public int getContiguousFreeSpace()
+    {
+        if(numberOfBytes == data.length)
+        {
+            return 0;
+        }
+        if(writePos >= readPos)
+        {
+            return data.length - writePos;
+        }
+        else
+        {
+            return readPos - writePos;
+        }
+    }
+
+    /** the bytes have been written to the array at the write position.
+     *
+     * @param numBytes number of bytes that have been written.
+     */
+    public void commitWrite(int numBytes)
+    {
+        writePos = (writePos + numBytes) % data.length;
+        numberOfBytes = numberOfBytes + numBytes;
+    }
+
+    public boolean write(byte[] buf, int offset, int length)
+    {
+        if(length > data.length - numberOfBytes)
+        {
+            return false;
+        }
+        final int firstPart = Math.min(length, data.length - writePos);
+        System.arraycopy(buf, offset, data, writePos, firstPart);
+        if(firstPart < length)
+        {
+            System.arraycopy(buf, offset + firstPart, data, 0, length - firstPart);
+        }
+        commitWrite(length);
+        return true;
+    }
+
+    /**
+     * @param index 0 = the oldest byte in the buffer.
+     * @return the byte or 0 if the buffer has less bytes.
+     */
+    public byte peek(int index)
+    {
+        if(index >= numberOfBytes)
+        {
+            return 0;
+        }
+        return data[(readPos + index) % data.length];
+    }
+
+    /** copies bytes without removing them from the buffer.
+     *
+     * @param index 0 = the oldest byte in the buffer.
+     * @return number of bytes copied to buf.
+     */
+    public int peek(int index, byte[] buf, int offset, int length)
+    {
+        if(index >= numberOfBytes)
+        {
+            return 0;
+        }
+        if(length > numberOfBytes - index)
+        {
+            length = numberOfBytes - index;
+        }
+        final int start = (readPos + index) % data.length;
+        final int firstPart = Math.min(length, data.length - start);
+        System.arraycopy(data, start, buf, offset, firstPart);
+        if(firstPart < length)
+        {
+            System.arraycopy(data, 0, buf, offset + firstPart, length - firstPart);
+        }
+        return length;
+    }
+
+    public void skip(int numBytes)
+    {
+        if(numBytes > numberOfBytes)
+        {
+            numBytes = numberOfBytes;
+        }
+        readPos = (readPos + numBytes) % data.length;
+        numberOfBytes = numberOfBytes - numBytes;
+    }
+
+    /** removes bytes from the buffer.
+     *
+     * @return number of bytes copied to buf.
+     */
+    public int read(byte[] buf, int offset, int length)
+    {
+        if(length > numberOfBytes)
+        {
+            length = numberOfBytes;
+        }
+        final int firstPart = Math.min(length, data.length - readPos);
+        System.arraycopy(data, readPos, buf, offset, firstPart);
+        if(firstPart < length)
+        {
+            System.arraycopy(data, 0, buf, offset + firstPart, length - firstPart);
+        }
+        skip(length);
+        return length;
+    }
+}
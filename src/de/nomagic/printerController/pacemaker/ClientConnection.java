@@ -14,6 +14,8 @@
  */
 package de.nomagic.printerController.pacemaker;
 
+import java.util.concurrent.CompletableFuture;
+
 import de.nomagic.printerController.core.Reference;
 
 /** Client Connection API.
@@ -30,7 +32,24 @@ public interface ClientConnection
     Reply sendRequest(final int  order, final Integer[] parameter, int offset, int length);
     Reply sendRequest(final int  order, final int[]     parameter, int offset, int length);
     Reply sendRequest(final byte order, final byte[]    parameter, int offset, int length);
+    /** takes an empty frame from the pool. The parameters get written directly into the frame.
+     *  The frame must be send with sendOrder().
+     */
+    OrderFrame startOrder(final byte order);
+    /** sends the frame and waits for the reply. The frame goes back into the pool. */
+    Reply sendOrder(final OrderFrame frame);
+    /** sends the frame without waiting for the reply. The frame goes back into the pool.
+     *  The future completes with the reply or with null if the frame could not be send.
+     *  Callbacks run in the thread that sends the frames, so they must not block.
+     */
+    CompletableFuture<Reply> sendOrderAsync(final OrderFrame frame);
     long getTimeOfLastSuccessfulReply();
+    /** number of order frames that may wait for their reply at the same time.
+     *  1 = stop and wait.
+     */
+    void setMaxFramesInFlight(int numberOfFrames);
+    ReplyLatencyHistogram getReplyLatencyHistogram();
+    ConnectionMetrics getMetrics();
     void setConnectionName(String Name);
 	String getConnectionName();
 }
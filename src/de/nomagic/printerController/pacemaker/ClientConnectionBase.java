@@ -17,9 +17,10 @@ package de.nomagic.printerController.pacemaker;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +37,10 @@ public abstract class ClientConnectionBase extends Thread implements ClientConne
 {
     public static final int MAX_MS_BETWEEN_TWO_BYTES = 20;
     public static final int MAX_MS_UNTIL_REPLY_ARRIVES = 100;
+    // the receive thread checks for an interrupt at least this often.
+    public static final int MAX_MS_IDLE_READ = 100;
+    // more than a few maximum sized frames
+    public static final int RECEIVE_BUFFER_SIZE = 1024;
  // number of tries to send the frame
     public static final int MAX_TRANSMISSIONS = 4;
  // number of tries to send the frame if the reason was a timeout
@@ -46,42 +51,16 @@ public abstract class ClientConnectionBase extends Thread implements ClientConne
     public static final int RESPONSE_PACKET_ENVELOPE_NUM_BYTES = 3;
 
     private static final Logger log = LoggerFactory.getLogger("ClientConnectionBase");
-    private static final boolean useNonBlocking = true;
 
-    private static byte[] crc_array =
-    {
-        //       0           1           2           3           4           5           6           7           8           9           A           B           C           D           E           F
-    /* 0*/ (byte)0x00, (byte)0xa6, (byte)0xea, (byte)0x4c, (byte)0x72, (byte)0xd4, (byte)0x98, (byte)0x3e, (byte)0xe4, (byte)0x42, (byte)0x0e, (byte)0xa8, (byte)0x96, (byte)0x30, (byte)0x7c, (byte)0xda,
-    /* 1*/ (byte)0x6e, (byte)0xc8, (byte)0x84, (byte)0x22, (byte)0x1c, (byte)0xba, (byte)0xf6, (byte)0x50, (byte)0x8a, (byte)0x2c, (byte)0x60, (byte)0xc6, (byte)0xf8, (byte)0x5e, (byte)0x12, (byte)0xb4,
-    /* 2*/ (byte)0xdc, (byte)0x7a, (byte)0x36, (byte)0x90, (byte)0xae, (byte)0x08, (byte)0x44, (byte)0xe2, (byte)0x38, (byte)0x9e, (byte)0xd2, (byte)0x74, (byte)0x4a, (byte)0xec, (byte)0xa0, (byte)0x06,
-    /* 3*/ (byte)0xb2, (byte)0x14, (byte)0x58, (byte)0xfe, (byte)0xc0, (byte)0x66, (byte)0x2a, (byte)0x8c, (byte)0x56, (byte)0xf0, (byte)0xbc, (byte)0x1a, (byte)0x24, (byte)0x82, (byte)0xce, (byte)0x68,
-    /* 4*/ (byte)0x1e, (byte)0xb8, (byte)0xf4, (byte)0x52, (byte)0x6c, (byte)0xca, (byte)0x86, (byte)0x20, (byte)0xfa, (byte)0x5c, (byte)0x10, (byte)0xb6, (byte)0x88, (byte)0x2e, (byte)0x62, (byte)0xc4,
-    /* 5*/ (byte)0x70, (byte)0xd6, (byte)0x9a, (byte)0x3c, (byte)0x02, (byte)0xa4, (byte)0xe8, (byte)0x4e, (byte)0x94, (byte)0x32, (byte)0x7e, (byte)0xd8, (byte)0xe6, (byte)0x40, (byte)0x0c, (byte)0xaa,
-    /* 6*/ (byte)0xc2, (byte)0x64, (byte)0x28, (byte)0x8e, (byte)0xb0, (byte)0x16, (byte)0x5a, (byte)0xfc, (byte)0x26, (byte)0x80, (byte)0xcc, (byte)0x6a, (byte)0x54, (byte)0xf2, (byte)0xbe, (byte)0x18,
-    /* 7*/ (byte)0xac, (byte)0x0a, (byte)0x46, (byte)0xe0, (byte)0xde, (byte)0x78, (byte)0x34, (byte)0x92, (byte)0x48, (byte)0xee, (byte)0xa2, (byte)0x04, (byte)0x3a, (byte)0x9c, (byte)0xd0, (byte)0x76,
-    /* 8*/ (byte)0x3c, (byte)0x9a, (byte)0xd6, (byte)0x70, (byte)0x4e, (byte)0xe8, (byte)0xa4, (byte)0x02, (byte)0xd8, (byte)0x7e, (byte)0x32, (byte)0x94, (byte)0xaa, (byte)0x0c, (byte)0x40, (byte)0xe6,
-    /* 9*/ (byte)0x52, (byte)0xf4, (byte)0xb8, (byte)0x1e, (byte)0x20, (byte)0x86, (byte)0xca, (byte)0x6c, (byte)0xb6, (byte)0x10, (byte)0x5c, (byte)0xfa, (byte)0xc4, (byte)0x62, (byte)0x2e, (byte)0x88,
-    /* A*/ (byte)0xe0, (byte)0x46, (byte)0x0a, (byte)0xac, (byte)0x92, (byte)0x34, (byte)0x78, (byte)0xde, (byte)0x04, (byte)0xa2, (byte)0xee, (byte)0x48, (byte)0x76, (byte)0xd0, (byte)0x9c, (byte)0x3a,
-    /* B*/ (byte)0x8e, (byte)0x28, (byte)0x64, (byte)0xc2, (byte)0xfc, (byte)0x5a, (byte)0x16, (byte)0xb0, (byte)0x6a, (byte)0xcc, (byte)0x80, (byte)0x26, (byte)0x18, (byte)0xbe, (byte)0xf2, (byte)0x54,
-    /* C*/ (byte)0x22, (byte)0x84, (byte)0xc8, (byte)0x6e, (byte)0x50, (byte)0xf6, (byte)0xba, (byte)0x1c, (byte)0xc6, (byte)0x60, (byte)0x2c, (byte)0x8a, (byte)0xb4, (byte)0x12, (byte)0x5e, (byte)0xf8,
-    /* D*/ (byte)0x4c, (byte)0xea, (byte)0xa6, (byte)0x00, (byte)0x3e, (byte)0x98, (byte)0xd4, (byte)0x72, (byte)0xa8, (byte)0x0e, (byte)0x42, (byte)0xe4, (byte)0xda, (byte)0x7c, (byte)0x30, (byte)0x96,
-    /* E*/ (byte)0xfe, (byte)0x58, (byte)0x14, (byte)0xb2, (byte)0x8c, (byte)0x2a, (byte)0x66, (byte)0xc0, (byte)0x1a, (byte)0xbc, (byte)0xf0, (byte)0x56, (byte)0x68, (byte)0xce, (byte)0x82, (byte)0x24,
-    /* F*/ (byte)0x90, (byte)0x36, (byte)0x7a, (byte)0xdc, (byte)0xe2, (byte)0x44, (byte)0x08, (byte)0xae, (byte)0x74, (byte)0xd2, (byte)0x9e, (byte)0x38, (byte)0x06, (byte)0xa0, (byte)0xec, (byte)0x4a
-    };
 
     protected InputStream in;
     protected OutputStream out;
-    protected byte sequenceNumber = 0;
     protected boolean isSynced = false;
-    private boolean isFirstOrder = true;
-    private BlockingQueue<Reply> receiveQueue = new LinkedBlockingQueue<Reply>();
     private volatile boolean isRunning = false;
+    private final OrderSender sender;
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
 
-    private byte[] readBuffer = null;
-    private int readPos = 0;
-    private int lastPos = 0;
-    private int numberOfTimeouts = 0;
-    private int numberOfTransmissions = 0;
+    private final ByteRingBuffer receiveBuffer = new ByteRingBuffer(RECEIVE_BUFFER_SIZE);
 
     private volatile long timeOfLastSuccessfulReply = 0;
     private String ConnectionName = "";
@@ -89,6 +68,7 @@ public abstract class ClientConnectionBase extends Thread implements ClientConne
     public ClientConnectionBase(String TaskName)
     {
         super(TaskName);
+        sender = new OrderSender(this, metrics, TaskName + "-Sender");
     }
 
     public Reply sendRequest(final byte order, final byte[] parameter, Reference ref)
@@ -105,22 +85,30 @@ public abstract class ClientConnectionBase extends Thread implements ClientConne
 
     public Reply sendRequest(final int order, final Integer[] parameter, int offset, int length)
     {
-        final byte[] para = new byte[length];
-        for(int i = 0; i < length; i++)
-        {
-            para[i] = (byte)(0xff & parameter[offset + i]);
-        }
-        return sendRequest((byte)(0xff & order), para, 0, length);
+        final OrderFrame frame = startOrder((byte)(0xff & order));
+        frame.put(parameter, offset, length);
+        return sendOrder(frame);
     }
 
     public Reply sendRequest(final int order, final int[] parameter, int offset, int length)
     {
-        final byte[] para = new byte[length];
-        for(int i = 0; i < length; i++)
+        final OrderFrame frame = startOrder((byte)(0xff & order));
+        frame.put(parameter, offset, length);
+        return sendOrder(frame);
+    }
+
+    public void setMaxFramesInFlight(int numberOfFrames)
+    {
+        if(1 > numberOfFrames)
         {
-            para[i] = (byte)(0xff & parameter[offset + i]);
+            numberOfFrames = 1;
         }
-        return sendRequest((byte)(0xff & order), para, 0, length);
+        if(Protocol.MAX_FRAMES_IN_FLIGHT < numberOfFrames)
+        {
+            numberOfFrames = Protocol.MAX_FRAMES_IN_FLIGHT;
+        }
+        log.info("{} : up to {} frames in flight.", ConnectionName, numberOfFrames);
+        sender.setMaxFramesInFlight(numberOfFrames);
     }
 
     /** sends a request frame to the client.
@@ -131,47 +119,46 @@ public abstract class ClientConnectionBase extends Thread implements ClientConne
      * @param length send only this many bytes. May be 0 !
      * @return true= success false = no reply received - timeout
      */
-    public synchronized Reply sendRequest(final byte order, final byte[] parameter, int offset, int length)
-    // The synchronized makes sure that only one frame will bes send at a time.
-    // This function waits for the Reply to the frame.
-    // So the next frame can not be send before the reply for this frame has been received.
-    // Right now that is all the protocol can do.
-    // If a future version of the protocol allows more than one frame send to the client then this needs to be changed.
+    public Reply sendRequest(final byte order, final byte[] parameter, int offset, int length)
     {
-        if(false == isRunning)
+        final OrderFrame frame = startOrder(order);
+        if(0 < length)
         {
-            return null;
+            frame.put(parameter, offset, length);
         }
-        Reply r = null;
-        numberOfTransmissions = 0;
-        numberOfTimeouts = 0;
-        boolean needsToRetransmitt = false;
-        final byte[] buf = getFrameAsBuffer(order, parameter, offset, length);
-        do
+        return sendOrder(frame);
+    }
+
+    public OrderFrame startOrder(final byte order)
+    {
+        final OrderFrame frame = sender.getFreeFrame();
+        frame.start(order);
+        return frame;
+    }
+
+    public Reply sendOrder(final OrderFrame frame)
+    {
+        return sendOrderAsync(frame).join();
+    }
+
+    /** sends the frame as soon as a slot in the transmission window is available.
+     *
+     * Several threads can have a frame in flight at the same time.
+     * Each frame is retransmitted on its own. Frames of one thread are
+     * always in order if the thread waits for the reply before it sends
+     * the next frame.
+     */
+    public CompletableFuture<Reply> sendOrderAsync(final OrderFrame frame)
+    {
+        if(false == isRunning)
         {
-            try
-            {
-                if(true == log.isTraceEnabled() )
-                {
-                	log.trace("Sending " + Protocol.parse(buf) + " : " + Tool.fromByteBufferToHexString(buf) );
-                }
-                out.write(buf);
-                numberOfTransmissions++;
-                r = getReply();
-            }
-            catch (final IOException e)
-            {
-                e.printStackTrace();
-                log.error("Failed to send Request - IOException !");
-                return null;
-            }
-            logReply(r);
-            needsToRetransmitt = retransmissionNeeded(r);
-        } while((true == needsToRetransmitt) && (numberOfTransmissions < MAX_TRANSMISSIONS));
-        return r;
+            sender.releaseFrame(frame);
+            return CompletableFuture.completedFuture(null);
+        }
+        return sender.send(frame);
     }
 
-    private static void logReply(Reply r)
+    static void logReply(Reply r)
     {
         if(Protocol.RESPONSE_GENERIC_APPLICATION_ERROR == r.getReplyCode())
         {
@@ -196,47 +183,19 @@ public abstract class ClientConnectionBase extends Thread implements ClientConne
         }
     }
 
-    private byte[] getFrameAsBuffer(byte order, byte[] parameter, int offset, int length)
-    {
-        final byte[] buf = new byte[length + ORDER_PACKET_ENVELOPE_NUM_BYTES];
-        buf[Protocol.ORDER_POS_OF_SYNC] = Protocol.START_OF_HOST_FRAME;
-        buf[Protocol.ORDER_POS_OF_LENGTH] = (byte)(length + 2); // length also includes Control and Order
-        incrementSequenceNumber();
-        // else retransmission due to communications error
-        if(false == isFirstOrder)
-        {
-            buf[Protocol.ORDER_POS_OF_CONTROL] = sequenceNumber;
-        }
-        else
-        {
-            // signal the client that host has reset so hat the client flushes all cached responses
-            buf[Protocol.ORDER_POS_OF_CONTROL] = (byte)(Protocol.RESET_COMMUNICATION_SYNC_MASK | sequenceNumber);
-            isFirstOrder = false;
-        }
-        buf[Protocol.ORDER_POS_OF_ORDER_CODE] = order;
-        for(int i = 0; i < length; i++)
-        {
-            buf[Protocol.ORDER_POS_OF_START_OF_PARAMETER + i] = parameter[i + offset];
-        }
-        // Sync is not included in CRC
-        buf[Protocol.ORDER_POS_OF_START_OF_PARAMETER + length]
-                = getCRCfor(buf, Protocol.ORDER_POS_OF_START_OF_PARAMETER -1 + length, 1);
-        return buf;
-    }
-
-    private boolean retransmissionNeeded(Reply r)
+    static boolean retransmissionNeeded(Reply r, OrderFrame frame)
     {
         if(false == r.isValid())
         {
-            if(true == isFirstOrder)
+            if(true == frame.hasTimedOut())
             {
                 log.error("Received no response - Timeout!");
+                frame.setTimedOut(false);
                 // Timeout
-                if(numberOfTimeouts < MAX_TIMEOUT_TRANSMISSIONS)
+                if(frame.getNumberOfTimeouts() < MAX_TIMEOUT_TRANSMISSIONS)
                 {
                     // try again
-                    numberOfTransmissions = 0;
-                    numberOfTimeouts ++;
+                    frame.timedOut();
                     return true;
                 }
                 else
@@ -295,319 +254,229 @@ public abstract class ClientConnectionBase extends Thread implements ClientConne
         }
     }
 
-    private static byte getCRCfor(final byte[] buf, final int length)
-    {
-        return getCRCfor(buf, length -1, 1/* Byte 0 is Sync and is not included in CRC*/);
-    }
+    /** reads bytes from the client.
+     *
+     * @param buf the bytes go here.
+     * @param offset first free position in buf.
+     * @param length maximum number of bytes to read.
+     * @param timeoutMs return after this many milliseconds if no byte has been received.
+     * @return number of bytes read. 0 = timeout.
+     * @throws IOException if the connection has been closed.
+     */
+    protected abstract int readBytes(byte[] buf, int offset, int length, int timeoutMs) throws IOException;
 
-    private static byte getCRCfor(final byte[] buf, int length, final int offset)
+    /** sends the bytes to the client.
+     *
+     * @param buf the bytes from position to limit get send.
+     * @throws IOException if the bytes could not be send.
+     */
+    protected void writeBytes(ByteBuffer buf) throws IOException
     {
-        byte crc = 0;
-        int pos = offset;
-        while (length > 0)
-        {
-            crc = crc_array[0xff & (buf[pos] ^ crc)];
-            pos = pos + 1;
-            length = length - 1;
-        }
-        return crc;
+        out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        buf.position(buf.limit());
     }
 
-    private int getABlockingByte() throws IOException
+    @Override
+    public synchronized void start()
     {
-        // TODO Blocking read would be better, but we need the timeout feature,..
-        final int res =  in.read();
-        if(-1 == res)
-        {
-            throw new IOException("Channel closed");
-        }
-        return res;
+        // the first request might be send before the receive thread had a chance to run.
+        isRunning = true;
+        metrics.registerMBean(getName(), getId());
+        sender.start();
+        super.start();
     }
 
-    private int getABNonlockingByte() throws IOException, TimeoutException, InterruptedException
+    @Override
+    public void run()
     {
-        if(null != readBuffer)
-        {
-            // we have some Bytes already in the in Buffer.
-            final int res = 0xff & readBuffer[readPos];
-            readPos++;
-            if(readPos > lastPos)
-            {
-                readBuffer = null;
-                readPos = 0;
-                lastPos = 0;
-            }
-            return res;
-        }
-        else
+        isRunning = true;
+        long timeOfLastByte = System.nanoTime();
+        try
         {
-            int numAvail = in.available();
-            if(1 > numAvail)
+            while(false == isInterrupted())
             {
-                int timeoutCounter = 0;
-                do
+                int timeoutMs;
+                if(0 < receiveBuffer.size())
                 {
-                    Thread.sleep(1);
-                    if(true == isSynced)
-                    {
-                        timeoutCounter++;
-                        if(MAX_MS_BETWEEN_TWO_BYTES < timeoutCounter)
-                        {
-                            throw new TimeoutException();
-                        }
-                    }
-                    // else pause between two frames can be as long as it wants to be.
-                    numAvail = in.available();
-                }while(1 > numAvail);
-            }
-            // else a byte is already available
-            readBuffer = new byte[numAvail];
-            lastPos = (in.read(readBuffer)) -1; // Index starts with 0 -> -1
-            if(-1 == lastPos)
-            {
-                throw new IOException("Channel closed");
-            }
-            final int res = readBuffer[0];
-            if(0 == lastPos)
-            {
-                // just a single Byte arrived
-                readPos = 0;
-                readBuffer = null;
-            }
-            else
-            {
-                // more than one byte arrived
-                readPos = 1;
+                    // a part of a frame has already been received
+                    timeoutMs = MAX_MS_BETWEEN_TWO_BYTES;
+                }
+                else
+                {
+                    // pause between two frames can be as long as it wants to be.
+                    timeoutMs = MAX_MS_IDLE_READ;
+                }
+                final int numRead = readBytes(receiveBuffer.getArray(),
+                                              receiveBuffer.getWritePosition(),
+                                              receiveBuffer.getContiguousFreeSpace(),
+                                              timeoutMs);
+                final long now = System.nanoTime();
+                if(0 < numRead)
+                {
+                    timeOfLastByte = now;
+                    metrics.bytesReceived(numRead);
+                    receiveBuffer.commitWrite(numRead);
+                    parseReceivedBytes();
+                }
+                else if(   (0 < receiveBuffer.size())
+                        && (now - timeOfLastByte > TimeUnit.MILLISECONDS.toNanos(MAX_MS_BETWEEN_TWO_BYTES)) )
+                {
+                    // the rest of the frame did not arrive in time
+                    log.error("Timeout while receiving a frame ({} bytes dropped) !", receiveBuffer.size());
+                    receiveBuffer.clear();
+                    isSynced = false;
+                    sender.communicationError();
+                }
             }
-            return res;
         }
-    }
-
-    @SuppressWarnings("unused")
-    private int getAByte() throws IOException, TimeoutException, InterruptedException
-    {
-        if(false == useNonBlocking)
-        {
-            return getABlockingByte();
-        }
-        else
-        {
-            return getABNonlockingByte();
-        }
-    }
-
-    private void incrementSequenceNumber()
-    {
-        sequenceNumber ++;
-        if(sequenceNumber > Protocol.MAX_SEQUENCE_NUMBER)
-        {
-            sequenceNumber = 0;
-        }
-    }
-
-    private Reply getReply()
-    {
-        Reply r = null;
-        r = receiveQueue.poll();
-        if(null != r)
+        catch(ClosedByInterruptException ie)
         {
-            return r;
+            log.info("Has been Interrupted !");
+            // end the thread
         }
-        int timeoutCounter = 0;
-        do
+        catch (final IOException e)
         {
-            try
+            if(false == isInterrupted())
             {
-                Thread.sleep(1);
-            }
-            catch(InterruptedException e)
-            {
-            }
-            timeoutCounter++;
-            r = receiveQueue.poll();
-            if((null == r) && (MAX_MS_UNTIL_REPLY_ARRIVES < timeoutCounter))
-            {
-                log.error("Timeout !");
-                isFirstOrder = true;
-                return new Reply(null);
+                log.warn("IOException !");
+                e.printStackTrace();
             }
-        }while(null == r);
-        return r;
+        }
+        log.info("Receive Thread stopped !");
+        isRunning = false;
     }
 
-    private void receiveSyncByte() throws IOException, InterruptedException
+    /** takes all complete frames out of the receive buffer. */
+    private void parseReceivedBytes()
     {
-        int sync;
-        do
+        for(;;)
         {
-            try
+            // Sync
+            while(   (0 < receiveBuffer.size())
+                  && (Protocol.START_OF_CLIENT_FRAME != (0xff & receiveBuffer.peek(Protocol.REPLY_POS_OF_SYNC))) )
             {
-                sync = getAByte();
-                if((sync != Protocol.START_OF_CLIENT_FRAME) && (true == isSynced))
+                if(true == isSynced)
                 {
                     // Protocol Error
                     log.error("Frame did not start with sync byte !");
                     isSynced = false;
                 }
-                else
-                {
-                    if(Protocol.START_OF_CLIENT_FRAME == sync)
-                    {
-                        isSynced = true;
-                    }
-                }
+                receiveBuffer.skip(1);
+            }
+            if(Protocol.REPLY_POS_OF_LENGTH >= receiveBuffer.size())
+            {
+                // length not received yet
+                return;
             }
-            catch(TimeoutException e)
+            isSynced = true;
+            // Control and reply code are also in the length
+            final int replyLength = 0xff & receiveBuffer.peek(Protocol.REPLY_POS_OF_LENGTH);
+            if(2 > replyLength)
             {
+                log.error("Received invalid length of {} !", replyLength);
                 isSynced = false;
+                receiveBuffer.skip(1);
+                continue;
+            }
+            if(RESPONSE_PACKET_ENVELOPE_NUM_BYTES + replyLength > receiveBuffer.size())
+            {
+                // wait for the rest of the frame
+                return;
             }
-        } while (false == isSynced);
+            final byte[] buf = new byte[RESPONSE_PACKET_ENVELOPE_NUM_BYTES + replyLength];
+            receiveBuffer.read(buf, 0, buf.length);
+            handleReceivedFrame(buf);
+        }
     }
 
-    @Override
-    public void run()
+    private void handleReceivedFrame(final byte[] buf)
     {
-        isRunning = true;
-        try
+        final int replyLength = 0xff & buf[Protocol.REPLY_POS_OF_LENGTH];
+        final int control = 0xff & buf[Protocol.REPLY_POS_OF_CONTROL];
+        final byte reply = buf[Protocol.REPLY_POS_OF_REPLY_CODE];
+        // Sync is not included in CRC
+        final byte expectedCRC = Crc8.calculate(buf, 1, replyLength + 1);
+        if(expectedCRC != buf[2 + replyLength])
         {
-            while(false == isInterrupted())
-            {
-                // Sync
-                receiveSyncByte();
-
-                final int replyLength;
-                final int control;
-                final byte reply;
-                final byte[] buf;
-                try
-                {
-                    // Length
-                    replyLength = getAByte();
-                    if(0 > replyLength)
-                    {
-                        isSynced = false;
-                        continue;
-                    }
-                    buf = new byte[RESPONSE_PACKET_ENVELOPE_NUM_BYTES + replyLength];
-                    buf[Protocol.ORDER_POS_OF_SYNC] = Protocol.START_OF_CLIENT_FRAME;
-                    buf[Protocol.REPLY_POS_OF_LENGTH] = (byte)(replyLength & 0xff);
-
-                    // Control
-                    control =  (byte)getAByte();
-                    // check control later
-                    buf[Protocol.REPLY_POS_OF_CONTROL] = (byte)(control & 0xff);
-
-                    // Reply Code
-                    reply =  (byte)getAByte();
-                    // check reply later
-                    buf[Protocol.REPLY_POS_OF_REPLY_CODE] = reply;
-
-                    // Parameter
-                    for(int i = 0; i < replyLength-2;i++) // Control and reply code is also in the length
-                    {
-                        buf[Protocol.REPLY_POS_OF_START_OF_PARAMETER + i] = (byte)getAByte();
-                        // log.traceSystem.out.print(" " + i);
-                    }
-
-                    // Error Check Code (CRC-8)
-                    buf[2 + replyLength] = (byte)getAByte();
-                }
-                catch(TimeoutException e)
-                {
-                    isSynced = false;
-                    isFirstOrder = true;
-                    continue;
-                }
-
-                final byte expectedCRC = getCRCfor(buf, replyLength + 2);
-                if(expectedCRC != buf[2 + replyLength])
-                {
-                    log.error("Wrong CRC ! expected : " + String.format("%02X", expectedCRC)
-                                       + " received : " + String.format("%02X", buf[2 + replyLength]));
-                    isSynced = false;
-                    Reply r = new Reply(buf, false);
-                    log.error(r.getDump());
-                    receiveQueue.put(r);
-                    continue;
-                }
-
-                if((control & Protocol.SEQUENCE_NUMBER_MASK) != sequenceNumber)
-                {
-                    // debug frames might not always have the correct sequence number.
-                    if(Protocol.DEBUG_FLAG == (Protocol.DEBUG_FLAG & control))
-                    {
-                        // ok
-                    }
-                    // if there has been a bit error in the transmission and
-                    // the client did not receive the request frame correctly
-                    // then it might answer with a wrong reply code, but the
-                    // reply will be "bad crc"
-                    else if(   (Protocol.RESPONSE_FRAME_RECEIPT_ERROR == reply)
-                       && (Protocol.RESPONSE_BAD_ERROR_CHECK_CODE == buf[Protocol.REPLY_POS_OF_START_OF_PARAMETER]) )
-                    {
-                        // ok
-                    }
-                    else
-                    {
-                        // Protocol Error
-                        log.error("Wrong Sequence Number !(Received: {}; Expected: {})",
-                                                         (control & Protocol.SEQUENCE_NUMBER_MASK), sequenceNumber);
-                        isSynced = false;
-                        continue;
-                    }
-                }
+            log.error("Wrong CRC ! expected : " + String.format("%02X", expectedCRC)
+                               + " received : " + String.format("%02X", buf[2 + replyLength]));
+            isSynced = false;
+            metrics.crcError();
+            Reply r = new Reply(buf, false);
+            log.error(r.getDump());
+            // we can not trust the sequence number in a broken frame
+            sender.replyToOnlyFrameReceived(r);
+            return;
+        }
 
-                final Reply curReply = new Reply(buf);
-                if(false == curReply.isValid())
-                {
-                	log.error("Received invalid Reply! ({})", Tool.fromByteBufferToHexString(buf));
-                }
-                else
-                {
-	                if(true == log.isTraceEnabled())
-	                {
-	                	log.trace("Received : " + Protocol.parse(buf) + " : " + curReply.getDump());
-	                }
-	                timeOfLastSuccessfulReply = System.currentTimeMillis();
-	                if(true == curReply.isDebugFrame())
-	                {
-	                    log.info(curReply.toString());
-	                    if(Protocol.RESPONSE_DEBUG_FRAME_NEW_EVENT == curReply.getReplyCode())
-	                    {
-	                        //TODO react to the new event
-	                    }
-	                }
-	                else
-	                {
-	                    receiveQueue.put(curReply);
-	                }
-                }
+        final Reply curReply = new Reply(buf);
+        if(false == curReply.isValid())
+        {
+            log.error("Received invalid Reply! ({})", Tool.fromByteBufferToHexString(buf));
+            return;
+        }
+        metrics.frameReceived();
+        if(   (Protocol.RESPONSE_FRAME_RECEIPT_ERROR == reply)
+           && (Protocol.RESPONSE_BAD_ERROR_CHECK_CODE == buf[Protocol.REPLY_POS_OF_START_OF_PARAMETER]) )
+        {
+            metrics.clientReportedCrcError();
+        }
+        if(true == log.isTraceEnabled())
+        {
+        	log.trace("Received : " + Protocol.parse(buf) + " : " + curReply.getDump());
+        }
+        // debug frames might not always have the correct sequence number.
+        if(true == curReply.isDebugFrame())
+        {
+            timeOfLastSuccessfulReply = System.currentTimeMillis();
+            log.info(curReply.toString());
+            if(Protocol.RESPONSE_DEBUG_FRAME_NEW_EVENT == curReply.getReplyCode())
+            {
+                //TODO react to the new event
             }
+            return;
         }
-        catch(InterruptedException ie)
+        if(true == sender.replyReceived(control, curReply))
         {
-            log.info("Has been Interrupted !");
-            // end the thread
+            timeOfLastSuccessfulReply = System.currentTimeMillis();
         }
-        catch(ClosedByInterruptException ie)
+        // if there has been a bit error in the transmission and
+        // the client did not receive the request frame correctly
+        // then it might answer with a wrong reply code, but the
+        // reply will be "bad crc"
+        else if(   (Protocol.RESPONSE_FRAME_RECEIPT_ERROR == reply)
+                && (Protocol.RESPONSE_BAD_ERROR_CHECK_CODE == buf[Protocol.REPLY_POS_OF_START_OF_PARAMETER]) )
         {
-            log.info("Has been Interrupted !");
-            // end the thread
+            timeOfLastSuccessfulReply = System.currentTimeMillis();
+            sender.replyToOnlyFrameReceived(curReply);
         }
-        catch (final IOException e)
+        else
         {
-            log.warn("IOException !");
-            e.printStackTrace();
+            // Protocol Error
+            log.error("Wrong Sequence Number !(Received: {}; Last send: {})",
+                                             (control & Protocol.SEQUENCE_NUMBER_MASK), sender.getSequenceNumber());
+            isSynced = false;
         }
-        log.info("Receive Thread stopped !");
-        isRunning = false;
     }
 
     public void disconnect()
     {
+        log.info("{} : {}", ConnectionName, sender.getReplyLatencyHistogram());
+        metrics.unregisterMBean();
+        sender.interrupt();
         this.interrupt();
     }
 
+    public ReplyLatencyHistogram getReplyLatencyHistogram()
+    {
+        return sender.getReplyLatencyHistogram();
+    }
+
+    public ConnectionMetrics getMetrics()
+    {
+        return metrics;
+    }
+
     public long getTimeOfLastSuccessfulReply()
     {
         return timeOfLastSuccessfulReply;
@@ -0,0 +1,230 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+/** decides when command blocks should be send to the queue of the client.
+ *
+ * The client reports the free slots in its queue and the number of executed
+ * jobs with every reply to a queue order. From the change of these numbers
+ * over time the rate at which the client executes the blocks is estimated.
+ * With that rate the host can predict when slots become free, instead of
+ * polling the client with empty frames.
+ *
+ * The number of slots that are kept free is adjusted: if the prediction was
+ * too optimistic (client reports a full queue) more slots are kept free. If
+ * the blocks were accepted a couple of times the reserve shrinks again.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class ClientQueueFlowControl
+{
+    public static final int DEFAULT_KEEP_FREE_SLOTS = 5;
+    public static final int MIN_KEEP_FREE_SLOTS = 1;
+    public static final int MAX_KEEP_FREE_SLOTS = 20;
+    // reduce the reserve by one after this many accepted batches without full queue.
+    public static final int ACCEPTED_BATCHES_TO_SHRINK_RESERVE = 16;
+    public static final long MIN_DELAY_MS = 1;
+    // used if the drain rate is not known.
+    public static final long MAX_DELAY_MS = 100;
+    // weight of a new measurement in the drain rate (1/x)
+    private static final int RATE_FILTER = 4;
+    // the executed jobs counter has 16 bit
+    private static final int EXECUTED_JOBS_MASK = 0xffff;
+    private static final long NANOSECONDS_PER_SECOND = 1000000000L;
+
+    private int freeSlots = 0;
+    // the client never reported more free slots than this
+    private int maxFreeSlots = 0;
+    private int executedJobs = 0;
+    private long timeOfLastUpdate = 0;
+    private boolean hasUpdate = false;
+    private int blocksSendSinceUpdate = 0;
+    // slots per second
+    private double drainRate = 0.0;
+    private int keepFreeSlots = DEFAULT_KEEP_FREE_SLOTS;
+    private int acceptedBatches = 0;
+    private long numberOfPolls = 0;
+    private long numberOfDataFrames = 0;
+    private long numberOfQueueFull = 0;
+
+    public ClientQueueFlowControl()
+    {
+    }
+
+    /** the client has accepted blocks.
+     *
+     * Call this before update() with the queue status of the same reply.
+     */
+    public synchronized void blocksAccepted(int numBlocks)
+    {
+        if(0 < numBlocks)
+        {
+            blocksSendSinceUpdate = blocksSendSinceUpdate + numBlocks;
+            numberOfDataFrames++;
+            acceptedBatches++;
+            if((ACCEPTED_BATCHES_TO_SHRINK_RESERVE <= acceptedBatches) && (MIN_KEEP_FREE_SLOTS < keepFreeSlots))
+            {
+                keepFreeSlots--;
+                acceptedBatches = 0;
+            }
+        }
+    }
+
+    /** a queue order without blocks has been send to get the state of the queue. */
+    public synchronized void pollSent()
+    {
+        numberOfPolls++;
+    }
+
+    /** the client reported a full queue. */
+    public synchronized void queueFull()
+    {
+        numberOfQueueFull++;
+        acceptedBatches = 0;
+        if(MAX_KEEP_FREE_SLOTS > keepFreeSlots)
+        {
+            keepFreeSlots++;
+        }
+    }
+
+    /** the client reported the state of its queue.
+     *
+     * @param clientFreeSlots number of free slots in the queue of the client.
+     * @param clientExecutedJobs the executed jobs counter of the client.
+     * @param now System.nanoTime()
+     */
+    public synchronized void update(int clientFreeSlots, int clientExecutedJobs, long now)
+    {
+        if(true == hasUpdate)
+        {
+            final long duration = now - timeOfLastUpdate;
+            // the client freed these slots since the last update
+            final int executedDelta = (clientExecutedJobs - executedJobs) & EXECUTED_JOBS_MASK;
+            final int freedSlots = clientFreeSlots - freeSlots + blocksSendSinceUpdate;
+            final int drained = Math.max(executedDelta, freedSlots);
+            if(0 < duration)
+            {
+                final double rate = ((double)drained * NANOSECONDS_PER_SECOND) / duration;
+                if(0.0 == drainRate)
+                {
+                    drainRate = rate;
+                }
+                else
+                {
+                    drainRate = drainRate + (rate - drainRate) / RATE_FILTER;
+                }
+            }
+        }
+        freeSlots = clientFreeSlots;
+        if(maxFreeSlots < clientFreeSlots)
+        {
+            maxFreeSlots = clientFreeSlots;
+        }
+        executedJobs = clientExecutedJobs;
+        timeOfLastUpdate = now;
+        blocksSendSinceUpdate = 0;
+        hasUpdate = true;
+    }
+
+    /**
+     * @param now System.nanoTime()
+     * @return the number of slots that can be filled now, without touching the reserve.
+     */
+    public synchronized int getUsableSlots(long now)
+    {
+        final int res = getPredictedFreeSlots(now) - keepFreeSlots;
+        if(0 > res)
+        {
+            return 0;
+        }
+        return res;
+    }
+
+    /**
+     * @param now System.nanoTime()
+     * @return the number of free slots in the client, if it continued to execute blocks as before.
+     */
+    public synchronized int getPredictedFreeSlots(long now)
+    {
+        if(false == hasUpdate)
+        {
+            return freeSlots;
+        }
+        final int res = freeSlots - blocksSendSinceUpdate
+                        + (int)(drainRate * (now - timeOfLastUpdate) / NANOSECONDS_PER_SECOND);
+        return Math.min(res, maxFreeSlots);
+    }
+
+    /**
+     * @param numSlots number of slots that need to be usable.
+     * @param now System.nanoTime()
+     * @return time in milliseconds until the slots are predicted to be usable.
+     */
+    public synchronized long getDelayUntilUsableMs(int numSlots, long now)
+    {
+        final int missing = numSlots - getUsableSlots(now);
+        if(0 >= missing)
+        {
+            return 0;
+        }
+        if(0.0 >= drainRate)
+        {
+            return MAX_DELAY_MS;
+        }
+        final long res = (long)Math.ceil((missing * 1000.0) / drainRate);
+        return Math.max(MIN_DELAY_MS, Math.min(MAX_DELAY_MS, res));
+    }
+
+    public synchronized int getKeepFreeSlots()
+    {
+        return keepFreeSlots;
+    }
+
+    /**
+     * @return slots per second
+     */
+    public synchronized double getDrainRate()
+    {
+        return drainRate;
+    }
+
+    /**
+     * @return number of queue orders that did not contain blocks.
+     */
+    public synchronized long getNumberOfPolls()
+    {
+        return numberOfPolls;
+    }
+
+    public synchronized long getNumberOfDataFrames()
+    {
+        return numberOfDataFrames;
+    }
+
+    public synchronized long getNumberOfQueueFull()
+    {
+        return numberOfQueueFull;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "free slots: " + freeSlots + " keep free: " + keepFreeSlots
+                + " drain rate: " + String.format("%.1f", drainRate) + " slots/s"
+                + " polls: " + numberOfPolls + " data frames: " + numberOfDataFrames
+                + " queue full: " + numberOfQueueFull;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.nomagic.printerController.Tool;
+import de.nomagic.printerController.core.movement.BasicLinearMove;
+
+/** the command blocks that wait to be send into the queue of the client.
+ *
+ * The blocks are stored back to back in a ring buffer of fixed size. Each
+ * block starts with its length byte (the number of bytes that follow), so
+ * that the blocks can be found and removed without an index.
+ * If the buffer is full offer() fails, the producer has to retry later.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class CommandBlockQueue
+{
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+    private final ByteRingBuffer blocks;
+    // view on the array of the ring buffer, moves get encoded directly into it
+    private final ByteBuffer blocksView;
+    // moves that would wrap around the end of the ring buffer get encoded here first
+    private final ByteBuffer wrapBuffer = ByteBuffer.allocate(256);
+    private int numberOfBlocks = 0;
+
+    /**
+     * @param capacity maximum number of bytes of all blocks.
+     */
+    public CommandBlockQueue(int capacity)
+    {
+        blocks = new ByteRingBuffer(capacity);
+        blocksView = ByteBuffer.wrap(blocks.getArray());
+    }
+
+    public synchronized int getNumberOfBlocks()
+    {
+        return numberOfBlocks;
+    }
+
+    public synchronized int getNumberOfBytes()
+    {
+        return blocks.size();
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return 0 == numberOfBlocks;
+    }
+
+    public synchronized boolean hasRoomFor(int length)
+    {
+        return length <= blocks.getCapacity() - blocks.size();
+    }
+
+    /** adds the block to the end of the queue.
+     *
+     * @param block length byte, block type and data.
+     * @return false if the queue is full or the block is invalid.
+     */
+    public synchronized boolean offer(final byte[] block)
+    {
+        if((null == block) || (2 > block.length) || ((0xff & block[0]) + 1 != block.length))
+        {
+            log.error("Invalid block : {} !", (null == block) ? "null" : Tool.fromByteBufferToHexString(block));
+            return false;
+        }
+        if(false == blocks.write(block, 0, block.length))
+        {
+            return false;
+        }
+        numberOfBlocks++;
+        return true;
+    }
+
+    /** adds the block that starts at offset in buf to the end of the queue.
+     *
+     * @param buf buffer that holds the block.
+     * @param offset position of the length byte of the block in buf.
+     * @return false if the queue is full or the block is invalid.
+     */
+    public synchronized boolean offer(final byte[] buf, final int offset)
+    {
+        if((null == buf) || (0 > offset) || (offset + 2 > buf.length))
+        {
+            log.error("Invalid block at offset {} !", offset);
+            return false;
+        }
+        final int length = (0xff & buf[offset]) + 1;
+        if((2 > length) || (offset + length > buf.length))
+        {
+            log.error("Invalid block length {} at offset {} !", length, offset);
+            return false;
+        }
+        if(false == blocks.write(buf, offset, length))
+        {
+            return false;
+        }
+        numberOfBlocks++;
+        return true;
+    }
+
+    /** encodes the move directly into the end of the queue.
+     *
+     * @param move the move to add.
+     * @return false if the queue is full or the move could not be encoded.
+     */
+    public synchronized boolean offerMove(final BasicLinearMove move)
+    {
+        if(null == move)
+        {
+            log.error("Invalid move : null !");
+            return false;
+        }
+        final int length = move.getEncodedLength();
+        if((2 > length) || (false == hasRoomFor(length)))
+        {
+            return false;
+        }
+        if(length <= blocks.getContiguousFreeSpace())
+        {
+            final int start = blocks.getWritePosition();
+            blocksView.limit(start + length);
+            blocksView.position(start);
+            if(false == move.encodeTo(blocksView))
+            {
+                return false;
+            }
+            blocks.commitWrite(length);
+        }
+        else
+        {
+            wrapBuffer.clear();
+            if(false == move.encodeTo(wrapBuffer))
+            {
+                return false;
+            }
+            blocks.write(wrapBuffer.array(), 0, length);
+        }
+        numberOfBlocks++;
+        return true;
+    }
+
+    /** copies blocks from the start of the queue into the frame.
+     *
+     * The blocks stay in the queue until remove() is called.
+     *
+     * @param frame the blocks are added to the parameters of this frame.
+     * @param maxBlocks add no more than this many blocks.
+     * @param maxBytes add no more than this many bytes.
+     * @return number of blocks added.
+     */
+    public synchronized int addTo(final OrderFrame frame, final int maxBlocks, final int maxBytes)
+    {
+        int numBlocks = 0;
+        int numBytes = 0;
+        while((numBlocks < maxBlocks) && (numBlocks < numberOfBlocks))
+        {
+            final int blockLength = (0xff & blocks.peek(numBytes)) + 1;
+            if(numBytes + blockLength > maxBytes)
+            {
+                break;
+            }
+            numBytes = numBytes + blockLength;
+            numBlocks++;
+        }
+        frame.put(blocks, 0, numBytes);
+        return numBlocks;
+    }
+
+    /** removes blocks from the start of the queue.
+     *
+     * @param numBlocks number of blocks to remove.
+     */
+    public synchronized void remove(int numBlocks)
+    {
+        if(numBlocks > numberOfBlocks)
+        {
+            numBlocks = numberOfBlocks;
+        }
+        for(int i = 0; i < numBlocks; i++)
+        {
+            blocks.skip((0xff & blocks.peek(0)) + 1);
+        }
+        numberOfBlocks = numberOfBlocks - numBlocks;
+    }
+
+    /**
+     * @param numBlocks number of blocks from the start of the queue.
+     * @return a copy of the blocks.
+     */
+    public synchronized byte[] getBytes(int numBlocks)
+    {
+        int numBytes = 0;
+        for(int i = 0; (i < numBlocks) && (i < numberOfBlocks); i++)
+        {
+            numBytes = numBytes + (0xff & blocks.peek(numBytes)) + 1;
+        }
+        final byte[] res = new byte[numBytes];
+        blocks.peek(0, res, 0, numBytes);
+        return res;
+    }
+
+    public synchronized void clear()
+    {
+        blocks.clear();
+        numberOfBlocks = 0;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** counts what happens on one client connection.
+ *
+ * All counters are updated without a lock, so that the send and receive
+ * threads are not slowed down. The values can be read at any time through
+ * the getters, through JMX or as a text report (toString()).
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class ConnectionMetrics implements ConnectionMetricsMBean
+{
+    public static final String JMX_DOMAIN = "de.nomagic.printerController";
+
+    private static final int NUMBER_OF_ORDER_CODES = 256;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private final AtomicLongArray framesSentByOrder = new AtomicLongArray(NUMBER_OF_ORDER_CODES);
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder crcErrors = new LongAdder();
+    private final LongAdder clientReportedCrcErrors = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final AtomicInteger clientQueueFreeSlots = new AtomicInteger(-1);
+    private final AtomicInteger clientQueueEnqueuedCommands = new AtomicInteger(-1);
+    private final LongAdder clientQueueUpdates = new LongAdder();
+    private final ReplyLatencyHistogram latencyHistogram = new ReplyLatencyHistogram();
+    private ObjectName jmxName = null;
+
+    public ConnectionMetrics()
+    {
+    }
+
+    public void frameSent(final byte order, final int numBytes)
+    {
+        framesSentByOrder.incrementAndGet(0xff & order);
+        bytesSent.add(numBytes);
+    }
+
+    public void frameRetransmitted(final int numBytes)
+    {
+        retransmissions.increment();
+        bytesSent.add(numBytes);
+    }
+
+    public void frameReceived()
+    {
+        framesReceived.increment();
+    }
+
+    public void bytesReceived(final int numBytes)
+    {
+        bytesReceived.add(numBytes);
+    }
+
+    public void timeout()
+    {
+        timeouts.increment();
+    }
+
+    /** a frame from the client had a wrong CRC. */
+    public void crcError()
+    {
+        crcErrors.increment();
+    }
+
+    /** the client received a frame with a wrong CRC. */
+    public void clientReportedCrcError()
+    {
+        clientReportedCrcErrors.increment();
+    }
+
+    public void clientQueueState(final int freeSlots, final int enqueuedCommands)
+    {
+        clientQueueFreeSlots.set(freeSlots);
+        clientQueueEnqueuedCommands.set(enqueuedCommands);
+        clientQueueUpdates.increment();
+    }
+
+    public ReplyLatencyHistogram getReplyLatencyHistogram()
+    {
+        return latencyHistogram;
+    }
+
+    public long getFramesSent(final byte order)
+    {
+        return framesSentByOrder.get(0xff & order);
+    }
+
+    @Override
+    public long getFramesSent()
+    {
+        long res = 0;
+        for(int i = 0; i < NUMBER_OF_ORDER_CODES; i++)
+        {
+            res = res + framesSentByOrder.get(i);
+        }
+        return res;
+    }
+
+    @Override
+    public long getFramesReceived()
+    {
+        return framesReceived.sum();
+    }
+
+    @Override
+    public String getFramesSentByOrder()
+    {
+        final StringBuffer sb = new StringBuffer();
+        for(int i = 0; i < NUMBER_OF_ORDER_CODES; i++)
+        {
+            final long num = framesSentByOrder.get(i);
+            if(0 < num)
+            {
+                if(0 < sb.length())
+                {
+                    sb.append(", ");
+                }
+                sb.append(Protocol.orderCodeToString((byte)i) + "=" + num);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public long getRetransmissions()
+    {
+        return retransmissions.sum();
+    }
+
+    @Override
+    public long getTimeouts()
+    {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getCrcErrors()
+    {
+        return crcErrors.sum();
+    }
+
+    @Override
+    public long getClientReportedCrcErrors()
+    {
+        return clientReportedCrcErrors.sum();
+    }
+
+    @Override
+    public long getBytesSent()
+    {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived()
+    {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getRoundTripTimeP50Us()
+    {
+        return latencyHistogram.getPercentileUs(50);
+    }
+
+    @Override
+    public long getRoundTripTimeP90Us()
+    {
+        return latencyHistogram.getPercentileUs(90);
+    }
+
+    @Override
+    public long getRoundTripTimeP99Us()
+    {
+        return latencyHistogram.getPercentileUs(99);
+    }
+
+    @Override
+    public int getClientQueueFreeSlots()
+    {
+        return clientQueueFreeSlots.get();
+    }
+
+    @Override
+    public int getClientQueueEnqueuedCommands()
+    {
+        return clientQueueEnqueuedCommands.get();
+    }
+
+    @Override
+    public long getClientQueueUpdates()
+    {
+        return clientQueueUpdates.sum();
+    }
+
+    @Override
+    public void reset()
+    {
+        for(int i = 0; i < NUMBER_OF_ORDER_CODES; i++)
+        {
+            framesSentByOrder.set(i, 0);
+        }
+        framesReceived.reset();
+        retransmissions.reset();
+        timeouts.reset();
+        crcErrors.reset();
+        clientReportedCrcErrors.reset();
+        bytesSent.reset();
+        bytesReceived.reset();
+        clientQueueUpdates.reset();
+        latencyHistogram.reset();
+    }
+
+    /** makes the counters available through JMX.
+     *
+     * @param connectionName name of the connection.
+     * @param id makes the name unique.
+     */
+    public synchronized void registerMBean(final String connectionName, final long id)
+    {
+        if(null != jmxName)
+        {
+            return;
+        }
+        try
+        {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(JMX_DOMAIN + ":type=ClientConnection,name="
+                                                   + ObjectName.quote(connectionName) + ",id=" + id);
+            server.registerMBean(this, name);
+            jmxName = name;
+        }
+        catch(JMException e)
+        {
+            log.warn("Could not register the metrics of {} in JMX : {}", connectionName, e.getMessage());
+        }
+    }
+
+    public synchronized void unregisterMBean()
+    {
+        if(null == jmxName)
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+        }
+        catch(JMException e)
+        {
+            log.warn("Could not unregister {} from JMX : {}", jmxName, e.getMessage());
+        }
+        jmxName = null;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuffer sb = new StringBuffer();
+        sb.append("frames sent: " + getFramesSent() + " (" + getFramesSentByOrder() + ")\r\n");
+        sb.append("frames received: " + getFramesReceived() + "\r\n");
+        sb.append("retransmissions: " + getRetransmissions()
+                  + " timeouts: " + getTimeouts()
+                  + " CRC errors: " + getCrcErrors()
+                  + " CRC errors reported by client: " + getClientReportedCrcErrors() + "\r\n");
+        sb.append("bytes sent: " + getBytesSent() + " bytes received: " + getBytesReceived() + "\r\n");
+        sb.append("round trip time (us): p50=" + getRoundTripTimeP50Us()
+                  + " p90=" + getRoundTripTimeP90Us()
+                  + " p99=" + getRoundTripTimeP99Us() + "\r\n");
+        sb.append("client queue: free slots=" + getClientQueueFreeSlots()
+                  + " enqueued=" + getClientQueueEnqueuedCommands()
+                  + " updates=" + getClientQueueUpdates() + "\r\n");
+        return sb.toString();
+    }
+}
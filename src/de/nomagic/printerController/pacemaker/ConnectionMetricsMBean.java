@@ -14,38 +14,27 @@
  */
 package de.nomagic.printerController.pacemaker;
 
-/** time has run out on something.
+/** the counters of one client connection as seen through JMX.
  *
  * @author Lars P&ouml;tter
  * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
- *
  */
-public class TimeoutException extends RuntimeException
+public interface ConnectionMetricsMBean
 {
-    private static final long serialVersionUID = 1L;
-
-    public TimeoutException()
-    {
-    }
-
-    public TimeoutException(String message)
-    {
-        super(message);
-    }
-
-    public TimeoutException(Throwable cause)
-    {
-        super(cause);
-    }
-
-    public TimeoutException(String message, Throwable cause)
-    {
-        super(message, cause);
-    }
-
-    public TimeoutException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace)
-    {
-        super(message, cause, enableSuppression, writableStackTrace);
-    }
-
+    long getFramesSent();
+    long getFramesReceived();
+    String getFramesSentByOrder();
+    long getRetransmissions();
+    long getTimeouts();
+    long getCrcErrors();
+    long getClientReportedCrcErrors();
+    long getBytesSent();
+    long getBytesReceived();
+    long getRoundTripTimeP50Us();
+    long getRoundTripTimeP90Us();
+    long getRoundTripTimeP99Us();
+    int getClientQueueFreeSlots();
+    int getClientQueueEnqueuedCommands();
+    long getClientQueueUpdates();
+    void reset();
 }
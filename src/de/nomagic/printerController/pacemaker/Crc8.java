@@ -0,0 +1,208 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import java.nio.ByteBuffer;
+
+/** CRC-8 (polynomial 0xA6) as used in the Pacemaker frames.
+ *
+ * The CRC can be calculated in one go (calculate()) or incrementally (update())
+ * while the bytes of a frame get written or received.
+ *
+ * Long frames (e.g. queue blocks) are calculated with slicing-by-8: As the
+ * CRC is linear the effect of the next 8 bytes can be looked up in 8 tables
+ * and combined with XOR. This removes the dependency of each step on the
+ * result of the previous step.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class Crc8
+{
+    public static final int POLYNOMIAL = 0xa6;
+    // below this length the tables of the slicing variants cost more than they save.
+    public static final int MIN_LENGTH_FOR_SLICING = 16;
+
+    private static final byte[] crc_array =
+    {
+        //       0           1           2           3           4           5           6           7           8           9           A           B           C           D           E           F
+    /* 0*/ (byte)0x00, (byte)0xa6, (byte)0xea, (byte)0x4c, (byte)0x72, (byte)0xd4, (byte)0x98, (byte)0x3e, (byte)0xe4, (byte)0x42, (byte)0x0e, (byte)0xa8, (byte)0x96, (byte)0x30, (byte)0x7c, (byte)0xda,
+    /* 1*/ (byte)0x6e, (byte)0xc8, (byte)0x84, (byte)0x22, (byte)0x1c, (byte)0xba, (byte)0xf6, (byte)0x50, (byte)0x8a, (byte)0x2c, (byte)0x60, (byte)0xc6, (byte)0xf8, (byte)0x5e, (byte)0x12, (byte)0xb4,
+    /* 2*/ (byte)0xdc, (byte)0x7a, (byte)0x36, (byte)0x90, (byte)0xae, (byte)0x08, (byte)0x44, (byte)0xe2, (byte)0x38, (byte)0x9e, (byte)0xd2, (byte)0x74, (byte)0x4a, (byte)0xec, (byte)0xa0, (byte)0x06,
+    /* 3*/ (byte)0xb2, (byte)0x14, (byte)0x58, (byte)0xfe, (byte)0xc0, (byte)0x66, (byte)0x2a, (byte)0x8c, (byte)0x56, (byte)0xf0, (byte)0xbc, (byte)0x1a, (byte)0x24, (byte)0x82, (byte)0xce, (byte)0x68,
+    /* 4*/ (byte)0x1e, (byte)0xb8, (byte)0xf4, (byte)0x52, (byte)0x6c, (byte)0xca, (byte)0x86, (byte)0x20, (byte)0xfa, (byte)0x5c, (byte)0x10, (byte)0xb6, (byte)0x88, (byte)0x2e, (byte)0x62, (byte)0xc4,
+    /* 5*/ (byte)0x70, (byte)0xd6, (byte)0x9a, (byte)0x3c, (byte)0x02, (byte)0xa4, (byte)0xe8, (byte)0x4e, (byte)0x94, (byte)0x32, (byte)0x7e, (byte)0xd8, (byte)0xe6, (byte)0x40, (byte)0x0c, (byte)0xaa,
+    /* 6*/ (byte)0xc2, (byte)0x64, (byte)0x28, (byte)0x8e, (byte)0xb0, (byte)0x16, (byte)0x5a, (byte)0xfc, (byte)0x26, (byte)0x80, (byte)0xcc, (byte)0x6a, (byte)0x54, (byte)0xf2, (byte)0xbe, (byte)0x18,
+    /* 7*/ (byte)0xac, (byte)0x0a, (byte)0x46, (byte)0xe0, (byte)0xde, (byte)0x78, (byte)0x34, (byte)0x92, (byte)0x48, (byte)0xee, (byte)0xa2, (byte)0x04, (byte)0x3a, (byte)0x9c, (byte)0xd0, (byte)0x76,
+    /* 8*/ (byte)0x3c, (byte)0x9a, (byte)0xd6, (byte)0x70, (byte)0x4e, (byte)0xe8, (byte)0xa4, (byte)0x02, (byte)0xd8, (byte)0x7e, (byte)0x32, (byte)0x94, (byte)0xaa, (byte)0x0c, (byte)0x40, (byte)0xe6,
+    /* 9*/ (byte)0x52, (byte)0xf4, (byte)0xb8, (byte)0x1e, (byte)0x20, (byte)0x86, (byte)0xca, (byte)0x6c, (byte)0xb6, (byte)0x10, (byte)0x5c, (byte)0xfa, (byte)0xc4, (byte)0x62, (byte)0x2e, (byte)0x88,
+    /* A*/ (byte)0xe0, (byte)0x46, (byte)0x0a, (byte)0xac, (byte)0x92, (byte)0x34, (byte)0x78, (byte)0xde, (byte)0x04, (byte)0xa2, (byte)0xee, (byte)0x48, (byte)0x76, (byte)0xd0, (byte)0x9c, (byte)0x3a,
+    /* B*/ (byte)0x8e, (byte)0x28, (byte)0x64, (byte)0xc2, (byte)0xfc, (byte)0x5a, (byte)0x16, (byte)0xb0, (byte)0x6a, (byte)0xcc, (byte)0x80, (byte)0x26, (byte)0x18, (byte)0xbe, (byte)0xf2, (byte)0x54,
+    /* C*/ (byte)0x22, (byte)0x84, (byte)0xc8, (byte)0x6e, (byte)0x50, (byte)0xf6, (byte)0xba, (byte)0x1c, (byte)0xc6, (byte)0x60, (byte)0x2c, (byte)0x8a, (byte)0xb4, (byte)0x12, (byte)0x5e, (byte)0xf8,
+    /* D*/ (byte)0x4c, (byte)0xea, (byte)0xa6, (byte)0x00, (byte)0x3e, (byte)0x98, (byte)0xd4, (byte)0x72, (byte)0xa8, (byte)0x0e, (byte)0x42, (byte)0xe4, (byte)0xda, (byte)0x7c, (byte)0x30, (byte)0x96,
+    /* E*/ (byte)0xfe, (byte)0x58, (byte)0x14, (byte)0xb2, (byte)0x8c, (byte)0x2a, (byte)0x66, (byte)0xc0, (byte)0x1a, (byte)0xbc, (byte)0xf0, (byte)0x56, (byte)0x68, (byte)0xce, (byte)0x82, (byte)0x24,
+    /* F*/ (byte)0x90, (byte)0x36, (byte)0x7a, (byte)0xdc, (byte)0xe2, (byte)0x44, (byte)0x08, (byte)0xae, (byte)0x74, (byte)0xd2, (byte)0x9e, (byte)0x38, (byte)0x06, (byte)0xa0, (byte)0xec, (byte)0x4a
+    };
+
+    // slice[n][x] = CRC of x followed by n zero bytes.
+    private static final byte[][] slice = createSlicingTables(8);
+
+    private byte crc = 0;
+
+    public Crc8()
+    {
+    }
+
+    private static byte[][] createSlicingTables(int numTables)
+    {
+        final byte[][] res = new byte[numTables][256];
+        for(int i = 0; i < 256; i++)
+        {
+            res[0][i] = crc_array[i];
+        }
+        for(int n = 1; n < numTables; n++)
+        {
+            for(int i = 0; i < 256; i++)
+            {
+                res[n][i] = crc_array[0xff & res[n - 1][i]];
+            }
+        }
+        return res;
+    }
+
+    public void reset()
+    {
+        crc = 0;
+    }
+
+    public byte getValue()
+    {
+        return crc;
+    }
+
+    public void update(final byte b)
+    {
+        crc = crc_array[0xff & (b ^ crc)];
+    }
+
+    public void update(final byte[] buf, final int offset, final int length)
+    {
+        if(MIN_LENGTH_FOR_SLICING > length)
+        {
+            crc = updateByteWise(crc, buf, offset, length);
+        }
+        else
+        {
+            crc = updateSliceBy8(crc, buf, offset, length);
+        }
+    }
+
+    /** adds the bytes from position to limit to the CRC.
+     *
+     * @param buf the position will be at the limit afterwards.
+     */
+    public void update(final ByteBuffer buf)
+    {
+        final int length = buf.remaining();
+        if(true == buf.hasArray())
+        {
+            update(buf.array(), buf.arrayOffset() + buf.position(), length);
+            buf.position(buf.limit());
+        }
+        else
+        {
+            byte c = crc;
+            for(int i = 0; i < length; i++)
+            {
+                c = crc_array[0xff & (buf.get() ^ c)];
+            }
+            crc = c;
+        }
+    }
+
+    /**
+     * @param buf the data.
+     * @param offset first byte to include in the CRC.
+     * @param length number of bytes.
+     * @return the CRC of the bytes.
+     */
+    public static byte calculate(final byte[] buf, final int offset, final int length)
+    {
+        if(MIN_LENGTH_FOR_SLICING > length)
+        {
+            return updateByteWise((byte)0, buf, offset, length);
+        }
+        else
+        {
+            return updateSliceBy8((byte)0, buf, offset, length);
+        }
+    }
+
+    public static byte updateByteWise(byte crc, final byte[] buf, final int offset, final int length)
+    {
+        final int end = offset + length;
+        for(int pos = offset; pos < end; pos++)
+        {
+            crc = crc_array[0xff & (buf[pos] ^ crc)];
+        }
+        return crc;
+    }
+
+    public static byte updateSliceBy4(byte crc, final byte[] buf, final int offset, final int length)
+    {
+        final byte[] t0 = slice[0];
+        final byte[] t1 = slice[1];
+        final byte[] t2 = slice[2];
+        final byte[] t3 = slice[3];
+        int pos = offset;
+        final int end = offset + length;
+        while(pos + 4 <= end)
+        {
+            crc = (byte)(  t3[0xff & (buf[pos] ^ crc)]
+                         ^ t2[0xff & buf[pos + 1]]
+                         ^ t1[0xff & buf[pos + 2]]
+                         ^ t0[0xff & buf[pos + 3]]);
+            pos = pos + 4;
+        }
+        return updateByteWise(crc, buf, pos, end - pos);
+    }
+
+    public static byte updateSliceBy8(byte crc, final byte[] buf, final int offset, final int length)
+    {
+        final byte[] t0 = slice[0];
+        final byte[] t1 = slice[1];
+        final byte[] t2 = slice[2];
+        final byte[] t3 = slice[3];
+        final byte[] t4 = slice[4];
+        final byte[] t5 = slice[5];
+        final byte[] t6 = slice[6];
+        final byte[] t7 = slice[7];
+        int pos = offset;
+        final int end = offset + length;
+        while(pos + 8 <= end)
+        {
+            crc = (byte)(  t7[0xff & (buf[pos] ^ crc)]
+                         ^ t6[0xff & buf[pos + 1]]
+                         ^ t5[0xff & buf[pos + 2]]
+                         ^ t4[0xff & buf[pos + 3]]
+                         ^ t3[0xff & buf[pos + 4]]
+                         ^ t2[0xff & buf[pos + 5]]
+                         ^ t1[0xff & buf[pos + 6]]
+                         ^ t0[0xff & buf[pos + 7]]);
+            pos = pos + 8;
+        }
+        return updateByteWise(crc, buf, pos, end - pos);
+    }
+}
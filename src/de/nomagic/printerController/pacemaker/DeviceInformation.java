@@ -28,6 +28,7 @@ public class DeviceInformation
     private boolean hasExtensionQueuedCommand= false;
     private boolean hasExtensionBasicMove = false;
     private boolean hasExtensionEventReporting = false;
+    private boolean hasExtensionWindowedTransmission = false;
 
     private int FirmwareType = -1;
     private int FirmwareRevisionMajor = -1;
@@ -101,6 +102,10 @@ public class DeviceInformation
         {
             res = res + "Event_Reporting ";
         }
+        if(true == hasExtensionWindowedTransmission)
+        {
+            res = res + "Windowed_Transmission ";
+        }
         res = res + "\n" +
         "Firmware Type = " + FirmwareType + "\n" +
         "Firmware Revision = " + FirmwareRevisionMajor + "." + FirmwareRevisionMinor + "\n" +
@@ -214,6 +219,10 @@ public class DeviceInformation
                 hasExtensionEventReporting = true;
                 break;
 
+            case Protocol.INFO_PROTOCOL_EXTENSION_WINDOWED_TRANSMISSION:
+                hasExtensionWindowedTransmission = true;
+                break;
+
             default:
                 log.error("Client supports unknown Extension of Type {} !", ExtensionType);
                 break;
@@ -634,6 +643,11 @@ public class DeviceInformation
         return hasExtensionQueuedCommand;
     }
 
+    public boolean hasExtensionWindowedTransmission()
+    {
+        return hasExtensionWindowedTransmission;
+    }
+
     public int getFirmwareRevisionMajor()
     {
         return FirmwareRevisionMajor;
@@ -0,0 +1,286 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+/** an order frame that gets send to the client.
+ *
+ * The parameters are written directly into the frame buffer. The frames
+ * are taken from a pool (ClientConnection.startOrder()) and go back into
+ * the pool after the reply has been received (ClientConnection.sendOrder()
+ * or ClientConnection.sendOrderAsync()).
+ * So sending an order does not need to allocate memory.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class OrderFrame
+{
+    // Length is only one byte and also includes Control and Order
+    public static final int MAX_PARAMETER_LENGTH = 255 - 2;
+    public static final int MAX_FRAME_LENGTH = MAX_PARAMETER_LENGTH
+                                               + ClientConnectionBase.ORDER_PACKET_ENVELOPE_NUM_BYTES;
+    // late replies (retransmissions) might arrive for a frame.
+    private static final int REPLY_QUEUE_LENGTH = 4;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(MAX_FRAME_LENGTH);
+    private final BlockingQueue<Reply> receiveQueue = new ArrayBlockingQueue<Reply>(REPLY_QUEUE_LENGTH);
+    private CompletableFuture<Reply> future = null;
+    private OrderPriority_enum priority = OrderPriority_enum.Control;
+    private boolean isFinished = false;
+    private int sequenceNumber = 0;
+    private int numberOfTransmissions = 0;
+    // not reset by a timeout
+    private int totalNumberOfTransmissions = 0;
+    private int numberOfTimeouts = 0;
+    private boolean hasTimedOut = false;
+    private long timeOfFirstTransmission = 0;
+    private long timeOfLastTransmission = 0;
+
+    public OrderFrame()
+    {
+    }
+
+    /** starts a new frame. All data of the previous frame gets lost.
+     *
+     * @param order The Order byte.
+     */
+    public void start(final byte order)
+    {
+        buffer.clear();
+        buffer.put(Protocol.ORDER_POS_OF_ORDER_CODE, order);
+        buffer.position(Protocol.ORDER_POS_OF_START_OF_PARAMETER);
+        receiveQueue.clear();
+        future = null;
+        priority = OrderPriority_enum.getDefaultFor(order);
+        isFinished = false;
+        sequenceNumber = 0;
+        numberOfTransmissions = 0;
+        totalNumberOfTransmissions = 0;
+        numberOfTimeouts = 0;
+        hasTimedOut = false;
+        timeOfFirstTransmission = 0;
+        timeOfLastTransmission = 0;
+    }
+
+    public OrderFrame putByte(final int value)
+    {
+        buffer.put((byte)(0xff & value));
+        return this;
+    }
+
+    /** adds a 16 bit value (most significant byte first). */
+    public OrderFrame putShort(final int value)
+    {
+        buffer.put((byte)(0xff & (value >> 8)));
+        buffer.put((byte)(0xff & value));
+        return this;
+    }
+
+    public OrderFrame put(final byte[] parameter, final int offset, final int length)
+    {
+        buffer.put(parameter, offset, length);
+        return this;
+    }
+
+    /** copies bytes out of the ring buffer, without removing them from the ring buffer.
+     *
+     * @param index 0 = the oldest byte in the ring buffer.
+     */
+    public OrderFrame put(final ByteRingBuffer ring, final int index, final int length)
+    {
+        if(length > buffer.remaining())
+        {
+            throw new BufferOverflowException();
+        }
+        final int numCopied = ring.peek(index, buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+        buffer.position(buffer.position() + numCopied);
+        return this;
+    }
+
+    public OrderFrame put(final int[] parameter, final int offset, final int length)
+    {
+        for(int i = 0; i < length; i++)
+        {
+            buffer.put((byte)(0xff & parameter[offset + i]));
+        }
+        return this;
+    }
+
+    public OrderFrame put(final Integer[] parameter, final int offset, final int length)
+    {
+        for(int i = 0; i < length; i++)
+        {
+            buffer.put((byte)(0xff & parameter[offset + i]));
+        }
+        return this;
+    }
+
+    public int getParameterLength()
+    {
+        if(true == isFinished)
+        {
+            return buffer.limit() - ClientConnectionBase.ORDER_PACKET_ENVELOPE_NUM_BYTES;
+        }
+        return buffer.position() - Protocol.ORDER_POS_OF_START_OF_PARAMETER;
+    }
+
+    public int getFreeParameterSpace()
+    {
+        return MAX_PARAMETER_LENGTH - getParameterLength();
+    }
+
+    public OrderPriority_enum getPriority()
+    {
+        return priority;
+    }
+
+    /** changes the lane that the order waits in until it can be send.
+     *  The default depends on the order code.
+     */
+    public void setPriority(OrderPriority_enum priority)
+    {
+        this.priority = priority;
+    }
+
+    public byte getOrder()
+    {
+        return buffer.get(Protocol.ORDER_POS_OF_ORDER_CODE);
+    }
+
+    /** adds the envelope (sync, length, control and CRC) to the frame.
+     *
+     * @param control sequence number and flags.
+     */
+    void finish(final byte control)
+    {
+        final int length = buffer.position() - Protocol.ORDER_POS_OF_START_OF_PARAMETER;
+        final byte[] buf = buffer.array();
+        buf[Protocol.ORDER_POS_OF_SYNC] = Protocol.START_OF_HOST_FRAME;
+        buf[Protocol.ORDER_POS_OF_LENGTH] = (byte)(length + 2); // length also includes Control and Order
+        buf[Protocol.ORDER_POS_OF_CONTROL] = control;
+        // Sync is not included in CRC
+        buffer.put(Crc8.calculate(buf, 1, Protocol.ORDER_POS_OF_START_OF_PARAMETER -1 + length));
+        buffer.flip();
+        isFinished = true;
+        sequenceNumber = control & Protocol.SEQUENCE_NUMBER_MASK;
+    }
+
+    /**
+     * @return the finished frame from position 0 to limit.
+     */
+    ByteBuffer getBuffer()
+    {
+        buffer.position(0);
+        return buffer;
+    }
+
+    /**
+     * @return a copy of the finished frame.
+     */
+    public byte[] toArray()
+    {
+        final byte[] res = new byte[buffer.limit()];
+        System.arraycopy(buffer.array(), 0, res, 0, res.length);
+        return res;
+    }
+
+    int getSequenceNumber()
+    {
+        return sequenceNumber;
+    }
+
+    CompletableFuture<Reply> getFuture()
+    {
+        return future;
+    }
+
+    void setFuture(CompletableFuture<Reply> future)
+    {
+        this.future = future;
+    }
+
+    BlockingQueue<Reply> getReceiveQueue()
+    {
+        return receiveQueue;
+    }
+
+    int getNumberOfTransmissions()
+    {
+        return numberOfTransmissions;
+    }
+
+    /**
+     * @return number of transmissions including the ones before a timeout.
+     */
+    int getTotalNumberOfTransmissions()
+    {
+        return totalNumberOfTransmissions;
+    }
+
+    void transmitted()
+    {
+        timeOfLastTransmission = System.nanoTime();
+        if(0 == timeOfFirstTransmission)
+        {
+            timeOfFirstTransmission = timeOfLastTransmission;
+        }
+        numberOfTransmissions++;
+        totalNumberOfTransmissions++;
+    }
+
+    /**
+     * @return System.nanoTime() of the first transmission.
+     */
+    long getTimeOfFirstTransmission()
+    {
+        return timeOfFirstTransmission;
+    }
+
+    /**
+     * @return System.nanoTime() of the latest transmission.
+     */
+    long getTimeOfLastTransmission()
+    {
+        return timeOfLastTransmission;
+    }
+
+    int getNumberOfTimeouts()
+    {
+        return numberOfTimeouts;
+    }
+
+    /** a timeout happened. The number of transmissions starts again. */
+    void timedOut()
+    {
+        numberOfTransmissions = 0;
+        numberOfTimeouts++;
+    }
+
+    boolean hasTimedOut()
+    {
+        return hasTimedOut;
+    }
+
+    void setTimedOut(boolean timedOut)
+    {
+        hasTimedOut = timedOut;
+    }
+}
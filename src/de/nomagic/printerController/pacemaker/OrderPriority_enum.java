@@ -0,0 +1,47 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+/** the lanes in which the orders wait to be send to the client.
+ *
+ * The sender always takes the next order from the most important lane.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public enum OrderPriority_enum
+{
+    // stop orders and the keep alive signal. One slot of the transmission window is kept free for these.
+    Safety,
+    // all orders that a user or the executor waits for (temperatures, fans, configuration,..)
+    Control,
+    // the transfer of blocks into the client queue
+    Bulk;
+
+    /**
+     * @param order the order code.
+     * @return the lane that an order of this type uses if nothing else is specified.
+     */
+    public static OrderPriority_enum getDefaultFor(final byte order)
+    {
+        switch(order)
+        {
+        case Protocol.ORDER_STOP_PRINT:           return Safety;
+        case Protocol.ORDER_QUEUE_COMMAND_BLOCKS: return Bulk;
+        default:                                  return Control;
+        }
+    }
+}
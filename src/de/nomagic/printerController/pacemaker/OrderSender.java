@@ -0,0 +1,481 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.nomagic.printerController.Tool;
+
+/** the thread that owns the sending side of a client connection.
+ *
+ * Orders are handed over as OrderFrames and the sender returns a future
+ * that completes when the reply has been received (or the frame has finally
+ * failed). The sender assigns the sequence numbers, keeps the frames within
+ * the transmission window, detects timeouts and does all retransmissions.
+ * The receive thread only hands the received replies to the sender.
+ *
+ * So the threads that send orders never wait for each other and a
+ * slow reply to one order does not block the other orders.
+ *
+ * Orders wait in lanes (OrderPriority_enum). A new frame is always taken
+ * from the most important lane, so a stop order overtakes all waiting
+ * queue blocks. If more than one frame may be in flight then one slot of
+ * the window is reserved for the safety lane, so that a stop order never
+ * has to wait for a reply to another order.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+class OrderSender extends Thread
+{
+    // number of unused order frames kept for the next orders
+    public static final int FRAME_POOL_SIZE = 2 * Protocol.MAX_FRAMES_IN_FLIGHT;
+
+    private static final Logger log = LoggerFactory.getLogger("OrderSender");
+
+    private final ClientConnectionBase connection;
+    // protects all the state below. Everybody that changes something notifies the sender.
+    private final Object lock = new Object();
+    // the frames waiting for a reply, indexed by sequence number
+    private final OrderFrame[] framesInFlight = new OrderFrame[Protocol.MAX_SEQUENCE_NUMBER + 1];
+    private int numberOfFramesInFlight = 0;
+    private int maxFramesInFlight = 1;
+    // frames waiting to be send, one lane per priority
+    private final ArrayDeque<OrderFrame>[] lanes;
+    private final ArrayDeque<OrderFrame> freeFrames = new ArrayDeque<OrderFrame>(FRAME_POOL_SIZE);
+    private byte sequenceNumber = 0;
+    private boolean isFirstOrder = true;
+    private final ConnectionMetrics metrics;
+    private final ReplyLatencyHistogram latencyHistogram;
+
+    public OrderSender(ClientConnectionBase connection, ConnectionMetrics metrics, String TaskName)
+    {
+        super(TaskName);
+        this.connection = connection;
+        this.metrics = metrics;
+        latencyHistogram = metrics.getReplyLatencyHistogram();
+        lanes = createLanes();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<OrderFrame>[] createLanes()
+    {
+        final ArrayDeque<OrderFrame>[] res = new ArrayDeque[OrderPriority_enum.values().length];
+        for(int i = 0; i < res.length; i++)
+        {
+            res[i] = new ArrayDeque<OrderFrame>();
+        }
+        return res;
+    }
+
+    /**
+     * @param onlySafety true = only look into the safety lane.
+     * @return the next frame to send or null if no frame may be send now.
+     */
+    private OrderFrame getNextFrameToSend(boolean onlySafety)
+    {
+        // All frames in flight need to be within the window behind the newest frame.
+        // Otherwise the client can not tell a new frame from a retransmission.
+        if(   (numberOfFramesInFlight >= maxFramesInFlight)
+           || (null != framesInFlight[(sequenceNumber + 1 - maxFramesInFlight) & Protocol.SEQUENCE_NUMBER_MASK]) )
+        {
+            return null;
+        }
+        final int numLanes = (true == onlySafety) ? OrderPriority_enum.Safety.ordinal() + 1 : lanes.length;
+        for(int i = 0; i < numLanes; i++)
+        {
+            if(false == lanes[i].isEmpty())
+            {
+                if(   (OrderPriority_enum.Safety.ordinal() != i)
+                   && (1 < maxFramesInFlight)
+                   && (numberOfFramesInFlight >= maxFramesInFlight - 1) )
+                {
+                    // the last slot is reserved for the safety lane
+                    return null;
+                }
+                return lanes[i].poll();
+            }
+        }
+        return null;
+    }
+
+    public OrderFrame getFreeFrame()
+    {
+        OrderFrame frame;
+        synchronized(freeFrames)
+        {
+            frame = freeFrames.poll();
+        }
+        if(null == frame)
+        {
+            // more orders are on their way than the pool has frames.
+            frame = new OrderFrame();
+        }
+        return frame;
+    }
+
+    void releaseFrame(OrderFrame frame)
+    {
+        synchronized(freeFrames)
+        {
+            if(FRAME_POOL_SIZE > freeFrames.size())
+            {
+                freeFrames.push(frame);
+            }
+        }
+    }
+
+    /** queues the frame for sending.
+     *
+     * @param frame the frame will be returned to the pool when the reply has arrived.
+     * @return completes with the Reply, or null if the frame could not be send.
+     */
+    public CompletableFuture<Reply> send(OrderFrame frame)
+    {
+        final CompletableFuture<Reply> future = new CompletableFuture<Reply>();
+        frame.setFuture(future);
+        synchronized(lock)
+        {
+            if(false == isAlive())
+            {
+                future.complete(null);
+                releaseFrame(frame);
+                return future;
+            }
+            lanes[frame.getPriority().ordinal()].add(frame);
+            lock.notifyAll();
+        }
+        return future;
+    }
+
+    public void setMaxFramesInFlight(int numberOfFrames)
+    {
+        synchronized(lock)
+        {
+            maxFramesInFlight = numberOfFrames;
+            lock.notifyAll();
+        }
+    }
+
+    public ReplyLatencyHistogram getReplyLatencyHistogram()
+    {
+        return latencyHistogram;
+    }
+
+    /** the communication has been disturbed. */
+    public void communicationError()
+    {
+        synchronized(lock)
+        {
+            if(1 == maxFramesInFlight)
+            {
+                // In windowed mode other frames are still in flight,
+                // so a reset of the communication would loose their replies.
+                isFirstOrder = true;
+            }
+        }
+    }
+
+    /**
+     * @return the sequence number of the newest frame.
+     */
+    public int getSequenceNumber()
+    {
+        synchronized(lock)
+        {
+            return sequenceNumber;
+        }
+    }
+
+    /** hands the reply to the frame with the sequence number.
+     *
+     * @return false if no frame with that sequence number waits for a reply.
+     */
+    public boolean replyReceived(int seqNum, Reply r)
+    {
+        synchronized(lock)
+        {
+            final OrderFrame frame = framesInFlight[seqNum & Protocol.SEQUENCE_NUMBER_MASK];
+            if(null == frame)
+            {
+                return false;
+            }
+            deliverReply(frame, r);
+            return true;
+        }
+    }
+
+    /** hands the reply to the frame in flight, if there is only one frame in flight.
+     *
+     * If only one frame is in flight then a broken reply can only belong to that frame.
+     * Otherwise the frames will time out and be retransmitted.
+     */
+    public void replyToOnlyFrameReceived(Reply r)
+    {
+        synchronized(lock)
+        {
+            if(1 != numberOfFramesInFlight)
+            {
+                return;
+            }
+            for(int i = 0; i < framesInFlight.length; i++)
+            {
+                if(null != framesInFlight[i])
+                {
+                    deliverReply(framesInFlight[i], r);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void deliverReply(OrderFrame frame, Reply r)
+    {
+        if(false == frame.getReceiveQueue().offer(r))
+        {
+            log.warn("Dropped a Reply to a frame that already has enough replies !");
+        }
+        lock.notifyAll();
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while(false == isInterrupted())
+            {
+                OrderFrame frame = null;
+                Reply r = null;
+                boolean isNewFrame = false;
+                synchronized(lock)
+                {
+                    // 1. stop orders go out before anything else
+                    frame = getNextFrameToSend(true);
+                    // 2. replies and timeouts of the frames in flight
+                    final long now = System.nanoTime();
+                    long nextTimeout = Long.MAX_VALUE;
+                    for(int i = 0; (i < framesInFlight.length) && (null == frame); i++)
+                    {
+                        final OrderFrame cur = framesInFlight[i];
+                        if(null == cur)
+                        {
+                            continue;
+                        }
+                        r = cur.getReceiveQueue().poll();
+                        if(null != r)
+                        {
+                            latencyHistogram.addMeasurement(cur.getOrder(),
+                                                            now - cur.getTimeOfFirstTransmission());
+                            frame = cur;
+                            break;
+                        }
+                        final long timeout = cur.getTimeOfLastTransmission()
+                                             + TimeUnit.MILLISECONDS.toNanos(ClientConnectionBase.MAX_MS_UNTIL_REPLY_ARRIVES);
+                        if(timeout - now <= 0)
+                        {
+                            log.error("Timeout !");
+                            metrics.timeout();
+                            if(1 == maxFramesInFlight)
+                            {
+                                isFirstOrder = true;
+                            }
+                            cur.setTimedOut(true);
+                            r = new Reply(null);
+                            frame = cur;
+                            break;
+                        }
+                        if(timeout - now < nextTimeout - now)
+                        {
+                            nextTimeout = timeout;
+                        }
+                    }
+                    // 3. start a new frame, if the window allows it.
+                    if(null == frame)
+                    {
+                        frame = getNextFrameToSend(false);
+                    }
+                    if((null != frame) && (null == r))
+                    {
+                        frame.finish(getNextControl());
+                        framesInFlight[frame.getSequenceNumber()] = frame;
+                        numberOfFramesInFlight++;
+                        isNewFrame = true;
+                    }
+                    // 4. nothing to do -> wait
+                    if(null == frame)
+                    {
+                        if(Long.MAX_VALUE == nextTimeout)
+                        {
+                            lock.wait();
+                        }
+                        else
+                        {
+                            final long waitNs = nextTimeout - now;
+                            lock.wait(TimeUnit.NANOSECONDS.toMillis(waitNs), (int)(waitNs % 1000000));
+                        }
+                        continue;
+                    }
+                }
+                // sending and completing the future is done without holding the lock.
+                if(true == isNewFrame)
+                {
+                    if(false == writeFrame(frame))
+                    {
+                        finishFrame(frame, null);
+                    }
+                }
+                else
+                {
+                    handleReply(frame, r);
+                }
+            }
+        }
+        catch(InterruptedException e)
+        {
+            log.info("Has been Interrupted !");
+        }
+        // nobody will send the remaining frames
+        synchronized(lock)
+        {
+            for(int i = 0; i < framesInFlight.length; i++)
+            {
+                if(null != framesInFlight[i])
+                {
+                    lanes[framesInFlight[i].getPriority().ordinal()].add(framesInFlight[i]);
+                    framesInFlight[i] = null;
+                }
+            }
+            numberOfFramesInFlight = 0;
+        }
+        for(;;)
+        {
+            OrderFrame frame = null;
+            synchronized(lock)
+            {
+                for(int i = 0; (i < lanes.length) && (null == frame); i++)
+                {
+                    frame = lanes[i].poll();
+                }
+            }
+            if(null == frame)
+            {
+                break;
+            }
+            completeFrame(frame, null);
+        }
+        log.info("Send Thread stopped !");
+    }
+
+    private void handleReply(OrderFrame frame, Reply r)
+    {
+        ClientConnectionBase.logReply(r);
+        final boolean needsToRetransmitt = ClientConnectionBase.retransmissionNeeded(r, frame);
+        if((true == needsToRetransmitt) && (frame.getNumberOfTransmissions() < ClientConnectionBase.MAX_TRANSMISSIONS))
+        {
+            if(false == writeFrame(frame))
+            {
+                finishFrame(frame, null);
+            }
+        }
+        else
+        {
+            finishFrame(frame, r);
+        }
+    }
+
+    /**
+     * @return the control byte for the next new frame.
+     */
+    private byte getNextControl()
+    {
+        sequenceNumber ++;
+        if(sequenceNumber > Protocol.MAX_SEQUENCE_NUMBER)
+        {
+            sequenceNumber = 0;
+        }
+        // else retransmission due to communications error
+        if(false == isFirstOrder)
+        {
+            return sequenceNumber;
+        }
+        else
+        {
+            // signal the client that host has reset so hat the client flushes all cached responses
+            isFirstOrder = false;
+            return (byte)(Protocol.RESET_COMMUNICATION_SYNC_MASK | sequenceNumber);
+        }
+    }
+
+    private boolean writeFrame(OrderFrame frame)
+    {
+        try
+        {
+            if(true == log.isTraceEnabled() )
+            {
+                final byte[] buf = frame.toArray();
+                log.trace("Sending " + Protocol.parse(buf) + " : " + Tool.fromByteBufferToHexString(buf) );
+            }
+            final ByteBuffer buf = frame.getBuffer();
+            if(0 == frame.getTotalNumberOfTransmissions())
+            {
+                metrics.frameSent(frame.getOrder(), buf.remaining());
+            }
+            else
+            {
+                metrics.frameRetransmitted(buf.remaining());
+            }
+            // set the time before the write, as the reply might be faster than the return from write.
+            frame.transmitted();
+            connection.writeBytes(buf);
+            return true;
+        }
+        catch (final IOException e)
+        {
+            e.printStackTrace();
+            log.error("Failed to send Request - IOException !");
+            return false;
+        }
+    }
+
+    /** the frame has its final result. */
+    private void finishFrame(OrderFrame frame, Reply r)
+    {
+        synchronized(lock)
+        {
+            if(frame == framesInFlight[frame.getSequenceNumber()])
+            {
+                framesInFlight[frame.getSequenceNumber()] = null;
+                numberOfFramesInFlight--;
+            }
+        }
+        completeFrame(frame, r);
+    }
+
+    private void completeFrame(OrderFrame frame, Reply r)
+    {
+        final CompletableFuture<Reply> future = frame.getFuture();
+        // the frame is no longer used, so it can be reused by the next order.
+        releaseFrame(frame);
+        future.complete(r);
+    }
+}
@@ -16,8 +16,11 @@ package de.nomagic.printerController.pacemaker;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,6 +61,11 @@ public class Protocol implements EventSource
     public static final int MAX_SEQUENCE_NUMBER = 15;
     public static final int SEQUENCE_NUMBER_MASK = 0x0f;
     public static final int RESET_COMMUNICATION_SYNC_MASK = 0x10;
+    // maximum number of order frames that may wait for a reply at the same time,
+    // if the client supports the windowed transmission extension.
+    // Must be at most half the sequence number range, so that the client can tell
+    // a new frame from a retransmitted one.
+    public static final int MAX_FRAMES_IN_FLIGHT = 8;
 
     // Magic Number from Protocol Definition:
 // Host
@@ -107,6 +115,7 @@ public class Protocol implements EventSource
     public static final int INFO_PROTOCOL_EXTENSION_QUEUED_COMMAND = 1;
     public static final int INFO_PROTOCOL_EXTENSION_BASIC_MOVE = 2;
     public static final int INFO_PROTOCOL_EXTENSION_EVENT_REPORTING = 3;
+    public static final int INFO_PROTOCOL_EXTENSION_WINDOWED_TRANSMISSION = 4;
 
     public static final int INFO_FIRMWARE_TYPE = 7;
     public static final int INFO_FIRMWARE_REVISION_MAJOR = 8;
@@ -215,13 +224,12 @@ public class Protocol implements EventSource
     public static final double TEMPERATURE_ERROR_REPLY_WITHOUT_DATA  = -1000.4;
 
     private static final int QUEUE_SEND_BUFFER_SIZE = 200;
+    // maximum number of bytes of the blocks that wait in the host to be send to the client
+    private static final int QUEUE_HOST_BUFFER_SIZE = 16 * 1024;
 
     // The client switches on the power after a resume command. Give the client this time for the powered on components to boot.
     private static final int CLIENT_POWER_UP_DELAY_MS = 50;
 
-    // the client needs at lest this(in milliseconds) time to free up one slot in the Queue
-    private final long QUEUE_POLL_DELAY = 100;
-
     private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
     private static final Logger Log = LoggerFactory.getLogger("static:Protocol");
     private final ClientConnection cc;
@@ -232,14 +240,17 @@ public class Protocol implements EventSource
 
     private DeviceInformation di = null;
 
-    private final Vector<byte[]> sendQueue = new Vector<byte[]>();
+    private final CommandBlockQueue sendQueue = new CommandBlockQueue(QUEUE_HOST_BUFFER_SIZE);
+    // moves may be send from a different thread than the other queued commands
+    private final Object sendQueueLock = new Object();
     private volatile int ClientQueueFreeSlots = 6;
-    private volatile int ClientQueueKeepFreeSlots = 5;
+    private final ClientQueueFlowControl flowControl = new ClientQueueFlowControl();
     private volatile int ClientQueueNumberOfEnqueuedCommands = 0;
     private volatile int ClientExecutedJobs = 0;
     private volatile int CommandsSendToClient = 0;
     private volatile long timeofLastClientQueueUpdate;
     private volatile int hostTimeout = 2;
+    private final Reference keepAliveReference = new Reference("Host Timeout Poll");
     private final TimeoutHandler timeout;
     private int timeoutId;
 
@@ -280,6 +291,19 @@ public class Protocol implements EventSource
         }
     }
 
+    /** a protocol that is not connected to a client.
+     *
+     * Used by subclasses that record the orders instead of sending them, like
+     * the recorder of the G-Code compiler. No keep alive gets send. The subclass
+     * has to override all orders that get used, as there is no client to send them to.
+     */
+    protected Protocol()
+    {
+        cc = null;
+        isOperational = false;
+        timeout = null;
+    }
+
     @Override
     public void reportEventStatus(ActionResponse response, Reference Ref)
     {
@@ -579,7 +603,7 @@ public class Protocol implements EventSource
         return res.toString();
     }
 
-    private static String parseBasicLinearMove(byte[] data, int length, int offset)
+    static String parseBasicLinearMove(byte[] data, int length, int offset)
     {
         final StringBuffer res = new StringBuffer();
         res.append("[");
@@ -601,7 +625,7 @@ public class Protocol implements EventSource
         }
         else
         {
-            AxisSelection = (0x7f & data[offset])<<8 + (0xff & data[offset + 1]);
+            AxisSelection = ((0x7f & data[offset])<<8) + (0xff & data[offset + 1]);
             nextByte = offset + 2;
         }
         boolean twoByteStepCount;
@@ -621,7 +645,7 @@ public class Protocol implements EventSource
         }
         else
         {
-            AxisDirection = (0x7f & data[nextByte])<<8 + (0xff & data[nextByte + 1]);
+            AxisDirection = ((0x7f & data[nextByte])<<8) + (0xff & data[nextByte + 1]);
             nextByte = nextByte + 2;
         }
         res.append("AxisDirections=" + AxisDirection);
@@ -838,6 +862,11 @@ public class Protocol implements EventSource
         return lastErrorReason;
     }
 
+    public ConnectionMetrics getConnectionMetrics()
+    {
+        return cc.getMetrics();
+    }
+
     @Override
     public String toString()
     {
@@ -944,6 +973,16 @@ public class Protocol implements EventSource
             {
                 di = paceMaker;
                 hostTimeout = di.getHostTimeoutSeconds();
+                if(true == di.hasExtensionWindowedTransmission())
+                {
+                    log.info("Client supports windowed transmission.");
+                    cc.setMaxFramesInFlight(MAX_FRAMES_IN_FLIGHT);
+                }
+                else
+                {
+                    // stop and wait
+                    cc.setMaxFramesInFlight(1);
+                }
                 return paceMaker;
             }
             else
@@ -962,17 +1001,29 @@ public class Protocol implements EventSource
 
     public int getSwitchState(final int num, Reference ref)
     {
-        final byte[] param = new byte[2];
-        param[0] = DEVICE_TYPE_INPUT;
-        param[1] = (byte) num;
-        final int reply = sendOrderExpectUnsignedByte(Protocol.ORDER_REQ_INPUT, param, ref);
-        switch(reply)
+        return getSwitchStateAsync(num, ref).join();
+    }
+
+    public CompletableFuture<Integer> getSwitchStateAsync(final int num, final Reference ref)
+    {
+        final OrderFrame frame = cc.startOrder(ORDER_REQ_INPUT);
+        frame.putByte(DEVICE_TYPE_INPUT);
+        frame.putByte(num);
+        return cc.sendOrderAsync(frame).thenApply(new Function<Reply, Integer>()
         {
-        case INPUT_HIGH: return Executor.SWITCH_STATE_CLOSED;
-        case INPUT_LOW:  return Executor.SWITCH_STATE_OPEN;
-        default :        log.error("({}):Get Switch State returned {} !", ref, reply);
-                         return Executor.SWITCH_STATE_NOT_AVAILABLE;
-        }
+            @Override
+            public Integer apply(Reply r)
+            {
+                final int reply = getUnsignedByteFromReply(r, ref);
+                switch(reply)
+                {
+                case INPUT_HIGH: return Executor.SWITCH_STATE_CLOSED;
+                case INPUT_LOW:  return Executor.SWITCH_STATE_OPEN;
+                default :        log.error("({}):Get Switch State returned {} !", ref, reply);
+                                 return Executor.SWITCH_STATE_NOT_AVAILABLE;
+                }
+            }
+        });
     }
 
 // Temperature Sensor - Heater
@@ -980,29 +1031,54 @@ public class Protocol implements EventSource
 
     public boolean associateTemperatureSensorToHeater(int heater, int sensor, Reference ref)
     {
-        final byte[] param = new byte[2];
-        param[0] = (byte) heater;
-        param[1] = (byte) sensor;
-        return sendOrderExpectOK(Protocol.ORDER_CONFIGURE_HEATER, param, ref);
+        return associateTemperatureSensorToHeaterAsync(heater, sensor, ref).join();
+    }
+
+    public CompletableFuture<Boolean> associateTemperatureSensorToHeaterAsync(int heater, int sensor, Reference ref)
+    {
+        final OrderFrame frame = cc.startOrder(ORDER_CONFIGURE_HEATER);
+        frame.putByte(heater);
+        frame.putByte(sensor);
+        return sendOrderExpectOKAsync(frame, ref);
     }
 
     public boolean setTemperature(final int heaterNum, Double temperature, Reference ref)
+    {
+        return setTemperatureAsync(heaterNum, temperature, ref).join();
+    }
+
+    public CompletableFuture<Boolean> setTemperatureAsync(final int heaterNum, Double temperature, Reference ref)
     {
         temperature = temperature * 10; // Client expects Temperature in 0.1 degree units.
         final int tempi = temperature.intValue();
-        final byte[] param = new byte[3];
-        param[0] = (byte) heaterNum;
-        param[1] = (byte)(0xff & (tempi/256));
-        param[2] = (byte)(tempi & 0xff);
-        return sendOrderExpectOK(Protocol.ORDER_SET_HEATER_TARGET_TEMPERATURE, param, ref);
+        final OrderFrame frame = cc.startOrder(ORDER_SET_HEATER_TARGET_TEMPERATURE);
+        frame.putByte(heaterNum);
+        frame.putShort(tempi);
+        return sendOrderExpectOKAsync(frame, ref);
     }
 
     public double readTemperatureFrom(int sensorNumber, Reference ref)
     {
-        final byte[] param = new byte[2];
-        param[0] = DEVICE_TYPE_TEMPERATURE_SENSOR;
-        param[1] = (byte) sensorNumber;
-        final Reply r = cc.sendRequest(ORDER_REQ_TEMPERATURE, param, ref);
+        return readTemperatureFromAsync(sensorNumber, ref).join();
+    }
+
+    public CompletableFuture<Double> readTemperatureFromAsync(int sensorNumber, Reference ref)
+    {
+        final OrderFrame frame = cc.startOrder(ORDER_REQ_TEMPERATURE);
+        frame.putByte(DEVICE_TYPE_TEMPERATURE_SENSOR);
+        frame.putByte(sensorNumber);
+        return cc.sendOrderAsync(frame).thenApply(new Function<Reply, Double>()
+        {
+            @Override
+            public Double apply(Reply r)
+            {
+                return getTemperatureFromReply(r);
+            }
+        });
+    }
+
+    private double getTemperatureFromReply(final Reply r)
+    {
         if(null == r)
         {
             log.error("Client does not reply! Recovery not possible!");
@@ -1049,30 +1125,25 @@ public class Protocol implements EventSource
      * @param ref
      */
     public boolean setFanSpeedfor(final int fan, final int speed, Reference ref)
+    {
+        return setFanSpeedforAsync(fan, speed, ref).join();
+    }
+
+    public CompletableFuture<Boolean> setFanSpeedforAsync(final int fan, final int speed, Reference ref)
     {
         if((-1 < fan) && (fan < di.getNumberPwmSwitchedOutputs()))
         {
-            final byte[] param = new byte[4];
-            param[0] = DEVICE_TYPE_PWM_OUTPUT;
-            param[1] = (byte)fan;
-            param[2] = (byte)(speed/256);
-            param[3] = (byte)(0xff & speed);
-            if(false == sendOrderExpectOK(ORDER_SET_PWM, param, ref))
-            {
-                log.error("Falied to set speed on the Fan !");
-                lastErrorReason = "Falied to set speed on the Fan !";
-                return false;
-            }
-            else
-            {
-                return true;
-            }
+            final OrderFrame frame = cc.startOrder(ORDER_SET_PWM);
+            frame.putByte(DEVICE_TYPE_PWM_OUTPUT);
+            frame.putByte(fan);
+            frame.putShort(speed);
+            return sendOrderExpectOKAsync(frame, ref, "Falied to set speed on the Fan !");
         }
         else
         {
             log.warn("({}): Client does not have the Fan {} ! It has only {} + 1 fans!",
                     ref, fan,  di.getNumberPwmSwitchedOutputs());
-            return true;
+            return CompletableFuture.completedFuture(true);
         }
     }
 
@@ -1085,29 +1156,25 @@ public class Protocol implements EventSource
      * @param ref
      */
     public boolean setOutputState(final int output, final int state, Reference ref)
+    {
+        return setOutputStateAsync(output, state, ref).join();
+    }
+
+    public CompletableFuture<Boolean> setOutputStateAsync(final int output, final int state, Reference ref)
     {
         if((-1 < output) && (output < di.getNumberOutputSignals()))
         {
-            final byte[] param = new byte[3];
-            param[0] = DEVICE_TYPE_OUTPUT;
-            param[1] = (byte)output;
-            param[2] = (byte)(0xff & state);
-            if(false == sendOrderExpectOK(ORDER_SET_OUTPUT, param, ref))
-            {
-                log.error("({}): Falied to set output state !", ref);
-                lastErrorReason = "Falied to set output state !";
-                return false;
-            }
-            else
-            {
-                return true;
-            }
+            final OrderFrame frame = cc.startOrder(ORDER_SET_OUTPUT);
+            frame.putByte(DEVICE_TYPE_OUTPUT);
+            frame.putByte(output);
+            frame.putByte(state);
+            return sendOrderExpectOKAsync(frame, ref, "Falied to set output state !");
         }
         else
         {
             log.warn("({}): Client does not have the output {} ! It has only {} + 1 output!",
                        ref, output,  di.getNumberOutputSignals());
-            return true;
+            return CompletableFuture.completedFuture(true);
         }
     }
 
@@ -1115,9 +1182,14 @@ public class Protocol implements EventSource
 
     public boolean activateStepperControl(Reference ref)
     {
-        final byte[] param = new byte[1];
-        param[0] = 0x01;
-        return sendOrderExpectOK(Protocol.ORDER_ACTIVATE_STEPPER_CONTROL, param, ref);
+        return activateStepperControlAsync(ref).join();
+    }
+
+    public CompletableFuture<Boolean> activateStepperControlAsync(Reference ref)
+    {
+        final OrderFrame frame = cc.startOrder(ORDER_ACTIVATE_STEPPER_CONTROL);
+        frame.putByte(0x01);
+        return sendOrderExpectOKAsync(frame, ref);
     }
 
     public boolean configureUnderRunAvoidance(int stepperNumber, int maxSpeedStepsPerSecond, int maxAccelleration, Reference ref)
@@ -1185,49 +1257,66 @@ public class Protocol implements EventSource
      *
      */
     public boolean enableAllStepperMotors(Reference ref)
+    {
+        return enableAllStepperMotorsAsync(ref).join();
+    }
+
+    /** the orders for all steppers are send at the same time. */
+    public CompletableFuture<Boolean> enableAllStepperMotorsAsync(Reference ref)
     {
         final int numSteppers = di.getNumberSteppers();
-        final byte[] parameter = new byte[2];
-        parameter[1] = 0x01; // Enabled
+        CompletableFuture<Boolean> res = CompletableFuture.completedFuture(true);
         for(int i = 0; i < numSteppers; i++)
         {
-            parameter[0] = (byte)i;
-            if(false == sendOrderExpectOK(Protocol.ORDER_ENABLE_DISABLE_STEPPER_MOTORS, parameter, ref))
+            final OrderFrame frame = cc.startOrder(ORDER_ENABLE_DISABLE_STEPPER_MOTORS);
+            frame.putByte(i);
+            frame.putByte(0x01); // Enabled
+            res = res.thenCombine(sendOrderExpectOKAsync(frame, ref, "Falied to enable the Steppers !"),
+                                  new BiFunction<Boolean, Boolean, Boolean>()
             {
-                log.error("({}): Falied to enable the Steppers !", ref);
-                lastErrorReason = "Falied to enable the Steppers !";
-                return false;
-            }
+                @Override
+                public Boolean apply(Boolean allOk, Boolean thisOk)
+                {
+                    return allOk && thisOk;
+                }
+            });
         }
-        return true;
+        return res;
     }
 
     public boolean disableAllStepperMotors(Reference ref)
     {
-        if(false == sendOrderExpectOK((byte)Protocol.ORDER_ENABLE_DISABLE_STEPPER_MOTORS, null, ref))
-        {
-            log.error("({}): Falied to disable the Steppers !", ref);
-            lastErrorReason = "Falied to disable the Steppers !";
-            return false;
-        }
-        else
-        {
-            return true;
-        }
+        return disableAllStepperMotorsAsync(ref).join();
+    }
+
+    public CompletableFuture<Boolean> disableAllStepperMotorsAsync(Reference ref)
+    {
+        final OrderFrame frame = cc.startOrder(ORDER_ENABLE_DISABLE_STEPPER_MOTORS);
+        return sendOrderExpectOKAsync(frame, ref, "Falied to disable the Steppers !");
     }
 
     public boolean doStopPrint(Reference ref)
     {
-        final byte[] param = new byte[1];
-        param[0] = ORDERED_STOP;
-        return sendOrderExpectOK(Protocol.ORDER_STOP_PRINT, param, ref);
+        return doStopPrintAsync(ref).join();
+    }
+
+    public CompletableFuture<Boolean> doStopPrintAsync(Reference ref)
+    {
+        final OrderFrame frame = cc.startOrder(ORDER_STOP_PRINT);
+        frame.putByte(ORDERED_STOP);
+        return sendOrderExpectOKAsync(frame, ref);
     }
 
     public boolean doEmergencyStopPrint(Reference ref)
     {
-        final byte[] param = new byte[1];
-        param[0] = EMERGENCY_STOP;
-        return sendOrderExpectOK(Protocol.ORDER_STOP_PRINT, param, ref);
+        return doEmergencyStopPrintAsync(ref).join();
+    }
+
+    public CompletableFuture<Boolean> doEmergencyStopPrintAsync(Reference ref)
+    {
+        final OrderFrame frame = cc.startOrder(ORDER_STOP_PRINT);
+        frame.putByte(EMERGENCY_STOP);
+        return sendOrderExpectOKAsync(frame, ref);
     }
 
 // Queue handling:
@@ -1238,17 +1327,25 @@ public class Protocol implements EventSource
         if((now - timeofLastClientQueueUpdate) > QUEUE_TIMEOUT_MS)
         {
             log.trace("polling client for Queue status");
-            if(RESULT_ERROR == enqueueCommand(null))
+            synchronized(sendQueueLock)
             {
-                return -1;
+                if(RESULT_ERROR == enqueueCommand(null))
+                {
+                    return -1;
+                }
             }
         }
         return ClientQueueNumberOfEnqueuedCommands;
     }
 
+    public ClientQueueFlowControl getQueueFlowControl()
+    {
+        return flowControl;
+    }
+
     public boolean hasFreeQueueSlots()
     {
-        if(0 + ClientQueueKeepFreeSlots < ClientQueueFreeSlots)
+        if(0 < flowControl.getUsableSlots(System.nanoTime()))
         {
             return true;
         }
@@ -1271,6 +1368,8 @@ public class Protocol implements EventSource
             ClientQueueNumberOfEnqueuedCommands = ((0xff & reply[2 + offset]) * 256) + (0xff & reply[3 + offset]);
             ClientExecutedJobs =                  ((0xff & reply[4 + offset]) * 256) + (0xff & reply[5 + offset]);
             timeofLastClientQueueUpdate = System.currentTimeMillis();
+            flowControl.update(ClientQueueFreeSlots, ClientExecutedJobs, System.nanoTime());
+            cc.getMetrics().clientQueueState(ClientQueueFreeSlots, ClientQueueNumberOfEnqueuedCommands);
             log.trace("Queue Free Slots = {}", ClientQueueFreeSlots);
             log.trace("Queue Number of Enqueued Commands = {}", ClientQueueNumberOfEnqueuedCommands);
             log.trace("Executed Jobs = {}", ClientExecutedJobs);
@@ -1313,13 +1412,13 @@ public class Protocol implements EventSource
 
         for(int i = 0; i < aMove.length; i++)
         {
-            log.trace("Sending move {} - {}", aMove[i].getId(), aMove[i]);
-
             // Send the data
-            byte[] data = aMove[i].getMoveData();
-            // TODO remove
-            log.trace("Sending move data {}", Tool.fromByteBufferToHexString(data));
-            if(false == enqueueCommandBlocking(data))
+            if(true == log.isTraceEnabled())
+            {
+                log.trace("Sending move {} - {}", aMove[i].getId(), aMove[i]);
+                log.trace("Sending move data {}", Tool.fromByteBufferToHexString(aMove[i].getMoveData()));
+            }
+            if(false == enqueueMoveBlocking(aMove[i]))
             {
                 return false;
             }
@@ -1332,11 +1431,7 @@ public class Protocol implements EventSource
         if(   (true == di.hasExtensionQueuedCommand())
            && (true == di.hasExtensionBasicMove()) )
         {
-            final byte[] param = new byte[3];
-            param[0] = 2;
-            param[1] = MOVEMENT_BLOCK_TYPE_SET_ACTIVE_TOOLHEAD;
-            param[2] = (byte)(0xff & activeToolHead);
-            return enqueueCommandBlocking(param);
+            return enqueueCommandBlocking(encodeSetActiveToolHead(activeToolHead));
         }
         else
         {
@@ -1346,6 +1441,31 @@ public class Protocol implements EventSource
     }
 
     public boolean endStopOnOff(boolean on, Integer[] switches)
+    {
+        return enqueueCommandBlocking(encodeEndStopOnOff(on, switches));
+    }
+
+    /** encodes a queue block that switches the active tool head.
+     *
+     * @param activeToolHead number of the tool head.
+     * @return length byte, block type and data.
+     */
+    public static byte[] encodeSetActiveToolHead(final int activeToolHead)
+    {
+        final byte[] param = new byte[3];
+        param[0] = 2;
+        param[1] = MOVEMENT_BLOCK_TYPE_SET_ACTIVE_TOOLHEAD;
+        param[2] = (byte)(0xff & activeToolHead);
+        return param;
+    }
+
+    /** encodes a queue block that enables or disables end stops.
+     *
+     * @param on true = enable; false = disable.
+     * @param switches numbers of the switches.
+     * @return length byte, block type and data.
+     */
+    public static byte[] encodeEndStopOnOff(boolean on, Integer[] switches)
     {
         final byte[] param = new byte[3 + (switches.length * 2)];
         param[0] = (byte)(param.length - 1);
@@ -1365,7 +1485,7 @@ public class Protocol implements EventSource
             param[3 + (i* 2)] = (byte)(0xff & switches[i]);
             param[3 + (i* 2) + 1] = onOff;
         }
-        return enqueueCommandBlocking(param);
+        return param;
     }
 
     /** adds a pause to the Queue.
@@ -1376,12 +1496,7 @@ public class Protocol implements EventSource
     {
         if(true == di.hasExtensionQueuedCommand())
         {
-            final byte[] param = new byte[4];
-            param[0] = 3;
-            param[1] = MOVEMENT_BLOCK_TYPE_DELAY;
-            param[2] = (byte)(0xff & (ticks/256));
-            param[3] = (byte)(ticks & 0xff);
-            return enqueueCommandBlocking(param);
+            return enqueueCommandBlocking(encodePause(ticks));
         }
         else
         {
@@ -1390,13 +1505,77 @@ public class Protocol implements EventSource
         }
     }
 
-    private int sendDataToClientQueue(byte[] param, int length, int numBlocksInBuffer)
+    /** encodes a queue block that pauses the execution of the queue.
+     *
+     * @param ticks allowed 0..65535 (0xffff)
+     * @return length byte, block type and data.
+     */
+    public static byte[] encodePause(final int ticks)
+    {
+        final byte[] param = new byte[4];
+        encodePauseTo(ByteBuffer.wrap(param), ticks);
+        return param;
+    }
+
+    /** writes the pause block to the buffer, starting at its current position.
+     *
+     * @param buf the buffer to write the 4 bytes of the block to.
+     * @param ticks allowed 0..65535 (0xffff)
+     */
+    public static void encodePauseTo(final ByteBuffer buf, final int ticks)
+    {
+        buf.put((byte)3);
+        buf.put(MOVEMENT_BLOCK_TYPE_DELAY);
+        buf.put((byte)(0xff & (ticks/256)));
+        buf.put((byte)(ticks & 0xff));
+    }
+
+    /** adds an already encoded block to the Queue.
+     *
+     * Used to replay blocks that have been recorded earlier. The block is
+     * copied into the send queue so buf can be reused after this returns.
+     *
+     * @param buf buffer that holds the block.
+     * @param offset position of the length byte of the block in buf.
+     * @return true = success; false= block could not be put in the queue.
+     */
+    public boolean addQueueBlock(final byte[] buf, final int offset)
     {
-        final Reply r = cc.sendRequest(ORDER_QUEUE_COMMAND_BLOCKS,
-                                       param, // data
-                                       0, // offset
-                                       length // length
-                                       );
+        if(false == di.hasExtensionQueuedCommand())
+        {
+            lastErrorReason = "no Queue - no chance to add to it.";
+            return false;
+        }
+        if((null == buf) || (0 > offset) || (offset >= buf.length))
+        {
+            lastErrorReason = "Tried To enque without data !";
+            log.error(lastErrorReason);
+            return false;
+        }
+        final int length = (0xff & buf[offset]) + 1;
+        if(true == log.isTraceEnabled())
+        {
+            log.trace("putting to sendqueue {}", Tool.fromByteBufferToHexString(buf, length, offset));
+        }
+        synchronized(sendQueueLock)
+        {
+            if(false == waitForRoomInSendQueue(length))
+            {
+                return false;
+            }
+            if(false == sendQueue.offer(buf, offset))
+            {
+                lastErrorReason = "Could not put block into the send queue !";
+                log.error(lastErrorReason);
+                return false;
+            }
+            return waitUntilSent(sendQueuedBlocks());
+        }
+    }
+
+    private int sendDataToClientQueue(OrderFrame frame, int numBlocksInBuffer)
+    {
+        final Reply r = cc.sendOrder(frame);
         // and see what happens.
         if(null == r)
         {
@@ -1410,33 +1589,40 @@ public class Protocol implements EventSource
         if(true == r.isOKReply())
         {
             // OK reply
-            parseQueueReply(r.getParameter());
-            CommandsSendToClient = CommandsSendToClient + numBlocksInBuffer;
-            for(int i = 0; i < numBlocksInBuffer; i++)
+            if(0 == numBlocksInBuffer)
             {
-                if(0 < sendQueue.size())
-                {
-                    sendQueue.remove(0);
-                }
+                flowControl.pollSent();
             }
+            else
+            {
+                flowControl.blocksAccepted(numBlocksInBuffer);
+            }
+            parseQueueReply(r.getParameter());
+            CommandsSendToClient = CommandsSendToClient + numBlocksInBuffer;
+            sendQueue.remove(numBlocksInBuffer);
             return RESULT_SUCCESS;
         }
         else if(RESPONSE_ORDER_SPECIFIC_ERROR == r.getReplyCode())
         {
             // Order Specific Error
             final byte[] response = r.getParameter();
+            byte[] param = null;
+            if(MOVEMENT_BLOCK_QUEUE_FULL != response[0])
+            {
+                // the frame is already back in the pool
+                param = getBlocksFromSendQueue(numBlocksInBuffer);
+            }
             // partly Queued
             final int numberOfQueued = (0xff & response[1]);
             if(0 != numberOfQueued)
             {
                 log.warn("partly Queued !");
-                for(int i = 0; i < numberOfQueued; i++)
-                {
-                    if(0 < sendQueue.size())
-                    {
-                        sendQueue.remove(0);
-                    }
-                }
+                sendQueue.remove(numberOfQueued);
+                flowControl.blocksAccepted(numberOfQueued);
+            }
+            if(MOVEMENT_BLOCK_QUEUE_FULL == response[0])
+            {
+                flowControl.queueFull();
             }
             parseQueueReply(response, 2);
             if(MOVEMENT_BLOCK_QUEUE_FULL != response[0]) // First Parameter Byte = Cause
@@ -1467,8 +1653,8 @@ public class Protocol implements EventSource
                 {
                     log.error("Description : " + r.getParameterAsString(9));
                 }
-                log.error("Send Data: {} !", Tool.fromByteBufferToHexString(param, length));
-                log.error("Send Data: {} !", parseQueueBlock(param, length ,0));
+                log.error("Send Data: {} !", Tool.fromByteBufferToHexString(param));
+                log.error("Send Data: {} !", parseQueueBlock(param, param.length ,0));
                 log.error("Received : {} !", Tool.fromByteBufferToHexString(response));
                 log.error("Client reports error! Recovery not possible!");
                 System.exit(1);
@@ -1499,88 +1685,101 @@ public class Protocol implements EventSource
         }
     }
 
+    /**
+     * @param numBlocks number of blocks from the start of the send queue.
+     * @return the blocks as they have been send to the client.
+     */
+    private byte[] getBlocksFromSendQueue(int numBlocks)
+    {
+        return sendQueue.getBytes(numBlocks);
+    }
+
     /** Enqueues the data for _one_ command into the Queue.
      *
-     * CAUTION: All data that can not be send out stays in Memory. So if this
-     * function fails repeatedly the memory consumption increases with every
-     * call. If in this situation try calling enqueueCommandBlocking() !
+     * All data that can not be send out stays in the send queue. The send
+     * queue has a fixed size. If it is full the command is not accepted and
+     * RESULT_ERROR is returned. enqueueCommandBlocking() waits for free space.
      *
      * @param param Data of only one command !
-     * @param ref
      * @return RESULT_SUCCESS,  RESULT_ERROR or RESULT_TRY_AGAIN_LATER
      */
     private int enqueueCommand(byte[] param)
     {
-        log.trace("putting to sendqueue {}", Tool.fromByteBufferToHexString(param));
+        if(true == log.isTraceEnabled())
+        {
+            log.trace("putting to sendqueue {}", Tool.fromByteBufferToHexString(param));
+        }
         if(null != param)
         {
             // add the new command, and...
-            sendQueue.add(param);
+            if(false == sendQueue.offer(param))
+            {
+                lastErrorReason = "Send queue is full !";
+                log.error(lastErrorReason);
+                return RESULT_ERROR;
+            }
+            // ...send it
+            return sendQueuedBlocks();
         }
         // TODO wait for enough bytes in Buffer ?
         // try to get the Queue empty again.
-        if(null == param)
+        if((true == sendQueue.isEmpty()) || (false == hasFreeQueueSlots()))
         {
-            if((0 == sendQueue.size()) || (false == hasFreeQueueSlots()))
-            {
-                // nothing to send -> poll client to get number of Slots used
-                // _OR_ client has no free slot -> poll client to get number of Slots used
-                return sendDataToClientQueue(new byte[0], 0, 0);
-            }
+            // nothing to send -> poll client to get number of Slots used
+            // _OR_ client has no free slot -> poll client to get number of Slots used
+            return sendDataToClientQueue(cc.startOrder(ORDER_QUEUE_COMMAND_BLOCKS), 0);
         }
         // else we use this call to flush the queue
-        if(1 > (ClientQueueFreeSlots - ClientQueueKeepFreeSlots))
+        return sendQueuedBlocks();
+    }
+
+    /** sends as many blocks from the send queue as the client can take.
+     *
+     * @return RESULT_SUCCESS, RESULT_TRY_AGAIN_LATER or RESULT_ERROR
+     */
+    private int sendQueuedBlocks()
+    {
+        final int usableSlots = flowControl.getUsableSlots(System.nanoTime());
+        if(1 > usableSlots)
         {
             // client queue is full so wait for next slot to become available
-            sendDataToClientQueue(new byte[0], 0, 0);
+            if(0.0 >= flowControl.getDrainRate())
+            {
+                // we can not predict when the next slot becomes free -> poll
+                sendDataToClientQueue(cc.startOrder(ORDER_QUEUE_COMMAND_BLOCKS), 0);
+            }
             return RESULT_TRY_AGAIN_LATER;
         }
         else
         {
-            final byte[] sendBuffer = new byte[QUEUE_SEND_BUFFER_SIZE];
-            int writePos = 0;
-            int numBlocksInBuffer = 0;
-            int idx = 0;
-            for(int i = 0; i < (ClientQueueFreeSlots - ClientQueueKeepFreeSlots); i++)
+            // add blocks to the send buffer until
+            // either send Buffer if full
+            // or all commands have been put in the buffer
+            // or the number of free slots on the client has been reached
+            final OrderFrame frame = cc.startOrder(ORDER_QUEUE_COMMAND_BLOCKS);
+            final int numBlocksInBuffer = sendQueue.addTo(frame, usableSlots, QUEUE_SEND_BUFFER_SIZE - 1);
+            if(true == log.isTraceEnabled())
             {
-                // add a block to the send buffer until
-                // either send Buffer if full
-                // or all commands have been put in the buffer
-                // or the number of free slots on the client has been reached
-                if(idx < sendQueue.size())
-                {
-                    final byte[] buf = sendQueue.get(idx);
-                    if(null != buf)
-                    {
-                        // TODO remove
-                        log.trace("received from send queue {}", Tool.fromByteBufferToHexString(buf));
-                        if(buf.length < QUEUE_SEND_BUFFER_SIZE - writePos)
-                        {
-                            for(int j = 0; j < buf.length; j++)
-                            {
-                                sendBuffer[writePos + j] = buf[j];
-                            }
-                            writePos = writePos + buf.length;
-                            numBlocksInBuffer ++;
-                        }
-                        else
-                        {
-                            break;
-                        }
-                    }
-                    else
-                    {
-                        break;
-                    }
-                    idx++;
-                }
-                else
-                {
-                    break;
-                }
+                log.trace("sending {} blocks from send queue", numBlocksInBuffer);
             }
             // then send them
-            return sendDataToClientQueue(sendBuffer, writePos, numBlocksInBuffer);
+            return sendDataToClientQueue(frame, numBlocksInBuffer);
+        }
+    }
+
+    /** sleeps until the client is predicted to have a free slot in its queue. */
+    private void waitForFreeQueueSlot()
+    {
+        final long delayMs = flowControl.getDelayUntilUsableMs(1, System.nanoTime());
+        if(0 < delayMs)
+        {
+            try
+            {
+                Thread.sleep(delayMs);
+            }
+            catch(InterruptedException e)
+            {
+            }
         }
     }
 
@@ -1607,18 +1806,80 @@ public class Protocol implements EventSource
             log.error(lastErrorReason);
             return false;
         }
-        int Result = enqueueCommand(param);
+        synchronized(sendQueueLock)
+        {
+            if(false == waitForRoomInSendQueue(param.length))
+            {
+                return false;
+            }
+            return waitUntilSent(enqueueCommand(param));
+        }
+    }
+
+    /** Enqueues one move into the Queue.
+     *
+     * The move gets encoded directly into the send queue. If the Queue is
+     * full this function waits until a free spot becomes available again.
+     *
+     * @param move the move to send.
+     * @return true = success; false= move could not be put in the queue.
+     */
+    private boolean enqueueMoveBlocking(BasicLinearMove move)
+    {
+        final int length = move.getEncodedLength();
+        if(2 > length)
+        {
+            lastErrorReason = "Tried To enque a move that can not be encoded !";
+            log.error(lastErrorReason);
+            return false;
+        }
+        synchronized(sendQueueLock)
+        {
+            if(false == waitForRoomInSendQueue(length))
+            {
+                return false;
+            }
+            if(false == sendQueue.offerMove(move))
+            {
+                lastErrorReason = "Send queue is full !";
+                log.error(lastErrorReason);
+                return false;
+            }
+            return waitUntilSent(sendQueuedBlocks());
+        }
+    }
+
+    /** the send queue is full -> send blocks to the client to make room.
+     *
+     * @param length number of bytes needed.
+     * @return true = there is room; false = sending failed.
+     */
+    private boolean waitForRoomInSendQueue(int length)
+    {
+        while(false == sendQueue.hasRoomFor(length))
+        {
+            waitForFreeQueueSlot();
+            if(RESULT_ERROR == enqueueCommand(null))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** retries to send the queued blocks until the client has room for them.
+     *
+     * @param firstResult result of the first try.
+     * @return true = success; false = sending failed.
+     */
+    private boolean waitUntilSent(int firstResult)
+    {
+        int Result = firstResult;
         if(RESULT_TRY_AGAIN_LATER == Result)
         {
             do
             {
-                try
-                {
-                    Thread.sleep(QUEUE_POLL_DELAY);
-                }
-                catch(InterruptedException e)
-                {
-                }
+                waitForFreeQueueSlot();
                 Result = enqueueCommand(null);
             }while(RESULT_TRY_AGAIN_LATER == Result);
         }
@@ -1826,14 +2087,63 @@ public class Protocol implements EventSource
 
     private boolean sendOrderExpectOK(final byte order, final byte parameter, Reference ref)
     {
-        final byte[] help = new byte[1];
-        help[0] = parameter;
-        return sendOrderExpectOK(order, help, ref);
+        final OrderFrame frame = cc.startOrder(order);
+        frame.putByte(parameter);
+        return sendOrderExpectOK(frame, ref);
     }
 
     private boolean sendOrderExpectOK(final byte order, final byte[] parameter, Reference ref)
     {
         final Reply r = cc.sendRequest(order, parameter, ref);
+        return checkOKReply(r, ref);
+    }
+
+    private boolean sendOrderExpectOK(final OrderFrame frame, Reference ref)
+    {
+        final Reply r = cc.sendOrder(frame);
+        return checkOKReply(r, ref);
+    }
+
+    private CompletableFuture<Boolean> sendOrderExpectOKAsync(final OrderFrame frame, final Reference ref)
+    {
+        return cc.sendOrderAsync(frame).thenApply(new Function<Reply, Boolean>()
+        {
+            @Override
+            public Boolean apply(Reply r)
+            {
+                return checkOKReply(r, ref);
+            }
+        });
+    }
+
+    /**
+     * @param errorMessage reported if the reply is not OK.
+     */
+    private CompletableFuture<Boolean> sendOrderExpectOKAsync(final OrderFrame frame,
+                                                             final Reference ref,
+                                                             final String errorMessage)
+    {
+        return cc.sendOrderAsync(frame).thenApply(new Function<Reply, Boolean>()
+        {
+            @Override
+            public Boolean apply(Reply r)
+            {
+                if(false == checkOKReply(r, ref))
+                {
+                    log.error("({}): " + errorMessage, ref);
+                    lastErrorReason = errorMessage;
+                    return false;
+                }
+                else
+                {
+                    return true;
+                }
+            }
+        });
+    }
+
+    private boolean checkOKReply(final Reply r, Reference ref)
+    {
         if(null == r)
         {
             log.error("({}): Received no Reply !", ref);
@@ -1848,6 +2158,17 @@ public class Protocol implements EventSource
     private int sendOrderExpectInt(final byte order, final byte[] parameter, Reference ref)
     {
         final Reply r = cc.sendRequest(order, parameter, ref);
+        return getIntFromReply(r, ref);
+    }
+
+    private int sendOrderExpectInt(final OrderFrame frame, Reference ref)
+    {
+        final Reply r = cc.sendOrder(frame);
+        return getIntFromReply(r, ref);
+    }
+
+    private int getIntFromReply(final Reply r, Reference ref)
+    {
         if(null == r)
         {
             log.error("Client does not reply! Recovery not possible!");
@@ -1870,9 +2191,8 @@ public class Protocol implements EventSource
         }
     }
 
-    private int sendOrderExpectUnsignedByte(final byte order, final byte[] parameter, Reference ref)
+    private int getUnsignedByteFromReply(final Reply r, Reference ref)
     {
-        final Reply r = cc.sendRequest(order, parameter, ref);
         if(null == r)
         {
             log.error("Client does not reply! Recovery not possible!");
@@ -1897,7 +2217,11 @@ public class Protocol implements EventSource
 
     private void sendKeepAliveSignal()
     {
-        final int timeout = sendOrderExpectInt(ORDER_REQ_INFORMATION, new byte[]{INFO_HOST_TIMEOUT}, new Reference("Host Timeout Poll"));
+        final OrderFrame frame = cc.startOrder(ORDER_REQ_INFORMATION);
+        frame.putByte(INFO_HOST_TIMEOUT);
+        // if the keep alive waits behind queue blocks the client might stop.
+        frame.setPriority(OrderPriority_enum.Safety);
+        final int timeout = sendOrderExpectInt(frame, keepAliveReference);
         if(0 < timeout)
         {
             // read a vaild value
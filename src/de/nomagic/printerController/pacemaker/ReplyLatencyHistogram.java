@@ -0,0 +1,190 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** collects the time between sending an order and receiving its reply, for each order code.
+ *
+ * The counters are atomic, so that measurements can be added without a lock
+ * while other threads read them.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class ReplyLatencyHistogram
+{
+    // upper limit of each bucket in microseconds. The last bucket takes everything above.
+    public static final long[] BUCKET_LIMITS_US = {100, 250, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000};
+    public static final int NUMBER_OF_BUCKETS = BUCKET_LIMITS_US.length + 1;
+
+    private static final int NUMBER_OF_ORDER_CODES = 256;
+
+    // bucket j of order i is at (i * NUMBER_OF_BUCKETS) + j
+    private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_OF_ORDER_CODES * NUMBER_OF_BUCKETS);
+    private final AtomicLongArray numberOfReplies = new AtomicLongArray(NUMBER_OF_ORDER_CODES);
+    private final AtomicLongArray sumUs = new AtomicLongArray(NUMBER_OF_ORDER_CODES);
+    private final AtomicLongArray maxUs = new AtomicLongArray(NUMBER_OF_ORDER_CODES);
+
+    public ReplyLatencyHistogram()
+    {
+    }
+
+    public void addMeasurement(final byte order, final long latencyNs)
+    {
+        final int idx = 0xff & order;
+        final long us = latencyNs / 1000;
+        int bucket = 0;
+        while((bucket < BUCKET_LIMITS_US.length) && (us > BUCKET_LIMITS_US[bucket]))
+        {
+            bucket++;
+        }
+        buckets.incrementAndGet((idx * NUMBER_OF_BUCKETS) + bucket);
+        numberOfReplies.incrementAndGet(idx);
+        sumUs.addAndGet(idx, us);
+        long max = maxUs.get(idx);
+        while((us > max) && (false == maxUs.compareAndSet(idx, max, us)))
+        {
+            max = maxUs.get(idx);
+        }
+    }
+
+    public long getNumberOfReplies(final byte order)
+    {
+        return numberOfReplies.get(0xff & order);
+    }
+
+    /**
+     * @return number of replies to all orders.
+     */
+    public long getNumberOfReplies()
+    {
+        long res = 0;
+        for(int i = 0; i < NUMBER_OF_ORDER_CODES; i++)
+        {
+            res = res + numberOfReplies.get(i);
+        }
+        return res;
+    }
+
+    public long[] getBuckets(final byte order)
+    {
+        final int idx = 0xff & order;
+        final long[] res = new long[NUMBER_OF_BUCKETS];
+        for(int j = 0; j < NUMBER_OF_BUCKETS; j++)
+        {
+            res[j] = buckets.get((idx * NUMBER_OF_BUCKETS) + j);
+        }
+        return res;
+    }
+
+    /**
+     *
+     * @param order order code
+     * @return average latency in microseconds or -1 if no reply has been received yet.
+     */
+    public long getAverageLatencyUs(final byte order)
+    {
+        final int idx = 0xff & order;
+        final long num = numberOfReplies.get(idx);
+        if(0 == num)
+        {
+            return -1;
+        }
+        return sumUs.get(idx) / num;
+    }
+
+    /** the latency that percent of the replies (to all orders) did not exceed.
+     *
+     * The resolution is the bucket limit. Above the last bucket limit the
+     * maximum latency is reported.
+     *
+     * @param percent 0..100
+     * @return latency in microseconds or -1 if no reply has been received yet.
+     */
+    public long getPercentileUs(final double percent)
+    {
+        final long[] sum = new long[NUMBER_OF_BUCKETS];
+        long total = 0;
+        long max = 0;
+        for(int i = 0; i < NUMBER_OF_ORDER_CODES; i++)
+        {
+            for(int j = 0; j < NUMBER_OF_BUCKETS; j++)
+            {
+                final long cur = buckets.get((i * NUMBER_OF_BUCKETS) + j);
+                sum[j] = sum[j] + cur;
+                total = total + cur;
+            }
+            max = Math.max(max, maxUs.get(i));
+        }
+        if(0 == total)
+        {
+            return -1;
+        }
+        final long needed = (long)Math.ceil(total * percent / 100.0);
+        long count = 0;
+        for(int j = 0; j < BUCKET_LIMITS_US.length; j++)
+        {
+            count = count + sum[j];
+            if(count >= needed)
+            {
+                return Math.min(BUCKET_LIMITS_US[j], max);
+            }
+        }
+        return max;
+    }
+
+    public void reset()
+    {
+        for(int i = 0; i < NUMBER_OF_ORDER_CODES; i++)
+        {
+            for(int j = 0; j < NUMBER_OF_BUCKETS; j++)
+            {
+                buckets.set((i * NUMBER_OF_BUCKETS) + j, 0);
+            }
+            numberOfReplies.set(i, 0);
+            sumUs.set(i, 0);
+            maxUs.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuffer sb = new StringBuffer();
+        sb.append("Reply latency (us) :");
+        for(int i = 0; i < BUCKET_LIMITS_US.length; i++)
+        {
+            sb.append(" <=" + BUCKET_LIMITS_US[i]);
+        }
+        sb.append(" >" + BUCKET_LIMITS_US[BUCKET_LIMITS_US.length - 1] + "\n");
+        for(int i = 0; i < NUMBER_OF_ORDER_CODES; i++)
+        {
+            final long num = numberOfReplies.get(i);
+            if(0 < num)
+            {
+                sb.append(Protocol.orderCodeToString((byte)i) + " : ");
+                for(int j = 0; j < NUMBER_OF_BUCKETS; j++)
+                {
+                    sb.append(buckets.get((i * NUMBER_OF_BUCKETS) + j) + " ");
+                }
+                sb.append("(n=" + num
+                          + ", avg=" + (sumUs.get(i) / num)
+                          + ", max=" + maxUs.get(i) + ")\n");
+            }
+        }
+        return sb.toString();
+    }
+}
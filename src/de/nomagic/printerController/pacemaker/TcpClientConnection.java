@@ -18,6 +18,10 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,9 +34,13 @@ import org.slf4j.LoggerFactory;
 public class TcpClientConnection extends ClientConnectionBase
 {
     private static final Logger log = LoggerFactory.getLogger("TcpClientConnection");
-    private final Socket pms;
     private final String host;
     private final String portStr;
+    private SocketChannel channel = null;
+    private Selector readSelector = null;
+    private Selector writeSelector = null;
+    // wraps the receive buffer of ClientConnectionBase
+    private ByteBuffer readBuffer = null;
 
     public static TcpClientConnection establishConnectionTo(String data)
     {
@@ -49,12 +57,10 @@ public class TcpClientConnection extends ClientConnectionBase
             log.error("Description({}) has no \":\" !", data);
             host = "";
             portStr = "";
-            pms = null;
             return;
         }
         host = data.substring(0, data.indexOf(':'));
         portStr = data.substring(data.indexOf(':') + 1);
-        pms = new Socket();
     }
 
     public boolean connect()
@@ -68,20 +74,24 @@ public class TcpClientConnection extends ClientConnectionBase
         log.info("Connecting to Pacemaker at {}:{} !", host, port);
         try
         {
-            pms.connect(new InetSocketAddress(host, port));
-            if(true == pms.isConnected())
+            channel = SocketChannel.open();
+            channel.connect(new InetSocketAddress(host, port));
+            if(true == channel.isConnected())
             {
-                pms.setSoTimeout(0);
+                final Socket pms = channel.socket();
                 pms.setKeepAlive(true);
                 pms.setTcpNoDelay(true);
-                this.in = pms.getInputStream();
-                this.out = pms.getOutputStream();
+                channel.configureBlocking(false);
+                readSelector = Selector.open();
+                channel.register(readSelector, SelectionKey.OP_READ);
+                writeSelector = Selector.open();
+                channel.register(writeSelector, SelectionKey.OP_WRITE);
                 this.start();
                 return true;
             }
             else
             {
-                pms.close();
+                channel.close();
                 log.error("Could not connect !");
                 return false;
             }
@@ -99,17 +109,66 @@ public class TcpClientConnection extends ClientConnectionBase
         return false;
     }
 
+    @Override
+    protected int readBytes(byte[] buf, int offset, int length, int timeoutMs) throws IOException
+    {
+        if((null == readBuffer) || (buf != readBuffer.array()))
+        {
+            readBuffer = ByteBuffer.wrap(buf);
+        }
+        readBuffer.limit(offset + length);
+        readBuffer.position(offset);
+        int res = channel.read(readBuffer);
+        if(0 == res)
+        {
+            // nothing there yet -> wait for it
+            if(0 < readSelector.select(timeoutMs))
+            {
+                readSelector.selectedKeys().clear();
+                res = channel.read(readBuffer);
+            }
+        }
+        if(-1 == res)
+        {
+            throw new IOException("Channel closed");
+        }
+        return res;
+    }
+
+    @Override
+    protected void writeBytes(ByteBuffer buf) throws IOException
+    {
+        while(true == buf.hasRemaining())
+        {
+            if(0 == channel.write(buf))
+            {
+                // send buffer is full
+                if(0 == writeSelector.select(MAX_MS_UNTIL_REPLY_ARRIVES))
+                {
+                    throw new IOException("Could not send the frame !");
+                }
+                writeSelector.selectedKeys().clear();
+            }
+        }
+    }
+
     @Override
     public String toString()
     {
-        String cn = getConnectionName();
+        String res = "TCP : " + host + ":" + portStr;
+        if(null != channel)
+        {
+            final Socket pms = channel.socket();
+            res = "TCP : " + pms.getInetAddress() + ":" + pms.getPort();
+        }
+        final String cn = getConnectionName();
         if(0 < cn.length())
         {
-            return cn + ": TCP : " + pms.getInetAddress() + ":" + pms.getPort();
+            return cn + ": " + res;
         }
         else
         {
-            return "TCP : " + pms.getInetAddress() + ":" + pms.getPort();
+            return res;
         }
     }
 
@@ -117,17 +176,25 @@ public class TcpClientConnection extends ClientConnectionBase
     public void disconnect()
     {
         super.disconnect();
-        if(null != pms)
+        try
         {
-            try
+            if(null != channel)
+            {
+                channel.close();
+            }
+            if(null != readSelector)
             {
-                pms.close();
+                readSelector.close();
             }
-            catch (final IOException e)
+            if(null != writeSelector)
             {
-                e.printStackTrace();
+                writeSelector.close();
             }
         }
+        catch (final IOException e)
+        {
+            e.printStackTrace();
+        }
     }
 
 }
@@ -52,6 +52,7 @@ public final class UartClientConnection extends ClientConnectionBase
     private volatile SerialPort port;
     private volatile boolean connected = false;
     private final String data;
+    private int receiveTimeoutMs = -1;
 
     public static String getDescriptorFor(String DeviceName,
                                           int baudrate,
@@ -363,6 +364,8 @@ public final class UartClientConnection extends ClientConnectionBase
                                      getSerialPortStopBitFromDescriptor(data),
                                      getSerialPortParityFromDescriptor(data));
 
+            // read() blocks until a byte arrives or the timeout is over.
+            setReceiveTimeout(MAX_MS_IDLE_READ);
             in = port.getInputStream();
             out = port.getOutputStream();
             connected = true;
@@ -389,6 +392,34 @@ public final class UartClientConnection extends ClientConnectionBase
         return false;
     }
 
+    private void setReceiveTimeout(int timeoutMs) throws UnsupportedCommOperationException
+    {
+        if(timeoutMs != receiveTimeoutMs)
+        {
+            port.enableReceiveTimeout(timeoutMs);
+            receiveTimeoutMs = timeoutMs;
+        }
+    }
+
+    @Override
+    protected int readBytes(byte[] buf, int offset, int length, int timeoutMs) throws IOException
+    {
+        try
+        {
+            setReceiveTimeout(timeoutMs);
+        }
+        catch(UnsupportedCommOperationException e)
+        {
+            throw new IOException("Serial Port does not support a receive timeout !");
+        }
+        final int res = in.read(buf, offset, length);
+        if(-1 == res)
+        {
+            throw new IOException("Channel closed");
+        }
+        return res;
+    }
+
     @Override
     public String toString()
     {
@@ -41,10 +41,24 @@ public class ClientMain
     private final Logger log = (Logger) LoggerFactory.getLogger(this.getClass().getName());
     private StatusWindow sw;
     private boolean shouldRun = true;
+    private boolean supportsWindowedTransmission = false;
+    private int latencyMs = 0;
 
     public ClientMain(final String[] args)
     {
     	startLogging(args);
+        for(int i = 0; i < args.length; i++)
+        {
+            if(true == "-windowed".equals(args[i]))
+            {
+                supportsWindowedTransmission = true;
+            }
+            else if((true == "-latency".equals(args[i])) && (i + 1 < args.length))
+            {
+                i++;
+                latencyMs = Integer.parseInt(args[i]);
+            }
+        }
     }
 
     private void startLogging(final String[] args)
@@ -150,8 +164,12 @@ public class ClientMain
                 log.info("Received a Connection !");
                 s.setTcpNoDelay(true);
                 final InputStream in = s.getInputStream();
-                final OutputStream out = s.getOutputStream();
-                final ProtocolClient pc = new ProtocolClient(in, out, sw);
+                OutputStream out = s.getOutputStream();
+                if(0 < latencyMs)
+                {
+                    out = new LatencyOutputStream(out, latencyMs);
+                }
+                final ProtocolClient pc = new ProtocolClient(in, out, sw, supportsWindowedTransmission);
                 if(null != sw)
                 {
                     sw.setProtocolClient(pc);
@@ -0,0 +1,107 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.test.pacemaker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** delays all written data to simulate the round trip time of a slow link (USB-Serial converter,..).
+ *
+ * Data is not blocked while waiting, so that the link has the same
+ * throughput but a higher latency.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class LatencyOutputStream extends OutputStream implements Runnable
+{
+    private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
+    private final OutputStream out;
+    private final long latencyMs;
+    private final BlockingQueue<byte[]> data = new LinkedBlockingQueue<byte[]>();
+    private final BlockingQueue<Long> dueTime = new LinkedBlockingQueue<Long>();
+    private final Thread worker;
+    private volatile boolean isClosed = false;
+
+    public LatencyOutputStream(OutputStream out, long latencyMs)
+    {
+        this.out = out;
+        this.latencyMs = latencyMs;
+        worker = new Thread(this, "LatencyOutputStream");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException
+    {
+        if(true == isClosed)
+        {
+            throw new IOException("Stream closed");
+        }
+        final byte[] buf = new byte[len];
+        System.arraycopy(b, off, buf, 0, len);
+        dueTime.add(System.currentTimeMillis() + latencyMs);
+        data.add(buf);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        isClosed = true;
+        worker.interrupt();
+        out.close();
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while(false == isClosed)
+            {
+                final byte[] buf = data.take();
+                final long waitMs = dueTime.take() - System.currentTimeMillis();
+                if(0 < waitMs)
+                {
+                    Thread.sleep(waitMs);
+                }
+                out.write(buf);
+                out.flush();
+            }
+        }
+        catch(InterruptedException e)
+        {
+            // end the thread
+        }
+        catch(IOException e)
+        {
+            log.error(e.getMessage());
+            isClosed = true;
+        }
+    }
+
+}
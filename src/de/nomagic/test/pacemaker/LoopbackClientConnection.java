@@ -0,0 +1,110 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.test.pacemaker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.nomagic.printerController.pacemaker.ClientConnectionBase;
+import de.nomagic.printerController.pacemaker.Crc8;
+import de.nomagic.printerController.pacemaker.Protocol;
+
+/** a client connection that answers every order with an OK reply without parameters.
+ *
+ * Used to measure the host side of the communication without a client.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class LoopbackClientConnection extends ClientConnectionBase
+{
+    private final byte[][] okReplies = new byte[Protocol.MAX_SEQUENCE_NUMBER + 1][];
+    private final BlockingQueue<byte[]> replies = new ArrayBlockingQueue<byte[]>(Protocol.MAX_SEQUENCE_NUMBER + 1);
+    private byte[] curReply = null;
+    private int curReplyPos = 0;
+
+    public LoopbackClientConnection()
+    {
+        super("LoopbackClientConnection");
+        for(int i = 0; i < okReplies.length; i++)
+        {
+            final byte[] buf = new byte[RESPONSE_PACKET_ENVELOPE_NUM_BYTES + 2];
+            buf[Protocol.REPLY_POS_OF_SYNC] = (byte)Protocol.START_OF_CLIENT_FRAME;
+            buf[Protocol.REPLY_POS_OF_LENGTH] = 2;
+            buf[Protocol.REPLY_POS_OF_CONTROL] = (byte)i;
+            buf[Protocol.REPLY_POS_OF_REPLY_CODE] = Protocol.RESPONSE_OK;
+            buf[4] = Crc8.calculate(buf, 1, 3);
+            okReplies[i] = buf;
+        }
+    }
+
+    @Override
+    public boolean connect()
+    {
+        start();
+        return true;
+    }
+
+    @Override
+    protected void writeBytes(ByteBuffer buf) throws IOException
+    {
+        final int control = 0xff & buf.get(buf.position() + Protocol.ORDER_POS_OF_CONTROL);
+        buf.position(buf.limit());
+        if(false == replies.offer(okReplies[control & Protocol.SEQUENCE_NUMBER_MASK]))
+        {
+            throw new IOException("Too many frames in flight !");
+        }
+    }
+
+    @Override
+    protected int readBytes(byte[] buf, int offset, int length, int timeoutMs) throws IOException
+    {
+        if(null == curReply)
+        {
+            try
+            {
+                curReply = replies.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                interrupt();
+                throw new ClosedByInterruptException();
+            }
+            if(null == curReply)
+            {
+                return 0;
+            }
+            curReplyPos = 0;
+        }
+        final int num = Math.min(length, curReply.length - curReplyPos);
+        System.arraycopy(curReply, curReplyPos, buf, offset, num);
+        curReplyPos = curReplyPos + num;
+        if(curReplyPos == curReply.length)
+        {
+            curReply = null;
+        }
+        return num;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Loopback";
+    }
+}
@@ -23,6 +23,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.nomagic.printerController.Tool;
+import de.nomagic.printerController.pacemaker.Crc8;
 import de.nomagic.printerController.pacemaker.Protocol;
 
 
@@ -33,33 +34,18 @@ import de.nomagic.printerController.pacemaker.Protocol;
 public class ProtocolClient
 {
     private final Logger log = LoggerFactory.getLogger(this.getClass().getName());
-
-    private static byte[] crc_array =
-    {
-        //       0           1           2           3           4           5           6           7           8           9           A           B           C           D           E           F
-    /* 0*/ (byte)0x00, (byte)0xa6, (byte)0xea, (byte)0x4c, (byte)0x72, (byte)0xd4, (byte)0x98, (byte)0x3e, (byte)0xe4, (byte)0x42, (byte)0x0e, (byte)0xa8, (byte)0x96, (byte)0x30, (byte)0x7c, (byte)0xda,
-    /* 1*/ (byte)0x6e, (byte)0xc8, (byte)0x84, (byte)0x22, (byte)0x1c, (byte)0xba, (byte)0xf6, (byte)0x50, (byte)0x8a, (byte)0x2c, (byte)0x60, (byte)0xc6, (byte)0xf8, (byte)0x5e, (byte)0x12, (byte)0xb4,
-    /* 2*/ (byte)0xdc, (byte)0x7a, (byte)0x36, (byte)0x90, (byte)0xae, (byte)0x08, (byte)0x44, (byte)0xe2, (byte)0x38, (byte)0x9e, (byte)0xd2, (byte)0x74, (byte)0x4a, (byte)0xec, (byte)0xa0, (byte)0x06,
-    /* 3*/ (byte)0xb2, (byte)0x14, (byte)0x58, (byte)0xfe, (byte)0xc0, (byte)0x66, (byte)0x2a, (byte)0x8c, (byte)0x56, (byte)0xf0, (byte)0xbc, (byte)0x1a, (byte)0x24, (byte)0x82, (byte)0xce, (byte)0x68,
-    /* 4*/ (byte)0x1e, (byte)0xb8, (byte)0xf4, (byte)0x52, (byte)0x6c, (byte)0xca, (byte)0x86, (byte)0x20, (byte)0xfa, (byte)0x5c, (byte)0x10, (byte)0xb6, (byte)0x88, (byte)0x2e, (byte)0x62, (byte)0xc4,
-    /* 5*/ (byte)0x70, (byte)0xd6, (byte)0x9a, (byte)0x3c, (byte)0x02, (byte)0xa4, (byte)0xe8, (byte)0x4e, (byte)0x94, (byte)0x32, (byte)0x7e, (byte)0xd8, (byte)0xe6, (byte)0x40, (byte)0x0c, (byte)0xaa,
-    /* 6*/ (byte)0xc2, (byte)0x64, (byte)0x28, (byte)0x8e, (byte)0xb0, (byte)0x16, (byte)0x5a, (byte)0xfc, (byte)0x26, (byte)0x80, (byte)0xcc, (byte)0x6a, (byte)0x54, (byte)0xf2, (byte)0xbe, (byte)0x18,
-    /* 7*/ (byte)0xac, (byte)0x0a, (byte)0x46, (byte)0xe0, (byte)0xde, (byte)0x78, (byte)0x34, (byte)0x92, (byte)0x48, (byte)0xee, (byte)0xa2, (byte)0x04, (byte)0x3a, (byte)0x9c, (byte)0xd0, (byte)0x76,
-    /* 8*/ (byte)0x3c, (byte)0x9a, (byte)0xd6, (byte)0x70, (byte)0x4e, (byte)0xe8, (byte)0xa4, (byte)0x02, (byte)0xd8, (byte)0x7e, (byte)0x32, (byte)0x94, (byte)0xaa, (byte)0x0c, (byte)0x40, (byte)0xe6,
-    /* 9*/ (byte)0x52, (byte)0xf4, (byte)0xb8, (byte)0x1e, (byte)0x20, (byte)0x86, (byte)0xca, (byte)0x6c, (byte)0xb6, (byte)0x10, (byte)0x5c, (byte)0xfa, (byte)0xc4, (byte)0x62, (byte)0x2e, (byte)0x88,
-    /* A*/ (byte)0xe0, (byte)0x46, (byte)0x0a, (byte)0xac, (byte)0x92, (byte)0x34, (byte)0x78, (byte)0xde, (byte)0x04, (byte)0xa2, (byte)0xee, (byte)0x48, (byte)0x76, (byte)0xd0, (byte)0x9c, (byte)0x3a,
-    /* B*/ (byte)0x8e, (byte)0x28, (byte)0x64, (byte)0xc2, (byte)0xfc, (byte)0x5a, (byte)0x16, (byte)0xb0, (byte)0x6a, (byte)0xcc, (byte)0x80, (byte)0x26, (byte)0x18, (byte)0xbe, (byte)0xf2, (byte)0x54,
-    /* C*/ (byte)0x22, (byte)0x84, (byte)0xc8, (byte)0x6e, (byte)0x50, (byte)0xf6, (byte)0xba, (byte)0x1c, (byte)0xc6, (byte)0x60, (byte)0x2c, (byte)0x8a, (byte)0xb4, (byte)0x12, (byte)0x5e, (byte)0xf8,
-    /* D*/ (byte)0x4c, (byte)0xea, (byte)0xa6, (byte)0x00, (byte)0x3e, (byte)0x98, (byte)0xd4, (byte)0x72, (byte)0xa8, (byte)0x0e, (byte)0x42, (byte)0xe4, (byte)0xda, (byte)0x7c, (byte)0x30, (byte)0x96,
-    /* E*/ (byte)0xfe, (byte)0x58, (byte)0x14, (byte)0xb2, (byte)0x8c, (byte)0x2a, (byte)0x66, (byte)0xc0, (byte)0x1a, (byte)0xbc, (byte)0xf0, (byte)0x56, (byte)0x68, (byte)0xce, (byte)0x82, (byte)0x24,
-    /* F*/ (byte)0x90, (byte)0x36, (byte)0x7a, (byte)0xdc, (byte)0xe2, (byte)0x44, (byte)0x08, (byte)0xae, (byte)0x74, (byte)0xd2, (byte)0x9e, (byte)0x38, (byte)0x06, (byte)0xa0, (byte)0xec, (byte)0x4a
-    };
+    private final Crc8 receiveCrc = new Crc8();
 
 
     private final byte[] response = new byte[260];
-    private byte[] cachedResponse = new byte[260];
-    private int cachedResponseLength = 0;
-    private int cachedResponseSequenceNumber = -1;
+    // one cached response per sequence number, length 0 = nothing cached
+    private final byte[][] cachedResponse = new byte[Protocol.MAX_SEQUENCE_NUMBER + 1][260];
+    private final int[] cachedResponseLength = new int[Protocol.MAX_SEQUENCE_NUMBER + 1];
+    private int lastNewSequenceNumber = -1;
+    private final boolean supportsWindowedTransmission;
+    private long numberOfReceivedFrames = 0;
+    private long framesAtLastStatistic = 0;
+    private long timeOfLastStatistic = 0;
     private final int[] parameter = new int[256];
     private final InputStream in;
     private final OutputStream out;
@@ -79,10 +65,23 @@ public class ProtocolClient
     private CommandQueue cmdQueue = new CommandQueue();
 
     public ProtocolClient(final InputStream in, final OutputStream out, final Hardware hw)
+    {
+        this(in, out, hw, false);
+    }
+
+    /**
+     * @param supportsWindowedTransmission true = announce the windowed transmission
+     * extension so that the host can have more than one frame in flight.
+     */
+    public ProtocolClient(final InputStream in,
+                          final OutputStream out,
+                          final Hardware hw,
+                          final boolean supportsWindowedTransmission)
     {
         this.in = in;
         this.out = out;
         this.hw = hw;
+        this.supportsWindowedTransmission = supportsWindowedTransmission;
         response[Protocol.REPLY_POS_OF_SYNC] = Protocol.START_OF_CLIENT_FRAME;
     }
 
@@ -91,49 +90,13 @@ public class ProtocolClient
         return isConnected;
     }
 
-    private static byte getCRCfor(final byte[] buf, final int length)
-    {
-        return getCRCfor(buf, length -1, 1/* Byte 0 is Sync and is not included in CRC*/);
-    }
-
-    private static byte getCRCfor(final byte[] buf, int length, final int offset)
-    {
-        byte crc = 0;
-        int pos = offset;
-        while (length > 0)
-        {
-            crc = crc_array[0xff & (buf[pos] ^ crc)];
-            pos = pos + 1;
-            length = length - 1;
-        }
-        return crc;
-    }
-
-    private int calculateChecksum(final int order, final int length, final int control, final int[] parameter)
-    {
-        final byte[] data = new byte[length + 2];
-        data[Protocol.ORDER_POS_OF_SYNC] = Protocol.START_OF_HOST_FRAME;
-        data[Protocol.ORDER_POS_OF_LENGTH] = (byte)length;
-        data[Protocol.ORDER_POS_OF_CONTROL] = (byte)control;
-        data[Protocol.ORDER_POS_OF_ORDER_CODE] = (byte)order;
-        for(int i = 0; i < length - 2; i++)
-        {
-            data[i + Protocol.ORDER_POS_OF_START_OF_PARAMETER] = (byte)parameter[i];
-        }
-        final int res =  0xff & getCRCfor(data,
-                length + Protocol.ORDER_POS_OF_START_OF_PARAMETER - 2);
-        log.trace("calculating CRC for : " + Tool.fromByteBufferToHexString(data)
-                    + " -> " + String.format("%02X", res));
-        log.trace(Protocol.parse(data));
-        return res;
-    }
-
     public void communicate() throws IOException
     {
         try
         {
             boolean isSynced = false;
             isConnected = true;
+            timeOfLastStatistic = System.currentTimeMillis();
             for(;;)
             {
                 final int sync = getAByte/*Blocking*/();
@@ -154,16 +117,22 @@ public class ProtocolClient
                 {
                     isSynced = true;
                     // A new frame is coming in...
+                    // the CRC is calculated while the bytes arrive
+                    receiveCrc.reset();
                     length = getAByte();
+                    receiveCrc.update((byte)length);
                     control = getAByte();
+                    receiveCrc.update((byte)control);
                     order =  getAByte();
+                    receiveCrc.update((byte)order);
                     for(int i = 0; i < length -2; i++)
                     {
                         final int h = getAByte();
+                        receiveCrc.update((byte)h);
                         parameter[i] = (0xff & h);
                     }
                     final int checksum = 0xff & getAByte();
-                    final int calculatedCheckSum = calculateChecksum(order, length, control, parameter);
+                    final int calculatedCheckSum = 0xff & receiveCrc.getValue();
                     if(checksum != calculatedCheckSum)
                     {
                         log.error("BAD CRC ! (" +checksum + " - " + calculatedCheckSum + ") !" );
@@ -181,6 +150,8 @@ public class ProtocolClient
                             handleTheFrame();
                         }
                     }
+                    numberOfReceivedFrames++;
+                    reportThroughput();
                 }
             }
         }
@@ -192,6 +163,8 @@ public class ProtocolClient
 
     private void handleStoppedStateFrame() throws IOException
     {
+        // stopped state replies are never cached, but we need to keep track of the sequence numbers.
+        shouldSendCachedResponse(control);
         if((Protocol.ORDER_RESUME == order) && (parameter[0] != Protocol.QUERY_STOPPED_STATE))
         {
             switch(parameter[0])
@@ -753,7 +726,7 @@ public class ProtocolClient
                 break;
 
             case Protocol.INFO_LIST_OF_SUPPORTED_PROTOCOL_EXTENSIONS:
-                sendByteArray(hw.getListOfSupportedProtocolExtensions());
+                sendByteArray(getListOfSupportedProtocolExtensions());
                 break;
 
             case Protocol.INFO_FIRMWARE_TYPE:
@@ -802,30 +775,91 @@ public class ProtocolClient
         return (0xff & res);
     }
 
+    private int[] getListOfSupportedProtocolExtensions()
+    {
+        final int[] hwList = hw.getListOfSupportedProtocolExtensions();
+        if(false == supportsWindowedTransmission)
+        {
+            return hwList;
+        }
+        final int[] res = new int[hwList.length + 1];
+        for(int i = 0; i < hwList.length; i++)
+        {
+            res[i] = hwList[i];
+        }
+        res[hwList.length] = Protocol.INFO_PROTOCOL_EXTENSION_WINDOWED_TRANSMISSION;
+        return res;
+    }
+
+    private void reportThroughput()
+    {
+        final long now = System.currentTimeMillis();
+        if(1000 <= now - timeOfLastStatistic)
+        {
+            final long frames = numberOfReceivedFrames - framesAtLastStatistic;
+            log.info("received {} frames per second (windowed transmission: {})",
+                     (frames * 1000) / (now - timeOfLastStatistic),
+                     supportsWindowedTransmission);
+            framesAtLastStatistic = numberOfReceivedFrames;
+            timeOfLastStatistic = now;
+        }
+    }
+
     private void sendCachedResponse() throws IOException
     {
+        final int seqNum = control & Protocol.SEQUENCE_NUMBER_MASK;
         log.info("sending cached Reply !");
-        out.write(cachedResponse, 0, cachedResponseLength);
+        out.write(cachedResponse[seqNum], 0, cachedResponseLength[seqNum]);
         out.flush();
     }
 
     private boolean shouldSendCachedResponse(final int receivedControl)
     {
+        final int seqNum = receivedControl & Protocol.SEQUENCE_NUMBER_MASK;
         if(Protocol.RESET_COMMUNICATION_SYNC_MASK == (receivedControl & Protocol.RESET_COMMUNICATION_SYNC_MASK))
         {
             // Re sync Flag set -> no cache
+            for(int i = 0; i < cachedResponseLength.length; i++)
+            {
+                cachedResponseLength[i] = 0;
+            }
+            lastNewSequenceNumber = seqNum;
             return false;
         }
-        if(cachedResponseSequenceNumber == (receivedControl & Protocol.SEQUENCE_NUMBER_MASK))
+        if(false == supportsWindowedTransmission)
         {
-            // same sequence number -> cached Result
-            return true;
+            if(lastNewSequenceNumber == seqNum)
+            {
+                // same sequence number -> cached Result
+                return (0 < cachedResponseLength[seqNum]);
+            }
+            else
+            {
+                // different sequence Number -> different result
+                cachedResponseLength[seqNum] = 0;
+                lastNewSequenceNumber = seqNum;
+                return false;
+            }
         }
-        else
+        // The host has up to MAX_FRAMES_IN_FLIGHT frames in flight.
+        // New frames are ahead of the newest frame we have seen,
+        // retransmitted frames are at or behind it.
+        final int distance = (seqNum - lastNewSequenceNumber) & Protocol.SEQUENCE_NUMBER_MASK;
+        if((0 < distance) && (Protocol.MAX_FRAMES_IN_FLIGHT >= distance))
         {
-            // different sequence Number -> different result
+            // new frame -> the responses cached for the skipped sequence numbers are outdated.
+            for(int i = 1; i <= distance; i++)
+            {
+                cachedResponseLength[(lastNewSequenceNumber + i) & Protocol.SEQUENCE_NUMBER_MASK] = 0;
+            }
+            lastNewSequenceNumber = seqNum;
             return false;
         }
+        else
+        {
+            // retransmission -> if we never answered it then we need to execute it now.
+            return (0 < cachedResponseLength[seqNum]);
+        }
     }
 
     private void sendStoppedReply() throws IOException
@@ -948,13 +982,14 @@ public class ProtocolClient
         {
             response[Protocol.REPLY_POS_OF_CONTROL] = (byte)(Protocol.SEQUENCE_NUMBER_MASK & control);
         }
-        response[cspos] = getCRCfor(response, cspos);
+        // Sync is not included in CRC
+        response[cspos] = Crc8.calculate(response, 1, cspos - 1);
         log.trace("sending : " + Tool.fromByteBufferToHexString(response, bytesToSend));
         out.write(response, 0, bytesToSend);
         out.flush();
-        cachedResponse = response;
-        cachedResponseLength = bytesToSend;
-        cachedResponseSequenceNumber = control & Protocol.SEQUENCE_NUMBER_MASK;
+        final int seqNum = control & Protocol.SEQUENCE_NUMBER_MASK;
+        System.arraycopy(response, 0, cachedResponse[seqNum], 0, bytesToSend);
+        cachedResponseLength[seqNum] = bytesToSend;
     }
 
 }
@@ -0,0 +1,139 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.test.pacemaker;
+
+import java.io.IOException;
+
+import de.nomagic.printerController.core.Reference;
+import de.nomagic.printerController.pacemaker.ClientConnection;
+import de.nomagic.printerController.pacemaker.ClientConnectionFactory;
+import de.nomagic.printerController.pacemaker.DeviceInformation;
+import de.nomagic.printerController.pacemaker.Protocol;
+import de.nomagic.printerController.pacemaker.Reply;
+
+/** sends orders from several threads to a client and reports the achieved number of orders per second.
+ *
+ * Start the simulator (ClientMain) with and without -windowed
+ * (and -latency <ms> to get the round trip time of a real board) to compare
+ * windowed transmission with stop and wait.
+ *
+ * Usage: ThroughputMain TCP:localhost:12345 [numberOfThreads] [ordersPerThread]
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class ThroughputMain
+{
+    private final Protocol pro;
+    private volatile int numberOfFailedOrders = 0;
+
+    public ThroughputMain(Protocol pro)
+    {
+        this.pro = pro;
+    }
+
+    public long sendOrders(final int numberOfThreads, final int ordersPerThread) throws InterruptedException
+    {
+        final Thread[] workers = new Thread[numberOfThreads];
+        for(int i = 0; i < numberOfThreads; i++)
+        {
+            workers[i] = new Thread("Throughput-" + i)
+            {
+                @Override
+                public void run()
+                {
+                    final Reference ref = new Reference(getName());
+                    for(int j = 0; j < ordersPerThread; j++)
+                    {
+                        try
+                        {
+                            final Reply r = pro.sendInformationRequest(Protocol.INFO_FIRMWARE_TYPE, ref);
+                            if((null == r) || (false == r.isOKReply()))
+                            {
+                                numberOfFailedOrders++;
+                            }
+                        }
+                        catch(IOException e)
+                        {
+                            numberOfFailedOrders++;
+                        }
+                    }
+                }
+            };
+        }
+        final long start = System.currentTimeMillis();
+        for(int i = 0; i < numberOfThreads; i++)
+        {
+            workers[i].start();
+        }
+        for(int i = 0; i < numberOfThreads; i++)
+        {
+            workers[i].join();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    public int getNumberOfFailedOrders()
+    {
+        return numberOfFailedOrders;
+    }
+
+    public static void main(final String[] args) throws InterruptedException
+    {
+        if(1 > args.length)
+        {
+            System.out.println("Usage: ThroughputMain <Connection Description> [numberOfThreads] [ordersPerThread]");
+            System.exit(1);
+        }
+        int numberOfThreads = 8;
+        int ordersPerThread = 1000;
+        if(1 < args.length)
+        {
+            numberOfThreads = Integer.parseInt(args[1]);
+        }
+        if(2 < args.length)
+        {
+            ordersPerThread = Integer.parseInt(args[2]);
+        }
+        final ClientConnection cc = ClientConnectionFactory.establishConnectionTo(args[0]);
+        if(null == cc)
+        {
+            System.out.println("Could not connect to " + args[0] + " !");
+            System.exit(1);
+        }
+        final Protocol pro = new Protocol(cc, null);
+        final DeviceInformation di = pro.getDeviceInformation(new Reference("Throughput Test"));
+        if(null == di)
+        {
+            System.out.println("Could not read the device information !");
+            pro.closeConnection();
+            System.exit(1);
+        }
+        final ThroughputMain tm = new ThroughputMain(pro);
+        final long durationMs = tm.sendOrders(numberOfThreads, ordersPerThread);
+        final long numOrders = (long)numberOfThreads * ordersPerThread;
+        System.out.println("windowed transmission : " + di.hasExtensionWindowedTransmission());
+        System.out.println("send " + numOrders + " orders in " + durationMs + " ms ("
+                           + tm.getNumberOfFailedOrders() + " failed)");
+        if(0 < durationMs)
+        {
+            System.out.println("-> " + ((numOrders * 1000) / durationMs) + " orders per second");
+        }
+        System.out.println(cc.getReplyLatencyHistogram());
+        pro.closeConnection();
+        System.exit(0);
+    }
+
+}
@@ -1,6 +1,8 @@
 
 package de.nomagic.printerController.core;
 
+import java.util.Vector;
+
 import de.nomagic.printerController.Axis_enum;
 import de.nomagic.printerController.GCodeResultStream;
 import de.nomagic.printerController.Heater_enum;
@@ -71,10 +73,24 @@ public class ExecutorStub implements Executor
         return false;
     }
 
+    private boolean addMoveToReturn = false;
+    private Vector<RelativeMove> addedMoves = new Vector<RelativeMove>();
+
+    public void setReturnFor_addMoveTo(boolean value)
+    {
+        addMoveToReturn = value;
+    }
+
+    public Vector<RelativeMove> getAddedMoves()
+    {
+        return addedMoves;
+    }
+
     @Override
     public boolean addMoveTo(RelativeMove relMove, Reference ref)
     {
-        return false;
+        addedMoves.add(relMove);
+        return addMoveToReturn;
     }
 
     @Override
@@ -354,6 +370,19 @@ public class ExecutorStub implements Executor
         return false;
     }
 
+    private String getConnectionStatisticsReturn = "";
+
+    public void set_getConnectionStatisticsReturn(String value)
+    {
+        getConnectionStatisticsReturn = value;
+    }
+
+    @Override
+    public String getConnectionStatistics()
+    {
+        return getConnectionStatisticsReturn;
+    }
+
     @Override
     public Reply sendRawOrderFrame(int ClientNumber, int order,
             Integer[] parameterBytes, int length)
@@ -366,6 +395,12 @@ public class ExecutorStub implements Executor
     {
     }
 
+    @Override
+    public boolean replayCompiledFile(CompiledGCodeReader reader, GCodeResultStream resultStream, Reference ref)
+    {
+        return false;
+    }
+
     @Override
     public boolean runPIDautotune(Heater_enum Extruder, Double Temperature,
             int numCycles, GCodeResultStream resultStream, Reference ref)
@@ -0,0 +1,299 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+/** measures how fast G-Code lines can be split into words.
+ *
+ * The ParallelGCodeReader gets measured with 1, 2, 4,.. threads up to the
+ * number of cores, to see how the parsing scales.
+ *
+ * Not a unit test. Run with "ant parserbenchmark -Dgcode.file=part.gcode" or directly:
+ * java de.nomagic.printerController.core.GCodeParserBenchmark [G-Code file]
+ * Without a file a sliced part is simulated.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public final class GCodeParserBenchmark
+{
+    public static final int SIMULATED_LINES = 1000000;
+    public static final int WARM_UP_ROUNDS = 3;
+    public static final int MEASURED_ROUNDS = 5;
+    private static final Charset FILE_CHARSET = Charset.forName("ISO-8859-1");
+
+    private final String[] lines;
+    private final byte[] bytes;
+    // start of each line in bytes, last entry is the end of the last line
+    private final int[] lineStart;
+    private final GCode masterCode = new GCodeImpl("");
+    private final GCodeTokenizer tokenizer = new GCodeTokenizer();
+    // so that the JIT can not remove the parsing
+    private double sum = 0.0;
+
+    private GCodeParserBenchmark(Vector<String> gcode)
+    {
+        lines = gcode.toArray(new String[0]);
+        lineStart = new int[lines.length + 1];
+        int length = 0;
+        for(int i = 0; i < lines.length; i++)
+        {
+            lineStart[i] = length;
+            length = length + lines[i].length() + 1;
+        }
+        lineStart[lines.length] = length;
+        bytes = new byte[length];
+        for(int i = 0; i < lines.length; i++)
+        {
+            final byte[] line = lines[i].getBytes(FILE_CHARSET);
+            System.arraycopy(line, 0, bytes, lineStart[i], line.length);
+            bytes[lineStart[i] + line.length] = '\n';
+        }
+    }
+
+    private static Vector<String> readFile(String fileName) throws IOException
+    {
+        final Vector<String> res = new Vector<String>();
+        final BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), FILE_CHARSET));
+        try
+        {
+            String curLine = br.readLine();
+            while(null != curLine)
+            {
+                res.add(curLine);
+                curLine = br.readLine();
+            }
+        }
+        finally
+        {
+            br.close();
+        }
+        return res;
+    }
+
+    /** lines as a slicer creates them: mostly extruding moves, some travel moves and comments. */
+    private static Vector<String> simulateFile(int numLines)
+    {
+        final Vector<String> res = new Vector<String>();
+        double e = 0.0;
+        double z = 0.2;
+        for(int i = 0; i < numLines; i++)
+        {
+            final double angle = Math.toRadians(i % 360);
+            final double x = 100 + (50 * Math.cos(angle));
+            final double y = 100 + (50 * Math.sin(angle));
+            if(0 == i % 5000)
+            {
+                z = z + 0.2;
+                res.add(";LAYER:" + (i / 5000));
+                res.add(String.format("G0 F9000 X%.3f Y%.3f Z%.3f", x, y, z));
+            }
+            else if(0 == i % 100)
+            {
+                res.add(String.format("G1 F1800 X%.3f Y%.3f ; travel", x, y));
+            }
+            else
+            {
+                e = e + 0.03321;
+                res.add(String.format("G1 X%.3f Y%.3f E%.5f", x, y, e));
+            }
+        }
+        return res;
+    }
+
+    private long runGCodeRound()
+    {
+        final long start = System.nanoTime();
+        for(int i = 0; i < lines.length; i++)
+        {
+            final GCode code = masterCode.getGCodeFrom(lines[i]);
+            sum = sum + code.getWordValue('X', 0.0);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long runStringRound()
+    {
+        final long start = System.nanoTime();
+        for(int i = 0; i < lines.length; i++)
+        {
+            tokenizer.parse(lines[i]);
+            sum = sum + tokenizer.getWordValue('X', 0.0);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long runByteRound()
+    {
+        final long start = System.nanoTime();
+        for(int i = 0; i < lines.length; i++)
+        {
+            tokenizer.parse(bytes, lineStart[i], lineStart[i + 1] - lineStart[i] - 1);
+            sum = sum + tokenizer.getWordValue('X', 0.0);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long runParallelRound(File f, ForkJoinPool pool) throws IOException
+    {
+        final long start = System.nanoTime();
+        final ParallelGCodeReader reader = new ParallelGCodeReader(f, pool);
+        while(true == reader.next())
+        {
+            sum = sum + reader.getGCode().getWordValue('X', 0.0);
+        }
+        reader.close();
+        return System.nanoTime() - start;
+    }
+
+    private File writeTempFile() throws IOException
+    {
+        final File f = File.createTempFile("GCodeParserBenchmark", ".gcode");
+        f.deleteOnExit();
+        final FileOutputStream out = new FileOutputStream(f);
+        try
+        {
+            out.write(bytes);
+        }
+        finally
+        {
+            out.close();
+        }
+        return f;
+    }
+
+    private void runParallel(File f) throws IOException
+    {
+        final int numLines = lines.length;
+        final int cores = Runtime.getRuntime().availableProcessors();
+        double singleThreadRate = 0.0;
+        int threads = 1;
+        while(true)
+        {
+            final ForkJoinPool pool = new ForkJoinPool(threads);
+            for(int i = 0; i < WARM_UP_ROUNDS; i++)
+            {
+                runParallelRound(f, pool);
+            }
+            long best = Long.MAX_VALUE;
+            for(int i = 0; i < MEASURED_ROUNDS; i++)
+            {
+                best = Math.min(best, runParallelRound(f, pool));
+            }
+            pool.shutdown();
+            final double rate = numLines / (best / 1000000000.0);
+            if(1 == threads)
+            {
+                singleThreadRate = rate;
+            }
+            System.out.println(String.format("ParallelGCodeReader %d threads: %.0f lines/s, %.0f ns/line, speedup %.2f",
+                                             threads,
+                                             rate,
+                                             (double)best / numLines,
+                                             rate / singleThreadRate));
+            if(threads >= cores)
+            {
+                break;
+            }
+            threads = Math.min(threads * 2, cores);
+        }
+    }
+
+    private long runRound(int type)
+    {
+        switch(type)
+        {
+        case 0: return runGCodeRound();
+        case 1: return runStringRound();
+        default: return runByteRound();
+        }
+    }
+
+    private static long getAllocatedBytes(ThreadMXBean bean)
+    {
+        if(bean instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        final Logger rootLogger = (Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
+        rootLogger.setLevel(Level.OFF);
+        Vector<String> gcode;
+        if(0 < args.length)
+        {
+            gcode = readFile(args[0]);
+        }
+        else
+        {
+            gcode = simulateFile(SIMULATED_LINES);
+        }
+        final GCodeParserBenchmark bench = new GCodeParserBenchmark(gcode);
+        final int numLines = bench.lines.length;
+        final double megaBytes = bench.bytes.length / (1024.0 * 1024.0);
+        System.out.println(String.format("%d lines, %.1f MB", numLines, megaBytes));
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        final String[] names = {"GCode (String)", "GCodeTokenizer (String)", "GCodeTokenizer (bytes)"};
+        for(int type = 0; type < names.length; type++)
+        {
+            for(int i = 0; i < WARM_UP_ROUNDS; i++)
+            {
+                bench.runRound(type);
+            }
+            for(int i = 0; i < MEASURED_ROUNDS; i++)
+            {
+                final long allocatedBefore = getAllocatedBytes(bean);
+                final long ns = bench.runRound(type);
+                final long allocated = getAllocatedBytes(bean) - allocatedBefore;
+                System.out.println(String.format("%s round %d: %.0f lines/s, %.1f MB/s, %.0f ns/line, %.1f bytes allocated/line",
+                                                 names[type],
+                                                 i,
+                                                 numLines / (ns / 1000000000.0),
+                                                 megaBytes / (ns / 1000000000.0),
+                                                 (double)ns / numLines,
+                                                 (double)allocated / numLines));
+            }
+        }
+        if(0 < args.length)
+        {
+            bench.runParallel(new File(args[0]));
+        }
+        else
+        {
+            bench.runParallel(bench.writeTempFile());
+        }
+        System.out.println("check sum: " + bench.sum);
+    }
+
+}
@@ -8,7 +8,7 @@ public class GCodeStub implements GCode
     }
 
     @Override
-    public GCode getGCodeFrom(String line)
+    public GCode getGCodeFrom(CharSequence line)
     {
         return this;
     }
@@ -37,6 +37,12 @@ public class GCodeStub implements GCode
         return null;
     }
 
+    @Override
+    public int getCalculatedChecksum()
+    {
+        return 0;
+    }
+
     @Override
     public boolean isEmpty()
     {
@@ -0,0 +1,183 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Vector;
+import java.util.zip.CRC32;
+
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import de.nomagic.printerController.Axis_enum;
+import de.nomagic.printerController.Cfg;
+import de.nomagic.printerController.core.devices.Stepper;
+import de.nomagic.printerController.core.movement.BasicLinearMove;
+import de.nomagic.printerController.core.movement.PlannedMoves;
+import de.nomagic.printerController.core.movement.XyzTable;
+import de.nomagic.printerController.pacemaker.Protocol;
+
+/** measures the throughput of G1 lines to encoded basic linear move blocks.
+ *
+ * Not a unit test. Run with "ant benchmark" or directly:
+ * java de.nomagic.printerController.core.MoveEncodingBenchmark [moves per round]
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public final class MoveEncodingBenchmark
+{
+    public static final int DEFAULT_MOVES_PER_ROUND = 200000;
+    public static final int WARM_UP_ROUNDS = 5;
+    public static final int MEASURED_ROUNDS = 5;
+
+    private long encodedBytes = 0;
+    private long encodedBlocks = 0;
+    // to check that changes do not change the encoded data
+    private final CRC32 encodedCrc = new CRC32();
+    private final ByteBuffer encodeBuffer = ByteBuffer.allocate(256);
+    private final GCodeDecoder decoder;
+    private final String[] lines;
+
+    private MoveEncodingBenchmark(int numLines)
+    {
+        final XyzTable table = new XyzTable(new Cfg());
+        table.setMaxClientStepsPerSecond(40000);
+        int stepperNumber = 0;
+        for(Axis_enum axis : Axis_enum.values())
+        {
+            table.addStepper(axis, new Stepper(stepperNumber, 100000, 40000, false, 80, 10));
+            stepperNumber++;
+        }
+        final TimeoutHandler to = new TimeoutHandler()
+        {
+            @Override
+            public int createTimeout(Event e, int ms)
+            {
+                return 1;
+            }
+
+            @Override
+            public void startTimeout(int timeoutId)
+            {
+            }
+
+            @Override
+            public void stopTimeout(int timeoutId)
+            {
+            }
+        };
+        final Protocol pro = new Protocol(null, null)
+        {
+            @Override
+            public boolean addBasicLinearMove(BasicLinearMove[] aMove)
+            {
+                if(null == aMove)
+                {
+                    return true;
+                }
+                for(int i = 0; i < aMove.length; i++)
+                {
+                    // same as the send queue of the protocol does it
+                    encodeBuffer.clear();
+                    aMove[i].encodeTo(encodeBuffer);
+                    encodedBytes = encodedBytes + encodeBuffer.position();
+                    encodedCrc.update(encodeBuffer.array(), 0, encodeBuffer.position());
+                    encodedBlocks++;
+                }
+                return true;
+            }
+        };
+        final PlannedMoves planner = new PlannedMoves(40000, to);
+        planner.addProtocol(pro);
+        table.addMovementQueue(planner);
+        final ExecutorStub exe = new ExecutorStub()
+        {
+            @Override
+            public boolean addMoveTo(RelativeMove relMove, Reference ref)
+            {
+                return table.addRelativeMove(relMove, ref);
+            }
+        };
+        decoder = new GCodeDecoder(exe, new SDCardSimulationStub());
+        // polygon with 360 corners, like the outline of a round part
+        final Vector<String> gcode = new Vector<String>();
+        double e = 0.0;
+        for(int i = 0; i < numLines; i++)
+        {
+            final double angle = Math.toRadians(i % 360);
+            e = e + 0.05;
+            gcode.add(String.format("G1 X%.3f Y%.3f E%.5f F3000",
+                                    100 + (50 * Math.cos(angle)),
+                                    100 + (50 * Math.sin(angle)),
+                                    e));
+        }
+        lines = gcode.toArray(new String[0]);
+    }
+
+    private long runRound()
+    {
+        final long start = System.nanoTime();
+        for(int i = 0; i < lines.length; i++)
+        {
+            decoder.sendLine(lines[i], null);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long getAllocatedBytes(ThreadMXBean bean)
+    {
+        if(bean instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    public static void main(String[] args)
+    {
+        final Logger rootLogger = (Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
+        rootLogger.setLevel(Level.WARN);
+        int numLines = DEFAULT_MOVES_PER_ROUND;
+        if(0 < args.length)
+        {
+            numLines = Integer.parseInt(args[0]);
+        }
+        final MoveEncodingBenchmark bench = new MoveEncodingBenchmark(numLines);
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        for(int i = 0; i < WARM_UP_ROUNDS; i++)
+        {
+            bench.runRound();
+        }
+        for(int i = 0; i < MEASURED_ROUNDS; i++)
+        {
+            final long blocksBefore = bench.encodedBlocks;
+            final long allocatedBefore = getAllocatedBytes(bean);
+            final long ns = bench.runRound();
+            final long allocated = getAllocatedBytes(bean) - allocatedBefore;
+            System.out.println(String.format("round %d: %.0f moves/s, %d blocks, %.0f ns/move, %.0f bytes allocated/move, crc %08x",
+                                             i,
+                                             numLines / (ns / 1000000000.0),
+                                             bench.encodedBlocks - blocksBefore,
+                                             (double)ns / numLines,
+                                             (double)allocated / numLines,
+                                             bench.encodedCrc.getValue()));
+        }
+    }
+
+}
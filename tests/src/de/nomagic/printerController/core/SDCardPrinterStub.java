@@ -36,4 +36,9 @@ public class SDCardPrinterStub implements SDCardPrinter
         return false;
     }
 
+    @Override
+    public void close()
+    {
+    }
+
 }
@@ -0,0 +1,285 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.nomagic.printerController.Axis_enum;
+import de.nomagic.printerController.Cfg;
+import de.nomagic.printerController.Heater_enum;
+import de.nomagic.printerController.pacemaker.Protocol;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestGCodeCompiler
+{
+    private static final int CLIENT_STEPS_PER_SECOND = 40000;
+    private final Vector<File> files = new Vector<File>();
+
+    private File createFile(String suffix) throws IOException
+    {
+        final File f = File.createTempFile("TestGCodeCompiler", suffix);
+        files.add(f);
+        return f;
+    }
+
+    private File writeGCode(String content) throws IOException
+    {
+        final File f = createFile(".gcode");
+        final FileOutputStream out = new FileOutputStream(f);
+        try
+        {
+            out.write(content.getBytes(Charset.forName("US-ASCII")));
+        }
+        finally
+        {
+            out.close();
+        }
+        return f;
+    }
+
+    @After
+    public void tearDown()
+    {
+        for(int i = 0; i < files.size(); i++)
+        {
+            files.get(i).delete();
+        }
+    }
+
+    private static Cfg getCfg(double stepsPerMillimeter)
+    {
+        final Cfg cfg = new Cfg();
+        cfg.setClientDeviceString(0, "TCP:localhost:12345");
+        cfg.setUseSteppers(0, true);
+        cfg.addHeater(0, 0, Heater_enum.Extruder_0);
+        final Axis_enum[] axis = {Axis_enum.X, Axis_enum.Y, Axis_enum.Z, Axis_enum.E};
+        for(int i = 0; i < axis.length; i++)
+        {
+            cfg.addStepper(0, i, axis[i]);
+            cfg.setMovementDirectionInverted(0, i, false);
+            cfg.setSteppsPerMillimeterFor(0, i, stepsPerMillimeter);
+            cfg.setMaxSpeedFor(0, i, CLIENT_STEPS_PER_SECOND);
+            cfg.setMaxAccelerationFor(0, i, 3000.0);
+            cfg.setMaxJerkMmSFor(0, i, 10.0);
+        }
+        return cfg;
+    }
+
+    private static String getGCode()
+    {
+        final StringBuffer sb = new StringBuffer();
+        sb.append("M104 S200\n");
+        sb.append("G1 F3000\n");
+        for(int i = 0; i < 50; i++)
+        {
+            final double angle = Math.toRadians(i * 7.2);
+            sb.append(String.format("G1 X%.3f Y%.3f E%.5f\n",
+                                    50 + (20 * Math.cos(angle)),
+                                    50 + (20 * Math.sin(angle)),
+                                    0.05 * i));
+        }
+        sb.append("M106 S128\n");
+        sb.append("M109 S210\n");
+        sb.append("G4 P0.5\n");
+        sb.append("G1 X10 Y10\n");
+        return sb.toString();
+    }
+
+    private File compile(Cfg cfg, String gcode) throws IOException
+    {
+        final File compiled = createFile(CompiledGCodeFile.FILE_EXTENSION);
+        final GCodeCompiler dut = new GCodeCompiler(cfg, CLIENT_STEPS_PER_SECOND);
+        assertTrue(dut.isOperational());
+        final boolean res = dut.compile(writeGCode(gcode), compiled, null);
+        dut.close(new Reference("test"));
+        assertTrue(dut.getLastErrorReason(), res);
+        return compiled;
+    }
+
+    @Test
+    public void testCompile() throws IOException
+    {
+        final Cfg cfg = getCfg(80.0);
+        final File compiled = compile(cfg, getGCode());
+        final CompiledGCodeReader reader = new CompiledGCodeReader(compiled);
+        assertArrayEquals(CompiledGCodeFile.getConfigurationHash(cfg, CLIENT_STEPS_PER_SECOND),
+                          reader.getConfigurationHash());
+        assertEquals(CLIENT_STEPS_PER_SECOND, reader.getMaxClientStepsPerSecond());
+        assertEquals(1, reader.getNumberOfClients());
+
+        // M104 -> moves -> M106 -> M109 -> pause -> move
+        int type = reader.next();
+        assertEquals(CompiledGCodeFile.RECORD_COMMAND, type);
+        assertEquals(CompiledGCodeFile.COMMAND_EXTRUDER_TEMPERATURE, reader.getCommand());
+        assertEquals(200.0, reader.getDoubleParameter(), 0.0);
+        int moveBlocks = 0;
+        type = reader.next();
+        while(CompiledGCodeFile.RECORD_BLOCK == type)
+        {
+            assertEquals(0, reader.getClient());
+            assertEquals(Protocol.MOVEMENT_BLOCK_TYPE_BASIC_LINEAR_MOVE, reader.getBlock()[1]);
+            moveBlocks++;
+            type = reader.next();
+        }
+        // the moves of the look ahead are still in the planner
+        assertTrue(0 < moveBlocks);
+        assertEquals(CompiledGCodeFile.RECORD_COMMAND, type);
+        assertEquals(CompiledGCodeFile.COMMAND_FAN_SPEED, reader.getCommand());
+        // M106 scales the speed to 0..0xffff
+        assertEquals(128.0 * 257, reader.getDoubleParameter(), 0.0);
+        // all moves get send before the wait for the temperature.
+        type = reader.next();
+        while(CompiledGCodeFile.RECORD_BLOCK == type)
+        {
+            assertEquals(Protocol.MOVEMENT_BLOCK_TYPE_BASIC_LINEAR_MOVE, reader.getBlock()[1]);
+            moveBlocks++;
+            type = reader.next();
+        }
+        assertTrue(45 < moveBlocks);
+        assertEquals(CompiledGCodeFile.RECORD_COMMAND, type);
+        assertEquals(CompiledGCodeFile.COMMAND_EXTRUDER_TEMPERATURE_AND_WAIT, reader.getCommand());
+        assertEquals(210.0, reader.getDoubleParameter(), 0.0);
+        assertEquals(CompiledGCodeFile.RECORD_BLOCK, reader.next());
+        assertArrayEquals(Protocol.encodePause(5001), Arrays.copyOf(reader.getBlock(), 4));
+        assertEquals(CompiledGCodeFile.RECORD_BLOCK, reader.next());
+        assertEquals(Protocol.MOVEMENT_BLOCK_TYPE_BASIC_LINEAR_MOVE, reader.getBlock()[1]);
+        while(CompiledGCodeFile.RECORD_BLOCK == (type = reader.next()))
+        {
+            assertEquals(Protocol.MOVEMENT_BLOCK_TYPE_BASIC_LINEAR_MOVE, reader.getBlock()[1]);
+        }
+        assertEquals(CompiledGCodeFile.RECORD_END, type);
+        assertEquals(CompiledGCodeFile.RECORD_END, reader.next());
+        assertEquals(100, reader.getPercentDone());
+        reader.close();
+    }
+
+    @Test
+    public void testPauseKeepsOrder() throws IOException
+    {
+        final File compiled = compile(getCfg(80.0), "G1 F3000\nG1 X10\nG1 X20 Y5\nG4 P0.5\nG1 X30\n");
+        final CompiledGCodeReader reader = new CompiledGCodeReader(compiled);
+        assertEquals(CompiledGCodeFile.RECORD_BLOCK, reader.next());
+        assertEquals(Protocol.MOVEMENT_BLOCK_TYPE_BASIC_LINEAR_MOVE, reader.getBlock()[1]);
+        assertEquals(CompiledGCodeFile.RECORD_BLOCK, reader.next());
+        assertEquals(Protocol.MOVEMENT_BLOCK_TYPE_BASIC_LINEAR_MOVE, reader.getBlock()[1]);
+        // the pause comes after the moves before it and not at once
+        assertEquals(CompiledGCodeFile.RECORD_BLOCK, reader.next());
+        assertArrayEquals(Protocol.encodePause(5001), Arrays.copyOf(reader.getBlock(), 4));
+        assertEquals(CompiledGCodeFile.RECORD_BLOCK, reader.next());
+        assertEquals(Protocol.MOVEMENT_BLOCK_TYPE_BASIC_LINEAR_MOVE, reader.getBlock()[1]);
+        assertEquals(CompiledGCodeFile.RECORD_END, reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testCompileIsRepeatable() throws IOException
+    {
+        final File first = compile(getCfg(80.0), getGCode());
+        final File second = compile(getCfg(80.0), getGCode());
+        assertArrayEquals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath()));
+    }
+
+    @Test
+    public void testConfigurationHash()
+    {
+        final byte[] hash = CompiledGCodeFile.getConfigurationHash(getCfg(80.0), CLIENT_STEPS_PER_SECOND);
+        assertEquals(CompiledGCodeFile.HASH_LENGTH, hash.length);
+        // the connection does not matter
+        final Cfg otherConnection = getCfg(80.0);
+        otherConnection.setClientDeviceString(0, "UART:/dev/ttyACM0,115200,8,None,1");
+        assertArrayEquals(hash, CompiledGCodeFile.getConfigurationHash(otherConnection, CLIENT_STEPS_PER_SECOND));
+        // but the steps do
+        assertFalse(Arrays.equals(hash,
+                CompiledGCodeFile.getConfigurationHash(getCfg(100.0), CLIENT_STEPS_PER_SECOND)));
+        assertFalse(Arrays.equals(hash,
+                CompiledGCodeFile.getConfigurationHash(getCfg(80.0), CLIENT_STEPS_PER_SECOND / 2)));
+    }
+
+    @Test
+    public void testIndex() throws IOException
+    {
+        final StringBuffer sb = new StringBuffer();
+        for(int i = 0; i < 3500; i++)
+        {
+            sb.append("G1 X" + (i % 2) + " Y" + (i % 3) + " F3000\n");
+        }
+        final File compiled = compile(getCfg(80.0), sb.toString());
+        final CompiledGCodeReader reader = new CompiledGCodeReader(compiled);
+        assertEquals(2000, reader.seekToLine(2500));
+        assertEquals(2000, reader.getSourceLine());
+        int blocks = 0;
+        while(CompiledGCodeFile.RECORD_BLOCK == reader.next())
+        {
+            blocks++;
+        }
+        assertTrue(blocks > 1000);
+        assertTrue(blocks < 1600);
+        assertEquals(3000, reader.getSourceLine());
+        assertEquals(0, reader.seekToLine(5));
+        assertEquals(CompiledGCodeFile.RECORD_BLOCK, reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testIncompleteFileIsRejected() throws IOException
+    {
+        final File compiled = compile(getCfg(80.0), getGCode());
+        final RandomAccessFile raf = new RandomAccessFile(compiled, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        try
+        {
+            new CompiledGCodeReader(compiled);
+            fail("truncated file has been accepted");
+        }
+        catch(IOException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInvalidGCode() throws IOException
+    {
+        final File compiled = createFile(CompiledGCodeFile.FILE_EXTENSION);
+        final GCodeCompiler dut = new GCodeCompiler(getCfg(80.0), CLIENT_STEPS_PER_SECOND);
+        assertFalse(dut.compile(writeGCode("G1 X10 F3000\nM303 S200\n"), compiled, null));
+        assertNotNull(dut.getLastErrorReason());
+        dut.close(new Reference("test"));
+        assertFalse(compiled.exists());
+        // there is no heater for the print bed
+        final GCodeCompiler noBed = new GCodeCompiler(getCfg(80.0), CLIENT_STEPS_PER_SECOND);
+        assertFalse(noBed.compile(writeGCode("M140 S60\n"), compiled, null));
+        noBed.close(new Reference("test"));
+        assertFalse(new GCodeCompiler(new Cfg(), CLIENT_STEPS_PER_SECOND).isOperational());
+    }
+
+}
@@ -5,10 +5,14 @@ package de.nomagic.printerController.core;
 
 import static org.junit.Assert.*;
 
+import java.util.Vector;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import de.nomagic.printerController.Axis_enum;
+
 /**
  * @author lars
  *
@@ -419,6 +423,13 @@ public class TestGCodeDecoder
     	assertEquals("!! M112 failed", dut.sendLine("M112", null));
     }
 
+    @Test
+    public void testSendLine_Code_M78()
+    {
+    	exe.set_getConnectionStatisticsReturn("frames sent: 3\r\n");
+    	assertEquals("frames sent: 3\r\nok", dut.sendLine("M78", null));
+    }
+
     @Test
     public void testSendLine_Code_M115()
     {
@@ -554,4 +565,113 @@ public class TestGCodeDecoder
         assertEquals("G-Code is invalid !", dut.getLastErrorReason());
     }
 
+    private void checkArc(double centreX, double centreY, double radius, double endX, double endY)
+    {
+        final Vector<RelativeMove> moves = exe.getAddedMoves();
+        assertTrue(1 < moves.size());
+        double x = 0.0;
+        double y = 0.0;
+        for(int i = 0; i < moves.size(); i++)
+        {
+            final RelativeMove m = moves.get(i);
+            final double midX = x + (m.get(Axis_enum.X) / 2);
+            final double midY = y + (m.get(Axis_enum.Y) / 2);
+            x = x + m.get(Axis_enum.X);
+            y = y + m.get(Axis_enum.Y);
+            // all points are on the arc
+            assertEquals(radius, Math.hypot(x - centreX, y - centreY), 0.0001);
+            // the chord does not leave the arc by more than the tolerance
+            assertTrue(GCodeDecoder.DEFAULT_ARC_TOLERANCE_MM + 0.0001 > radius - Math.hypot(midX - centreX, midY - centreY));
+        }
+        assertEquals(endX, x, 0.0001);
+        assertEquals(endY, y, 0.0001);
+    }
+
+    @Test
+    public void testSendLine_Code_G2()
+    {
+        exe.setReturnFor_addMoveTo(true);
+        assertEquals("ok", dut.sendLine("G2 X10 Y10 I10 J0", null));
+        checkArc(10, 0, 10, 10, 10);
+        // clockwise quarter circle
+        final RelativeMove first = exe.getAddedMoves().get(0);
+        assertTrue(0.0 < first.get(Axis_enum.Y));
+        assertTrue(20 > exe.getAddedMoves().size());
+    }
+
+    @Test
+    public void testSendLine_Code_G3_Radius()
+    {
+        exe.setReturnFor_addMoveTo(true);
+        assertEquals("ok", dut.sendLine("G3 X10 Y10 R10", null));
+        checkArc(0, 10, 10, 10, 10);
+    }
+
+    @Test
+    public void testSendLine_Code_G3_NegativeRadius()
+    {
+        exe.setReturnFor_addMoveTo(true);
+        assertEquals("ok", dut.sendLine("G3 X10 Y10 R-10", null));
+        // the larger arc
+        checkArc(10, 0, 10, 10, 10);
+    }
+
+    @Test
+    public void testSendLine_Code_G2_FullCircleHelix()
+    {
+        exe.setReturnFor_addMoveTo(true);
+        assertEquals("ok", dut.sendLine("G2 I5 Z1 E2 F600", null));
+        checkArc(5, 0, 5, 0, 0);
+        double z = 0.0;
+        double e = 0.0;
+        for(RelativeMove m : exe.getAddedMoves())
+        {
+            z = z + m.get(Axis_enum.Z);
+            e = e + m.get(Axis_enum.E);
+        }
+        assertEquals(1.0, z, 0.0001);
+        assertEquals(2.0, e, 0.0001);
+    }
+
+    @Test
+    public void testSendLine_Code_G2_TinyArcIsNoFullCircle()
+    {
+        exe.setReturnFor_addMoveTo(true);
+        // large radius -> the angle of the arc is smaller than the minimum distance in mm
+        assertEquals("ok", dut.sendLine("G2 X0 Y0.005 I1000 J0", null));
+        double x = 0.0;
+        double y = 0.0;
+        double length = 0.0;
+        for(RelativeMove m : exe.getAddedMoves())
+        {
+            x = x + m.get(Axis_enum.X);
+            y = y + m.get(Axis_enum.Y);
+            length = length + Math.hypot(m.get(Axis_enum.X), m.get(Axis_enum.Y));
+        }
+        assertEquals(0.0, x, 0.0001);
+        assertEquals(0.005, y, 0.0001);
+        assertTrue(0.01 > length);
+    }
+
+    @Test
+    public void testSendLine_Code_G2_Errors()
+    {
+        exe.setReturnFor_addMoveTo(true);
+        assertEquals("!! G2 needs I,J or R !", dut.sendLine("G2 X10 Y10", null));
+        assertEquals("!! G3: no arc with radius 1.0 to this end point !", dut.sendLine("G3 X10 Y10 R1", null));
+        assertEquals(0, exe.getAddedMoves().size());
+    }
+
+    @Test
+    public void testNumberOfArcChords()
+    {
+        // quarter circle with radius 10mm
+        final double length = Math.PI * 5;
+        assertEquals(18, GCodeDecoder.getNumberOfArcChords(10, length, 0.01, 600));
+        // faster -> longer chords
+        assertEquals(11, GCodeDecoder.getNumberOfArcChords(10, length, 0.01, 18000));
+        // tiny arcs are still at least one move
+        assertEquals(1, GCodeDecoder.getNumberOfArcChords(0.01, 0.001, 0.01, 600));
+    }
+
 }
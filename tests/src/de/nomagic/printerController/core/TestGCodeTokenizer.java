@@ -0,0 +1,148 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestGCodeTokenizer
+{
+    private final GCodeTokenizer dut = new GCodeTokenizer();
+
+    private static int getChecksum(String line)
+    {
+        int cs = 0;
+        for(int i = 0; (i < line.length()) && ('*' != line.charAt(i)); i++)
+        {
+            cs = cs ^ line.charAt(i);
+        }
+        return cs & 0xff;
+    }
+
+    @Test
+    public void testWords()
+    {
+        assertTrue(dut.parse("G1 X10.5 Y-3.25 E0.00123 F3000"));
+        assertFalse(dut.isEmpty());
+        assertEquals(1.0, dut.getWordValue('G', 0.0), 0.0);
+        assertEquals(10.5, dut.getWordValue('X', 0.0), 0.0);
+        assertEquals(-3.25, dut.getWordValue('Y', 0.0), 0.0);
+        assertEquals(0.00123, dut.getWordValue('E', 0.0), 0.0);
+        assertEquals(3000.0, dut.getWordValue('F', 0.0), 0.0);
+        assertFalse(dut.hasWord('Z'));
+        assertEquals(7.0, dut.getWordValue('Z', 7.0), 0.0);
+        assertFalse(dut.hasWord('U'));
+    }
+
+    @Test
+    public void testValuesAreSameAsParseDouble()
+    {
+        final String[] numbers = {"0.1", "0.3", "-0.7", "123.456", "+.5", "5.", "99999.99999", "0.000001",
+                                  "1234567890.12345", "0.12345678901234567", "-0"};
+        for(int i = 0; i < numbers.length; i++)
+        {
+            assertTrue(numbers[i], dut.parse("G1 X" + numbers[i]));
+            assertEquals(numbers[i],
+                         Double.doubleToLongBits(Double.parseDouble(numbers[i])),
+                         Double.doubleToLongBits(dut.getWordValue('X', 1.0)));
+        }
+    }
+
+    @Test
+    public void testReuseForNextLine()
+    {
+        assertTrue(dut.parse("G1 X10 Y20"));
+        assertTrue(dut.parse("M104 S200"));
+        assertFalse(dut.hasWord('G'));
+        assertFalse(dut.hasWord('X'));
+        assertEquals(104.0, dut.getWordValue('M', 0.0), 0.0);
+        assertEquals(200.0, dut.getWordValue('S', 0.0), 0.0);
+        assertTrue(dut.parse(""));
+        assertTrue(dut.isEmpty());
+    }
+
+    @Test
+    public void testCaseWhitespaceAndComments()
+    {
+        assertTrue(dut.parse(" g1\tx1 0 (comment X5) y.5 ; Z7"));
+        assertEquals(10.0, dut.getWordValue('X', 0.0), 0.0);
+        assertEquals(0.5, dut.getWordValue('Y', 0.0), 0.0);
+        assertFalse(dut.hasWord('Z'));
+        assertTrue(dut.parse("; only a comment"));
+        assertTrue(dut.isEmpty());
+        // a comment that does not end ends with the line
+        assertTrue(dut.parse("G1 X2 (comment"));
+        assertEquals(2.0, dut.getWordValue('X', 0.0), 0.0);
+    }
+
+    @Test
+    public void testInvalidLines()
+    {
+        assertFalse(dut.parse("G1 X"));
+        assertFalse(dut.parse("G1 X1.2.3"));
+        assertFalse(dut.parse("G1 X1-2"));
+        assertFalse(dut.parse("G1 X#1"));
+        assertFalse(dut.parse("G1 O1"));
+        assertFalse(dut.parse("G1 X1)"));
+        assertTrue(dut.parse("G1 X1"));
+    }
+
+    @Test
+    public void testDisplayMessage()
+    {
+        // Marlin: the message follows the M117
+        assertTrue(dut.parse("M117 Hello World"));
+        assertEquals(117.0, dut.getWordValue('M', 0.0), 0.0);
+    }
+
+    @Test
+    public void testChecksum()
+    {
+        final String line = "N12 G1 X5 Y7 ; move*";
+        assertTrue(dut.parse(line + "52"));
+        assertEquals(12.0, dut.getWordValue('N', 0.0), 0.0);
+        assertEquals(1.0, dut.getWordValue('G', 0.0), 0.0);
+        // the checksum is behind the comment
+        assertFalse(dut.hasWord('*'));
+        assertEquals(getChecksum(line), dut.getChecksum());
+        final String numbered = "N3 G1 X5";
+        assertTrue(dut.parse(numbered + "*" + getChecksum(numbered)));
+        assertEquals(getChecksum(numbered), dut.getChecksum());
+        assertEquals(dut.getChecksum(), (int)dut.getWordValue('*', -1.0));
+        assertEquals(5.0, dut.getWordValue('X', 0.0), 0.0);
+    }
+
+    @Test
+    public void testBytes()
+    {
+        final byte[] buf = "xxxG1 X-1.5 E2\nG0 Y3".getBytes(Charset.forName("US-ASCII"));
+        assertTrue(dut.parse(buf, 3, 11));
+        assertEquals(1.0, dut.getWordValue('G', 0.0), 0.0);
+        assertEquals(-1.5, dut.getWordValue('X', 0.0), 0.0);
+        assertEquals(2.0, dut.getWordValue('E', 0.0), 0.0);
+        assertFalse(dut.hasWord('Y'));
+        assertEquals("G1 X-1.5 E2", dut.getLine());
+        assertEquals(getChecksum("G1 X-1.5 E2"), dut.getChecksum());
+    }
+
+}
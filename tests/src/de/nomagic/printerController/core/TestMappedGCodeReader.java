@@ -0,0 +1,143 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestMappedGCodeReader
+{
+    private File gcodeFile = null;
+
+    private File writeFile(String content) throws IOException
+    {
+        gcodeFile = File.createTempFile("TestMappedGCodeReader", ".gcode");
+        final FileOutputStream out = new FileOutputStream(gcodeFile);
+        try
+        {
+            out.write(content.getBytes(Charset.forName("US-ASCII")));
+        }
+        finally
+        {
+            out.close();
+        }
+        return gcodeFile;
+    }
+
+    @After
+    public void tearDown()
+    {
+        if(null != gcodeFile)
+        {
+            gcodeFile.delete();
+        }
+    }
+
+    private static void checkLines(MappedGCodeReader dut, String[] expected) throws IOException
+    {
+        for(int i = 0; i < expected.length; i++)
+        {
+            final CharSequence line = dut.readLine();
+            assertNotNull(line);
+            assertEquals(expected[i], line.toString());
+            assertEquals(i + 1, dut.getLinesRead());
+        }
+        assertNull(dut.readLine());
+        assertNull(dut.readLine());
+    }
+
+    @Test
+    public void testReadLines() throws IOException
+    {
+        final String content = "G28\nG1 X10 Y20\r\n\n; comment\nM104 S200";
+        final MappedGCodeReader dut = new MappedGCodeReader(writeFile(content));
+        assertEquals(content.length(), dut.getSize());
+        assertEquals(0, dut.getPercentDone());
+        checkLines(dut, new String[] {"G28", "G1 X10 Y20", "", "; comment", "M104 S200"});
+        assertEquals(content.length(), dut.getBytesRead());
+        assertEquals(100, dut.getPercentDone());
+        dut.close();
+    }
+
+    @Test
+    public void testLinesOverChunkBorders() throws IOException
+    {
+        final StringBuffer sb = new StringBuffer();
+        final String[] lines = new String[50];
+        for(int i = 0; i < lines.length; i++)
+        {
+            lines[i] = "G1 X" + i + " Y" + (i * 3);
+            sb.append(lines[i]);
+            sb.append('\n');
+        }
+        final MappedGCodeReader dut = new MappedGCodeReader(writeFile(sb.toString()), 16);
+        checkLines(dut, lines);
+        assertEquals(sb.length(), dut.getBytesRead());
+        dut.close();
+    }
+
+    @Test
+    public void testLineLongerThanChunk() throws IOException
+    {
+        final MappedGCodeReader dut = new MappedGCodeReader(writeFile("G1\nG1 X1234567890 Y1234567890\nG1\n"), 16);
+        assertEquals("G1", dut.readLine().toString());
+        try
+        {
+            dut.readLine();
+            fail();
+        }
+        catch(IOException e)
+        {
+            // expected
+        }
+        dut.close();
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException
+    {
+        final MappedGCodeReader dut = new MappedGCodeReader(writeFile(""));
+        assertNull(dut.readLine());
+        assertEquals(100, dut.getPercentDone());
+        dut.close();
+    }
+
+    @Test
+    public void testLineIsGCode() throws IOException
+    {
+        final MappedGCodeReader dut = new MappedGCodeReader(writeFile("G1 X1.5 E0.25 ; print\n"));
+        final CharSequence line = dut.readLine();
+        final GCodeTokenizer tokenizer = new GCodeTokenizer();
+        assertTrue(tokenizer.parse(line));
+        assertEquals(1.5, tokenizer.getWordValue('X', 0.0), 0.0);
+        assertEquals(0.25, tokenizer.getWordValue('E', 0.0), 0.0);
+        assertEquals('X', line.charAt(3));
+        assertEquals("X1.5", line.subSequence(3, 7).toString());
+        dut.close();
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestParallelGCodeReader
+{
+    private static final String WORDS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    private File gcodeFile = null;
+    private ForkJoinPool pool;
+
+    private File writeFile(String content) throws IOException
+    {
+        gcodeFile = File.createTempFile("TestParallelGCodeReader", ".gcode");
+        final FileOutputStream out = new FileOutputStream(gcodeFile);
+        try
+        {
+            out.write(content.getBytes(Charset.forName("US-ASCII")));
+        }
+        finally
+        {
+            out.close();
+        }
+        return gcodeFile;
+    }
+
+    @Before
+    public void setUp()
+    {
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown()
+    {
+        pool.shutdown();
+        if(null != gcodeFile)
+        {
+            gcodeFile.delete();
+        }
+    }
+
+    private static void checkSameAsTokenizer(GCode code, String line)
+    {
+        final GCodeTokenizer expected = new GCodeTokenizer();
+        expected.parse(line);
+        assertEquals(line, expected.isValid(), code.isValid());
+        assertEquals(line, expected.isEmpty(), code.isEmpty());
+        assertEquals(line, expected.getChecksum(), code.getCalculatedChecksum());
+        for(int i = 0; i < WORDS.length(); i++)
+        {
+            final char w = WORDS.charAt(i);
+            assertEquals(line, expected.hasWord(w), code.hasWord(w));
+            assertEquals(line, expected.getWordValue(w, -1.5), code.getWordValue(w, -1.5), 0.0);
+        }
+    }
+
+    private static void checkLines(ParallelGCodeReader dut, String[] expected) throws IOException
+    {
+        for(int i = 0; i < expected.length; i++)
+        {
+            assertTrue(dut.next());
+            assertEquals(expected[i], dut.getLine().toString());
+            assertEquals(i + 1, dut.getLinesRead());
+            checkSameAsTokenizer(dut.getGCode(), expected[i]);
+        }
+        assertFalse(dut.next());
+        assertFalse(dut.next());
+    }
+
+    @Test
+    public void testReadLines() throws IOException
+    {
+        final String content = "G28\nG1 X10 Y20\r\n\n; comment\nN5 M104 S200*23\nG1 X1 X2\nM104 S200";
+        final ParallelGCodeReader dut = new ParallelGCodeReader(writeFile(content), pool);
+        assertEquals(content.length(), dut.getSize());
+        assertEquals(0, dut.getPercentDone());
+        checkLines(dut, new String[] {"G28", "G1 X10 Y20", "", "; comment", "N5 M104 S200*23", "G1 X1 X2", "M104 S200"});
+        assertEquals(content.length(), dut.getBytesRead());
+        assertEquals(100, dut.getPercentDone());
+        dut.close();
+    }
+
+    @Test
+    public void testSmallBatchesAndParts() throws IOException
+    {
+        final StringBuffer sb = new StringBuffer();
+        final String[] lines = new String[500];
+        for(int i = 0; i < lines.length; i++)
+        {
+            switch(i % 4)
+            {
+            case 0: lines[i] = "G1 X" + i + " Y" + (i * 3) + " E" + (i * 0.25); break;
+            case 1: lines[i] = "G0 Z" + i + ".5 F3000 ; move"; break;
+            case 2: lines[i] = ""; break;
+            default: lines[i] = "M106 S" + (i % 256); break;
+            }
+            sb.append(lines[i]);
+            sb.append('\n');
+        }
+        for(int batch = 40; batch < 300; batch = batch * 2 + 1)
+        {
+            for(int split = 1; split < batch; split = split * 3 + 1)
+            {
+                final ParallelGCodeReader dut = new ParallelGCodeReader(writeFile(sb.toString()), pool, batch, split);
+                checkLines(dut, lines);
+                assertEquals(sb.length(), dut.getBytesRead());
+                dut.close();
+                gcodeFile.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException
+    {
+        final ParallelGCodeReader dut = new ParallelGCodeReader(writeFile(""), pool);
+        assertFalse(dut.next());
+        assertEquals(100, dut.getPercentDone());
+        dut.close();
+    }
+
+    @Test
+    public void testLineLongerThanBatch() throws IOException
+    {
+        try
+        {
+            final ParallelGCodeReader dut = new ParallelGCodeReader(writeFile("G1\nG1 X1234567890 Y1234567890\nG1\n"),
+                                                                    pool, 16, 4);
+            assertTrue(dut.next());
+            assertEquals("G1", dut.getLine().toString());
+            dut.next();
+            dut.close();
+            fail();
+        }
+        catch(IOException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDecodeParsedLines()
+    {
+        final GCodeTokenizer tokenizer = new GCodeTokenizer();
+        final ParsedGCodeLines lines = new ParsedGCodeLines(1, 0);
+        final String[] src = {"G1 X1 Y2 Z3 E4 F5", "M117 Hello", "", "G1 X", "T1"};
+        for(int i = 0; i < src.length; i++)
+        {
+            tokenizer.parse(src[i]);
+            lines.add(tokenizer, i, src[i].length());
+        }
+        assertEquals(src.length, lines.size());
+        final ParsedGCode code = new ParsedGCode();
+        for(int i = 0; i < src.length; i++)
+        {
+            code.set(lines, i, src[i]);
+            checkSameAsTokenizer(code, src[i]);
+        }
+        code.set(lines, 1, src[1]);
+        assertEquals(new GCodeImpl(src[1]).getLineWithoutCommentWithoutWord('M'),
+                     code.getLineWithoutCommentWithoutWord('M'));
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestReadAheadLineReader
+{
+    private File gcodeFile = null;
+
+    private RandomAccessFile writeFile(String content) throws IOException
+    {
+        if(null == gcodeFile)
+        {
+            gcodeFile = File.createTempFile("TestReadAheadLineReader", ".gcode");
+        }
+        final FileOutputStream out = new FileOutputStream(gcodeFile);
+        try
+        {
+            out.write(content.getBytes(Charset.forName("US-ASCII")));
+        }
+        finally
+        {
+            out.close();
+        }
+        return new RandomAccessFile(gcodeFile, "r");
+    }
+
+    @After
+    public void tearDown()
+    {
+        if(null != gcodeFile)
+        {
+            gcodeFile.delete();
+        }
+    }
+
+    private static void checkLines(ReadAheadLineReader dut, String content, long start, String[] expected)
+            throws IOException
+    {
+        long pos = start;
+        for(int i = 0; i < expected.length; i++)
+        {
+            final CharSequence line = dut.readLine();
+            assertNotNull(line);
+            assertEquals(expected[i], line.toString());
+            final int end = content.indexOf('\n', (int)pos);
+            pos = (-1 == end) ? content.length() : end + 1;
+            assertEquals(pos, dut.getPosition());
+        }
+        assertNull(dut.readLine());
+        assertNull(dut.readLine());
+        assertEquals(content.length(), dut.getPosition());
+    }
+
+    @Test
+    public void testReadLines() throws IOException
+    {
+        final String content = "G28\nG1 X10 Y20\r\n\n; comment\nM104 S200";
+        final ReadAheadLineReader dut = new ReadAheadLineReader(writeFile(content), 0);
+        assertEquals(content.length(), dut.getSize());
+        assertEquals(0, dut.getPosition());
+        checkLines(dut, content, 0, new String[] {"G28", "G1 X10 Y20", "", "; comment", "M104 S200"});
+        dut.close();
+    }
+
+    @Test
+    public void testLinesOverBufferBorders() throws IOException
+    {
+        final StringBuffer sb = new StringBuffer();
+        final String[] lines = new String[200];
+        for(int i = 0; i < lines.length; i++)
+        {
+            lines[i] = "G1 X" + i + " Y" + (i * 3);
+            sb.append(lines[i]);
+            sb.append("\r\n");
+        }
+        for(int size = 1; size < 40; size = size + 3)
+        {
+            final ReadAheadLineReader dut = new ReadAheadLineReader(writeFile(sb.toString()), 0, size, 2);
+            checkLines(dut, sb.toString(), 0, lines);
+            dut.close();
+        }
+    }
+
+    @Test
+    public void testStartPosition() throws IOException
+    {
+        final String content = "G28\nG1 X10 Y20\nG1 X20\n";
+        ReadAheadLineReader dut = new ReadAheadLineReader(writeFile(content), 4, 5, 3);
+        checkLines(dut, content, 4, new String[] {"G1 X10 Y20", "G1 X20"});
+        dut.close();
+        dut = new ReadAheadLineReader(writeFile(content), content.length());
+        checkLines(dut, content, content.length(), new String[0]);
+        dut.close();
+        try
+        {
+            dut = new ReadAheadLineReader(writeFile(content), content.length() + 1);
+            fail();
+        }
+        catch(IOException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException
+    {
+        final ReadAheadLineReader dut = new ReadAheadLineReader(writeFile(""), 0);
+        assertNull(dut.readLine());
+        dut.close();
+    }
+
+    @Test
+    public void testCloseWhileReadingAhead() throws IOException
+    {
+        final StringBuffer sb = new StringBuffer();
+        for(int i = 0; i < 1000; i++)
+        {
+            sb.append("G1 X" + i + "\n");
+        }
+        final ReadAheadLineReader dut = new ReadAheadLineReader(writeFile(sb.toString()), 0, 16, 2);
+        assertEquals("G1 X0", dut.readLine().toString());
+        dut.close();
+        try
+        {
+            dut.readLine();
+            fail();
+        }
+        catch(IOException e)
+        {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestSDCardPrinter
+{
+    public static final int THROUGHPUT_LINES = 200000;
+
+    private File gcodeFile;
+    private String fileName;
+    // start of each line in the file, last entry is the file length
+    private long[] lineStart;
+    private SDCardSimulation sdCard;
+    private GCodeDecoder decoder;
+    private SDCardPrinterImpl dut;
+    private volatile int moves = 0;
+    private volatile int pauseAtMove = -1;
+    // the print thread waits in the Executor until the test continues
+    private volatile int holdAtMove = -1;
+    private final CountDownLatch continueMoves = new CountDownLatch(1);
+    private final CountDownLatch isHolding = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException
+    {
+        gcodeFile = File.createTempFile("TestSDCardPrinter", ".gcode");
+        fileName = gcodeFile.getAbsolutePath();
+        sdCard = new SDCardSimulationImpl(gcodeFile.getParentFile());
+        final ExecutorStub exe = new ExecutorStub()
+        {
+            @Override
+            public boolean addMoveTo(RelativeMove relMove, Reference ref)
+            {
+                moves++;
+                if(moves == pauseAtMove)
+                {
+                    dut.pausePrinting();
+                }
+                if(moves == holdAtMove)
+                {
+                    isHolding.countDown();
+                    try
+                    {
+                        continueMoves.await();
+                    }
+                    catch(InterruptedException e)
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+        decoder = new GCodeDecoder(exe, sdCard);
+        dut = new SDCardPrinterImpl(sdCard, decoder);
+        decoder.addSDCardPrinter(dut);
+    }
+
+    @After
+    public void tearDown()
+    {
+        decoder.close();
+        gcodeFile.delete();
+    }
+
+    /** writes the file the same way M28 does. */
+    private void writeFile(int numLines)
+    {
+        assertTrue(sdCard.createAndOpenNewFile(fileName));
+        lineStart = new long[numLines + 1];
+        long pos = 0;
+        for(int i = 0; i < numLines; i++)
+        {
+            final String line = "G1 X" + (i % 200) + " Y" + (i % 201) + " F3000";
+            assertTrue(sdCard.appendToFile(line));
+            lineStart[i] = pos;
+            pos = pos + line.length() + 2;
+        }
+        lineStart[numLines] = pos;
+        sdCard.closeFile();
+        assertEquals(pos, gcodeFile.length());
+    }
+
+    private void waitUntilIdle() throws InterruptedException
+    {
+        assertTrue(dut.waitUntilIdle(60000));
+    }
+
+    @Test
+    public void testPrintFile() throws InterruptedException
+    {
+        writeFile(1000);
+        assertEquals("No SD Card Print active.", dut.getPrintStatus());
+        assertTrue(dut.startResumePrinting(fileName));
+        waitUntilIdle();
+        assertEquals(1000, moves);
+        assertEquals("No SD Card Print active.", dut.getPrintStatus());
+        // and once more
+        assertTrue(dut.startResumePrinting(fileName));
+        waitUntilIdle();
+        assertEquals(2000, moves);
+    }
+
+    @Test
+    public void testMissingFile()
+    {
+        assertFalse(dut.startResumePrinting(fileName + ".missing"));
+        assertFalse(dut.startResumePrinting(null));
+    }
+
+    @Test
+    public void testPauseAndResume() throws InterruptedException
+    {
+        writeFile(1000);
+        pauseAtMove = 100;
+        assertTrue(dut.startResumePrinting(fileName));
+        waitUntilIdle();
+        assertEquals(100, moves);
+        final String status = dut.getPrintStatus();
+        assertTrue(status, status.contains("paused"));
+        assertTrue(status, status.contains("position in File : " + lineStart[100] + "\n"));
+        assertTrue(status, status.contains("File Length : " + lineStart[1000] + "\n"));
+        // still paused
+        Thread.sleep(20);
+        assertEquals(100, moves);
+        assertTrue(dut.startResumePrinting(fileName));
+        waitUntilIdle();
+        assertEquals(1000, moves);
+    }
+
+    @Test
+    public void testResumeAtPosition() throws InterruptedException
+    {
+        writeFile(1000);
+        pauseAtMove = 100;
+        assertTrue(dut.startResumePrinting(fileName));
+        waitUntilIdle();
+        assertEquals(100, moves);
+        assertFalse(dut.setSDCardPosition(lineStart[1000] + 1));
+        assertFalse(dut.setSDCardPosition(-1));
+        assertTrue(dut.setSDCardPosition(lineStart[500]));
+        assertTrue(dut.getPrintStatus().contains("position in File : " + lineStart[100] + "\n"));
+        assertTrue(dut.startResumePrinting(fileName));
+        waitUntilIdle();
+        assertEquals(600, moves);
+    }
+
+    @Test
+    public void testPositionBeforeStart() throws InterruptedException
+    {
+        writeFile(1000);
+        assertTrue(dut.setSDCardPosition(lineStart[990]));
+        assertTrue(dut.startResumePrinting(fileName));
+        waitUntilIdle();
+        assertEquals(10, moves);
+        // the position is only used once
+        assertTrue(dut.startResumePrinting(fileName));
+        waitUntilIdle();
+        assertEquals(1010, moves);
+    }
+
+    @Test
+    public void testNoPositionChangeWhilePrinting() throws InterruptedException
+    {
+        writeFile(1000);
+        holdAtMove = 10;
+        assertTrue(dut.startResumePrinting(fileName));
+        isHolding.await();
+        assertFalse(dut.setSDCardPosition(0));
+        assertTrue(dut.getPrintStatus().contains("position in File : " + lineStart[10] + "\n"));
+        continueMoves.countDown();
+        waitUntilIdle();
+        assertEquals(1000, moves);
+    }
+
+    @Test
+    public void testStopWhilePaused() throws InterruptedException
+    {
+        writeFile(1000);
+        pauseAtMove = 10;
+        assertTrue(dut.startResumePrinting(fileName));
+        waitUntilIdle();
+        dut.close();
+        assertEquals(10, moves);
+        assertEquals("No SD Card Print active.", dut.getPrintStatus());
+    }
+
+    @Test
+    public void testThroughput() throws InterruptedException
+    {
+        writeFile(THROUGHPUT_LINES);
+        final long start = System.nanoTime();
+        assertTrue(dut.startResumePrinting(fileName));
+        waitUntilIdle();
+        final long ns = System.nanoTime() - start;
+        assertEquals(THROUGHPUT_LINES, moves);
+        System.out.println(String.format("SD Card print: %d lines in %d ms, %.0f lines/s, %.1f MB/s",
+                                         THROUGHPUT_LINES,
+                                         ns / 1000000,
+                                         THROUGHPUT_LINES / (ns / 1000000000.0),
+                                         (lineStart[THROUGHPUT_LINES] / (1024.0 * 1024.0)) / (ns / 1000000000.0)));
+    }
+
+}
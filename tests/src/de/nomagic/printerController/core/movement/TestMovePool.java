@@ -0,0 +1,91 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core.movement;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import de.nomagic.printerController.Axis_enum;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestMovePool
+{
+
+	@Test
+	public void testCartesianMoveIsReused()
+	{
+		final MovePool pool = new MovePool();
+		final PrinterProperties printer = new PrinterProperties();
+		final CartesianMove first = pool.getCartesianMove(1000, printer);
+		final int firstId = first.getId();
+		first.setDistanceMm(Axis_enum.X, 10.0);
+		first.setEndSpeedMms(5.0);
+		first.addEndStopOnOffCommand(true, new Integer[] {1});
+		pool.recycle(first);
+		final CartesianMove second = pool.getCartesianMove(1000, printer);
+		assertSame(first, second);
+		assertNotEquals(firstId, second.getId());
+		// as good as new
+		assertFalse(second.hasMovement());
+		assertFalse(second.hasEndSpeedSet());
+		assertEquals(0.0, second.getDistanceMm(Axis_enum.X), 0.0);
+		assertEquals(0.0, second.getUnitVector()[Axis_enum.X.ordinal()], 0.0);
+		assertEquals(1, pool.getNumberOfCreatedMoves());
+		assertEquals(1, pool.getNumberOfReusedMoves());
+	}
+
+	@Test
+	public void testBasicLinearMoveIsReset()
+	{
+		final MovePool pool = new MovePool();
+		final BasicLinearMove first = pool.getBasicLinearMove(1);
+		first.addAxis(2, 300);
+		first.setHoming(true);
+		final byte[] data = first.getMoveData();
+		pool.recycle(first);
+		final BasicLinearMove second = pool.getBasicLinearMove(2);
+		assertSame(first, second);
+		assertEquals(2, second.getId());
+		assertEquals(0, second.getStepsOnStepper(2));
+		second.addAxis(2, 300);
+		// same shape -> same buffer, without the homing flag
+		final byte[] secondData = second.getMoveData();
+		assertSame(data, secondData);
+		assertEquals(0, secondData[4] & 0x10);
+	}
+
+	@Test
+	public void testPoolSizeIsLimited()
+	{
+		final MovePool pool = new MovePool(1);
+		final PrinterProperties printer = new PrinterProperties();
+		final CartesianMove a = pool.getCartesianMove(1000, printer);
+		final CartesianMove b = pool.getCartesianMove(1000, printer);
+		pool.recycle(a);
+		pool.recycle(b);
+		// only a fits into the pool
+		assertSame(a, pool.getCartesianMove(1000, printer));
+		final CartesianMove c = pool.getCartesianMove(1000, printer);
+		assertNotSame(a, c);
+		assertNotSame(b, c);
+		assertEquals(3, pool.getNumberOfCreatedMoves());
+	}
+
+}
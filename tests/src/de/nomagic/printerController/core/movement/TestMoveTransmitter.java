@@ -0,0 +1,252 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core.movement;
+
+import static org.junit.Assert.*;
+
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import de.nomagic.printerController.core.Event;
+import de.nomagic.printerController.core.Reference;
+import de.nomagic.printerController.core.TimeoutHandler;
+import de.nomagic.printerController.pacemaker.Protocol;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestMoveTransmitter
+{
+	// the moves only carry an end stop command, the number of the switch identifies the move.
+	private final Vector<Integer> sent = new Vector<Integer>();
+	private final CountDownLatch clientReady = new CountDownLatch(1);
+	private volatile boolean clientBlocks = false;
+	private volatile boolean clientFails = false;
+
+	private MovementCoordinator getCoordinator()
+	{
+		final Protocol pro = new Protocol(null, null)
+		{
+			@Override
+			public boolean endStopOnOff(boolean on, Integer[] switches)
+			{
+				if(true == clientBlocks)
+				{
+					try
+					{
+						clientReady.await();
+					}
+					catch(InterruptedException e)
+					{
+						return false;
+					}
+				}
+				if(true == clientFails)
+				{
+					return false;
+				}
+				sent.add(switches[0]);
+				return true;
+			}
+
+			@Override
+			public int getNumberOfCommandsInClientQueue(Reference ref)
+			{
+				return 0;
+			}
+		};
+		final MovementCoordinator coordinator = new MovementCoordinator();
+		coordinator.addClient(pro, 40000);
+		return coordinator;
+	}
+
+	private static CartesianMove getMove(int number)
+	{
+		final CartesianMove move = new CartesianMove(40000, new PrinterProperties());
+		move.addEndStopOnOffCommand(true, new Integer[] {number});
+		return move;
+	}
+
+	private static void waitForEmptyQueue(MoveTransmitter transmitter) throws InterruptedException
+	{
+		while(0 < transmitter.getQueueDepth())
+		{
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void testMovesGetSentInOrder()
+	{
+		final MoveTransmitter transmitter = new MoveTransmitter(getCoordinator(), 4);
+		transmitter.start();
+		for(int i = 0; i < 10; i++)
+		{
+			assertTrue(transmitter.add(getMove(i)));
+		}
+		assertTrue(transmitter.waitUntilAllSent());
+		assertTrue(transmitter.isIdle());
+		assertEquals(10, transmitter.getNumberOfSendMoves());
+		assertEquals(10, sent.size());
+		for(int i = 0; i < 10; i++)
+		{
+			assertEquals(i, sent.get(i).intValue());
+		}
+		assertTrue(4 >= transmitter.getMaxQueueDepth());
+		transmitter.close();
+	}
+
+	@Test
+	public void testPlannerStallIsCounted() throws InterruptedException
+	{
+		clientBlocks = true;
+		final MoveTransmitter transmitter = new MoveTransmitter(getCoordinator(), 1);
+		transmitter.start();
+		// the transmitter takes the first move and waits for the client
+		assertTrue(transmitter.add(getMove(0)));
+		waitForEmptyQueue(transmitter);
+		assertTrue(transmitter.add(getMove(1)));
+		assertFalse(transmitter.hasRoom());
+		final Thread client = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(50);
+				}
+				catch(InterruptedException e)
+				{
+				}
+				clientReady.countDown();
+			}
+		};
+		client.start();
+		// queue is full -> has to wait for the client
+		assertEquals(0, transmitter.getNumberOfPlannerStalls());
+		assertTrue(transmitter.add(getMove(2)));
+		assertEquals(1, transmitter.getNumberOfPlannerStalls());
+		assertTrue(transmitter.waitUntilAllSent());
+		assertEquals(3, sent.size());
+		assertEquals(1, transmitter.getMaxQueueDepth());
+		transmitter.close();
+	}
+
+	@Test
+	public void testFailedSendIsReported()
+	{
+		clientFails = true;
+		final MoveTransmitter transmitter = new MoveTransmitter(getCoordinator(), 4);
+		transmitter.start();
+		assertTrue(transmitter.add(getMove(0)));
+		assertFalse(transmitter.waitUntilAllSent());
+		assertNotNull(transmitter.getLastErrorReason());
+		assertFalse(transmitter.add(getMove(1)));
+		assertEquals(0, sent.size());
+	}
+
+	private static TimeoutHandler getTimeoutHandler()
+	{
+		return new TimeoutHandler()
+		{
+			@Override
+			public int createTimeout(Event e, int ms)
+			{
+				return 1;
+			}
+
+			@Override
+			public void startTimeout(int timeoutId)
+			{
+			}
+
+			@Override
+			public void stopTimeout(int timeoutId)
+			{
+			}
+		};
+	}
+
+	@Test
+	public void testPlannerHandsMovesToTransmitter()
+	{
+		final MovementCoordinator coordinator = getCoordinator();
+		final PlannedMoves planner = new PlannedMoves(40000, 2, getTimeoutHandler());
+		planner.addMovementCoordinator(coordinator);
+		final MoveTransmitter transmitter = new MoveTransmitter(coordinator, 2);
+		planner.addMoveTransmitter(transmitter);
+		planner.addMovePool(new MovePool());
+		transmitter.start();
+		for(int i = 0; i < 20; i++)
+		{
+			assertTrue(planner.addMove(getMove(i)));
+		}
+		assertTrue(planner.flushQueueToClient(null));
+		assertTrue(planner.hasAllMovementFinished());
+		assertEquals(0, planner.getNumberOfPlannedMoves());
+		assertEquals(20, sent.size());
+		for(int i = 0; i < 20; i++)
+		{
+			assertEquals(i, sent.get(i).intValue());
+		}
+		transmitter.close();
+	}
+
+	@Test(timeout = 5000)
+	public void testDeadlineCheckDoesNotWaitForStalledPlanner() throws InterruptedException
+	{
+		clientBlocks = true;
+		final MovementCoordinator coordinator = getCoordinator();
+		final PlannedMoves planner = new PlannedMoves(40000, 1, getTimeoutHandler());
+		planner.addMovementCoordinator(coordinator);
+		final MoveTransmitter transmitter = new MoveTransmitter(coordinator, 1);
+		planner.addMoveTransmitter(transmitter);
+		transmitter.start();
+		final Thread producer = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				for(int i = 0; i < 5; i++)
+				{
+					planner.addMove(getMove(i));
+				}
+			}
+		};
+		producer.start();
+		// the client blocks -> the planner waits for room in the transmit queue
+		while(0 == transmitter.getNumberOfPlannerStalls())
+		{
+			Thread.sleep(1);
+		}
+		// the timeout thread must not wait for the client
+		planner.reportEventStatus(null, null);
+		clientReady.countDown();
+		producer.join();
+		assertTrue(planner.flushQueueToClient(null));
+		assertEquals(5, sent.size());
+		for(int i = 0; i < 5; i++)
+		{
+			assertEquals(i, sent.get(i).intValue());
+		}
+		transmitter.close();
+	}
+
+}
@@ -0,0 +1,340 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core.movement;
+
+import static org.junit.Assert.*;
+
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import de.nomagic.printerController.core.Reference;
+import de.nomagic.printerController.pacemaker.Protocol;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestMovementCoordinator
+{
+	/** records what would have been send to the client. */
+	private class RecordingProtocol extends Protocol
+	{
+		public final Vector<String> sent = new Vector<String>();
+		public BasicLinearMove[] lastMoves = null;
+		// the blocks from the sender thread wait for this, null = do not wait
+		public CountDownLatch hold = null;
+		public final CountDownLatch firstBlock = new CountDownLatch(1);
+
+		public RecordingProtocol()
+		{
+			super(null, null);
+		}
+
+		@Override
+		public boolean addBasicLinearMove(BasicLinearMove[] aMove)
+		{
+			lastMoves = aMove;
+			for(int i = 0; i < aMove.length; i++)
+			{
+				final BasicLinearMove m = aMove[i];
+				final StringBuffer sb = new StringBuffer();
+				sb.append("move");
+				for(int s = 0; s < PrinterProperties.MAX_STEPPERS; s++)
+				{
+					if(0 != m.getStepsOnStepper(s))
+					{
+						sb.append(" " + s + ":");
+						if(false == m.isDirectionIncreasing(s))
+						{
+							sb.append("-");
+						}
+						sb.append(m.getStepsOnStepper(s));
+					}
+				}
+				sb.append(" speed=" + m.getTravelSpeedFraction() + "/" + m.getEndSpeedFraction());
+				sb.append(" accel=" + m.getAccelerationSteps() + "/" + m.getDecellerationSteps());
+				sent.add(sb.toString());
+			}
+			return true;
+		}
+
+		@Override
+		public boolean addPauseToQueue(final int ticks)
+		{
+			sent.add("delay " + ticks);
+			return true;
+		}
+
+		@Override
+		public boolean addQueueBlock(final byte[] buf, final int offset)
+		{
+			firstBlock.countDown();
+			if(null != hold)
+			{
+				try
+				{
+					hold.await();
+				}
+				catch(InterruptedException e)
+				{
+					return false;
+				}
+			}
+			if(Protocol.MOVEMENT_BLOCK_TYPE_DELAY == buf[offset + 1])
+			{
+				sent.add("delay " + (((0xff & buf[offset + 2]) * 256) + (0xff & buf[offset + 3])));
+			}
+			else
+			{
+				sent.add("block " + buf[offset + 1]);
+			}
+			return true;
+		}
+
+		@Override
+		public int getNumberOfCommandsInClientQueue(Reference ref)
+		{
+			return 0;
+		}
+
+		@Override
+		public boolean endStopOnOff(boolean on, Integer[] switches)
+		{
+			final StringBuffer sb = new StringBuffer();
+			sb.append("end stops " + on);
+			for(int i = 0; i < switches.length; i++)
+			{
+				sb.append(" " + switches[i]);
+			}
+			sent.add(sb.toString());
+			return true;
+		}
+	}
+
+	private static BasicLinearMove getMove()
+	{
+		final BasicLinearMove move = new BasicLinearMove(1);
+		move.addAxis(0, 100);
+		move.addAxis(1, -50);
+		move.addAxis(2, 40);
+		move.setTravelSpeedFraction(200);
+		move.setEndSpeedFraction(100);
+		move.setAccelerationSteps(20);
+		move.setDecellerationSteps(30);
+		return move;
+	}
+
+	@Test
+	public void testSingleClientPassesMovesThrough()
+	{
+		final RecordingProtocol pro = new RecordingProtocol();
+		final MovementCoordinator coordinator = new MovementCoordinator();
+		assertEquals(0, coordinator.addClient(pro, 40000));
+		assertEquals(0, coordinator.addClient(pro, 40000));
+		assertEquals(1, coordinator.getNumberOfClients());
+		final BasicLinearMove[] moves = new BasicLinearMove[] {getMove()};
+		assertTrue(coordinator.addBasicLinearMove(moves, 0.1));
+		assertSame(moves, pro.lastMoves);
+	}
+
+	@Test
+	public void testSplitMove()
+	{
+		final RecordingProtocol first = new RecordingProtocol();
+		final RecordingProtocol second = new RecordingProtocol();
+		final MovementCoordinator coordinator = new MovementCoordinator();
+		assertEquals(0, coordinator.addClient(first, 40000));
+		assertEquals(1, coordinator.addClient(second, 40000));
+		assertTrue(coordinator.mapStepper(0, 0, 0));
+		assertTrue(coordinator.mapStepper(1, 0, 1));
+		assertTrue(coordinator.mapStepper(2, 1, 0));
+		assertTrue(coordinator.mapStepper(3, 1, 1));
+		assertTrue(coordinator.addBasicLinearMove(new BasicLinearMove[] {getMove()}, 0.1));
+		assertEquals(1, first.sent.size());
+		assertEquals("move 0:100 1:-50 speed=200/100 accel=20/30", first.sent.get(0));
+		// 40 of 100 steps -> same time at 40% of the speed
+		assertEquals(1, second.sent.size());
+		assertEquals("move 0:40 speed=80/40 accel=8/12", second.sent.get(0));
+	}
+
+	@Test
+	public void testIdleClientWaits()
+	{
+		final RecordingProtocol first = new RecordingProtocol();
+		final RecordingProtocol second = new RecordingProtocol();
+		final MovementCoordinator coordinator = new MovementCoordinator();
+		coordinator.addClient(first, 40000);
+		coordinator.addClient(second, 40000);
+		assertTrue(coordinator.mapStepper(0, 0, 0));
+		assertTrue(coordinator.mapStepper(1, 0, 1));
+		assertTrue(coordinator.mapStepper(2, 0, 2));
+		assertTrue(coordinator.mapStepper(3, 1, 0));
+		// 1.5 seconds = 150000 units of 10us -> needs 3 delay blocks
+		assertTrue(coordinator.addBasicLinearMove(new BasicLinearMove[] {getMove()}, 1.5));
+		assertEquals(1, first.sent.size());
+		assertEquals(3, second.sent.size());
+		assertEquals("delay 65535", second.sent.get(0));
+		assertEquals("delay 65535", second.sent.get(1));
+		assertEquals("delay 18930", second.sent.get(2));
+	}
+
+	@Test
+	public void testSlowerClient()
+	{
+		final RecordingProtocol first = new RecordingProtocol();
+		final RecordingProtocol second = new RecordingProtocol();
+		final MovementCoordinator coordinator = new MovementCoordinator();
+		coordinator.addClient(first, 40000);
+		coordinator.addClient(second, 20000);
+		assertEquals(20000, coordinator.getMaxStepsPerSecond());
+		assertTrue(coordinator.mapStepper(0, 0, 0));
+		assertTrue(coordinator.mapStepper(1, 0, 1));
+		assertTrue(coordinator.mapStepper(2, 1, 0));
+		assertTrue(coordinator.addBasicLinearMove(new BasicLinearMove[] {getMove()}, 0.1));
+		// speeds are relative to 20000 steps/second -> first client needs half the fraction
+		assertEquals("move 0:100 1:-50 speed=100/50 accel=20/30", first.sent.get(0));
+		assertEquals("move 0:40 speed=80/40 accel=8/12", second.sent.get(0));
+	}
+
+	@Test
+	public void testEndStopsGoToTheirClient()
+	{
+		final RecordingProtocol first = new RecordingProtocol();
+		final RecordingProtocol second = new RecordingProtocol();
+		final MovementCoordinator coordinator = new MovementCoordinator();
+		coordinator.addClient(first, 40000);
+		coordinator.addClient(second, 40000);
+		coordinator.mapEndStopSwitch(1, 0);
+		coordinator.mapEndStopSwitch(5, 1);
+		assertTrue(coordinator.endStopOnOff(true, new Integer[] {1, 5, 7}));
+		// unknown switches go to the first client
+		assertEquals("end stops true 1 7", first.sent.get(0));
+		assertEquals("end stops true 5", second.sent.get(0));
+	}
+
+	@Test
+	public void testInvalidMapping()
+	{
+		final MovementCoordinator coordinator = new MovementCoordinator();
+		coordinator.addClient(new RecordingProtocol(), 40000);
+		assertFalse(coordinator.mapStepper(0, 1, 0));
+		assertFalse(coordinator.mapStepper(PrinterProperties.MAX_STEPPERS, 0, 0));
+		assertFalse(coordinator.mapStepper(0, 0, -1));
+		// no client
+		assertFalse(new MovementCoordinator().addBasicLinearMove(new BasicLinearMove[] {getMove()}, 0.1));
+	}
+
+	@Test
+	public void testClientsGetFedAtTheSameTime() throws InterruptedException
+	{
+		final RecordingProtocol first = new RecordingProtocol();
+		final RecordingProtocol second = new RecordingProtocol();
+		first.hold = new CountDownLatch(1);
+		final MovementCoordinator coordinator = new MovementCoordinator();
+		coordinator.useClientSenders(4);
+		coordinator.addClient(first, 40000);
+		coordinator.addClient(second, 40000);
+		assertTrue(coordinator.mapStepper(0, 0, 0));
+		assertTrue(coordinator.mapStepper(1, 0, 1));
+		assertTrue(coordinator.mapStepper(2, 1, 0));
+		assertTrue(coordinator.addBasicLinearMove(new BasicLinearMove[] {getMove()}, 0.1));
+		assertTrue(coordinator.addPause(100));
+		// the first client does not take the block, but the second one gets its blocks anyway
+		assertTrue(first.firstBlock.await(1, TimeUnit.SECONDS));
+		assertTrue(second.firstBlock.await(1, TimeUnit.SECONDS));
+		for(int i = 0; (i < 1000) && (2 > second.sent.size()); i++)
+		{
+			Thread.sleep(1);
+		}
+		assertEquals(2, second.sent.size());
+		// the blocks of the first client still count as not executed
+		assertEquals(2, coordinator.getNumberOfCommandsInClientQueue(null));
+		first.hold.countDown();
+		assertTrue(coordinator.waitUntilAllSent());
+		assertEquals(0, coordinator.getNumberOfCommandsInClientQueue(null));
+		assertEquals(2, first.sent.size());
+		assertEquals("block " + Protocol.MOVEMENT_BLOCK_TYPE_BASIC_LINEAR_MOVE, first.sent.get(0));
+		assertEquals("delay 100", first.sent.get(1));
+		assertEquals(2, second.sent.size());
+		assertEquals("delay 100", second.sent.get(1));
+		coordinator.close();
+	}
+
+	@Test
+	public void testRoundingDoesNotAddUp()
+	{
+		final RecordingProtocol first = new RecordingProtocol();
+		final RecordingProtocol second = new RecordingProtocol();
+		final MovementCoordinator coordinator = new MovementCoordinator();
+		coordinator.addClient(first, 40000);
+		coordinator.addClient(second, 40000);
+		assertTrue(coordinator.mapStepper(0, 0, 0));
+		assertTrue(coordinator.mapStepper(1, 1, 0));
+		final int moves = 10;
+		for(int i = 0; i < moves; i++)
+		{
+			final BasicLinearMove move = new BasicLinearMove(i);
+			move.addAxis(0, 100);
+			move.addAxis(1, 33);
+			// 201 * 0.33 = 66.33 -> 66 : the second client is 0.5% slower
+			move.setTravelSpeedFraction(201);
+			assertTrue(coordinator.addBasicLinearMove(new BasicLinearMove[] {move}, 0.1));
+		}
+		assertEquals("move 0:33 speed=66/0 accel=0/0", second.sent.get(0));
+		// the second client never waits
+		assertEquals(moves, second.sent.size());
+		// the first client waits for the second one
+		long delayUnits = 0;
+		for(int i = 0; i < first.sent.size(); i++)
+		{
+			final String cur = first.sent.get(i);
+			if(true == cur.startsWith("delay "))
+			{
+				delayUnits = delayUnits + Integer.parseInt(cur.substring(6));
+			}
+		}
+		assertTrue(0 < delayUnits);
+		final double lead = moves * 0.1 * ((201 * 0.33 / 66) - 1);
+		assertEquals(lead, (delayUnits / MovementCoordinator.DELAY_UNITS_PER_SECOND) + coordinator.getClientLeadSeconds(0), 1e-9);
+		assertTrue(coordinator.getClientLeadSeconds(0) * MovementCoordinator.DELAY_UNITS_PER_SECOND < MovementCoordinator.MIN_SYNC_DELAY_UNITS);
+		assertEquals(0.0, coordinator.getClientLeadSeconds(1), 0.0);
+	}
+
+	@Test
+	public void testAccelerationFitsIntoClientPart()
+	{
+		final RecordingProtocol first = new RecordingProtocol();
+		final RecordingProtocol second = new RecordingProtocol();
+		final MovementCoordinator coordinator = new MovementCoordinator();
+		coordinator.addClient(first, 40000);
+		coordinator.addClient(second, 40000);
+		assertTrue(coordinator.mapStepper(0, 0, 0));
+		assertTrue(coordinator.mapStepper(1, 1, 0));
+		final BasicLinearMove move = new BasicLinearMove(1);
+		move.addAxis(0, 70);
+		move.addAxis(1, 1);
+		move.setTravelSpeedFraction(200);
+		move.setAccelerationSteps(35);
+		move.setDecellerationSteps(35);
+		assertTrue(coordinator.addBasicLinearMove(new BasicLinearMove[] {move}, 0.01));
+		// 0.5 steps each would be rounded up to 1 + 1 steps
+		assertEquals("move 0:1 speed=3/0 accel=1/0", second.sent.get(0));
+	}
+
+}
@@ -0,0 +1,285 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core.movement;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.Vector;
+
+import org.junit.Test;
+
+import de.nomagic.printerController.Axis_enum;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestPlannedMoves
+{
+	private static final int MAX_CLIENT_STEPS_PER_SECOND = 40000;
+	private static final double STEPS_PER_MM = 100.0;
+	// 1000 mm/s^2
+	private static final double ACCELERATION = 100000.0;
+	// 200 mm/s
+	private static final double MAX_SPEED = 20000.0;
+	private static final double JERK = 10.0;
+	private static final double EPSILON = 0.0001;
+
+	private static PrinterProperties getPrinter()
+	{
+		final PrinterProperties res = new PrinterProperties();
+		int stepper = 0;
+		for(Axis_enum axis : Axis_enum.values())
+		{
+			res.addStepperForAxis(axis, stepper);
+			res.setSteppsPerMmOn(stepper, STEPS_PER_MM);
+			res.setMaxAccelerationOn(stepper, ACCELERATION);
+			res.setMaxSpeedOn(stepper, MAX_SPEED);
+			res.setMaxJerkOn(stepper, JERK);
+			stepper++;
+		}
+		return res;
+	}
+
+	private static PrinterProperties getPrinterWithJunctionDeviation(double jerk)
+	{
+		final PrinterProperties res = getPrinter();
+		for(Axis_enum axis : Axis_enum.values())
+		{
+			res.setMaxJerkOn(res.getStepperNumberFor(axis), jerk);
+		}
+		res.setJunctionDeviationMm(0.05);
+		return res;
+	}
+
+	private static CartesianMove getMove(PrinterProperties printer, double feedrateMms, double x, double y)
+	{
+		final CartesianMove res = new CartesianMove(MAX_CLIENT_STEPS_PER_SECOND, printer);
+		res.setFeedrateMmPerMinute(feedrateMms * 60);
+		if(0.0 != x)
+		{
+			res.setDistanceMm(Axis_enum.X, x);
+		}
+		if(0.0 != y)
+		{
+			res.setDistanceMm(Axis_enum.Y, y);
+		}
+		return res;
+	}
+
+	private static void checkReachable(Vector<CartesianMove> moves)
+	{
+		for(CartesianMove m : moves)
+		{
+			final double start = m.getStartSpeedMms();
+			final double end = m.getEndSpeedMms();
+			final double limit = 2 * m.getMaxAccelerationMms2() * m.getLengthMm();
+			assertTrue(Math.abs((end * end) - (start * start)) <= limit + EPSILON);
+			assertTrue(start <= m.getNominalSpeedMms() + EPSILON);
+			assertTrue(end <= m.getNominalSpeedMms() + EPSILON);
+		}
+	}
+
+	@Test
+	public void testCollinearMovesDoNotStop()
+	{
+		final PrinterProperties printer = getPrinter();
+		final Vector<CartesianMove> moves = new Vector<CartesianMove>();
+		for(int i = 0; i < 3; i++)
+		{
+			moves.add(getMove(printer, 100, 10, 0));
+		}
+		PlannedMoves.planSpeeds(moves, 0.0);
+		assertEquals(0.0, moves.get(0).getStartSpeedMms(), EPSILON);
+		assertEquals(100.0, moves.get(0).getEndSpeedMms(), EPSILON);
+		assertEquals(100.0, moves.get(1).getStartSpeedMms(), EPSILON);
+		assertEquals(100.0, moves.get(1).getEndSpeedMms(), EPSILON);
+		assertEquals(100.0, moves.get(2).getStartSpeedMms(), EPSILON);
+		// the last move has to stop
+		assertEquals(0.0, moves.get(2).getEndSpeedMms(), EPSILON);
+		checkReachable(moves);
+	}
+
+	@Test
+	public void testCornerIsLimitedByJerk()
+	{
+		final PrinterProperties printer = getPrinter();
+		final Vector<CartesianMove> moves = new Vector<CartesianMove>();
+		moves.add(getMove(printer, 100, 10, 0));
+		moves.add(getMove(printer, 100, 0, 10));
+		PlannedMoves.planSpeeds(moves, 0.0);
+		// X goes from v to 0 and Y from 0 to v
+		assertEquals(JERK, moves.get(0).getEndSpeedMms(), EPSILON);
+		assertEquals(JERK, moves.get(1).getStartSpeedMms(), EPSILON);
+	}
+
+	@Test
+	public void testNominalSpeedIsLimitedBySteppers()
+	{
+		final PrinterProperties printer = getPrinter();
+		final CartesianMove m = getMove(printer, 1000, 10, 0);
+		assertEquals(MAX_SPEED / STEPS_PER_MM, m.getNominalSpeedMms(), EPSILON);
+		assertEquals(ACCELERATION / STEPS_PER_MM, m.getMaxAccelerationMms2(), EPSILON);
+		// diagonal: each axis does only 1/sqrt(2) of the path
+		final CartesianMove d = getMove(printer, 1000, 10, 10);
+		assertEquals(Math.sqrt(2) * MAX_SPEED / STEPS_PER_MM, d.getNominalSpeedMms(), EPSILON);
+	}
+
+	@Test
+	public void testShortMovesAccelerateOverSeveralMoves()
+	{
+		final PrinterProperties printer = getPrinter();
+		final Vector<CartesianMove> moves = new Vector<CartesianMove>();
+		for(int i = 0; i < 20; i++)
+		{
+			moves.add(getMove(printer, 100, 0.1, 0));
+		}
+		PlannedMoves.planSpeeds(moves, 0.0);
+		// sqrt(2 * 1000 * 0.1)
+		assertEquals(Math.sqrt(200), moves.get(0).getEndSpeedMms(), EPSILON);
+		assertEquals(Math.sqrt(400), moves.get(1).getEndSpeedMms(), EPSILON);
+		// symmetric
+		for(int i = 0; i < 10; i++)
+		{
+			assertEquals(moves.get(i).getStartSpeedMms(), moves.get(19 - i).getEndSpeedMms(), EPSILON);
+		}
+		checkReachable(moves);
+	}
+
+	@Test
+	public void testEndStopCommandStopsTheMove()
+	{
+		final PrinterProperties printer = getPrinter();
+		final Vector<CartesianMove> moves = new Vector<CartesianMove>();
+		moves.add(getMove(printer, 100, 10, 0));
+		moves.add(getMove(printer, 100, 10, 0));
+		moves.add(getMove(printer, 100, 10, 0));
+		moves.get(1).addEndStopOnOffCommand(true, new Integer[] {1});
+		PlannedMoves.planSpeeds(moves, 0.0);
+		assertEquals(100.0, moves.get(0).getEndSpeedMms(), EPSILON);
+		assertEquals(0.0, moves.get(1).getEndSpeedMms(), EPSILON);
+		assertEquals(0.0, moves.get(2).getStartSpeedMms(), EPSILON);
+	}
+
+	@Test
+	public void testRandomMovesAreReachable()
+	{
+		final PrinterProperties printer = getPrinter();
+		final Random rnd = new Random(42);
+		final Vector<CartesianMove> moves = new Vector<CartesianMove>();
+		for(int i = 0; i < 200; i++)
+		{
+			moves.add(getMove(printer, 10 + rnd.nextInt(300), rnd.nextDouble() * 4 - 2, rnd.nextDouble() * 4 - 2));
+		}
+		PlannedMoves.planSpeeds(moves, 0.0);
+		checkReachable(moves);
+		for(int i = 1; i < moves.size(); i++)
+		{
+			assertEquals(moves.get(i - 1).getEndSpeedMms(), moves.get(i).getStartSpeedMms(), EPSILON);
+			assertTrue(moves.get(i).getStartSpeedMms()
+					   <= moves.get(i - 1).getMaxJunctionSpeedMms(moves.get(i)) + EPSILON);
+		}
+	}
+
+	@Test
+	public void testCornerIsLimitedByJunctionDeviation()
+	{
+		final PrinterProperties printer = getPrinterWithJunctionDeviation(0.0);
+		final CartesianMove first = getMove(printer, 100, 10, 0);
+		final CartesianMove second = getMove(printer, 100, 0, 10);
+		// 90 degree: sin(theta/2) = sqrt(0.5)
+		final double sinThetaHalf = Math.sqrt(0.5);
+		final double expected = Math.sqrt(1000 * 0.05 * sinThetaHalf / (1 - sinThetaHalf));
+		assertEquals(expected, first.getMaxJunctionSpeedMms(second), EPSILON);
+		// the jerk limit still applies
+		final PrinterProperties jerkPrinter = getPrinterWithJunctionDeviation(JERK);
+		assertEquals(JERK, getMove(jerkPrinter, 100, 10, 0).getMaxJunctionSpeedMms(getMove(jerkPrinter, 100, 0, 10)), EPSILON);
+	}
+
+	@Test
+	public void testReversalStops()
+	{
+		final PrinterProperties printer = getPrinterWithJunctionDeviation(0.0);
+		assertEquals(0.0, getMove(printer, 100, 10, 0).getMaxJunctionSpeedMms(getMove(printer, 100, -10, 0)), EPSILON);
+	}
+
+	@Test
+	public void testCurveDoesNotStopAtEveryVertex()
+	{
+		final PrinterProperties printer = getPrinterWithJunctionDeviation(JERK);
+		final Vector<CartesianMove> moves = new Vector<CartesianMove>();
+		// quarter circle with radius 20mm in 1 degree segments
+		double lastX = 20.0;
+		double lastY = 0.0;
+		for(int i = 1; i <= 90; i++)
+		{
+			final double x = 20.0 * Math.cos(Math.toRadians(i));
+			final double y = 20.0 * Math.sin(Math.toRadians(i));
+			moves.add(getMove(printer, 50, x - lastX, y - lastY));
+			lastX = x;
+			lastY = y;
+		}
+		PlannedMoves.planSpeeds(moves, 0.0);
+		checkReachable(moves);
+		for(int i = 10; i < 80; i++)
+		{
+			assertEquals(50.0, moves.get(i).getStartSpeedMms(), EPSILON);
+		}
+	}
+
+	@Test
+	public void testUnitVector()
+	{
+		final CartesianMove m = getMove(getPrinter(), 100, 3, 4);
+		final double[] u = m.getUnitVector();
+		assertEquals(0.6, u[Axis_enum.X.ordinal()], EPSILON);
+		assertEquals(0.8, u[Axis_enum.Y.ordinal()], EPSILON);
+		assertEquals(0.0, u[Axis_enum.Z.ordinal()], EPSILON);
+		m.setDistanceMm(Axis_enum.Y, -4);
+		assertEquals(-0.8, m.getUnitVector()[Axis_enum.Y.ordinal()], EPSILON);
+	}
+
+	@Test
+	public void testDuration()
+	{
+		final PrinterProperties printer = getPrinter();
+		final Vector<CartesianMove> moves = new Vector<CartesianMove>();
+		moves.add(getMove(printer, 100, 20, 0));
+		PlannedMoves.planSpeeds(moves, 0.0);
+		// 0.1s to accelerate over 5mm, 0.1s cruise over 10mm, 0.1s to decelerate over 5mm
+		assertEquals(0.3, moves.get(0).getDurationSeconds(), EPSILON);
+		moves.clear();
+		moves.add(getMove(printer, 100, 2, 0));
+		PlannedMoves.planSpeeds(moves, 0.0);
+		// triangle: 1mm up to sqrt(2000) mm/s and 1mm down again
+		assertEquals(2 * Math.sqrt(2000) / 1000, moves.get(0).getDurationSeconds(), EPSILON);
+	}
+
+	@Test
+	public void testDeadline()
+	{
+		final long now = 1000000000L;
+		// idle client: wait a short time for further moves
+		assertEquals(now + (PlannedMoves.IDLE_START_DELAY_MS * 1000000L),
+					 PlannedMoves.getDeadlineNs(now - 1, now, now));
+		// busy client: release just before the client runs out of moves
+		final long busyUntil = now + 500000000L;
+		assertEquals(busyUntil - (PlannedMoves.CLIENT_QUEUE_RESERVE_MS * 1000000L),
+					 PlannedMoves.getDeadlineNs(busyUntil, now, now));
+	}
+
+}
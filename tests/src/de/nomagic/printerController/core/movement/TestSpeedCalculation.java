@@ -0,0 +1,93 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core.movement;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestSpeedCalculation
+{
+	private static final int MAX_CLIENT_STEPS_PER_SECOND = 40000;
+
+	@Test
+	public void testTrapezoid()
+	{
+		final SpeedCalculation calc = new SpeedCalculation(10000, 0, 10000, 0, 100000, MAX_CLIENT_STEPS_PER_SECOND);
+		assertTrue(calc.isValid());
+		// v^2 / 2a = 10000^2 / 200000
+		assertEquals(500, calc.getAccelerationSteps());
+		assertEquals(500, calc.getDecelerationSteps());
+		assertEquals(9000, calc.getTravelSteps());
+		assertEquals(64, calc.getTravelSpeedFraction());
+		assertEquals(0, calc.getEndSpeedFraction());
+	}
+
+	@Test
+	public void testStartAndEndSpeed()
+	{
+		final SpeedCalculation calc = new SpeedCalculation(10000, 5000, 10000, 8000, 100000, MAX_CLIENT_STEPS_PER_SECOND);
+		assertEquals(375, calc.getAccelerationSteps());
+		assertEquals(180, calc.getDecelerationSteps());
+		assertEquals(51, calc.getEndSpeedFraction());
+		assertEquals(5000, calc.getSpeedAtStep(0), 0.001);
+		assertEquals(10000, calc.getSpeedAtStep(5000), 0.001);
+		assertEquals(8000, calc.getSpeedAtStep(10000), 0.001);
+	}
+
+	@Test
+	public void testTriangle()
+	{
+		final SpeedCalculation calc = new SpeedCalculation(600, 0, 10000, 0, 100000, MAX_CLIENT_STEPS_PER_SECOND);
+		assertEquals(300, calc.getAccelerationSteps());
+		assertEquals(300, calc.getDecelerationSteps());
+		assertEquals(0, calc.getTravelSteps());
+		assertEquals(Math.sqrt(2 * 100000 * 300), calc.getPeakSpeed(), 0.001);
+		assertEquals(49, calc.getTravelSpeedFraction());
+	}
+
+	@Test
+	public void testEndSpeedNotReachable()
+	{
+		// accelerating over all 100 steps only reaches sqrt(2 * 100000 * 100)
+		final SpeedCalculation calc = new SpeedCalculation(100, 0, 10000, 9000, 100000, MAX_CLIENT_STEPS_PER_SECOND);
+		assertEquals(100, calc.getAccelerationSteps());
+		assertEquals(0, calc.getDecelerationSteps());
+		assertEquals(Math.sqrt(2 * 100000 * 100), calc.getEndSpeed(), 0.001);
+	}
+
+	@Test
+	public void testNoAccelerationLimit()
+	{
+		final SpeedCalculation calc = new SpeedCalculation(1000, 0, 40000, 0, 0, MAX_CLIENT_STEPS_PER_SECOND);
+		assertEquals(0, calc.getAccelerationSteps());
+		assertEquals(0, calc.getDecelerationSteps());
+		assertEquals(1000, calc.getTravelSteps());
+		assertEquals(255, calc.getTravelSpeedFraction());
+	}
+
+	@Test
+	public void testInvalid()
+	{
+		assertFalse(new SpeedCalculation(0, 0, 100, 0, 100, MAX_CLIENT_STEPS_PER_SECOND).isValid());
+		assertFalse(new SpeedCalculation(100, 0, 100, 0, 100, 0).isValid());
+	}
+
+}
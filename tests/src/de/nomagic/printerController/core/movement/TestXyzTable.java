@@ -0,0 +1,277 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.core.movement;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import de.nomagic.printerController.Axis_enum;
+import de.nomagic.printerController.Cfg;
+import de.nomagic.printerController.core.Event;
+import de.nomagic.printerController.core.Reference;
+import de.nomagic.printerController.core.RelativeMove;
+import de.nomagic.printerController.core.TimeoutHandler;
+import de.nomagic.printerController.core.devices.Stepper;
+import de.nomagic.printerController.pacemaker.Protocol;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestXyzTable
+{
+	private static final int MAX_CLIENT_STEPS_PER_SECOND = 40000;
+	// not a whole number of steps per segment -> rounding errors
+	private static final double STEPS_PER_MM = 80.0;
+	private static final double MERGE_TOLERANCE_MM = 0.01;
+
+	private int sentBlocks = 0;
+	private final int[] sentSteps = new int[Axis_enum.size];
+	// M = movement block, P = pause block
+	private final StringBuffer sentOrder = new StringBuffer();
+
+	private PlannedMoves planner = null;
+
+	private XyzTable getTable()
+	{
+		final XyzTable table = new XyzTable(new Cfg());
+		table.setMaxClientStepsPerSecond(MAX_CLIENT_STEPS_PER_SECOND);
+		for(Axis_enum axis : Axis_enum.values())
+		{
+			table.addStepper(axis, new Stepper(axis.ordinal(), 100000, MAX_CLIENT_STEPS_PER_SECOND, false, STEPS_PER_MM, 10));
+		}
+		final TimeoutHandler to = new TimeoutHandler()
+		{
+			@Override
+			public int createTimeout(Event e, int ms)
+			{
+				return 1;
+			}
+
+			@Override
+			public void startTimeout(int timeoutId)
+			{
+			}
+
+			@Override
+			public void stopTimeout(int timeoutId)
+			{
+			}
+		};
+		final Protocol pro = new Protocol(null, null)
+		{
+			@Override
+			public boolean addBasicLinearMove(BasicLinearMove[] aMove)
+			{
+				if(null == aMove)
+				{
+					return true;
+				}
+				for(int i = 0; i < aMove.length; i++)
+				{
+					sentBlocks++;
+					sentOrder.append('M');
+					for(int s = 0; s < sentSteps.length; s++)
+					{
+						sentSteps[s] = sentSteps[s] + aMove[i].getStepsOnStepper(s);
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public boolean addPauseToQueue(final int ticks)
+			{
+				sentOrder.append('P');
+				return true;
+			}
+
+			@Override
+			public int getNumberOfCommandsInClientQueue(Reference ref)
+			{
+				return 0;
+			}
+		};
+		planner = new PlannedMoves(MAX_CLIENT_STEPS_PER_SECOND, to);
+		planner.addProtocol(pro);
+		table.addMovementQueue(planner);
+		return table;
+	}
+
+	private static RelativeMove getMove(double x, double y, double e, double feedrate)
+	{
+		final RelativeMove res = new RelativeMove();
+		res.setX(x);
+		res.setY(y);
+		res.setE(e);
+		res.setF(feedrate);
+		return res;
+	}
+
+	private void addLine(XyzTable table, int numSegments)
+	{
+		for(int i = 0; i < numSegments; i++)
+		{
+			assertTrue(table.addRelativeMove(getMove(0.0333, 0.0111, 0.0013, 1800), null));
+		}
+		assertTrue(table.letMovementStop(null));
+	}
+
+	@Test
+	public void testNoMergeByDefault()
+	{
+		final XyzTable table = getTable();
+		addLine(table, 10);
+		assertEquals(0, table.getNumberOfMergedSegments());
+		assertEquals(10, sentBlocks);
+	}
+
+	@Test
+	public void testMergeCollinearMoves()
+	{
+		final XyzTable unmerged = getTable();
+		addLine(unmerged, 30);
+		final int[] unmergedSteps = sentSteps.clone();
+		for(int i = 0; i < sentSteps.length; i++)
+		{
+			sentSteps[i] = 0;
+		}
+		sentBlocks = 0;
+
+		final XyzTable table = getTable();
+		table.setSegmentMergeToleranceMm(MERGE_TOLERANCE_MM);
+		addLine(table, 30);
+		assertEquals(29, table.getNumberOfMergedSegments());
+		assertEquals(1, sentBlocks);
+		// the rounding errors are kept -> same number of steps
+		assertArrayEquals(unmergedSteps, sentSteps);
+		assertEquals((int)Math.round(30 * 0.0333 * STEPS_PER_MM), sentSteps[Axis_enum.X.ordinal()]);
+	}
+
+	@Test
+	public void testMaxMergedSegments()
+	{
+		final XyzTable table = getTable();
+		table.setSegmentMergeToleranceMm(MERGE_TOLERANCE_MM);
+		addLine(table, XyzTable.MAX_MERGED_SEGMENTS * 2);
+		assertEquals(2, sentBlocks);
+		assertEquals((XyzTable.MAX_MERGED_SEGMENTS - 1) * 2, table.getNumberOfMergedSegments());
+	}
+
+	@Test
+	public void testDoNotMergeCorner()
+	{
+		final XyzTable table = getTable();
+		table.setSegmentMergeToleranceMm(MERGE_TOLERANCE_MM);
+		assertTrue(table.addRelativeMove(getMove(1.0, 0.0, 0.1, 1800), null));
+		assertTrue(table.addRelativeMove(getMove(0.0, 1.0, 0.1, 1800), null));
+		// reversal
+		assertTrue(table.addRelativeMove(getMove(0.0, -1.0, 0.1, 1800), null));
+		assertTrue(table.letMovementStop(null));
+		assertEquals(0, table.getNumberOfMergedSegments());
+		assertEquals(3, sentBlocks);
+	}
+
+	@Test
+	public void testDoNotMergeDifferentFeedrate()
+	{
+		final XyzTable table = getTable();
+		table.setSegmentMergeToleranceMm(MERGE_TOLERANCE_MM);
+		assertTrue(table.addRelativeMove(getMove(1.0, 0.0, 0.1, 1800), null));
+		assertTrue(table.addRelativeMove(getMove(1.0, 0.0, 0.1, 1200), null));
+		assertTrue(table.letMovementStop(null));
+		assertEquals(0, table.getNumberOfMergedSegments());
+	}
+
+	@Test
+	public void testDoNotMergeDifferentExtrusion()
+	{
+		final XyzTable table = getTable();
+		table.setSegmentMergeToleranceMm(MERGE_TOLERANCE_MM);
+		assertTrue(table.addRelativeMove(getMove(1.0, 0.0, 0.1, 1800), null));
+		assertTrue(table.addRelativeMove(getMove(1.0, 0.0, 0.2, 1800), null));
+		// travel move
+		assertTrue(table.addRelativeMove(getMove(1.0, 0.0, 0.0, 1800), null));
+		assertTrue(table.letMovementStop(null));
+		assertEquals(0, table.getNumberOfMergedSegments());
+	}
+
+	@Test
+	public void testDoNotMergeCurve()
+	{
+		final XyzTable table = getTable();
+		table.setSegmentMergeToleranceMm(MERGE_TOLERANCE_MM);
+		// quarter circle with 10mm radius in 1 degree steps
+		final double radius = 10.0;
+		for(int i = 0; i < 90; i++)
+		{
+			final double a = Math.toRadians(i);
+			final double b = Math.toRadians(i + 1);
+			assertTrue(table.addRelativeMove(getMove(radius * (Math.cos(b) - Math.cos(a)),
+					                                 radius * (Math.sin(b) - Math.sin(a)),
+					                                 0.0, 1800), null));
+		}
+		assertTrue(table.letMovementStop(null));
+		// each joint deviates 1.5 um, but a run of more than 6 segments is off by more than 10 um
+		assertTrue(0 < table.getNumberOfMergedSegments());
+		assertTrue(90 / 6 < sentBlocks);
+		assertEquals(90, table.getNumberOfMergedSegments() + sentBlocks);
+	}
+
+	@Test
+	public void testPauseKeepsOrder()
+	{
+		final XyzTable table = getTable();
+		// G1, G1, G4, G1
+		assertTrue(table.addRelativeMove(getMove(1.0, 0.0, 0.1, 1800), null));
+		assertTrue(table.addRelativeMove(getMove(1.0, 0.5, 0.1, 1800), null));
+		assertTrue(table.addPause(5001, 0.5));
+		assertTrue(table.addRelativeMove(getMove(1.0, 0.0, 0.1, 1800), null));
+		assertTrue(table.letMovementStop(null));
+		assertEquals("MMPM", sentOrder.toString());
+	}
+
+	@Test
+	public void testPauseFlushesMergedMove()
+	{
+		final XyzTable table = getTable();
+		table.setSegmentMergeToleranceMm(MERGE_TOLERANCE_MM);
+		assertTrue(table.addRelativeMove(getMove(1.0, 0.0, 0.1, 1800), null));
+		assertTrue(table.addPause(5001, 0.5));
+		assertTrue(table.addRelativeMove(getMove(1.0, 0.0, 0.1, 1800), null));
+		assertTrue(table.letMovementStop(null));
+		// the pause must not be merged away
+		assertEquals(0, table.getNumberOfMergedSegments());
+		assertEquals("MPM", sentOrder.toString());
+	}
+
+	@Test
+	public void testSingleJogGetsReleased() throws InterruptedException
+	{
+		final XyzTable table = getTable();
+		table.setSegmentMergeToleranceMm(MERGE_TOLERANCE_MM);
+		assertTrue(table.addRelativeMove(getMove(1.0, 0.0, 0.0, 1800), null));
+		// held back to merge it with the following moves
+		assertEquals(0, sentBlocks);
+		Thread.sleep(PlannedMoves.IDLE_START_DELAY_MS + 1);
+		// no following move -> the deadline check sends it
+		planner.reportEventStatus(null, null);
+		assertEquals(1, sentBlocks);
+		assertEquals((int)Math.round(1.0 * STEPS_PER_MM), sentSteps[Axis_enum.X.ordinal()]);
+	}
+
+}
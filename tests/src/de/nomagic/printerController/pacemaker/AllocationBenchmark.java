@@ -0,0 +1,144 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import java.lang.management.ManagementFactory;
+
+import de.nomagic.printerController.core.Reference;
+import de.nomagic.test.pacemaker.LoopbackClientConnection;
+
+/** measures the memory that the sending thread allocates for each order.
+ *
+ * The orders are answered by a LoopbackClientConnection, so only the host side is measured.
+ * The allocation of the receive thread (the Reply) is not included.
+ *
+ * Usage: AllocationBenchmark [numberOfOrders]
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class AllocationBenchmark
+{
+    private static final int DEFAULT_NUMBER_OF_ORDERS = 100000;
+    private static final int QUEUE_BLOCK_LENGTH = 30;
+
+    private final LoopbackClientConnection cc;
+    private final com.sun.management.ThreadMXBean threadBean;
+    private final Reference ref = new Reference("AllocationBenchmark");
+    private final byte[] block = new byte[QUEUE_BLOCK_LENGTH];
+    private int numberOfFailedOrders = 0;
+
+    public AllocationBenchmark(LoopbackClientConnection cc)
+    {
+        this.cc = cc;
+        threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        block[0] = QUEUE_BLOCK_LENGTH - 1;
+        block[1] = Protocol.MOVEMENT_BLOCK_TYPE_BASIC_LINEAR_MOVE;
+    }
+
+    private void check(Reply r)
+    {
+        if((null == r) || (false == r.isOKReply()))
+        {
+            numberOfFailedOrders++;
+        }
+    }
+
+    /** the parameters are put into a new array for every order. */
+    private void sendWithArrays(int numberOfOrders)
+    {
+        for(int i = 0; i < numberOfOrders; i++)
+        {
+            final byte[] param = new byte[2];
+            param[0] = Protocol.DEVICE_TYPE_TEMPERATURE_SENSOR;
+            param[1] = (byte)(i & 0x7);
+            check(cc.sendRequest(Protocol.ORDER_REQ_TEMPERATURE, param, ref));
+            final byte[] blocks = new byte[3 * QUEUE_BLOCK_LENGTH];
+            for(int j = 0; j < 3; j++)
+            {
+                System.arraycopy(block, 0, blocks, j * QUEUE_BLOCK_LENGTH, QUEUE_BLOCK_LENGTH);
+            }
+            check(cc.sendRequest(Protocol.ORDER_QUEUE_COMMAND_BLOCKS, blocks, ref));
+        }
+    }
+
+    /** the parameters are written directly into the pooled frame. */
+    private void sendWithFrames(int numberOfOrders)
+    {
+        for(int i = 0; i < numberOfOrders; i++)
+        {
+            OrderFrame frame = cc.startOrder(Protocol.ORDER_REQ_TEMPERATURE);
+            frame.putByte(Protocol.DEVICE_TYPE_TEMPERATURE_SENSOR);
+            frame.putByte(i & 0x7);
+            check(cc.sendOrder(frame));
+            frame = cc.startOrder(Protocol.ORDER_QUEUE_COMMAND_BLOCKS);
+            for(int j = 0; j < 3; j++)
+            {
+                frame.put(block, 0, QUEUE_BLOCK_LENGTH);
+            }
+            check(cc.sendOrder(frame));
+        }
+    }
+
+    private void measure(String name, boolean useFrames, int numberOfOrders)
+    {
+        // warm up
+        if(true == useFrames)
+        {
+            sendWithFrames(numberOfOrders / 10);
+        }
+        else
+        {
+            sendWithArrays(numberOfOrders / 10);
+        }
+        final long threadId = Thread.currentThread().getId();
+        final long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+        final long startTime = System.nanoTime();
+        if(true == useFrames)
+        {
+            sendWithFrames(numberOfOrders);
+        }
+        else
+        {
+            sendWithArrays(numberOfOrders);
+        }
+        final long duration = System.nanoTime() - startTime;
+        final long allocated = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+        // each iteration sends two orders
+        System.out.println(String.format("%-8s: %8.1f bytes/order, %8.1f ns/order",
+                                         name,
+                                         allocated / (2.0 * numberOfOrders),
+                                         duration / (2.0 * numberOfOrders)));
+    }
+
+    public static void main(String[] args)
+    {
+        int numberOfOrders = DEFAULT_NUMBER_OF_ORDERS;
+        if(0 < args.length)
+        {
+            numberOfOrders = Integer.parseInt(args[0]);
+        }
+        final LoopbackClientConnection cc = new LoopbackClientConnection();
+        cc.connect();
+        final AllocationBenchmark bench = new AllocationBenchmark(cc);
+        bench.measure("byte[]", false, numberOfOrders);
+        bench.measure("frames", true, numberOfOrders);
+        cc.disconnect();
+        if(0 < bench.numberOfFailedOrders)
+        {
+            System.out.println(bench.numberOfFailedOrders + " orders failed !");
+        }
+    }
+}
@@ -14,6 +14,8 @@
  */
 package de.nomagic.printerController.pacemaker;
 
+import java.util.concurrent.CompletableFuture;
+
 import de.nomagic.printerController.core.Reference;
 
 /**
@@ -23,6 +25,7 @@ import de.nomagic.printerController.core.Reference;
  */
 public class ClientConnectionMock implements ClientConnection
 {
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
 
     public ClientConnectionMock()
     {
@@ -64,6 +67,26 @@ public class ClientConnectionMock implements ClientConnection
         return null;
     }
 
+    @Override
+    public OrderFrame startOrder(byte order)
+    {
+        final OrderFrame frame = new OrderFrame();
+        frame.start(order);
+        return frame;
+    }
+
+    @Override
+    public Reply sendOrder(OrderFrame frame)
+    {
+        return sendRequest(frame.getOrder(), null, null);
+    }
+
+    @Override
+    public CompletableFuture<Reply> sendOrderAsync(OrderFrame frame)
+    {
+        return CompletableFuture.completedFuture(sendOrder(frame));
+    }
+
     @Override
     public void disconnect()
     {
@@ -84,6 +107,23 @@ public class ClientConnectionMock implements ClientConnection
         return 0;
     }
 
+    @Override
+    public void setMaxFramesInFlight(int numberOfFrames)
+    {
+    }
+
+    @Override
+    public ReplyLatencyHistogram getReplyLatencyHistogram()
+    {
+        return metrics.getReplyLatencyHistogram();
+    }
+
+    @Override
+    public ConnectionMetrics getMetrics()
+    {
+        return metrics;
+    }
+
 	@Override
 	public String getConnectionName()
 	{
@@ -0,0 +1,87 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import java.util.Random;
+
+/** compares the speed of the CRC-8 variants for short and for long frames.
+ *
+ * Usage: Crc8Benchmark [numberOfFrames]
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ */
+public class Crc8Benchmark
+{
+    private static final int DEFAULT_NUMBER_OF_FRAMES = 2000000;
+    private static final int ROUNDS = 5;
+    // typical order, maximum sized queue block frame
+    private static final int[] FRAME_LENGTHS = {6, 32, 254};
+
+    private static final int BYTE_WISE = 0;
+    private static final int SLICE_BY_4 = 1;
+    private static final int SLICE_BY_8 = 2;
+    private static final String[] NAMES = {"byte wise", "slice by 4", "slice by 8"};
+
+    // keeps the JIT from removing the calculation
+    private int sink = 0;
+
+    private long measure(int variant, byte[] frame, int numberOfFrames)
+    {
+        final long start = System.nanoTime();
+        for(int i = 0; i < numberOfFrames; i++)
+        {
+            frame[0] = (byte)i;
+            switch(variant)
+            {
+            case BYTE_WISE:  sink = sink ^ Crc8.updateByteWise((byte)0, frame, 0, frame.length); break;
+            case SLICE_BY_4: sink = sink ^ Crc8.updateSliceBy4((byte)0, frame, 0, frame.length); break;
+            default:         sink = sink ^ Crc8.updateSliceBy8((byte)0, frame, 0, frame.length); break;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args)
+    {
+        int numberOfFrames = DEFAULT_NUMBER_OF_FRAMES;
+        if(0 < args.length)
+        {
+            numberOfFrames = Integer.parseInt(args[0]);
+        }
+        final Crc8Benchmark bench = new Crc8Benchmark();
+        final Random rnd = new Random(1);
+        for(int l = 0; l < FRAME_LENGTHS.length; l++)
+        {
+            final byte[] frame = new byte[FRAME_LENGTHS[l]];
+            rnd.nextBytes(frame);
+            for(int variant = BYTE_WISE; variant <= SLICE_BY_8; variant++)
+            {
+                // the first rounds are the warm up, the best round counts.
+                long best = Long.MAX_VALUE;
+                for(int r = 0; r < ROUNDS; r++)
+                {
+                    best = Math.min(best, bench.measure(variant, frame, numberOfFrames));
+                }
+                System.out.println(String.format("%3d bytes %-10s: %7.1f ns/frame %8.1f MB/s",
+                                                 frame.length,
+                                                 NAMES[variant],
+                                                 best / (double)numberOfFrames,
+                                                 (frame.length * (double)numberOfFrames * 1000) / best));
+            }
+        }
+        System.out.println("(" + bench.sink + ")");
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import de.nomagic.test.pacemaker.Hardware;
+
+/** hardware of a simulated client without devices.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class HardwareMock implements Hardware
+{
+    @Override
+    public String getFirmwareNameString()
+    {
+        return "Mock";
+    }
+
+    @Override
+    public String getSerialNumberString()
+    {
+        return "Mock";
+    }
+
+    @Override
+    public String getBoardNameString()
+    {
+        return "Mock";
+    }
+
+    @Override
+    public String getGivenNameString()
+    {
+        return "Mock";
+    }
+
+    @Override
+    public byte getProtocolVersionMajor()
+    {
+        return 0;
+    }
+
+    @Override
+    public byte getProtocolVersionMinor()
+    {
+        return 0;
+    }
+
+    @Override
+    public int[] getListOfSupportedProtocolExtensions()
+    {
+        return new int[0];
+    }
+
+    @Override
+    public int getFirmwareType()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getFirmwareRevisionMajor()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getFirmwareRevisionMinor()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getHardwareType()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getHardwareRevision()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getNumberSteppers()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getNumberHeaters()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getNumberPwm()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getNumberTempSensor()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getNumberInput()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getNumberOutput()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getNumberBuzzer()
+    {
+        return 0;
+    }
+
+    @Override
+    public String getNameOfInput(int idx)
+    {
+        return "Mock";
+    }
+
+    @Override
+    public String getNameOfOutput(int idx)
+    {
+        return "Mock";
+    }
+
+    @Override
+    public String getNameOfPwm(int idx)
+    {
+        return "Mock";
+    }
+
+    @Override
+    public String getNameOfStepper(int idx)
+    {
+        return "Mock";
+    }
+
+    @Override
+    public String getNameOfHeater(int idx)
+    {
+        return "Mock";
+    }
+
+    @Override
+    public String getNameOfTemperatureSensor(int idx)
+    {
+        return "Mock";
+    }
+
+    @Override
+    public void reset()
+    {
+    }
+
+    @Override
+    public int getTemperatureFromSensor(int devIdx)
+    {
+        return 200;
+    }
+
+    @Override
+    public byte[] getConfigurationOfHeater(int heaterIdx)
+    {
+        return new byte[] {0, 0};
+    }
+
+    @Override
+    public void setConfigurationOfHeater(int heaterIdx, int tempSensor)
+    {
+    }
+
+    @Override
+    public void setTargetTemperatureOfHeater(int heaterIdx, int targetTemp)
+    {
+    }
+
+    @Override
+    public String getNameOfBuzzer(int idx)
+    {
+        return "Mock";
+    }
+
+    @Override
+    public int getInputValue(int devIdx)
+    {
+        return 0;
+    }
+
+    @Override
+    public void setOutputTo(int devIdx, int state)
+    {
+    }
+
+    @Override
+    public void setPwmTo(int devIdx, int pwm)
+    {
+    }
+
+    @Override
+    public boolean isAllowedToControlSteppers()
+    {
+        return true;
+    }
+
+    @Override
+    public int getMaxStepRate()
+    {
+        return 1000;
+    }
+
+    @Override
+    public int getHostTimeout()
+    {
+        return 2;
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import de.nomagic.printerController.core.movement.BasicLinearMove;
+
+/** golden tests for the encoding of basic linear moves.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestBasicLinearMoveEncoding
+{
+    private static byte[] bytes(int... values)
+    {
+        final byte[] res = new byte[values.length];
+        for(int i = 0; i < values.length; i++)
+        {
+            res[i] = (byte)values[i];
+        }
+        return res;
+    }
+
+    // 8 axis mode, one byte per step
+    private static BasicLinearMove getSmallMove()
+    {
+        final BasicLinearMove move = new BasicLinearMove(1);
+        move.addAxis(0, 100);
+        move.addAxis(1, -50);
+        move.addAxis(2, 10);
+        move.setTravelSpeedFraction(200);
+        move.setEndSpeedFraction(100);
+        move.setAccelerationSteps(20);
+        move.setDecellerationSteps(30);
+        return move;
+    }
+
+    private static final byte[] SMALL_MOVE = bytes(0x0b, 0x03, 0x07, 0x05, 0x00, 0xc8, 0x64, 0x14, 0x1e,
+                                                   0x64, 0x32, 0x0a);
+
+    // 8 axis mode, two bytes per step, homing
+    private static BasicLinearMove getHomingMove()
+    {
+        final BasicLinearMove move = new BasicLinearMove(2);
+        move.addAxis(0, -1000);
+        move.addAxis(3, 300);
+        move.setHoming(true);
+        move.setTravelSpeedFraction(255);
+        move.setEndSpeedFraction(0);
+        move.setAccelerationSteps(500);
+        move.setDecellerationSteps(260);
+        return move;
+    }
+
+    private static final byte[] HOMING_MOVE = bytes(0x0e, 0x03, 0x09, 0x88, 0x10, 0xff, 0x00, 0x01, 0xf4,
+                                                    0x01, 0x04, 0x03, 0xe8, 0x01, 0x2c);
+
+    // 16 axis mode, one byte per step
+    private static BasicLinearMove getManyAxisMove()
+    {
+        final BasicLinearMove move = new BasicLinearMove(3);
+        for(int i = 0; i < 7; i++)
+        {
+            if(1 == i)
+            {
+                move.addAxis(i, -(i + 1));
+            }
+            else
+            {
+                move.addAxis(i, i + 1);
+            }
+        }
+        move.addAxis(9, 200);
+        move.setTravelSpeedFraction(50);
+        move.setEndSpeedFraction(40);
+        move.setAccelerationSteps(5);
+        move.setDecellerationSteps(6);
+        return move;
+    }
+
+    private static final byte[] MANY_AXIS_MOVE = bytes(0x12, 0x03, 0x82, 0x7f, 0x02, 0x7d, 0x0a, 0x32, 0x28,
+                                                       0x05, 0x06, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07,
+                                                       0xc8);
+
+    // 16 axis mode, two bytes per step
+    private static BasicLinearMove getLongManyAxisMove()
+    {
+        final BasicLinearMove move = new BasicLinearMove(4);
+        for(int i = 0; i < 8; i++)
+        {
+            if(7 == i)
+            {
+                move.addAxis(i, -(1000 + i));
+            }
+            else
+            {
+                move.addAxis(i, 1000 + i);
+            }
+        }
+        move.setTravelSpeedFraction(10);
+        move.setEndSpeedFraction(20);
+        move.setAccelerationSteps(300);
+        move.setDecellerationSteps(2);
+        return move;
+    }
+
+    private static final byte[] LONG_MANY_AXIS_MOVE = bytes(0x1c, 0x03, 0x80, 0xff, 0x80, 0x7f, 0x08, 0x0a,
+                                                            0x14, 0x01, 0x2c, 0x00, 0x02, 0x03, 0xe8, 0x03,
+                                                            0xe9, 0x03, 0xea, 0x03, 0xeb, 0x03, 0xec, 0x03,
+                                                            0xed, 0x03, 0xee, 0x03, 0xef);
+
+    private static String decode(byte[] block)
+    {
+        return Protocol.parseBasicLinearMove(block, block.length - 2, 2);
+    }
+
+    private static void checkEncoding(BasicLinearMove move, byte[] golden, String decoded)
+    {
+        assertEquals(golden.length, move.getEncodedLength());
+        assertArrayEquals(golden, move.getMoveData());
+        // encoded in the middle of a bigger buffer
+        final ByteBuffer buf = ByteBuffer.allocate(golden.length + 10);
+        buf.position(3);
+        assertTrue(move.encodeTo(buf));
+        assertEquals(golden.length + 3, buf.position());
+        assertArrayEquals(golden, Arrays.copyOfRange(buf.array(), 3, 3 + golden.length));
+        assertEquals(decoded, decode(golden));
+    }
+
+    @Test
+    public void testEightAxisOneByteSteps()
+    {
+        checkEncoding(getSmallMove(), SMALL_MOVE,
+                "[AxisDirections=5 primaryAxis=0 nominalSpeed=200 endSpeed=100 accelSteps=20 decelSteps=30"
+                + "(100 Steps on Axis 0 direction increasing)"
+                + "(50 Steps on Axis 1 direction decreasing)"
+                + "(10 Steps on Axis 2 direction increasing)]");
+    }
+
+    @Test
+    public void testEightAxisTwoByteSteps()
+    {
+        checkEncoding(getHomingMove(), HOMING_MOVE,
+                "[AxisDirections=8 primaryAxis=0 homing nominalSpeed=255 endSpeed=0 accelSteps=500 decelSteps=260"
+                + "(1000 Steps on Axis 0 direction decreasing)"
+                + "(300 Steps on Axis 3 direction increasing)]");
+    }
+
+    @Test
+    public void testSixteenAxisOneByteSteps()
+    {
+        checkEncoding(getManyAxisMove(), MANY_AXIS_MOVE,
+                "[AxisDirections=637 primaryAxis=10 nominalSpeed=50 endSpeed=40 accelSteps=5 decelSteps=6"
+                + "(1 Steps on Axis 0 direction increasing)"
+                + "(2 Steps on Axis 1 direction decreasing)"
+                + "(3 Steps on Axis 2 direction increasing)"
+                + "(4 Steps on Axis 3 direction increasing)"
+                + "(5 Steps on Axis 4 direction increasing)"
+                + "(6 Steps on Axis 5 direction increasing)"
+                + "(7 Steps on Axis 6 direction increasing)"
+                + "(200 Steps on Axis 9 direction increasing)]");
+    }
+
+    @Test
+    public void testSixteenAxisTwoByteSteps()
+    {
+        checkEncoding(getLongManyAxisMove(), LONG_MANY_AXIS_MOVE,
+                "[AxisDirections=127 primaryAxis=8 nominalSpeed=10 endSpeed=20 accelSteps=300 decelSteps=2"
+                + "(1000 Steps on Axis 0 direction increasing)"
+                + "(1001 Steps on Axis 1 direction increasing)"
+                + "(1002 Steps on Axis 2 direction increasing)"
+                + "(1003 Steps on Axis 3 direction increasing)"
+                + "(1004 Steps on Axis 4 direction increasing)"
+                + "(1005 Steps on Axis 5 direction increasing)"
+                + "(1006 Steps on Axis 6 direction increasing)"
+                + "(1007 Steps on Axis 7 direction decreasing)]");
+    }
+
+    @Test
+    public void testDoesNotFit()
+    {
+        final BasicLinearMove move = getSmallMove();
+        final ByteBuffer buf = ByteBuffer.allocate(SMALL_MOVE.length - 1);
+        assertFalse(move.encodeTo(buf));
+        assertEquals(0, buf.position());
+    }
+
+    @Test
+    public void testTooManySteppers()
+    {
+        final BasicLinearMove move = new BasicLinearMove(5);
+        for(int i = 0; i < 15; i++)
+        {
+            move.addAxis(i, 10);
+        }
+        assertEquals(-1, move.getEncodedLength());
+        assertNull(move.getMoveData());
+        final ByteBuffer buf = ByteBuffer.allocate(100);
+        assertFalse(move.encodeTo(buf));
+        assertEquals(0, buf.position());
+    }
+
+    @Test
+    public void testQueueGetsSameBytes()
+    {
+        final CommandBlockQueue q = new CommandBlockQueue(40);
+        assertTrue(q.offerMove(getSmallMove()));
+        assertTrue(q.offerMove(getHomingMove()));
+        assertEquals(2, q.getNumberOfBlocks());
+        final byte[] both = q.getBytes(2);
+        assertArrayEquals(SMALL_MOVE, Arrays.copyOfRange(both, 0, SMALL_MOVE.length));
+        assertArrayEquals(HOMING_MOVE, Arrays.copyOfRange(both, SMALL_MOVE.length, both.length));
+        // 27 of 40 bytes used -> no room for another 15 bytes
+        assertFalse(q.offerMove(getHomingMove()));
+        assertEquals(2, q.getNumberOfBlocks());
+    }
+
+    @Test
+    public void testQueueWrapAround()
+    {
+        final CommandBlockQueue q = new CommandBlockQueue(20);
+        assertTrue(q.offerMove(getSmallMove()));
+        q.remove(1);
+        // 8 bytes left until the end of the buffer
+        assertTrue(q.offerMove(getHomingMove()));
+        assertArrayEquals(HOMING_MOVE, q.getBytes(1));
+        q.remove(1);
+        assertTrue(q.isEmpty());
+        assertTrue(q.offerMove(getSmallMove()));
+        assertArrayEquals(SMALL_MOVE, q.getBytes(1));
+    }
+
+}
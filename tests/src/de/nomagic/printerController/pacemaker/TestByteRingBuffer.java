@@ -0,0 +1,57 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestByteRingBuffer
+{
+
+    @Test
+    public void testWrapAround()
+    {
+        final ByteRingBuffer rb = new ByteRingBuffer(8);
+        assertEquals(0, rb.size());
+        assertEquals(8, rb.getContiguousFreeSpace());
+        assertTrue(rb.write(new byte[] {1, 2, 3, 4, 5, 6}, 0, 6));
+        assertEquals(2, rb.getContiguousFreeSpace());
+        rb.skip(4);
+        assertEquals(2, rb.size());
+        assertEquals(5, rb.peek(0));
+        // write directly into the array as the connections do
+        final byte[] arr = rb.getArray();
+        assertEquals(6, rb.getWritePosition());
+        arr[6] = 7;
+        arr[7] = 8;
+        rb.commitWrite(2);
+        assertEquals(0, rb.getWritePosition());
+        assertEquals(4, rb.getContiguousFreeSpace());
+        assertTrue(rb.write(new byte[] {9, 10}, 0, 2));
+        assertFalse(rb.write(new byte[] {11, 12, 13}, 0, 3));
+        final byte[] res = new byte[6];
+        assertEquals(6, rb.read(res, 0, 6));
+        assertArrayEquals(new byte[] {5, 6, 7, 8, 9, 10}, res);
+        assertEquals(0, rb.size());
+        assertEquals(0, rb.read(res, 0, 6));
+    }
+
+}
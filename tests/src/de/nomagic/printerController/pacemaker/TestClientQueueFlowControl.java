@@ -0,0 +1,122 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestClientQueueFlowControl
+{
+    private static final long MS = 1000000L;
+
+    @Test
+    public void testNoInformation()
+    {
+        final ClientQueueFlowControl fc = new ClientQueueFlowControl();
+        assertEquals(0, fc.getUsableSlots(0));
+        assertEquals(ClientQueueFlowControl.MAX_DELAY_MS, fc.getDelayUntilUsableMs(1, 0));
+        fc.update(100, 0, 0);
+        assertEquals(100 - ClientQueueFlowControl.DEFAULT_KEEP_FREE_SLOTS, fc.getUsableSlots(0));
+        assertEquals(0, fc.getDelayUntilUsableMs(1, 0));
+        // client did not execute anything -> no prediction
+        fc.blocksAccepted(95);
+        fc.update(5, 0, 100 * MS);
+        assertEquals(0.0, fc.getDrainRate(), 0.0);
+        assertEquals(0, fc.getUsableSlots(200 * MS));
+        assertEquals(ClientQueueFlowControl.MAX_DELAY_MS, fc.getDelayUntilUsableMs(1, 200 * MS));
+    }
+
+    @Test
+    public void testDrainRateFromExecutedJobs()
+    {
+        final ClientQueueFlowControl fc = new ClientQueueFlowControl();
+        fc.update(100, 1000, 0);
+        // 50 jobs in 100ms = 500 jobs per second
+        fc.blocksAccepted(145);
+        fc.update(5, 1050, 100 * MS);
+        assertEquals(500.0, fc.getDrainRate(), 0.001);
+        // after 20ms 10 more slots are free
+        assertEquals(5 + 10 - ClientQueueFlowControl.DEFAULT_KEEP_FREE_SLOTS, fc.getUsableSlots(120 * MS));
+        // 5 slots are missing -> 10ms
+        assertEquals(10, fc.getDelayUntilUsableMs(5, 100 * MS));
+        // never more free slots than the client ever reported
+        assertEquals(100 - ClientQueueFlowControl.DEFAULT_KEEP_FREE_SLOTS, fc.getUsableSlots(10000 * MS));
+    }
+
+    @Test
+    public void testExecutedJobsCounterWraps()
+    {
+        final ClientQueueFlowControl fc = new ClientQueueFlowControl();
+        fc.update(10, 0xfff0, 0);
+        fc.blocksAccepted(32);
+        fc.update(10, 0x0010, 1000 * MS);
+        assertEquals(32.0, fc.getDrainRate(), 0.001);
+    }
+
+    @Test
+    public void testDrainRateFromFreeSlots()
+    {
+        // a client that does not count executed jobs
+        final ClientQueueFlowControl fc = new ClientQueueFlowControl();
+        fc.update(10, 0, 0);
+        fc.blocksAccepted(5);
+        fc.update(15, 0, 100 * MS);
+        // 5 send + 5 more free = 10 in 100ms
+        assertEquals(100.0, fc.getDrainRate(), 0.001);
+        // the rate is filtered
+        fc.update(15, 0, 200 * MS);
+        assertEquals(75.0, fc.getDrainRate(), 0.001);
+    }
+
+    @Test
+    public void testBlocksSendReduceUsableSlots()
+    {
+        final ClientQueueFlowControl fc = new ClientQueueFlowControl();
+        fc.update(20, 0, 0);
+        assertEquals(15, fc.getUsableSlots(0));
+        fc.blocksAccepted(10);
+        assertEquals(5, fc.getUsableSlots(0));
+    }
+
+    @Test
+    public void testKeepFreeReserveAdapts()
+    {
+        final ClientQueueFlowControl fc = new ClientQueueFlowControl();
+        final int start = fc.getKeepFreeSlots();
+        fc.queueFull();
+        fc.queueFull();
+        assertEquals(start + 2, fc.getKeepFreeSlots());
+        assertEquals(2, fc.getNumberOfQueueFull());
+        for(int i = 0; i < 1000; i++)
+        {
+            fc.blocksAccepted(1);
+        }
+        assertEquals(ClientQueueFlowControl.MIN_KEEP_FREE_SLOTS, fc.getKeepFreeSlots());
+        for(int i = 0; i < 1000; i++)
+        {
+            fc.queueFull();
+        }
+        assertEquals(ClientQueueFlowControl.MAX_KEEP_FREE_SLOTS, fc.getKeepFreeSlots());
+        fc.pollSent();
+        assertEquals(1, fc.getNumberOfPolls());
+        assertEquals(1000, fc.getNumberOfDataFrames());
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestCommandBlockQueue
+{
+    private static byte[] block(int type, int dataLength)
+    {
+        final byte[] res = new byte[dataLength + 2];
+        res[0] = (byte)(dataLength + 1);
+        res[1] = (byte)type;
+        for(int i = 0; i < dataLength; i++)
+        {
+            res[i + 2] = (byte)(type + i);
+        }
+        return res;
+    }
+
+    private static byte[] getParameters(OrderFrame frame)
+    {
+        frame.finish((byte)0);
+        final byte[] all = frame.toArray();
+        return Arrays.copyOfRange(all,
+                                  Protocol.ORDER_POS_OF_START_OF_PARAMETER,
+                                  Protocol.ORDER_POS_OF_START_OF_PARAMETER + frame.getParameterLength());
+    }
+
+    @Test
+    public void testInvalidBlock()
+    {
+        final CommandBlockQueue q = new CommandBlockQueue(100);
+        assertFalse(q.offer(null));
+        assertFalse(q.offer(new byte[] {1}));
+        // length byte does not match
+        assertFalse(q.offer(new byte[] {5, 1, 2}));
+        assertTrue(q.isEmpty());
+    }
+
+    @Test
+    public void testOfferFromBuffer()
+    {
+        final CommandBlockQueue q = new CommandBlockQueue(100);
+        final byte[] a = block(1, 3);
+        final byte[] b = block(2, 2);
+        final byte[] buf = new byte[a.length + b.length];
+        System.arraycopy(a, 0, buf, 0, a.length);
+        System.arraycopy(b, 0, buf, a.length, b.length);
+        assertTrue(q.offer(buf, a.length));
+        assertTrue(q.offer(buf, 0));
+        assertEquals(2, q.getNumberOfBlocks());
+        assertArrayEquals(b, q.getBytes(1));
+        q.remove(1);
+        assertArrayEquals(a, q.getBytes(1));
+        // block does not end in the buffer
+        assertFalse(q.offer(new byte[] {5, 1, 2}, 0));
+        assertFalse(q.offer(buf, buf.length - 1));
+        assertFalse(q.offer(null, 0));
+        assertEquals(1, q.getNumberOfBlocks());
+    }
+
+    @Test
+    public void testCapacity()
+    {
+        final CommandBlockQueue q = new CommandBlockQueue(20);
+        // 3 blocks of 6 bytes fit, the 4th does not.
+        assertTrue(q.offer(block(1, 4)));
+        assertTrue(q.offer(block(2, 4)));
+        assertTrue(q.offer(block(3, 4)));
+        assertFalse(q.hasRoomFor(6));
+        assertFalse(q.offer(block(4, 4)));
+        assertEquals(3, q.getNumberOfBlocks());
+        assertEquals(18, q.getNumberOfBytes());
+        q.remove(1);
+        assertTrue(q.offer(block(4, 4)));
+        assertEquals(3, q.getNumberOfBlocks());
+    }
+
+    @Test
+    public void testAddToFrameLimits()
+    {
+        final CommandBlockQueue q = new CommandBlockQueue(100);
+        final byte[] a = block(1, 2);
+        final byte[] b = block(2, 5);
+        final byte[] c = block(3, 1);
+        q.offer(a);
+        q.offer(b);
+        q.offer(c);
+
+        OrderFrame frame = new OrderFrame();
+        frame.start(Protocol.ORDER_QUEUE_COMMAND_BLOCKS);
+        assertEquals(2, q.addTo(frame, 2, 100));
+        assertArrayEquals(q.getBytes(2), getParameters(frame));
+
+        // 4 + 7 bytes do not fit into 10 bytes
+        frame = new OrderFrame();
+        frame.start(Protocol.ORDER_QUEUE_COMMAND_BLOCKS);
+        assertEquals(1, q.addTo(frame, 10, 10));
+        assertArrayEquals(a, getParameters(frame));
+
+        // blocks stay in the queue until removed
+        assertEquals(3, q.getNumberOfBlocks());
+        q.remove(2);
+        assertArrayEquals(c, q.getBytes(5));
+        q.remove(5);
+        assertTrue(q.isEmpty());
+        assertEquals(0, q.getNumberOfBytes());
+    }
+
+    @Test
+    public void testWrapAround()
+    {
+        final CommandBlockQueue q = new CommandBlockQueue(32);
+        int type = 0;
+        for(int round = 0; round < 50; round++)
+        {
+            final byte[] first = block(type++, round % 7);
+            final byte[] second = block(type++, (round + 3) % 11);
+            assertTrue(q.offer(first));
+            assertTrue(q.offer(second));
+            final OrderFrame frame = new OrderFrame();
+            frame.start(Protocol.ORDER_QUEUE_COMMAND_BLOCKS);
+            assertEquals(2, q.addTo(frame, 5, 200));
+            final byte[] expected = new byte[first.length + second.length];
+            System.arraycopy(first, 0, expected, 0, first.length);
+            System.arraycopy(second, 0, expected, first.length, second.length);
+            assertArrayEquals(expected, getParameters(frame));
+            q.remove(2);
+            assertTrue(q.isEmpty());
+        }
+    }
+}
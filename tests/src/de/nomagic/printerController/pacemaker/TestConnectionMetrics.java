@@ -0,0 +1,131 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import de.nomagic.test.pacemaker.LoopbackClientConnection;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestConnectionMetrics
+{
+
+    @Test
+    public void testPercentile()
+    {
+        final ReplyLatencyHistogram h = new ReplyLatencyHistogram();
+        assertEquals(-1, h.getPercentileUs(50));
+        for(int i = 0; i < 90; i++)
+        {
+            h.addMeasurement(Protocol.ORDER_RESUME, 80 * 1000);
+        }
+        for(int i = 0; i < 9; i++)
+        {
+            h.addMeasurement(Protocol.ORDER_REQ_TEMPERATURE, 4 * 1000 * 1000);
+        }
+        h.addMeasurement(Protocol.ORDER_REQ_TEMPERATURE, 300 * 1000 * 1000);
+        assertEquals(100, h.getNumberOfReplies());
+        // <= 100us
+        assertEquals(100, h.getPercentileUs(50));
+        assertEquals(100, h.getPercentileUs(90));
+        // <= 5ms
+        assertEquals(5000, h.getPercentileUs(99));
+        // above the last bucket the maximum is reported
+        assertEquals(300 * 1000, h.getPercentileUs(100));
+    }
+
+    @Test
+    public void testCounters() throws Exception
+    {
+        final LoopbackClientConnection cc = new LoopbackClientConnection();
+        assertTrue(cc.connect());
+        final ConnectionMetrics m = cc.getMetrics();
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final Set<ObjectName> names = server.queryNames(
+                new ObjectName(ConnectionMetrics.JMX_DOMAIN + ":type=ClientConnection,id=" + cc.getId() + ",*"), null);
+        assertEquals(1, names.size());
+        final ObjectName name = names.iterator().next();
+        for(int i = 0; i < 10; i++)
+        {
+            final OrderFrame frame = cc.startOrder(Protocol.ORDER_REQ_TEMPERATURE);
+            frame.putByte(Protocol.DEVICE_TYPE_TEMPERATURE_SENSOR);
+            frame.putByte(i);
+            assertTrue(cc.sendOrder(frame).isOKReply());
+        }
+        assertTrue(cc.sendRequest(Protocol.ORDER_RESUME, null, null).isOKReply());
+        assertEquals(10, m.getFramesSent(Protocol.ORDER_REQ_TEMPERATURE));
+        assertEquals(11, m.getFramesSent());
+        assertEquals(11, m.getFramesReceived());
+        // 10 frames with 2 parameter bytes, one without parameter.
+        assertEquals((10 * 7) + 5, m.getBytesSent());
+        // OK replies have no parameter
+        assertEquals(11 * 5, m.getBytesReceived());
+        assertEquals(0, m.getRetransmissions());
+        assertEquals(0, m.getCrcErrors());
+        assertTrue(0 <= m.getRoundTripTimeP50Us());
+        assertTrue(m.getRoundTripTimeP50Us() <= m.getRoundTripTimeP99Us());
+        assertEquals(11L, server.getAttribute(name, "FramesSent"));
+        m.clientQueueState(17, 3);
+        assertEquals(17, server.getAttribute(name, "ClientQueueFreeSlots"));
+        assertTrue(m.toString().contains("frames sent: 11"));
+        server.invoke(name, "reset", null, null);
+        assertEquals(0, m.getFramesSent());
+        cc.disconnect();
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testResendAfterTimeoutIsRetransmission() throws Exception
+    {
+        final LoopbackClientConnection cc = new LoopbackClientConnection()
+        {
+            private boolean dropped = false;
+
+            @Override
+            protected void writeBytes(ByteBuffer buf) throws IOException
+            {
+                if(false == dropped)
+                {
+                    // lost on the way to the client -> no reply -> timeout
+                    dropped = true;
+                    buf.position(buf.limit());
+                    return;
+                }
+                super.writeBytes(buf);
+            }
+        };
+        assertTrue(cc.connect());
+        final ConnectionMetrics m = cc.getMetrics();
+        assertTrue(cc.sendRequest(Protocol.ORDER_RESUME, null, null).isOKReply());
+        assertEquals(1, m.getTimeouts());
+        assertEquals(1, m.getFramesSent());
+        assertEquals(1, m.getRetransmissions());
+        cc.disconnect();
+    }
+}
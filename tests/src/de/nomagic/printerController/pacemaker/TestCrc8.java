@@ -0,0 +1,119 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestCrc8
+{
+    // bit by bit, most significant bit first.
+    private static byte referenceCrc(byte[] buf, int offset, int length)
+    {
+        int crc = 0;
+        for(int i = offset; i < offset + length; i++)
+        {
+            crc = crc ^ (0xff & buf[i]);
+            for(int bit = 0; bit < 8; bit++)
+            {
+                if(0 != (crc & 0x80))
+                {
+                    crc = ((crc << 1) ^ Crc8.POLYNOMIAL) & 0xff;
+                }
+                else
+                {
+                    crc = (crc << 1) & 0xff;
+                }
+            }
+        }
+        return (byte)crc;
+    }
+
+    @Test
+    public void testOkReply()
+    {
+        // sync, length, control, reply code, CRC
+        final byte[] frame = {0x42, 2, 3, 0x10, 0};
+        frame[4] = Crc8.calculate(frame, 1, 3);
+        assertEquals(referenceCrc(frame, 1, 3), frame[4]);
+        // the CRC over the data and the CRC is 0
+        assertEquals(0, Crc8.calculate(frame, 1, 4));
+    }
+
+    @Test
+    public void testVariants()
+    {
+        final Random rnd = new Random(42);
+        final byte[] buf = new byte[260];
+        rnd.nextBytes(buf);
+        for(int length = 0; length < 256; length++)
+        {
+            final byte expected = referenceCrc(buf, 3, length);
+            assertEquals(expected, Crc8.calculate(buf, 3, length));
+            assertEquals(expected, Crc8.updateByteWise((byte)0, buf, 3, length));
+            assertEquals(expected, Crc8.updateSliceBy4((byte)0, buf, 3, length));
+            assertEquals(expected, Crc8.updateSliceBy8((byte)0, buf, 3, length));
+        }
+    }
+
+    @Test
+    public void testIncremental()
+    {
+        final Random rnd = new Random(7);
+        final byte[] buf = new byte[200];
+        rnd.nextBytes(buf);
+        final byte expected = referenceCrc(buf, 0, buf.length);
+
+        final Crc8 crc = new Crc8();
+        for(int i = 0; i < buf.length; i++)
+        {
+            crc.update(buf[i]);
+        }
+        assertEquals(expected, crc.getValue());
+
+        crc.reset();
+        crc.update(buf, 0, 5);
+        crc.update(buf, 5, 100);
+        crc.update(buf, 105, 95);
+        assertEquals(expected, crc.getValue());
+
+        crc.reset();
+        final ByteBuffer bb = ByteBuffer.wrap(buf);
+        bb.limit(50);
+        crc.update(bb);
+        assertEquals(50, bb.position());
+        bb.limit(buf.length);
+        crc.update(bb);
+        assertFalse(bb.hasRemaining());
+        assertEquals(expected, crc.getValue());
+
+        crc.reset();
+        final ByteBuffer direct = ByteBuffer.allocateDirect(buf.length);
+        direct.put(buf);
+        direct.flip();
+        crc.update(direct);
+        assertEquals(expected, crc.getValue());
+    }
+
+}
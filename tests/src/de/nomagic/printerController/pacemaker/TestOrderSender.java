@@ -0,0 +1,63 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import de.nomagic.test.pacemaker.LoopbackClientConnection;
+
+/**
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestOrderSender
+{
+
+    @Test
+    public void testAsyncOrders() throws InterruptedException
+    {
+        final LoopbackClientConnection cc = new LoopbackClientConnection();
+        assertTrue(cc.connect());
+        cc.setMaxFramesInFlight(Protocol.MAX_FRAMES_IN_FLIGHT);
+        // more orders than sequence numbers and frames in the pool
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final CompletableFuture<Reply>[] replies = new CompletableFuture[50];
+        for(int i = 0; i < replies.length; i++)
+        {
+            final OrderFrame frame = cc.startOrder(Protocol.ORDER_REQ_TEMPERATURE);
+            frame.putByte(Protocol.DEVICE_TYPE_TEMPERATURE_SENSOR);
+            frame.putByte(i);
+            replies[i] = cc.sendOrderAsync(frame);
+        }
+        for(int i = 0; i < replies.length; i++)
+        {
+            final Reply r = replies[i].join();
+            assertNotNull(r);
+            assertTrue(r.isOKReply());
+        }
+        assertEquals(replies.length, cc.getReplyLatencyHistogram().getNumberOfReplies(Protocol.ORDER_REQ_TEMPERATURE));
+        // the synchronous API waits for the same future
+        assertTrue(cc.sendRequest(Protocol.ORDER_REQ_INFORMATION, new byte[] {(byte)Protocol.INFO_FIRMWARE_TYPE}, null).isOKReply());
+        cc.disconnect();
+        cc.join(1000);
+        assertNull(cc.sendOrderAsync(cc.startOrder(Protocol.ORDER_REQ_INFORMATION)).join());
+    }
+
+}
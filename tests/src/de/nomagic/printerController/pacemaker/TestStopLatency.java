@@ -0,0 +1,145 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License version 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>
+ *
+ */
+package de.nomagic.printerController.pacemaker;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import de.nomagic.test.pacemaker.LatencyOutputStream;
+import de.nomagic.test.pacemaker.ProtocolClient;
+
+/** measures how long a stop order takes while the connection is busy with queue blocks.
+ *
+ * The client is the simulator, its replies are delayed to get the round trip time of a real board.
+ *
+ * @author Lars P&ouml;tter
+ * (<a href=mailto:Lars_Poetter@gmx.de>Lars_Poetter@gmx.de</a>)
+ *
+ */
+public class TestStopLatency
+{
+    private static final int LATENCY_MS = 50;
+    // more than fit into the transmission window
+    private static final int NUMBER_OF_BULK_THREADS = 12;
+    private static final int NUMBER_OF_STOPS = 10;
+
+    private volatile boolean isFlooding = true;
+
+    private long getWorstStopLatencyMs(final boolean windowed) throws IOException, InterruptedException
+    {
+        final ServerSocket server = new ServerSocket(0);
+        final Thread client = new Thread("Simulated Client")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    final Socket s = server.accept();
+                    s.setTcpNoDelay(true);
+                    final ProtocolClient pc = new ProtocolClient(s.getInputStream(),
+                                                                 new LatencyOutputStream(s.getOutputStream(), LATENCY_MS),
+                                                                 new HardwareMock(),
+                                                                 windowed);
+                    pc.communicate();
+                }
+                catch(IOException e)
+                {
+                    // connection closed
+                }
+            }
+        };
+        client.setDaemon(true);
+        client.start();
+        final TcpClientConnection cc = new TcpClientConnection("localhost:" + server.getLocalPort());
+        assertTrue(cc.connect());
+        // the client starts in the stopped state
+        final OrderFrame resume = cc.startOrder(Protocol.ORDER_RESUME);
+        resume.putByte(Protocol.CLEAR_STOPPED_STATE);
+        assertTrue(cc.sendOrder(resume).isOKReply());
+        if(true == windowed)
+        {
+            cc.setMaxFramesInFlight(Protocol.MAX_FRAMES_IN_FLIGHT);
+        }
+        isFlooding = true;
+        final Thread[] bulk = new Thread[NUMBER_OF_BULK_THREADS];
+        for(int i = 0; i < bulk.length; i++)
+        {
+            bulk[i] = new Thread("Bulk-" + i)
+            {
+                @Override
+                public void run()
+                {
+                    while(true == isFlooding)
+                    {
+                        cc.sendOrder(cc.startOrder(Protocol.ORDER_QUEUE_COMMAND_BLOCKS));
+                    }
+                }
+            };
+            bulk[i].start();
+        }
+        Thread.sleep(10 * LATENCY_MS);
+        long worst = 0;
+        // the first stop orders are the warm up
+        for(int i = -2; i < NUMBER_OF_STOPS; i++)
+        {
+            final OrderFrame frame = cc.startOrder(Protocol.ORDER_STOP_PRINT);
+            frame.putByte(Protocol.ORDERED_STOP);
+            final long start = System.nanoTime();
+            final Reply r = cc.sendOrder(frame);
+            final long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertNotNull(r);
+            assertTrue(r.isOKReply());
+            if(0 <= i)
+            {
+                worst = Math.max(worst, latency);
+            }
+            Thread.sleep(LATENCY_MS / 2);
+        }
+        isFlooding = false;
+        for(int i = 0; i < bulk.length; i++)
+        {
+            bulk[i].join();
+        }
+        cc.disconnect();
+        server.close();
+        return worst;
+    }
+
+    @Test
+    public void testStopAndWait() throws IOException, InterruptedException
+    {
+        final long worst = getWorstStopLatencyMs(false);
+        System.out.println("stop and wait: worst stop latency " + worst + " ms (round trip " + LATENCY_MS + " ms)");
+        // the stop order waits for the frame in flight, but not for the waiting queue blocks.
+        assertTrue(worst < 3 * LATENCY_MS);
+    }
+
+    @Test
+    public void testWindowed() throws IOException, InterruptedException
+    {
+        final long worst = getWorstStopLatencyMs(true);
+        System.out.println("windowed: worst stop latency " + worst + " ms (round trip " + LATENCY_MS + " ms)");
+        // a slot of the window is reserved for the stop order.
+        assertTrue(worst < 2 * LATENCY_MS);
+    }
+
+}